@@ -3,13 +3,16 @@ package app_kvEcs;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
 import java.util.SortedMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import logger.LogSetup;
 
@@ -18,12 +21,15 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import common.InfrastructureMetadata;
+import common.NamedThreadFactory;
 import common.ServerData;
+import common.VirtualThreads;
 import common.communicator.ECSServerCommunicator;
 import common.messages.ECSMessage;
 import common.messages.ECSStatusType;
 import common.messages.InvalidMessageException;
 import consistent_hashing.ConsistentHashing;
+import consistent_hashing.HashKey;
 
 public class ECS {
 
@@ -31,9 +37,18 @@ public class ECS {
 	private InfrastructureMetadata storageService;
 	private ConsistentHashing hashing;
 	private Random generator;
+	/* sends the messages to all nodes at once, a virtual thread per node where available */
+	private final ExecutorService nodeExecutor = VirtualThreads.newThreadPerTaskExecutor(new NamedThreadFactory("ECS node-", 0));
 
 	protected Logger logger;
 
+	/**
+	 * A call to one node of the storage service.
+	 */
+	private interface NodeCall {
+		void call(ECSServerCommunicator node);
+	}
+
 	/**
 	 * Initialize a new ECS.
 	 */
@@ -59,21 +74,25 @@ public class ECS {
 			}
 		}
 		
+		final byte[] message;
 		try {
 			logger.info("Initializing the metadata for the servers.");
-			ECSServerCommunicator server;
-			ECSMessage message = new ECSMessage(ECSStatusType.INIT, storageService);
-			for (ServerData kvServer : storageService.getServers()) {
-				server = (ECSServerCommunicator) kvServer;
-				server.sendMessage(message.toBytes());
-			}
+			message = new ECSMessage(ECSStatusType.INIT, storageService).toBytes();
 		} catch (InvalidMessageException e) {
 			logger.error("Problems creating the message. Please check the protocol specification."	);
-		} catch (SocketTimeoutException e) {
-			logger.error("Couldn't send the message within the established time. Check with the server is on and try again.");
-		} catch (IOException e) {
-			logger.error("Couldn't send the message. Check with the server is on and try again.");
+			return;
 		}
+		forEachNode(new NodeCall() {
+			public void call(ECSServerCommunicator server) {
+				try {
+					server.sendMessage(message);
+				} catch (SocketTimeoutException e) {
+					logger.error("Couldn't send the message within the established time. Check with the server is on and try again.");
+				} catch (IOException e) {
+					logger.error("Couldn't send the message. Check with the server is on and try again.");
+				}
+			}
+		});
 	}
 
 	/**
@@ -154,8 +173,8 @@ public class ECS {
 			return;
 		}
 		
-		BigInteger startIndex = getStartIndex(node);
-		BigInteger endIndex = getEndIndex(node);
+		HashKey startIndex = getStartIndex(node);
+		HashKey endIndex = getEndIndex(node);
 
 		logger.info("Preparing to remove server: " + node.getAddress() + ":" + node.getPort());
 		storageService.removeServer(node.getAddress(), node.getPort());
@@ -202,9 +221,11 @@ public class ECS {
 	 */
 	public void start() {
 		logger.info("Starting the service.");
-		for (ServerData node : storageService.getServers()) {
-			startNode((ECSServerCommunicator) node);
-		}
+		forEachNode(new NodeCall() {
+			public void call(ECSServerCommunicator node) {
+				startNode(node);
+			}
+		});
 	}
 
 	/**
@@ -212,35 +233,34 @@ public class ECS {
 	 */
 	public void stop() {
 		logger.info("Stopping the service.");
-		for (ServerData node : storageService.getServers()) {
-			stopNode((ECSServerCommunicator) node);
-		}
+		forEachNode(new NodeCall() {
+			public void call(ECSServerCommunicator node) {
+				stopNode(node);
+			}
+		});
 	}
 
 	/**
 	 * Stops all server instances and exits the remote processes.
 	 */
 	public void shutDown() {
-		ECSServerCommunicator serverCommunication;
-		ECSMessage ecsMessage;
-
 		logger.info("Shutting down the service.");
 
-		for (ServerData server : storageService.getServers()) {
-			serverCommunication = (ECSServerCommunicator) server;
-
-			try {
-				ecsMessage = new ECSMessage(ECSStatusType.SHUTDOWN);
-				serverCommunication.sendMessage(ecsMessage.toBytes());
-				serverCommunication.disconnect();
-			} catch (InvalidMessageException e) {
-				logger.error("Problems creating the message. Please check the protocol specification.");
-			} catch (SocketTimeoutException e) {
-				logger.error("Couldn't send the message within the established time. Check with the server is on and try again.");
-			} catch (IOException e) {
-				logger.error("Couldn't send the message within the established time. Check with the server is on and try again.");
+		forEachNode(new NodeCall() {
+			public void call(ECSServerCommunicator serverCommunication) {
+				try {
+					ECSMessage ecsMessage = new ECSMessage(ECSStatusType.SHUTDOWN);
+					serverCommunication.sendMessage(ecsMessage.toBytes());
+					serverCommunication.disconnect();
+				} catch (InvalidMessageException e) {
+					logger.error("Problems creating the message. Please check the protocol specification.");
+				} catch (SocketTimeoutException e) {
+					logger.error("Couldn't send the message within the established time. Check with the server is on and try again.");
+				} catch (IOException e) {
+					logger.error("Couldn't send the message within the established time. Check with the server is on and try again.");
+				}
 			}
-		}
+		});
 
 		serverRepository = new InfrastructureMetadata();
 		storageService = new InfrastructureMetadata();
@@ -378,11 +398,11 @@ public class ECS {
 		return (ECSServerCommunicator) servers.get(randomIndex);
 	}
 
-	private BigInteger getStartIndex(ECSServerCommunicator node) {
-		SortedMap<BigInteger, String> hashCircle = hashing.getHashCircle();
-		Iterator<BigInteger> iterator = hashCircle.keySet().iterator();
-		BigInteger startIndex = null;
-		BigInteger endIndex = null;
+	private HashKey getStartIndex(ECSServerCommunicator node) {
+		SortedMap<HashKey, String> hashCircle = hashing.getHashCircle();
+		Iterator<HashKey> iterator = hashCircle.keySet().iterator();
+		HashKey startIndex = null;
+		HashKey endIndex = null;
 
 		if (iterator.hasNext()) {
 			startIndex = hashCircle.lastKey();
@@ -404,9 +424,9 @@ public class ECS {
 		return startIndex;
 	}
 
-	private BigInteger getEndIndex(ECSServerCommunicator node) {
-		SortedMap<BigInteger, String> hashCircle = hashing.getHashCircle();
-		for (BigInteger endIndex : hashCircle.keySet()) {
+	private HashKey getEndIndex(ECSServerCommunicator node) {
+		SortedMap<HashKey, String> hashCircle = hashing.getHashCircle();
+		for (HashKey endIndex : hashCircle.keySet()) {
 			String[] server = hashCircle.get(endIndex).split(":");
 			String address = server[0];
 			int port = Integer.parseInt(server[1]);
@@ -418,10 +438,10 @@ public class ECS {
 	}
 
 	private ECSServerCommunicator getNextNode(ECSServerCommunicator node) {
-		SortedMap<BigInteger, String> hashCircle = hashing.getHashCircle();
+		SortedMap<HashKey, String> hashCircle = hashing.getHashCircle();
 		boolean next = false;
 
-		for (BigInteger hashValue : hashCircle.keySet()) {
+		for (HashKey hashValue : hashCircle.keySet()) {
 			if (next) {
 				return getServer(hashValue);
 			} else if (hashCircle.get(hashValue).equals(node.getAddress() + ":" + node.getPort())) {
@@ -436,7 +456,7 @@ public class ECS {
 		return null;
 	}
 
-	private ECSServerCommunicator getServer(BigInteger hashValue) {
+	private ECSServerCommunicator getServer(HashKey hashValue) {
 		String[] addressAndPort = hashing.getHashCircle().get(hashValue).split(":");
 		String address = addressAndPort[0];
 		int port = Integer.parseInt(addressAndPort[1]);
@@ -466,27 +486,51 @@ public class ECS {
 	}
 
 	public void getStatus() {
-		ECSServerCommunicator serverCommunication;
-		ECSMessage ecsMessage;
-
 		logger.info("Getting the data status of the service.");
 		
 		if (storageService.getServers().size() == 0) {
 			logger.info("There are no ECS managed running servers.");
 		} else {
-			for (ServerData server : storageService.getServers()) {
-				serverCommunication = (ECSServerCommunicator) server;
-	
-				try {
-					ecsMessage = new ECSMessage(ECSStatusType.GET_STATUS);
-					serverCommunication.sendMessage(ecsMessage.toBytes());
-				} catch (InvalidMessageException e) {
-					logger.error("Problems creating the message. Please check the protocol specification.");
-				} catch (SocketTimeoutException e) {
-					logger.error("Couldn't send the message within the established time. Check with the server is on and try again.");
-				} catch (IOException e) {
-					logger.error("Couldn't send the message within the established time. Check with the server is on and try again.");
+			forEachNode(new NodeCall() {
+				public void call(ECSServerCommunicator serverCommunication) {
+					try {
+						ECSMessage ecsMessage = new ECSMessage(ECSStatusType.GET_STATUS);
+						serverCommunication.sendMessage(ecsMessage.toBytes());
+					} catch (InvalidMessageException e) {
+						logger.error("Problems creating the message. Please check the protocol specification.");
+					} catch (SocketTimeoutException e) {
+						logger.error("Couldn't send the message within the established time. Check with the server is on and try again.");
+					} catch (IOException e) {
+						logger.error("Couldn't send the message within the established time. Check with the server is on and try again.");
+					}
 				}
+			});
+		}
+	}
+
+	/*
+	 * Run the call for all nodes of the storage service at once and wait until all are done,
+	 * so a broadcast takes as long as the slowest node instead of the sum of all nodes.
+	 */
+	private void forEachNode(final NodeCall call) {
+		List<Future<?>> calls = new ArrayList<Future<?>>();
+		for (ServerData server : storageService.getServers()) {
+			final ECSServerCommunicator node = (ECSServerCommunicator) server;
+			calls.add(nodeExecutor.submit(new Runnable() {
+				public void run() {
+					call.call(node);
+				}
+			}));
+		}
+		for (Future<?> result : calls) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				logger.error("Interrupted while waiting for the nodes.");
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				logger.error("Call to a node failed: " + e.getCause());
 			}
 		}
 	}
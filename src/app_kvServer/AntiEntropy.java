@@ -0,0 +1,234 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import logger.LogSetup;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import common.Settings;
+import common.communicator.ServerServerCommunicator;
+import common.messages.InvalidMessageException;
+import common.messages.ServerServerMessage;
+import common.messages.ServerServerStatustype;
+import consistent_hashing.HashKey;
+
+/**
+ * Repairs the copies of the data of this server held by its successors, which diverge when an update
+ * is lost, e.g. because a successor restarted or a replication batch was dropped.
+ * Every {@link Settings#ANTI_ENTROPY_INTERVAL_MS} the {@link MerkleTree} of the own data is compared
+ * with that of each copy from the root down: SERVER_MERKLE asks for the hashes of the children of the
+ * nodes that differ, SERVER_MERKLE_KEYS for the keys of the leaves that differ. Only the keys whose
+ * value differs are sent, with their current value and version stamp, as SERVER_REPAIR messages of about
+ * {@link Settings#REPLICATION_BATCH_BYTES} followed by a SERVER_ACK. The data sent grows with the
+ * number of differing keys, not with the size of the data; equal copies cost one request.
+ * Both sides keep their trees up to date on every put and delete instead of building them each round,
+ * see {@link KVServer#getMerkleTree(int, int)}; the leaves whose keys were compared are set from them.
+ * <p>
+ * The values are read and sent while holding the communicator, like the batches of a {@link ReplicationQueue},
+ * so a repair never overtakes a newer update of the same key.
+ */
+class AntiEntropy implements Runnable {
+	private static final Logger logger = new LogSetup("logs/server.log", "Server", Level.ALL).getLogger();
+
+	private final KVServer server;
+	private boolean stopped = false;
+	private long rounds = 0;
+
+	AntiEntropy(KVServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Start the comparisons on a thread of its own, unless they are disabled.
+	 */
+	void start() {
+		if (Settings.ANTI_ENTROPY_INTERVAL_MS <= 0) {
+			return;
+		}
+		Thread thread = new Thread(this, "SERVER anti-entropy");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	synchronized void stop() {
+		stopped = true;
+		notifyAll();
+	}
+
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				long end = System.currentTimeMillis() + Settings.ANTI_ENTROPY_INTERVAL_MS;
+				long remaining;
+				while (!stopped && (remaining = end - System.currentTimeMillis()) > 0) {
+					try {
+						wait(remaining);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (stopped) {
+					return;
+				}
+			}
+			for (int numServer = 1; numServer <= 2; numServer++) {
+				ServerServerCommunicator replica = currentReplica(numServer);
+				if (replica == null) {
+					continue;
+				}
+				try {
+					repair(replica, numServer);
+				} catch (IOException e) {
+					logger.warn("Anti-entropy with " + replica.getName() + " failed: " + e.getMessage());
+				} catch (InvalidMessageException e) {
+					logger.error("Problems creating the message. Please check the protocol specification.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compare the copy of a successor with the own data and send the keys that differ.
+	 * @param replica the successor
+	 * @param numServer position of the successor, 1 for the next server and 2 for the one after it
+	 * @return number of keys sent
+	 * @throws IOException if the successor did not answer or its answer does not match the request
+	 */
+	int repair(ServerServerCommunicator replica, int numServer) throws IOException, InvalidMessageException {
+		StorageEngine data = server.getKvdata();
+		int depth = MerkleTree.depthFor(data.size());
+		MerkleTree tree = server.getMerkleTree(0, depth);
+
+		int[] nodes = { 0 };
+		int compared = 0;
+		for (int level = 0; level <= depth && nodes.length > 0; level++) {
+			ServerServerMessage reply = replica.request(new ServerServerMessage(ServerServerStatustype.SERVER_MERKLE, numServer, depth, level, nodes));
+			long[] hashes = reply.getHashes();
+			if (!reply.isReply() || reply.getDepth() != depth || reply.getLevel() != level || hashes.length != nodes.length) {
+				throw new IOException("The reply to SERVER_MERKLE does not match the request.");
+			}
+			compared += nodes.length;
+			List<Integer> differing = new ArrayList<Integer>();
+			for (int i = 0; i < nodes.length; i++) {
+				if (hashes[i] != tree.getHash(level, nodes[i])) {
+					differing.add(nodes[i]);
+				}
+			}
+			nodes = level < depth ? children(differing) : toArray(differing);
+		}
+		if (nodes.length == 0) {
+			return 0;
+		}
+
+		ServerServerMessage reply = replica.request(new ServerServerMessage(ServerServerStatustype.SERVER_MERKLE_KEYS, numServer, depth, nodes));
+		if (!reply.isReply() || reply.getDepth() != depth) {
+			throw new IOException("The reply to SERVER_MERKLE_KEYS does not match the request.");
+		}
+		Map<HashKey, Long> remote = new HashMap<HashKey, Long>();
+		for (int i = 0; i < reply.getHashKeys().length; i++) {
+			remote.put(reply.getHashKeys()[i], reply.getHashes()[i]);
+		}
+		Set<Integer> leaves = new HashSet<Integer>();
+		for (int leaf : nodes) {
+			leaves.add(leaf);
+		}
+		Map<HashKey, Long> local = MerkleTree.entryHashes(data, depth, leaves);
+		tree.setLeaves(leaves, local);
+		Set<HashKey> keys = new HashSet<HashKey>();
+		for (Map.Entry<HashKey, Long> entry : local.entrySet()) {
+			if (!entry.getValue().equals(remote.get(entry.getKey()))) {
+				keys.add(entry.getKey());
+			}
+		}
+		for (HashKey key : remote.keySet()) {
+			if (!local.containsKey(key)) {
+				keys.add(key);
+			}
+		}
+
+		send(replica, numServer, keys);
+		logger.info("Anti-entropy with " + replica.getName() + ": compared " + compared + " nodes of depth " + depth + ", "
+				+ nodes.length + " leaves differ, repaired " + keys.size() + " keys");
+		return keys.size();
+	}
+
+	/*
+	 * The current values of the keys, "null" for deleted keys, with their version stamps
+	 */
+	private void send(ServerServerCommunicator replica, int numServer, Set<HashKey> keys) throws IOException, InvalidMessageException {
+		if (keys.isEmpty()) {
+			return;
+		}
+		KeyVersions keyVersions = server.getVersions(0);
+		synchronized (replica) {
+			List<ServerServerMessage> messages = new ArrayList<ServerServerMessage>();
+			List<Map.Entry<HashKey, String>> entries = new ArrayList<Map.Entry<HashKey, String>>();
+			List<Long> versions = new ArrayList<Long>();
+			int bytes = 0;
+			for (HashKey key : keys) {
+				String value;
+				long version;
+				synchronized (keyVersions.lockFor(key)) {
+					value = server.getKvdata().get(key);
+					version = keyVersions.get(key);
+				}
+				if (value == null) {
+					value = "null";
+				}
+				entries.add(new AbstractMap.SimpleImmutableEntry<HashKey, String>(key, value));
+				versions.add(version);
+				bytes += HashKey.SIZE + value.length();
+				if (bytes >= Settings.REPLICATION_BATCH_BYTES) {
+					messages.add(repairMessage(numServer, entries, versions));
+					entries = new ArrayList<Map.Entry<HashKey, String>>();
+					versions = new ArrayList<Long>();
+					bytes = 0;
+				}
+			}
+			if (!entries.isEmpty()) {
+				messages.add(repairMessage(numServer, entries, versions));
+			}
+			replica.sendAndAwaitAck(messages, numServer, ++rounds);
+		}
+	}
+
+	private static ServerServerMessage repairMessage(int numServer, List<Map.Entry<HashKey, String>> entries, List<Long> versions)
+			throws InvalidMessageException {
+		long[] stamps = new long[versions.size()];
+		for (int i = 0; i < stamps.length; i++) {
+			stamps[i] = versions.get(i);
+		}
+		return new ServerServerMessage(ServerServerStatustype.SERVER_REPAIR, numServer, entries, stamps);
+	}
+
+	private static int[] children(List<Integer> nodes) {
+		int[] children = new int[nodes.size() * MerkleTree.FANOUT];
+		for (int i = 0; i < nodes.size(); i++) {
+			for (int child = 0; child < MerkleTree.FANOUT; child++) {
+				children[i * MerkleTree.FANOUT + child] = nodes.get(i) * MerkleTree.FANOUT + child;
+			}
+		}
+		return children;
+	}
+
+	private static int[] toArray(List<Integer> nodes) {
+		int[] array = new int[nodes.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = nodes.get(i);
+		}
+		return array;
+	}
+
+	private ServerServerCommunicator currentReplica(int numServer) {
+		return numServer == 1 ? server.getNextServer() : server.getNextNextServer();
+	}
+}
@@ -4,22 +4,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
-import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-
-import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 import logger.LogSetup;
 
@@ -28,7 +27,10 @@ import org.apache.log4j.Logger;
 
 import crypto_protocol.HandshakeException;
 import crypto_protocol.Message;
+import crypto_protocol.MessageCodec;
 import crypto_protocol.MessageType;
+import crypto_protocol.CipherSuites;
+import crypto_protocol.CredentialStore;
 import crypto_protocol.ClientInitMessage;
 import crypto_protocol.ClientKeyExchangeMessage;
 import crypto_protocol.SessionException;
@@ -39,33 +41,52 @@ import crypto_protocol.ServerAuthConfirmationMessage;
 import common.ServerData;
 import crypto_protocol.ServerInitMessage;
 import crypto_protocol.SessionInfo;
+import crypto_protocol.SessionTicketKey;
 import common.Settings;
+import common.messages.BinaryCodec;
+import common.messages.Consistency;
 import common.messages.ECSMessage;
 import common.messages.ECSStatusType;
+import common.messages.Frame;
+import common.messages.FrameDecoder;
 import common.messages.InvalidMessageException;
 import common.messages.KVMessage;
 import common.messages.KVQuery;
 import common.messages.ServerServerMessage;
-import common.messages.ServerServerStatustype;
 import consistent_hashing.ConsistentHashing;
 import consistent_hashing.EmptyServerDataException;
+import consistent_hashing.HashKey;
 /**
  * Represents a connection end point for a particular client that is 
  * connected to the server. This class is responsible for message reception 
  * and sending. 
  * @author Udhayaraj Sivalingam 
  */
-public class ClientConnection implements Runnable {
+public class ClientConnection implements Runnable, FrameHandler {
+	/* steps of the secure handshake with a client, one message is received per step */
+	private enum HandshakeState {
+		AWAIT_CLIENT_INIT, AWAIT_KEY_EXCHANGE, COMPLETE
+	}
+
+	private static final Logger logger = new LogSetup("logs/server.log", "Server", Level.ALL).getLogger();
 	private KVServer serverInstance;
-	private Logger logger;
-	private static final int BUFFER_SIZE = 1024;
 	private Socket clientSocket;
 	private InputStream input;
+	private FrameDecoder frameDecoder;
 	private OutputStream output;
 	private boolean isOpen;
 	private SessionInfo session;
-	private boolean handshakeComplete = false;
+	/* the credentials of the server when the handshake started */
+	private CredentialStore credentials;
+	private HandshakeState handshakeState = HandshakeState.AWAIT_CLIENT_INIT;
+	/* the client sent its handshake messages Java serialized, the replies are serialized as well */
+	private boolean serializedHandshake;
 	private Ident partner;
+	private String connectSuccess;
+	/* replies are sent in the binary format, negotiated at CONNECT */
+	private boolean binaryProtocol;
+	/* id of the request being processed, copied to its replies; requests are processed in order */
+	private int requestId;
 
 	public boolean isOpen() {
 		return isOpen;
@@ -84,17 +105,56 @@ public class ClientConnection implements Runnable {
 		this.clientSocket = clientSocket;
 		this.isOpen = true;
 		this.serverInstance = serverInstance;
+	}
 
-		LogSetup ls = new LogSetup("logs/server.log", "Server", Level.ALL);
-		this.logger = ls.getLogger();
+	/**
+	 * Constructs a ClientConnection for a socket that is read by a {@link NioServer}.
+	 * The received frames are passed to {@link #processFrame(int, int, byte[])}, replies are written to the given stream.
+	 * @param clientSocket the socket of the non-blocking channel
+	 * @param output stream that sends each flushed frame over the channel, closing it closes the connection
+	 * @throws IOException if the session could not be created
+	 */
+	public ClientConnection(Socket clientSocket, KVServer serverInstance, OutputStream output) throws IOException {
+		this(clientSocket, serverInstance);
+		this.output = output;
+		openSession();
+	}
+
+	private void openSession() throws IOException {
+		connectSuccess = "Connection to MSRG Echo server established: " 
+				+ clientSocket.getLocalAddress() + " / "
+				+ clientSocket.getLocalPort();
+
+		try {
+			session = new SessionInfo(clientSocket.getLocalAddress().getHostAddress() + ":" + clientSocket.getLocalPort(), Settings.TRANSFER_ENCRYPTION);
+			session.setClientAuthRequired(false);
+		} catch (SessionException e2) {
+			throw new IOException("Unable to create session:\n" + e2.getMessage());
+		}
 	}
 
 	/**
-	 * General receive method
+	 * General receive method. Handshake messages in the {@link MessageCodec} encoding are decoded,
+	 * Java serialized messages of older clients only if {@link Settings#ACCEPT_SERIALIZED_HANDSHAKE} is set.
+	 * The replies use the encoding of the received message.
 	 * @return Message received Message
 	 * @throws IOException
 	 */
 	public Message bytesToMessage(byte[] bytes) throws IOException {
+		if (MessageCodec.isEncoded(bytes)) {
+			serializedHandshake = false;
+			try {
+				Message message = MessageCodec.decode(bytes);
+				logger.info("RECEIVE << " + message);
+				return message;
+			} catch (InvalidMessageException e) {
+				throw new IOException("Received an invalid handshake message: " + e.getMessage());
+			}
+		}
+		if (!Settings.ACCEPT_SERIALIZED_HANDSHAKE) {
+			throw new IOException("Received a Java serialized handshake message, which is not accepted.");
+		}
+		serializedHandshake = true;
 
 		try {
 			Object input =  CommonCrypto.objectFromByteArray(bytes);
@@ -157,23 +217,72 @@ public class ClientConnection implements Runnable {
 		}
 
 		logger.info("SEND >> " + obj.toString());
-		byte[] bytes = CommonCrypto.objectToByteArray(obj);
+		byte[] bytes = serializedHandshake || !(obj instanceof Message) ? CommonCrypto.objectToByteArray(obj) : MessageCodec.encode((Message) obj);
 		sendMessage(bytes);
 	}
 
-	private void performHandshake(Socket clientSocket, byte[] firstMessage) throws HandshakeException, IOException, SessionException {
+	/**
+	 * Process the next message of the secure handshake.
+	 * On an error the handshake starts again with the next message.
+	 * A session resumed with a ticket is complete after the ClientInitMessage.
+	 */
+	private void performHandshake(byte[] latestMsg) {
+		try {
+			if (handshakeState == HandshakeState.AWAIT_CLIENT_INIT) {
+				handshakeState = receiveClientInit(latestMsg) ? HandshakeState.COMPLETE : HandshakeState.AWAIT_KEY_EXCHANGE;
+			} else {
+				handshakeState = HandshakeState.AWAIT_CLIENT_INIT;
+				receiveClientKeyExchange(latestMsg);
+				handshakeState = HandshakeState.COMPLETE;
+			}
+		} catch (HandshakeException ex) {
+			logger.error("Error during secure handshake:\n" + ex.getMessage());
+			ex.printStackTrace();
+		} catch (IOException ex) {
+			logger.error("Error during secure handshake:\n" + ex.getMessage());
+			ex.printStackTrace();
+		} catch (SessionException ex) {
+			logger.error("Error during secure handshake:\n" + ex.getMessage());
+			ex.printStackTrace();
+		}
+	}
+
+	/*
+	 * Process the next handshake message on the handshake executor of the server and wait for it,
+	 * this limits the handshakes that run at the same time although every connection has a thread.
+	 */
+	private void performHandshakeOnExecutor(final byte[] latestMsg) throws IOException {
+		HandshakeExecutor handshakes = serverInstance.getHandshakeExecutor();
+		if (handshakes == null) {
+			performHandshake(latestMsg);
+			return;
+		}
+		try {
+			handshakes.executeAndWait(new Runnable() {
+				public void run() {
+					performHandshake(latestMsg);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			throw new IOException("Too many pending handshakes, connection closed.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the handshake.");
+		}
+	}
+
+	/*
+	 * Returns true if the session of the client's ticket was resumed
+	 */
+	private boolean receiveClientInit(byte[] firstMessage) throws HandshakeException, IOException, SessionException {
 		session.setServerIP(clientSocket.getLocalAddress().getHostAddress());
 		session.setClientIP(clientSocket.getInetAddress().getHostAddress());
 		session.setLocalPort(clientSocket.getLocalPort());
 		session.setRemotePort(clientSocket.getPort());
 
-		/* Try to import CA Certificate */
-		try {
-			session.setCACertificate(CommonCrypto.importCACertificate(Settings.getCACertPath()));
-		} catch (CertificateException e) {
-			logger.error("Unable to import CA Certificate from file: " + Settings.getCACertPath() + ", or Certificate invalid.\nReason: " + e.getMessage() + "\nClient Application Exiting.");
-			System.exit(1);
-		}
+		/* The CA Certificate was imported once by the server */
+		credentials = KVServer.getCredentials();
+		session.setCACertificate(credentials.getCACertificate());
 
 		// Expect ClientInit
 		Message message = bytesToMessage(firstMessage);
@@ -182,16 +291,31 @@ public class ClientConnection implements Runnable {
 
 		ClientInitMessage clientInitMessage = (ClientInitMessage) message;
 		session.setClientNonce(clientInitMessage.getNonce());	
+		session.setTransferEncryption(CipherSuites.choose(clientInitMessage.getOfferedCiphers()), false);
+		SessionTicketKey.Contents ticket = openSessionTicket(clientInitMessage.getSessionTicket());
 
 		// Send ServerInit
-		ServerInitMessage serverInitMessage = new ServerInitMessage(Settings.TRANSFER_ENCRYPTION, KVServer.serverCertificate, session.isClientAuthRequired());
+		ServerInitMessage serverInitMessage = new ServerInitMessage(session.getTransferEncryption(), credentials.getCertificate(), session.isClientAuthRequired(), ticket != null);
 		session.setServerNonce(serverInitMessage.getNonce());
 		session.setServerCertificate(serverInitMessage.getCertificate());
 		sendObject(serverInitMessage);
+		if (ticket == null) {
+			return false;
+		}
 
+		// Resume the session with the master secret of the ticket, without RSA
+		session.setEncryptedSecret(clientInitMessage.getSessionTicket());
+		session.setMasterSecret(ticket.getMasterSecret());
+		session.setClientCertificate(ticket.getClientCertificate());
+		generateSessionKeys();
+		generateSessionHash();
+		sendAuthConfirmation();
+		return true;
+	}
 
+	private void receiveClientKeyExchange(byte[] latestMsg) throws HandshakeException, IOException, SessionException {
 		// Expect ClientKeyExchangeMessage
-		message = bytesToMessage(receiveMessage(session.getEncKey(), session.getIV()));
+		Message message = bytesToMessage(latestMsg);
 		if (!verifyMessageType(message, MessageType.ClientKeyExchangeMessage))
 			throw new HandshakeException("Invalid Message received.");
 
@@ -200,23 +324,15 @@ public class ClientConnection implements Runnable {
 		session.setEncryptedSecret(clientKeyExchangeMessage.getEncryptedSecret());	
 
 		// Decrypt the master secret
-		session.setMasterSecret(CommonCrypto.decryptRSA(clientKeyExchangeMessage.getEncryptedSecret(), Settings.ALGORITHM_ENCRYPTION, KVServer.getPrivateKey()));
+		session.setMasterSecret(CommonCrypto.decryptRSA(clientKeyExchangeMessage.getEncryptedSecret(), Settings.ALGORITHM_ENCRYPTION, credentials.getPrivateKey()));
 		logger.debug("RECEIVED & DECRYPTED MASTER SECRET (p): " + new String(session.getMasterSecret(), Settings.CHARSET));
 
-		// Generate session keys for encryption and mac from received master secret
-		try {
-			session.setEncKey(CommonCrypto.generateSessionKey(Settings.ALGORITHM_HASHING, session.getMasterSecret(), session.getClientNonce(), session.getServerNonce(), new String("00000000").getBytes(Settings.CHARSET)));
-			session.setMacKey(CommonCrypto.generateSessionKey(Settings.ALGORITHM_HASHING, session.getMasterSecret(), session.getClientNonce(), session.getServerNonce(), new String("11111111").getBytes(Settings.CHARSET)));
-		} catch (InvalidKeyException e) {
-			throw new HandshakeException ("Unable to generate Session keys, Invalid key: " + Settings.ALGORITHM_ENCRYPTION + ",\nMessage: " + e.getMessage()+ "\nConnection terminated.");
-		} catch (NoSuchAlgorithmException e) {
-			throw new HandshakeException ("Unable to generate Session keys, Invalid cipher: " + Settings.ALGORITHM_ENCRYPTION + ",\nMessage: " + e.getMessage()+ "\nConnection terminated.");
-		}
+		generateSessionKeys();
 
 		// Authenticate Client
 		if (session.isClientAuthRequired()) {
 			try {
-				CommonCrypto.verifyCertificate(session.getClientCertificate(), session.getCACertificate());
+				credentials.verify(session.getClientCertificate());
 			} catch (InvalidKeyException e1) {
 				throw new HandshakeException(e1.getMessage());
 			} catch (CertificateException e1) {
@@ -249,9 +365,38 @@ public class ClientConnection implements Runnable {
 			}
 		}
 
-		// Compute session hash from session information
+		generateSessionHash();
+
+		// Compare generated session hash with session hash received from client
+		if (!(CommonCrypto.isByteArrayEqual(session.getSecureSessionHash(), clientKeyExchangeMessage.getSecureSessionHash()))) {
+			throw new HandshakeException("Session Information Mismatch. Session Hash received from Client did not match Session Hash computed on Server.");
+		} else {
+			logger.info("Successfully compared Session Information. Session Hash on Server matches Hash received from Client.");
+		}
+
+		sendAuthConfirmation();
+	}
+
+	/*
+	 * Generate session keys for encryption and mac from the master secret
+	 */
+	private void generateSessionKeys() throws HandshakeException, IOException {
+		try {
+			session.setEncKey(CommonCrypto.generateSessionKey(Settings.ALGORITHM_HASHING, session.getMasterSecret(), session.getClientNonce(), session.getServerNonce(), new String("00000000").getBytes(Settings.CHARSET)));
+			session.setMacKey(CommonCrypto.generateSessionKey(Settings.ALGORITHM_HASHING, session.getMasterSecret(), session.getClientNonce(), session.getServerNonce(), new String("11111111").getBytes(Settings.CHARSET)));
+		} catch (InvalidKeyException e) {
+			throw new HandshakeException ("Unable to generate Session keys, Invalid key: " + Settings.ALGORITHM_ENCRYPTION + ",\nMessage: " + e.getMessage()+ "\nConnection terminated.");
+		} catch (NoSuchAlgorithmException e) {
+			throw new HandshakeException ("Unable to generate Session keys, Invalid cipher: " + Settings.ALGORITHM_ENCRYPTION + ",\nMessage: " + e.getMessage()+ "\nConnection terminated.");
+		}
+	}
+
+	/*
+	 * Compute session hash from session information
+	 */
+	private void generateSessionHash() throws HandshakeException, IOException {
 		try {
-			session.setSecureSessionHash(CommonCrypto.generateSessionHash(Settings.ALGORITHM_HASHING, session.getMacKey(), session.getClientNonce(), session.getServerNonce(), session.getServerCertificate().getEncoded(), session.isClientAuthRequired()));
+			session.setSecureSessionHash(CommonCrypto.generateSessionHash(Settings.ALGORITHM_HASHING, session.getMacKey(), session.getClientNonce(), session.getTransferEncryption(), session.getServerNonce(), session.getServerCertificate().getEncoded(), session.isClientAuthRequired()));
 		} catch (InvalidKeyException e) {
 			throw new HandshakeException ("Unable to generate Session Hash, Invalid key: " +  Settings.ALGORITHM_HASHING + ",\nMessage: " + e.getMessage()+ "\nConnection terminated.");
 		} catch (CertificateEncodingException e) {
@@ -259,15 +404,12 @@ public class ClientConnection implements Runnable {
 		} catch (NoSuchAlgorithmException e) {
 			throw new HandshakeException ("Unable to generate Session Hash, Invalid Algorithm: " + Settings.ALGORITHM_HASHING + ",\nMessage: " + e.getMessage()+ "\nConnection terminated.");
 		}
+	}
 
-		// Compare generated session hash with session hash received from client
-		if (!(CommonCrypto.isByteArrayEqual(session.getSecureSessionHash(), clientKeyExchangeMessage.getSecureSessionHash()))) {
-			throw new HandshakeException("Session Information Mismatch. Session Hash received from Client did not match Session Hash computed on Server.");
-		} else {
-			logger.info("Successfully compared Session Information. Session Hash on Server matches Hash received from Client.");
-		}
-
-		// Generate Auth Confirmation Hash & send to client
+	/*
+	 * Generate Auth Confirmation Hash & send it to the client with a new session ticket
+	 */
+	private void sendAuthConfirmation() throws HandshakeException, IOException {
 		try {
 			if (session.isClientAuthRequired())
 				session.setSecureConfirmationHash(CommonCrypto.generateConfirmationHash(Settings.ALGORITHM_HASHING, session.getMacKey(), session.getEncryptedSecret(), session.getSecureSessionHash(), session.getClientCertificate()));
@@ -276,7 +418,7 @@ public class ClientConnection implements Runnable {
 		} catch (Exception e) {
 			throw new HandshakeException(e.getMessage());
 		}
-		ServerAuthConfirmationMessage serverAuthConfirmationMessage = new ServerAuthConfirmationMessage(session.getSecureConfirmationHash(), session.getIV(), session.isClientAuthRequired());
+		ServerAuthConfirmationMessage serverAuthConfirmationMessage = new ServerAuthConfirmationMessage(session.getSecureConfirmationHash(), session.getIV(), session.isClientAuthRequired(), issueSessionTicket());
 		sendObject (serverAuthConfirmationMessage);
 
 		logger.debug(session);
@@ -288,12 +430,51 @@ public class ClientConnection implements Runnable {
 			throw new HandshakeException(e.getMessage());
 		}
 
-		logger.info("Session validated. Handshake is complete.");
-		this.handshakeComplete = true;
+	}
+
+	/*
+	 * Restore the session of a ticket sent by the client.
+	 * Returns null if there is no ticket or it is not accepted, the client then does a full handshake.
+	 */
+	private SessionTicketKey.Contents openSessionTicket(byte[] ticket) {
+		SessionTicketKey ticketKey = KVServer.getSessionTicketKey();
+		if (ticket == null || ticketKey == null) {
+			return null;
+		}
+		try {
+			SessionTicketKey.Contents contents = ticketKey.open(ticket);
+			if (session.isClientAuthRequired() && contents.getClientCertificate() == null) {
+				logger.info("Session ticket rejected, the client did not authenticate in its session.");
+				return null;
+			}
+			return contents;
+		} catch (GeneralSecurityException e) {
+			logger.info("Session ticket rejected: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/*
+	 * Returns a ticket for the session, null if the server does not issue tickets
+	 */
+	private byte[] issueSessionTicket() {
+		SessionTicketKey ticketKey = KVServer.getSessionTicketKey();
+		if (ticketKey == null) {
+			return null;
+		}
+		try {
+			return ticketKey.seal(session.getMasterSecret(), session.getClientCertificate());
+		} catch (GeneralSecurityException e) {
+			logger.warn("Unable to issue a session ticket: " + e.getMessage());
+			return null;
+		} catch (IOException e) {
+			logger.warn("Unable to issue a session ticket: " + e.getMessage());
+			return null;
+		}
 	}
 
 	/**
-	 * Initializes and starts the client connection. 
+	 * Initializes and starts the client connection.
 	 * Loops until the connection is closed or aborted by the client.
 	 */ // example usage for testing: connect 127.0.0.1 50001
 	public void run() {
@@ -302,282 +483,360 @@ public class ClientConnection implements Runnable {
 			try { //connection could not be established
 				output = clientSocket.getOutputStream();
 				input = clientSocket.getInputStream();
-				String connectSuccess = "Connection to MSRG Echo server established: " 
-						+ clientSocket.getLocalAddress() + " / "
-						+ clientSocket.getLocalPort();
+				frameDecoder = new FrameDecoder(input, Settings.MAX_MESSAGE_SIZE);
+				openSession();
 
+				while(isOpen) { // until connection open
+					try { //connection lost
+						byte[] latestMsg = receiveMessage(session);
+						if (handshakeState != HandshakeState.COMPLETE && partner.equals(Ident.CLIENT)) {
+							performHandshakeOnExecutor(latestMsg);
+						} else {
+							processMessage(latestMsg);
+						}
+					}//connection lost
+					catch (IOException ioe) {
+						isOpen = false;
+					}
+				}// until connection open
+			}//connection could not be established
+			catch (IOException ioe) {
+				logger.error("Error! Connection could not be established!", ioe);
+
+			}
+			finally {
 				try {
-					session = new SessionInfo(clientSocket.getLocalAddress().getHostAddress() + ":" + clientSocket.getLocalPort(), Settings.TRANSFER_ENCRYPTION);
-					session.setClientAuthRequired(false);
-				} catch (SessionException e2) {
-					throw new IOException("Unable to create session:\n" + e2.getMessage());
+					if (clientSocket != null) {
+						closeConnection();
+					}
+				} catch (IOException ioe) {
+					logger.error("Error! Unable to tear down connection!", ioe);
 				}
+			}
+		}
+	}
 
+	/**
+	 * Process a frame read by a {@link NioServer}.
+	 * @throws IOException if the frame could not be decrypted or a reply could not be sent,
+	 *  the connection is closed in that case
+	 */
+	public void processFrame(int encFlag, int ident, byte[] payload) throws IOException {
+		setPartner(ident);
+		processMessage(decodeMessage(encFlag, payload, session));
+	}
 
-				while(isOpen) { // until connection open
-					try { //connection lost
-						byte[] latestMsg = receiveMessage(session.getEncKey(), session.getIV());
-						logger.debug("Received from     [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " + "RAW DATA\n<" + new String(latestMsg, Settings.CHARSET) + ">");
+	/**
+	 * The messages of a client are part of the handshake until it is complete.
+	 */
+	public boolean isHandshake(int ident) {
+		return ident == 1 && handshakeState != HandshakeState.COMPLETE;
+	}
 
-						if (!handshakeComplete && partner.equals(Ident.CLIENT)) {
-							try {
-								performHandshake(clientSocket, latestMsg);
-							} catch (HandshakeException ex) {
-								// TODO Auto-generated catch block
-								logger.error("Error during secure handshake:\n" + ex.getMessage());
-								ex.printStackTrace();
-							} catch (IOException ex) {
-								logger.error("Error during secure handshake:\n" + ex.getMessage());
-								ex.printStackTrace();
-							} catch (SessionException ex) {
-								logger.error("Error during secure handshake:\n" + ex.getMessage());
-								ex.printStackTrace();
-							}
-						}
+	/**
+	 * Process one received message: the next step of the handshake, a client request,
+	 * an ECS command or a message from another server.
+	 * @param latestMsg the decrypted message
+	 * @throws IOException if a reply could not be sent
+	 */
+	private void processMessage(byte[] latestMsg) throws IOException {
+		logger.debug("Received from     [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " + "RAW DATA\n<" + new String(latestMsg, Settings.CHARSET) + ">");
 
-						KVQuery kvQueryCommand;
-						try { //   not KVMessage
-							kvQueryCommand = new KVQuery(latestMsg);
-							String key=null,value=null,returnValue=null;
-							String command = kvQueryCommand.getStatus().toString();
+		if (handshakeState != HandshakeState.COMPLETE && partner.equals(Ident.CLIENT)) {
+			performHandshake(latestMsg);
+			return;
+		}
 
-							if (command != null && kvQueryCommand.getKey() != null && kvQueryCommand.getValue() != null)
-								logger.debug("Received from     [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " + command + " <" + kvQueryCommand.getKey() + ", " + kvQueryCommand.getValue() + ">");
-							else if (command != null && kvQueryCommand.getKey() != null)
-								logger.debug("Received from     [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " + command + " <" + kvQueryCommand.getKey() + ">");
-							else if (command != null)
-								logger.debug("Received from     [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " + command);
+		KVQuery kvQueryCommand;
+		try { //   not KVMessage
+			kvQueryCommand = new KVQuery(latestMsg);
+			requestId = kvQueryCommand.getRequestId();
+			String key=null,value=null,returnValue=null;
+			String command = kvQueryCommand.getStatus().toString();
+
+			if (command != null && kvQueryCommand.getKey() != null && kvQueryCommand.getValue() != null)
+				logger.debug("Received from     [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " + command + " <" + kvQueryCommand.getKey() + ", " + kvQueryCommand.getValue() + ">");
+			else if (command != null && kvQueryCommand.getKey() != null)
+				logger.debug("Received from     [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " + command + " <" + kvQueryCommand.getKey() + ">");
+			else if (command != null)
+				logger.debug("Received from     [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " + command);
+
+			if (command.equals("CONNECT")) {
+				/* clients that understand the binary format send its name as key, older clients send none */
+				binaryProtocol = Settings.BINARY_PROTOCOL && BinaryCodec.PROTOCOL.equals(kvQueryCommand.getKey());
+			}
 
-							if(this.serverInstance.isServeClientRequest()) //  ECS permission to serve client?
-							{
-								if(command.equals("GET"))	{ //get block
+			if(this.serverInstance.isServeClientRequest()) //  ECS permission to serve client?
+			{
+				if(command.equals("GET"))	{ //get block
 
-									key = kvQueryCommand.getKey();
-									//logger.info("Metadata of:" +this.serverInstance.getPort() + " metadata:" + this.serverInstance.getMetaData().toString());
-									if(this.serverInstance.isDEBUG())
-									{
-										logger.info("SERVER: Get operation Key:" + key);
-									}
+					key = kvQueryCommand.getKey();
+					//logger.info("Metadata of:" +this.serverInstance.getPort() + " metadata:" + this.serverInstance.getMetaData().toString());
+					if(this.serverInstance.isDEBUG())
+					{
+						logger.info("SERVER: Get operation Key:" + key);
+					}
 
-									returnValue = getValue(key);
-									if(returnValue != null)
-									{
-										if(this.serverInstance.isDEBUG())
-										{
-											logger.debug("Num keys in map: " + this.serverInstance.getKvdata().dataStore.size());
-											for (BigInteger k : this.serverInstance.getKvdata().dataStore.keySet())
-											{
-												logger.debug("Key: " + k);
-											}
-										}
-										//logger.debug("returnValue: " + returnValue);
-										KVQuery kvQueryGet = new KVQuery(KVMessage.StatusType.GET_SUCCESS, returnValue);
-										sendMessageEncrypted(kvQueryGet.toBytes(), session);
-										logger.debug("SERVER:Get success");
-									}
-									else if (checkRangeReplicas(key)) 
-									{
-										KVQuery kvQueryGetError = new KVQuery(KVMessage.StatusType.GET_ERROR, key);
-										logger.debug("Sent to           [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " 
-												+ kvQueryGetError.getStatus() + " <" + kvQueryGetError.getKey() + ">");
-										sendMessageEncrypted(kvQueryGetError.toBytes(), session);
-									}
-									else
-									{
-										// send not responsible message with metadata
-										KVQuery kvQueryNotResponsible = new KVQuery(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE,"metaData",this.serverInstance.getMetaData().toString());
-										logger.debug("Sent to           [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " 
-												+ kvQueryNotResponsible.getStatus() + " <" + kvQueryNotResponsible.getKey() + ", " + kvQueryNotResponsible.getValue() + ">");
-										sendMessageEncrypted(kvQueryNotResponsible.toBytes(), session);
-									}
+					returnValue = readValue(key, kvQueryCommand.getConsistency());
+					if(returnValue != null)
+					{
+						if(this.serverInstance.isDEBUG())
+						{
+							logger.debug("Num keys in map: " + this.serverInstance.getKvdata().size());
+							for (Map.Entry<HashKey, String> entry : this.serverInstance.getKvdata())
+							{
+								logger.debug("Key: " + entry.getKey());
+							}
+						}
+						//logger.debug("returnValue: " + returnValue);
+						KVQuery kvQueryGet = new KVQuery(KVMessage.StatusType.GET_SUCCESS, returnValue);
+						sendMessageEncrypted(encode(kvQueryGet), session);
+						logger.debug("SERVER:Get success");
+					}
+					else if (checkRangeReplicas(key)) 
+					{
+						KVQuery kvQueryGetError = new KVQuery(KVMessage.StatusType.GET_ERROR, key);
+						logger.debug("Sent to           [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " 
+								+ kvQueryGetError.getStatus() + " <" + kvQueryGetError.getKey() + ">");
+						sendMessageEncrypted(encode(kvQueryGetError), session);
+					}
+					else
+					{
+						// send not responsible message with metadata
+						KVQuery kvQueryNotResponsible = new KVQuery(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE,"metaData",this.serverInstance.getMetaData().toString());
+						logger.debug("Sent to           [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " 
+								+ kvQueryNotResponsible.getStatus() + " <" + kvQueryNotResponsible.getKey() + ", " + kvQueryNotResponsible.getValue() + ">");
+						sendMessageEncrypted(encode(kvQueryNotResponsible), session);
+					}
 
-								}// get block
-								else if(command.equals("PUT")) //put block
+				}// get block
+				else if(command.equals("PUT")) //put block
+				{
+					key = kvQueryCommand.getKey();
+					value = kvQueryCommand.getValue();
+
+					boolean isInRange = checkRangeCoordinator(key, value);
+					HashKey hashedKey = ConsistentHashing.hashKey(key);
+					if(isInRange)
+					{
+						//future : check in range or not
+						if(!this.serverInstance.isWriteLocked())
+						{
+							if(this.serverInstance.isDEBUG())
+							{
+								logger.info("SERVER: Put operation Key: " + key + " and Value: " + value);
+							}
+							try {
+								returnValue = write(hashedKey, value);
+							} catch (IllegalStateException e) {
+								logger.error("Unable to persist put operation for Key:" + key + ": " + e.getMessage());
+								sendError(value.equals("null") ? KVMessage.StatusType.DELETE_ERROR : KVMessage.StatusType.PUT_ERROR, key, value);
+								return;
+							}
+							if(!value.equals("null") )
+							{
+								if(returnValue == null)
 								{
-									key = kvQueryCommand.getKey();
-									value = kvQueryCommand.getValue();
-
-									boolean isInRange = checkRangeCoordinator(key, value);
-									BigInteger hashedKey = ConsistentHashing.hashKey(key);
-									if(isInRange)
-									{
-										//future : check in range or not
-										if(!this.serverInstance.isWriteLocked())
-										{
-											if(this.serverInstance.isDEBUG())
-											{
-												logger.info("SERVER: Put operation Key: " + key + " and Value: " + value);
-											}
-											returnValue = this.serverInstance.getKvdata().put(hashedKey,value);
-											if(!value.equals("null") )
-											{
-												if(returnValue == null)
-												{
-													logger.debug("value: " + value + ", returnValue: " + returnValue + " --> PUT_SUCCESS");
-													sendServerServerPut(key, value);
-													KVQuery kvQueryPut = new KVQuery(KVMessage.StatusType.PUT_SUCCESS,key,value);
-													sendMessageEncrypted(kvQueryPut.toBytes(), session);
-													logger.debug("Sent to           [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " 
-															+ kvQueryPut.getStatus() + " <" + kvQueryPut.getKey() + ", " + kvQueryPut.getValue() + ">");
-
-												}
-												else if(returnValue == value)
-												{
-													logger.debug("value: " + value + ", returnValue: " + returnValue + " --> PUT_UPDATE");
-													sendServerServerPut(key, value);
-													KVQuery kvQueryUpdate = new KVQuery(KVMessage.StatusType.PUT_UPDATE,key,value);
-													sendMessageEncrypted(kvQueryUpdate.toBytes(), session);
-													logger.debug("SERVER:put update success");
-
-												}
-												else
-												{
-													String errorMsg = "Error in put operation for Key:"+key + "and value:" + value ;
-													logger.error(errorMsg);
-													sendError(KVMessage.StatusType.PUT_ERROR,key,value);
-												}
-											}
-
-											if(value.equals("null"))
-											{
-												if(returnValue != null)
-												{
-													sendServerServerDelete(key);
-													KVQuery kvQueryDelete = new KVQuery(KVMessage.StatusType.DELETE_SUCCESS,key,returnValue);
-													sendMessageEncrypted(kvQueryDelete.toBytes(), session);
-													logger.debug("SERVER:put delete success");
-
-												}
-												else
-												{
-													String errorMsg = "Error in Delete operation for Key:"+key  ;
-													logger.error(errorMsg);
-													sendError(KVMessage.StatusType.DELETE_ERROR,key,value);
-												}
-
-											}
-										}
-										else
-										{
-											KVQuery kvQueryWriteLock = new KVQuery(KVMessage.StatusType.SERVER_WRITE_LOCK);
-											sendMessage(kvQueryWriteLock.toBytes());
-										}
-									}
-									else
-									{
-										KVQuery kvQueryNotResponsible = new KVQuery(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE,"metaData",this.serverInstance.getMetaData().toString());
-										logger.debug("Sent to           [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " 
-												+ kvQueryNotResponsible.getStatus() + " <" + kvQueryNotResponsible.getKey() + ", " + kvQueryNotResponsible.getValue() + ">");
-										sendMessageEncrypted(kvQueryNotResponsible.toBytes(), session);
+									logger.debug("value: " + value + ", returnValue: " + returnValue + " --> PUT_SUCCESS");
+									if (!replicate(Collections.singletonList(key), kvQueryCommand.getConsistency())) {
+										sendError(KVMessage.StatusType.PUT_ERROR, key, value);
+										return;
 									}
-								}//put block
+									KVQuery kvQueryPut = new KVQuery(KVMessage.StatusType.PUT_SUCCESS,key,value);
+									sendMessageEncrypted(encode(kvQueryPut), session);
+									logger.debug("Sent to           [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " 
+											+ kvQueryPut.getStatus() + " <" + kvQueryPut.getKey() + ", " + kvQueryPut.getValue() + ">");
 
-								else if(command.equals("DISCONNECT")) //disconnect block
+								}
+								else if(returnValue == value)
 								{
-									KVQuery kvQueryDisconnect;
-									try {
-										kvQueryDisconnect = new KVQuery(KVMessage.StatusType.DISCONNECT_SUCCESS);
-										sendMessageEncrypted(kvQueryDisconnect.toBytes(), session);
-										logger.debug("Sent to           [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " 
-												+ kvQueryDisconnect.getStatus());
-
-										try {
-											if (clientSocket != null) {
-												input.close();
-												output.close();
-												clientSocket.close();
-											}
-										} catch (IOException ioe) {
-											logger.error("Error! Unable to tear down connection!", ioe);
-										}
-									} catch (InvalidMessageException e) {
-										logger.error("Error in sending disconnect message");
+									logger.debug("value: " + value + ", returnValue: " + returnValue + " --> PUT_UPDATE");
+									if (!replicate(Collections.singletonList(key), kvQueryCommand.getConsistency())) {
+										sendError(KVMessage.StatusType.PUT_ERROR, key, value);
+										return;
 									}
-								} //disconnect block
-								else if(command.equals("CONNECT")) // connect block only for clients not for ECS
-								{
-									sendConnectSuccess(connectSuccess);
+									KVQuery kvQueryUpdate = new KVQuery(KVMessage.StatusType.PUT_UPDATE,key,value);
+									sendMessageEncrypted(encode(kvQueryUpdate), session);
+									logger.debug("SERVER:put update success");
 
-								}// connect block only for clients not for ECS
-
-							} // ECS permission to serve clients?
-							else if(command.equals("CONNECT")) // connect block only for clients not for ECS
-							{
-								sendConnectSuccess(connectSuccess);
+								}
+								else
+								{
+									String errorMsg = "Error in put operation for Key:"+key + "and value:" + value ;
+									logger.error(errorMsg);
+									sendError(KVMessage.StatusType.PUT_ERROR,key,value);
+								}
+							}
 
-							} // connect block only for clients not for ECS
-							else // server stopped block
+							if(value.equals("null"))
 							{
-								KVQuery kvQueryNoService;
-								try {
-									kvQueryNoService = new KVQuery(KVMessage.StatusType.SERVER_STOPPED,key,value);
-									sendMessageEncrypted(kvQueryNoService.toBytes(), session);
-									logger.debug("SERVER:Stopped");
-
-								} catch (InvalidMessageException e1) {
-									logger.error("Error in invalid message format:server side:");
-								}
-							} //server stopped block
-
-						}//   not KVMessage
-						catch (InvalidMessageException e) {//ECS block
-							try{
-								EcsConnection ecsConnection = new EcsConnection(latestMsg,this.serverInstance);
-								String ecsMessage = ecsConnection.process();
-								if(ecsMessage != null)
+								if(returnValue != null)
 								{
-									if(ecsMessage.equals("movecompleted"))
-									{
-										ECSMessage ecsMoveSuccess = new ECSMessage(ECSStatusType.MOVE_COMPLETED);
-										sendMessage(ecsMoveSuccess.toBytes());
-									}
-									else if(ecsMessage.equals("moveinternalcompleted"))
-									{
-										ECSMessage ecsMoveSuccess = new ECSMessage(ECSStatusType.MOVE_DATA_INTERNAL_SUCCESS);
-										sendMessage(ecsMoveSuccess.toBytes());
-									}
-									else
-									{
-										ECSMessage ecsMoveSuccess = new ECSMessage(ECSStatusType.MOVE_ERROR);
-										sendMessage(ecsMoveSuccess.toBytes());
+									if (!replicate(Collections.singletonList(key), kvQueryCommand.getConsistency())) {
+										sendError(KVMessage.StatusType.DELETE_ERROR, key, value);
+										return;
 									}
+									KVQuery kvQueryDelete = new KVQuery(KVMessage.StatusType.DELETE_SUCCESS,key,returnValue);
+									sendMessageEncrypted(encode(kvQueryDelete), session);
+									logger.debug("SERVER:put delete success");
+
 								}
-							} catch (InvalidMessageException eEcs) {//Server-server message
-								try {
-									ServerConnection serverConnection = new ServerConnection(latestMsg, this.serverInstance);
-									serverConnection.process();
+								else
+								{
+									String errorMsg = "Error in Delete operation for Key:"+key  ;
+									logger.error(errorMsg);
+									sendError(KVMessage.StatusType.DELETE_ERROR,key,value);
 								}
-								catch (InvalidMessageException eServer) {
-									logger.error("Invalid message received from ECS");
-								}	
-							} 
-						}//ECS block
-					}//connection lost
-					catch (IOException ioe) {
-						isOpen = false;
+
+							}
+						}
+						else
+						{
+							KVQuery kvQueryWriteLock = new KVQuery(KVMessage.StatusType.SERVER_WRITE_LOCK);
+							sendMessage(encode(kvQueryWriteLock));
+						}
 					}
-				}// until connection open
-			}//connection could not be established
-			catch (IOException ioe) {
-				logger.error("Error! Connection could not be established!", ioe);
+					else
+					{
+						KVQuery kvQueryNotResponsible = new KVQuery(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE,"metaData",this.serverInstance.getMetaData().toString());
+						logger.debug("Sent to           [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " 
+								+ kvQueryNotResponsible.getStatus() + " <" + kvQueryNotResponsible.getKey() + ", " + kvQueryNotResponsible.getValue() + ">");
+						sendMessageEncrypted(encode(kvQueryNotResponsible), session);
+					}
+				}//put block
+				else if(kvQueryCommand.isBatch()) //batch block
+				{
+					processBatch(kvQueryCommand);
+				}//batch block
 
-			}
-			finally {
+				else if(command.equals("DISCONNECT")) //disconnect block
+				{
+					KVQuery kvQueryDisconnect;
+					try {
+						kvQueryDisconnect = new KVQuery(KVMessage.StatusType.DISCONNECT_SUCCESS);
+						sendMessageEncrypted(encode(kvQueryDisconnect), session);
+						logger.debug("Sent to           [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " 
+								+ kvQueryDisconnect.getStatus());
+
+						try {
+							isOpen = false;
+							if (clientSocket != null) {
+								closeConnection();
+							}
+						} catch (IOException ioe) {
+							logger.error("Error! Unable to tear down connection!", ioe);
+						}
+					} catch (InvalidMessageException e) {
+						logger.error("Error in sending disconnect message");
+					}
+				} //disconnect block
+				else if(command.equals("CONNECT")) // connect block only for clients not for ECS
+				{
+					sendConnectSuccess(connectSuccess);
+
+				}// connect block only for clients not for ECS
+
+			} // ECS permission to serve clients?
+			else if(command.equals("CONNECT")) // connect block only for clients not for ECS
+			{
+				sendConnectSuccess(connectSuccess);
+
+			} // connect block only for clients not for ECS
+			else // server stopped block
+			{
+				KVQuery kvQueryNoService;
 				try {
-					if (clientSocket != null) {
-						input.close();
-						output.close();
-						clientSocket.close();
+					kvQueryNoService = new KVQuery(KVMessage.StatusType.SERVER_STOPPED,key,value);
+					sendMessageEncrypted(encode(kvQueryNoService), session);
+					logger.debug("SERVER:Stopped");
+
+				} catch (InvalidMessageException e1) {
+					logger.error("Error in invalid message format:server side:");
+				}
+			} //server stopped block
+
+		}//   not KVMessage
+		catch (InvalidMessageException e) {//ECS block
+			try{
+				EcsConnection ecsConnection = new EcsConnection(latestMsg,this.serverInstance);
+				String ecsMessage = ecsConnection.process();
+				if(ecsMessage != null)
+				{
+					if(ecsMessage.equals("movecompleted"))
+					{
+						ECSMessage ecsMoveSuccess = new ECSMessage(ECSStatusType.MOVE_COMPLETED);
+						sendMessage(ecsMoveSuccess.toBytes());
+					}
+					else if(ecsMessage.equals("moveinternalcompleted"))
+					{
+						ECSMessage ecsMoveSuccess = new ECSMessage(ECSStatusType.MOVE_DATA_INTERNAL_SUCCESS);
+						sendMessage(ecsMoveSuccess.toBytes());
+					}
+					else
+					{
+						ECSMessage ecsMoveSuccess = new ECSMessage(ECSStatusType.MOVE_ERROR);
+						sendMessage(ecsMoveSuccess.toBytes());
 					}
-				} catch (IOException ioe) {
-					logger.error("Error! Unable to tear down connection!", ioe);
 				}
-			}
+			} catch (InvalidMessageException eEcs) {//Server-server message
+				try {
+					ServerConnection serverConnection = new ServerConnection(latestMsg, this.serverInstance);
+					ServerServerMessage reply = serverConnection.process();
+					if (reply != null) {
+						sendMessage(reply.toBytes());
+					}
+				}
+				catch (InvalidMessageException eServer) {
+					logger.error("Invalid message received from ECS");
+				}	
+			} 
+		}//ECS block
+	}
+
+	/*
+	 * Close the streams and the socket. The stream of a NioServer connection
+	 * closes the channel once the pending replies are written.
+	 */
+	private void closeConnection() throws IOException {
+		output.close();
+		if (input != null) {
+			input.close();
+			clientSocket.close();
+		}
+	}
+
+
+	/*
+	 * Read the key from as many copies as the consistency level requires, see QuorumRead.
+	 * @return the value, null if the key does not exist or not enough copies could be read
+	 */
+	private String readValue(String key, Consistency consistency) {
+		if (consistency == null) {
+			consistency = Settings.READ_CONSISTENCY;
+		}
+		if (consistency == Consistency.LOCAL) {
+			return getValue(key);
+		}
+		QuorumRead read = new QuorumRead(serverInstance, key);
+		if (!read.read(serverInstance.getServerData(), consistency)) {
+			return null;
+		}
+		return read.getValue();
+	}
+
+	/* write a tuple to the own data and stamp it with a new version above the current stamp of the key */
+	private String write(HashKey hashedKey, String value) {
+		KeyVersions keyVersions = serverInstance.getVersions(0);
+		synchronized (keyVersions.lockFor(hashedKey)) {
+			long version = KeyVersions.nextVersion(keyVersions.get(hashedKey));
+			String returnValue = serverInstance.getKvdata().put(hashedKey, value, version);
+			keyVersions.set(hashedKey, version);
+			return returnValue;
 		}
 	}
 
 	private String getValue(String key) {
-		BigInteger hashedKey = ConsistentHashing.hashKey(key);
+		HashKey hashedKey = ConsistentHashing.hashKey(key);
 		String value = serverInstance.getKvdata().get(hashedKey);
 		if (value == null) {
 			if (serverInstance.getLastNodeData() != null)
@@ -590,50 +849,111 @@ public class ClientConnection implements Runnable {
 		return value;
 	}
 
-	private void sendServerServerPut(String key, String value) throws SocketTimeoutException, IOException {
-		ServerServerMessage serverServerMessage;
-		try {
-			if (serverInstance.getNextServer() != null) {
-				serverServerMessage = new ServerServerMessage(ServerServerStatustype.SERVER_PUT,
-						1, key, value);
-				serverInstance.getNextServer().sendMessage(serverServerMessage.toBytes());
+	/*
+	 * Process the queries of an MGET or MPUT like single GETs and PUTs and answer them with one reply.
+	 * The tuples written by an MPUT are replicated together, at the strongest consistency level of its queries.
+	 * If the replicas do not acknowledge them in time, they are answered with PUT_ERROR or DELETE_ERROR.
+	 * If the server is not responsible for some of the keys, the reply ends with an additional
+	 * SERVER_NOT_RESPONSIBLE query that carries the meta data.
+	 */
+	private void processBatch(KVQuery batch) throws IOException, InvalidMessageException {
+		List<KVQuery> entries = batch.getEntries();
+		List<KVQuery> results = new ArrayList<KVQuery>(entries.size() + 1);
+		List<String> writtenKeys = new ArrayList<String>();
+		List<String> writtenValues = new ArrayList<String>();
+		List<Integer> writtenResults = new ArrayList<Integer>();
+		Consistency consistency = batch.getConsistency();
+		boolean notResponsible = false;
+
+		for (KVQuery entry : entries) {
+			KVQuery result;
+			if (batch.getStatus() == KVMessage.StatusType.MGET && entry.getStatus() == KVMessage.StatusType.GET) {
+				result = getEntry(entry.getKey(), Consistency.strongest(batch.getConsistency(), entry.getConsistency()));
+			} else if (batch.getStatus() == KVMessage.StatusType.MPUT && entry.getStatus() == KVMessage.StatusType.PUT) {
+				int written = writtenKeys.size();
+				result = putEntry(entry.getKey(), entry.getValue(), writtenKeys, writtenValues);
+				if (writtenKeys.size() > written) {
+					writtenResults.add(results.size());
+					consistency = Consistency.strongest(consistency, entry.getConsistency());
+				}
+			} else {
+				result = new KVQuery(KVMessage.StatusType.FAILED, entry.getStatus() + " is no part of " + batch.getStatus());
 			}
-		} catch (InvalidMessageException e) {
-			logger.error("Error while updation"+e.getMessage());
-			e.printStackTrace();
+			if (result.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+				notResponsible = true;
+			}
+			results.add(result);
 		}
-		try {
-			if (serverInstance.getNextNextServer() != null) {
-				serverServerMessage = new ServerServerMessage(ServerServerStatustype.SERVER_PUT,
-						2, key, value);
-				serverInstance.getNextNextServer().sendMessage(serverServerMessage.toBytes());
+		if (notResponsible) {
+			results.add(new KVQuery(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, "metaData", this.serverInstance.getMetaData().toString()));
+		}
+		if (!writtenKeys.isEmpty() && !replicate(writtenKeys, consistency)) {
+			for (int i = 0; i < writtenResults.size(); i++) {
+				String value = writtenValues.get(i);
+				results.set(writtenResults.get(i), new KVQuery(value.equals("null") ? KVMessage.StatusType.DELETE_ERROR : KVMessage.StatusType.PUT_ERROR,
+						writtenKeys.get(i), value));
 			}
-		} catch (InvalidMessageException e) {
-			logger.error("Error while updation"+e.getMessage());
-			e.printStackTrace();
 		}
+
+		byte[] reply = encode(new KVQuery(batch.getStatus(), results));
+		if (reply == null) {
+			reply = encode(new KVQuery(KVMessage.StatusType.FAILED, "The reply to " + batch.getStatus() + " exceeds the maximum message size."));
+		}
+		sendMessageEncrypted(reply, session);
+		logger.debug("Sent to           [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] "
+				+ batch.getStatus() + " <" + entries.size() + " results>");
 	}
 
-	private void sendServerServerDelete(String key) throws SocketTimeoutException, IOException {
-		ServerServerMessage serverServerMessage;
-		try {
-			if (serverInstance.getNextServer() != null) {
-				serverServerMessage = new ServerServerMessage(ServerServerStatustype.SERVER_DELETE,
-						1, key);
-				serverInstance.getNextServer().sendMessage(serverServerMessage.toBytes());
-			}
-		} catch (InvalidMessageException e) {
-			logger.error("Error while updation" + e.getMessage());
+	private KVQuery getEntry(String key, Consistency consistency) throws InvalidMessageException {
+		String value = readValue(key, consistency);
+		if (value != null) {
+			return new KVQuery(KVMessage.StatusType.GET_SUCCESS, key, value);
+		} else if (checkRangeReplicas(key)) {
+			return new KVQuery(KVMessage.StatusType.GET_ERROR, key);
+		}
+		return new KVQuery(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, key, "");
+	}
+
+	/* the written tuples are added to writtenKeys and writtenValues to be replicated */
+	private KVQuery putEntry(String key, String value, List<String> writtenKeys, List<String> writtenValues) throws InvalidMessageException {
+		if (!checkRangeCoordinator(key, value)) {
+			return new KVQuery(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, key, value);
+		} else if (this.serverInstance.isWriteLocked()) {
+			return new KVQuery(KVMessage.StatusType.SERVER_WRITE_LOCK, key, value);
 		}
+
+		boolean delete = value.equals("null");
+		String returnValue;
 		try {
-			if (serverInstance.getNextNextServer() != null) {
-				serverServerMessage = new ServerServerMessage(ServerServerStatustype.SERVER_DELETE,
-						2, key);
-				serverInstance.getNextNextServer().sendMessage(serverServerMessage.toBytes());
-			}
-		} catch (InvalidMessageException e) {
-			logger.error("Error while updation" + e.getMessage());
+			returnValue = write(ConsistentHashing.hashKey(key), value);
+		} catch (IllegalStateException e) {
+			logger.error("Unable to persist put operation for Key:" + key + ": " + e.getMessage());
+			return new KVQuery(delete ? KVMessage.StatusType.DELETE_ERROR : KVMessage.StatusType.PUT_ERROR, key, value);
+		}
+		if (delete && returnValue == null) {
+			logger.error("Error in Delete operation for Key:" + key);
+			return new KVQuery(KVMessage.StatusType.DELETE_ERROR, key, value);
+		}
+
+		writtenKeys.add(key);
+		writtenValues.add(value);
+		if (delete) {
+			return new KVQuery(KVMessage.StatusType.DELETE_SUCCESS, key, returnValue);
+		}
+		return new KVQuery(returnValue == null ? KVMessage.StatusType.PUT_SUCCESS : KVMessage.StatusType.PUT_UPDATE, key, value);
+	}
+
+	/*
+	 * Replicate written keys to the successors and wait for the acknowledgements the consistency level
+	 * requires. If they do not arrive in time, the write stays applied here and the client gets an error.
+	 */
+	private boolean replicate(List<String> keys, Consistency consistency) {
+		if (serverInstance.getReplicator().replicate(keys, consistency)) {
+			return true;
 		}
+		logger.warn("The replicas did not acknowledge " + keys.size() + " written keys at consistency level "
+				+ (consistency != null ? consistency : Settings.REPLICATION_CONSISTENCY) + " in time.");
+		return false;
 	}
 
 	private void sendConnectSuccess(String connectSuccess) {
@@ -642,7 +962,7 @@ public class ClientConnection implements Runnable {
 			kvQueryConnect = new KVQuery(KVMessage.StatusType.CONNECT_SUCCESS,connectSuccess );
 
 			//sendMessage(kvQueryConnect.toBytes());
-			sendMessageEncrypted(kvQueryConnect.toBytes(), session);
+			sendMessageEncrypted(encode(kvQueryConnect), session);
 
 			if (kvQueryConnect.getStatus() != null)
 				logger.debug("Sent to           [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " + kvQueryConnect.getStatus());
@@ -705,11 +1025,16 @@ public class ClientConnection implements Runnable {
 		return false;
 	}
 
+	private byte[] encode(KVQuery query) {
+		query.setRequestId(requestId);
+		return binaryProtocol ? query.toBinary() : query.toBytes();
+	}
+
 	private void sendError(KVMessage.StatusType statusType, String key, String value) throws UnsupportedEncodingException, IOException {
 		KVQuery kvQueryError;
 		try {
 			kvQueryError = new KVQuery(statusType,key,value);
-			sendMessage(kvQueryError.toBytes());
+			sendMessage(encode(kvQueryError));
 		} catch (InvalidMessageException e) {
 			logger.error("Error in ErrorMessage format");
 		}
@@ -763,11 +1088,8 @@ public class ClientConnection implements Runnable {
 			byte[] bytes = null;
 			byte[] encryptedBytes = null;
 			try {
-				/* Encrypt contents AES-CBC-128 */	 
-				SecretKeySpec k = new SecretKeySpec(session.getEncKey().getEncoded(), "AES");
-				Cipher cipher = Cipher.getInstance(Settings.TRANSFER_ENCRYPTION);
-				cipher.init (Cipher.ENCRYPT_MODE, k, new IvParameterSpec(session.getIV()));
-				encryptedBytes = cipher.doFinal(msgBytes);
+				/* Encrypt contents AES-CBC-128 with the cipher of the session */
+				encryptedBytes = session.encrypt(msgBytes);
 				bytes = ByteBuffer.allocate(12 + encryptedBytes.length).putInt(1).putInt(2).putInt(encryptedBytes.length).put(encryptedBytes).array();
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -783,24 +1105,15 @@ public class ClientConnection implements Runnable {
 		}
 	}
 
-	public byte[] receiveMessage(Key decryptionKey, byte[] IV) throws IOException, SocketTimeoutException {
-		int index = 0;
-		byte[] msgBytes = null, tmp = null;
-		byte[] bufferBytes = new byte[BUFFER_SIZE];
+	public byte[] receiveMessage(SessionInfo session) throws IOException, SocketTimeoutException {
+		Frame frame = frameDecoder.readFrame();
+		setPartner(frame.getIdent());
+		logger.debug("new message - length: " + frame.getPayload().length + ", ident: " + frame.getIdent());
 
-		/* read message encryption flag */
-		byte[] encFlagBytes = new byte[4];
-		input.read(encFlagBytes);
-		int encFlag = ByteBuffer.wrap(encFlagBytes).getInt(); // 0 = Plain, 1 = Encrypted
-
-		if (encFlag != 0 && encFlag != 1)
-			throw new IOException("Encryption flag of received message was set to invalid value");
-
-		/* read message identity */
-		byte[] identBytes = new byte[4];
-		input.read(identBytes);
-		int ident = ByteBuffer.wrap(identBytes).getInt(); // 1 = CLIENT, 2 = SERVER, 3 = ECS
+		return decodeMessage(frame.getEncFlag(), frame.getPayload(), session);
+	}
 
+	private void setPartner(int ident) throws IOException {
 		if (ident == 1) {
 			partner = Ident.CLIENT;
 			logger.debug("RECEIVED MESSAGE IS FROM CLIENT");
@@ -813,70 +1126,28 @@ public class ClientConnection implements Runnable {
 		} else {
 			throw new IOException("Ident flag of received message was set to invalid value");
 		}
+	}
 
-		/* read length of message */
-		byte[] lenBytes = new byte[4];
-		input.read(lenBytes);
-		int msgLen = ByteBuffer.wrap(lenBytes).getInt();
-
-		if (msgLen < 0)
-			throw new IOException("Length field of received message was invalid (negative).");
-
-		logger.debug("new message - length: " + msgLen + ", ident: " + ident);
-
-		for (int i = 0; i < msgLen; i++) {
-			/* read next byte */
-			byte read = (byte) input.read();
-
-			/* if buffer filled, copy to msg array */
-			if(index == BUFFER_SIZE) {
-				if(msgBytes == null){
-					tmp = new byte[BUFFER_SIZE];
-					System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-				} else {
-					tmp = new byte[msgBytes.length + BUFFER_SIZE];
-					System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-					System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
-							BUFFER_SIZE);
-				}
-
-				msgBytes = tmp;
-				bufferBytes = new byte[BUFFER_SIZE];
-				index = 0;
-			} 
-
-			/* only read valid characters, i.e. letters and constants */
-			bufferBytes[index] = read;
-			index++;
-		}
-
-		if(msgBytes == null){
-			tmp = new byte[index];
-			System.arraycopy(bufferBytes, 0, tmp, 0, index);
-		} else {
-			tmp = new byte[msgBytes.length + index];
-			System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-			System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
-		}
-
-		msgBytes = tmp;
-
+	/*
+	 * Decrypt the payload of a received frame if the encryption flag is set.
+	 */
+	private byte[] decodeMessage(int encFlag, byte[] msgBytes, SessionInfo session) throws IOException {
 		if (encFlag == 0) {
 			logger.debug("Received Plain from     [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " + "RAW DATA\n<" + new String(msgBytes, Settings.CHARSET) + ">");
 			return msgBytes;
 		} else {
 
 			logger.debug("Received Encrypted from     [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " + "RAW DATA\n" + new String(msgBytes, Settings.CHARSET));
-			if (decryptionKey == null)
+			if (session.getEncKey() == null)
 				throw new IOException("Unable to decrypt message. No decryptionKey was supplied.");
 
-			if (IV == null)
+			if (session.getIV() == null)
 				throw new IOException("Unable to decrypt message. No IV was supplied.");
 
-			/* Decrypt contents */
+			/* Decrypt contents with the cipher of the session */
 			try {
-				byte[] plainBytes = CommonCrypto.decryptAES(msgBytes, Settings.TRANSFER_ENCRYPTION, decryptionKey, IV);
-				logger.debug("Successfully decrypted message using " + Settings.TRANSFER_ENCRYPTION);
+				byte[] plainBytes = session.decrypt(msgBytes);
+				logger.debug("Successfully decrypted message using " + session.getTransferEncryption());
 				logger.debug("---BEGIN DECRYPTED MESSAGE---");
 				logger.debug(new String(plainBytes, Settings.CHARSET));
 				logger.debug("---END DECRYPTED MESSAGE---");
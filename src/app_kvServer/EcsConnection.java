@@ -1,10 +1,9 @@
 package app_kvServer;
 
 import java.io.IOException;
-import java.math.BigInteger;
-import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.SortedMap;
 
 import logger.LogSetup;
@@ -19,9 +18,8 @@ import common.communicator.ServerServerCommunicator;
 import common.messages.ECSMessage;
 import common.messages.ECSStatusType;
 import common.messages.InvalidMessageException;
-import common.messages.ServerServerMessage;
-import common.messages.ServerServerStatustype;
 import consistent_hashing.ConsistentHashing;
+import consistent_hashing.HashKey;
 /**
  * Represents a connection end point for a particular ECS that is 
  * connected to the server. It provides server admin interface like start,stop,setwritelock etc
@@ -59,7 +57,7 @@ public class EcsConnection {
 		else if(ecsMessage.getCommand().equals(ECSStatusType.MOVE_DATA_INTERNAL))
 		{
 			move = "error";
-			move = moveData(ecsMessage.getMovingData());
+			move = moveData(ecsMessage.getMovingData(), ecsMessage.getMovingVersions());
 		}
 		else if(ecsMessage.getCommand().equals(ECSStatusType.MOVE_DATA))
 		{
@@ -85,14 +83,24 @@ public class EcsConnection {
 		logger.info("Server data (coordinator): " + serverInstance.getKvdata());
 		logger.info("Server data (replica - last node): " + serverInstance.getLastNodeData());
 		logger.info("Server data (replica - last last node):" + serverInstance.getLastLastNodeData());
+		logger.info("Replication: " + serverInstance.getReplicator().getStatus());
 	}
 	
 	public ECSStatusType getCommand() {
 		return ecsMessage.getCommand();
 	}
 
-	private String moveData(HashMap<BigInteger, String> movingData) {
-		this.serverInstance.getKvdata().moveData(movingData);
+	/* store the moved data with their stamps, a stamp never decreases */
+	private String moveData(HashMap<HashKey, String> movingData, HashMap<HashKey, Long> movingVersions) {
+		this.serverInstance.getKvdata().moveData(movingData, movingVersions);
+		KeyVersions keyVersions = serverInstance.getVersions(0);
+		for (Map.Entry<HashKey, Long> entry : movingVersions.entrySet()) {
+			synchronized (keyVersions.lockFor(entry.getKey())) {
+				if (entry.getValue() > keyVersions.get(entry.getKey())) {
+					keyVersions.set(entry.getKey(), entry.getValue());
+				}
+			}
+		}
 		return "moveinternalcompleted";
 	}
 	/**
@@ -105,9 +113,33 @@ public class EcsConnection {
 		this.serverInstance.setMetaData(metaData);
 		logger.info("Set meta data to " + this.serverInstance.getMetaData().toString());
 
+		dropForeignData();
 		updateNextServers();
 	}
 
+	/**
+	 * Remove the data recovered on startup that lies outside the hash range assigned to this server.
+	 * The current coordinators of these keys hold the newer copies, the data of the own range
+	 * is completed by the ECS moving it from the successor.
+	 */
+	private void dropForeignData() {
+		ConsistentHashing consistentHashing = serverInstance.getConsistentHashing();
+		String name = serverInstance.getServerData().getName();
+		if (!consistentHashing.getHashCircle().containsValue(name)) {
+			return;
+		}
+		HashMap<HashKey, String> foreign = new HashMap<HashKey, String>();
+		for (Map.Entry<HashKey, String> entry : serverInstance.getKvdata()) {
+			if (!name.equals(consistentHashing.getServerNameForHash(entry.getKey()))) {
+				foreign.put(entry.getKey(), entry.getValue());
+			}
+		}
+		if (!foreign.isEmpty()) {
+			logger.info("Dropping " + foreign.size() + " recovered entries outside the range of " + name);
+			serverInstance.getKvdata().remove(foreign);
+		}
+	}
+
 	/**
 	 * Update communication to the servers that will hold replicated data from this server.
 	 */
@@ -116,7 +148,7 @@ public class EcsConnection {
 		String oldNextNextServer = "";
 		String nextServer = "";
 		String nextNextServer = "";
-		SortedMap<BigInteger, String> hashCircle;
+		SortedMap<HashKey, String> hashCircle;
 		int next = 0;
 
 		if (serverInstance.getNextServer() != null) {
@@ -125,7 +157,7 @@ public class EcsConnection {
 			oldNextNextServer = serverInstance.getNextNextServer().getName();
 		}
 		hashCircle = serverInstance.getConsistentHashing().getHashCircle();
-		for (BigInteger hash : hashCircle.keySet()) {
+		for (HashKey hash : hashCircle.keySet()) {
 			if (next > 0) {
 				if (next == 2) {
 					nextNextServer = hashCircle.get(hash);
@@ -159,7 +191,9 @@ public class EcsConnection {
 	}
 	
 	/**
-	 * If the next servers didn't change send them the data to be replicated
+	 * If the next servers didn't change send them the data to be replicated.
+	 * The data is streamed in chunks by a {@link ReplicationStream}, the updates of the
+	 * clients are replicated to the new servers while the stream runs.
 	 * @param oldNextServer name of the former nextServer
 	 * @param oldNextNextServer name of the former nextNextServer
 	 * @param nextServer name of the actual nextServer
@@ -167,28 +201,10 @@ public class EcsConnection {
 	 */
 	private void sendMessageToNextServers(String oldNextServer, String oldNextNextServer, String nextServer, String nextNextServer) {
 		if (serverInstance.getNextServer() != null && !nextServer.equals(oldNextServer) && !nextServer.equals(oldNextNextServer)) {
-			try {
-				ServerServerMessage message = new ServerServerMessage(ServerServerStatustype.SERVER_PUT_ALL, 1, serverInstance.getKvdata());
-				serverInstance.getNextServer().sendMessage(message.toBytes());
-			} catch (SocketTimeoutException e) {
-				logger.error("Couldn't send the message within the established time. Check with the server is on and try again.");
-			} catch (IOException e) {
-				logger.error("Couldn't send the message. Check with the server is on and try again.");
-			} catch (InvalidMessageException e) {
-				logger.error("Problems creating the message. Please check the protocol specification."	);
-			}
+			new ReplicationStream(serverInstance, serverInstance.getNextServer(), 1).start();
 		}
 		if (serverInstance.getNextNextServer() != null && !nextNextServer.equals(oldNextServer) && !nextNextServer.equals(oldNextNextServer)) {
-			try {
-				ServerServerMessage message = new ServerServerMessage(ServerServerStatustype.SERVER_PUT_ALL, 2, serverInstance.getKvdata());
-				serverInstance.getNextNextServer().sendMessage(message.toBytes());
-			} catch (SocketTimeoutException e) {
-				logger.error("Couldn't send the message within the established time. Check with the server is on and try again.");
-			} catch (IOException e) {
-				logger.error("Couldn't send the message. Check with the server is on and try again.");
-			} catch (InvalidMessageException e) {
-				logger.error("Problems creating the message. Please check the protocol specification."	);
-			}
+			new ReplicationStream(serverInstance, serverInstance.getNextNextServer(), 2).start();
 		}
 	}
 
@@ -245,6 +261,7 @@ public class EcsConnection {
 
 	private void shutDown(){
 		this.serverInstance.setRunning(false);
+		this.serverInstance.closeStorage();
 		try {
 			this.serverInstance.getServerSocket().close();
 			System.exit(0);
@@ -268,10 +285,10 @@ public class EcsConnection {
 	/**
 	 * move data from one server to another.
 	 */
-	private String moveData(BigInteger startIndex, BigInteger endIndex, ServerData serverData) throws UnknownHostException, IOException, InvalidMessageException
+	private String moveData(HashKey startIndex, HashKey endIndex, ServerData serverData) throws UnknownHostException, IOException, InvalidMessageException
 	{
-		HashMap<BigInteger, String> movingData;
-		BigInteger serverIndex = ConsistentHashing.hashServer(serverData.getAddress(), serverData.getPort());
+		HashMap<HashKey, String> movingData;
+		HashKey serverIndex = ConsistentHashing.hashServer(serverData.getAddress(), serverData.getPort());
 		if(startIndex.compareTo(endIndex) >= 0)
 		{
 			if(serverIndex.compareTo(startIndex) > 0 && serverIndex.compareTo(endIndex) > 0)
@@ -295,7 +312,15 @@ public class EcsConnection {
 			}
 		}
 		String move = null;
-		ECSMessage sendMessage = new ECSMessage(ECSStatusType.MOVE_DATA_INTERNAL,movingData);
+		HashMap<HashKey, Long> movingVersions = new HashMap<HashKey, Long>();
+		KeyVersions keyVersions = this.serverInstance.getVersions(0);
+		for (HashKey key : movingData.keySet()) {
+			long version = keyVersions.get(key);
+			if (version != 0) {
+				movingVersions.put(key, version);
+			}
+		}
+		ECSMessage sendMessage = new ECSMessage(ECSStatusType.MOVE_DATA_INTERNAL,movingData,movingVersions);
 		KVCommunication communication = new KVCommunication(serverData.getAddress(), serverData.getPort(), "ECS");
 		communication.sendMessageECS(sendMessage.toBytes());
 		byte[] receivedmessage = communication.receiveMessage(null, null);
@@ -305,6 +330,14 @@ public class EcsConnection {
 			move = "movecompleted";
 		}
 		this.serverInstance.getKvdata().remove(movingData);
+		/* the stamps moved with the keys, a queued replication of a moved key must not become a delete */
+		for (HashKey key : movingData.keySet()) {
+			synchronized (keyVersions.lockFor(key)) {
+				if (this.serverInstance.getKvdata().get(key) == null) {
+					keyVersions.remove(key);
+				}
+			}
+		}
 		return move;
 
 	}
@@ -0,0 +1,26 @@
+package app_kvServer;
+
+import java.io.IOException;
+
+/**
+ * Processes the frames received on one connection of a {@link NioServer}.
+ * A frame consists of the encryption flag, the identity of the sender, the payload length and the payload.
+ * The frames of a connection are passed in the order they were received, never concurrently.
+ */
+public interface FrameHandler {
+
+	/**
+	 * @param encFlag 0 for a plain payload, 1 for an encrypted one
+	 * @param ident 1 = CLIENT, 2 = SERVER, 3 = ECS
+	 * @param payload the payload of the frame
+	 * @throws IOException if the frame could not be processed, the connection is closed in that case
+	 */
+	public void processFrame(int encFlag, int ident, byte[] payload) throws IOException;
+
+	/**
+	 * @param ident the ident of the next frame
+	 * @return true if the next frame is part of a secure handshake, it is then processed
+	 *  by the handshake executor of the {@link NioServer} instead of a worker
+	 */
+	public boolean isHandshake(int ident);
+}
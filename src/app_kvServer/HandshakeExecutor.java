@@ -0,0 +1,174 @@
+package app_kvServer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import logger.LogSetup;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import common.NamedThreadFactory;
+
+/**
+ * Runs the secure handshakes of the client connections on a small pool of its own.
+ * The RSA decryption of the master secret and the certificate verification then do not
+ * occupy the threads serving requests when many clients connect at once, e.g. after a
+ * node was added and the clients reconnect with the new metadata.
+ * Admission control: at most queueSize handshakes wait for a thread, further handshakes are
+ * rejected and their connections closed, the clients connect again later.
+ * Queue depth and latency are logged every reportInterval handshakes to size the pool.
+ */
+public class HandshakeExecutor implements Executor {
+
+	private static final Logger logger = new LogSetup("logs/server.log", "Server", Level.ALL).getLogger();
+
+	private final ThreadPoolExecutor pool;
+	private final int reportInterval;
+
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	/* time from submitting a handshake step until a thread runs it */
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	/* time from submitting a handshake step until it is done */
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	/**
+	 * @param threads number of threads running handshakes
+	 * @param queueSize number of handshakes that may wait for a thread
+	 * @param reportInterval handshakes between two log entries of the statistics, 0 to not log them
+	 */
+	public HandshakeExecutor(int threads, int queueSize, int reportInterval) {
+		this.reportInterval = reportInterval;
+		this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory("SERVER handshake-", 0),
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Run a step of a handshake on the pool.
+	 * @throws RejectedExecutionException if the queue is full or the executor was shut down
+	 */
+	public void execute(Runnable handshake) {
+		submit(new TimedHandshake(handshake));
+	}
+
+	private void submit(Runnable task) {
+		try {
+			pool.execute(task);
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			logger.warn("Handshake rejected, " + pool.getQueue().size() + " handshakes are waiting. " + getStatistics());
+			throw e;
+		}
+	}
+
+	/**
+	 * Run a step of a handshake on the pool and wait until it is done,
+	 * for connections that have a thread of their own.
+	 * @throws RejectedExecutionException if the queue is full or the executor was shut down
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public void executeAndWait(Runnable handshake) throws InterruptedException {
+		/* the statistics are updated before the caller continues */
+		FutureTask<Object> task = new FutureTask<Object>(new TimedHandshake(handshake), null);
+		submit(task);
+		try {
+			task.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * @return number of handshakes waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return pool.getQueue().size();
+	}
+
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return average time a handshake step waited for a thread in milliseconds
+	 */
+	public double getAverageWaitMillis() {
+		long count = completed.get();
+		return count > 0 ? totalWaitNanos.get() / 1e6 / count : 0;
+	}
+
+	/**
+	 * @return average time from submitting a handshake step until it was done in milliseconds
+	 */
+	public double getAverageLatencyMillis() {
+		long count = completed.get();
+		return count > 0 ? totalLatencyNanos.get() / 1e6 / count : 0;
+	}
+
+	public String getStatistics() {
+		return String.format("Handshakes: %d completed, %d rejected, %d queued, %d running, "
+				+ "wait avg %.2f ms max %.2f ms, latency avg %.2f ms max %.2f ms",
+				completed.get(), rejected.get(), pool.getQueue().size(), pool.getActiveCount(),
+				getAverageWaitMillis(), maxWaitNanos.get() / 1e6, getAverageLatencyMillis(), maxLatencyNanos.get() / 1e6);
+	}
+
+	/**
+	 * Stop the threads, handshakes still waiting are not run.
+	 */
+	public void shutdown() {
+		logger.info(getStatistics());
+		pool.shutdownNow();
+	}
+
+	private static void updateMax(AtomicLong max, long value) {
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+		}
+	}
+
+	private class TimedHandshake implements Runnable {
+		private final Runnable handshake;
+		private final long submitted = System.nanoTime();
+
+		TimedHandshake(Runnable handshake) {
+			this.handshake = handshake;
+		}
+
+		public void run() {
+			long started = System.nanoTime();
+			try {
+				handshake.run();
+			} finally {
+				long done = System.nanoTime();
+				totalWaitNanos.addAndGet(started - submitted);
+				updateMax(maxWaitNanos, started - submitted);
+				totalLatencyNanos.addAndGet(done - submitted);
+				updateMax(maxLatencyNanos, done - submitted);
+				long count = completed.incrementAndGet();
+				if (reportInterval > 0 && count % reportInterval == 0) {
+					logger.info(getStatistics());
+				}
+			}
+		}
+	}
+}
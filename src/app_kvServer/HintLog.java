@@ -0,0 +1,118 @@
+package app_kvServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Hints of a successor that could not be reached: the keys written while it was down, kept in a file
+ * so they survive a restart of this server. Only the keys are kept, their current values are read
+ * when the hints are replayed, see {@link ReplicationQueue}.
+ * <p>
+ * The file holds at most maxKeys hints, the keys written once it is full are dropped and left to the
+ * {@link AntiEntropy}. A record cut off by a crash ends the hints.
+ * The counters can be read while another thread reads or writes the file.
+ */
+public class HintLog {
+	private final File file;
+	private final int maxKeys;
+	private volatile int size;
+	private volatile long dropped;
+
+	/**
+	 * @param file the file of the hints, the hints it already holds are kept
+	 * @param maxKeys maximum number of hints
+	 */
+	public HintLog(File file, int maxKeys) throws IOException {
+		this.file = file;
+		this.maxKeys = maxKeys;
+		this.size = file.exists() ? load().size() : 0;
+	}
+
+	/**
+	 * Append keys to the hints.
+	 * @return number of keys dropped because the hints are full
+	 */
+	public synchronized int add(Collection<String> keys) throws IOException {
+		File directory = file.getParentFile();
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create directory " + directory);
+		}
+		int rejected = 0;
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		try {
+			for (String key : keys) {
+				if (size >= maxKeys) {
+					rejected++;
+					continue;
+				}
+				try {
+					output.writeUTF(key);
+					size++;
+				} catch (UTFDataFormatException e) {
+					/* longer than 64 KB */
+					rejected++;
+				}
+			}
+		} finally {
+			output.close();
+		}
+		dropped += rejected;
+		return rejected;
+	}
+
+	/**
+	 * @return the hinted keys, each once, in the order they were first hinted
+	 */
+	public synchronized Set<String> load() throws IOException {
+		Set<String> keys = new LinkedHashSet<String>();
+		if (!file.exists()) {
+			return keys;
+		}
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				keys.add(input.readUTF());
+			}
+		} catch (EOFException e) {
+			// end of the hints
+		} finally {
+			input.close();
+		}
+		return keys;
+	}
+
+	/**
+	 * Remove all hints, once they were replayed.
+	 */
+	public synchronized void clear() throws IOException {
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Unable to delete hints " + file);
+		}
+		size = 0;
+	}
+
+	/**
+	 * @return number of hints, keys hinted several times are counted each time
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return number of keys dropped because the hints were full
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+}
@@ -1,27 +1,45 @@
 package app_kvServer;
 
-import java.math.BigInteger;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
 
 import logger.LogSetup;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
-import consistent_hashing.ConsistentHashing;
+import common.Settings;
+import consistent_hashing.HashKey;
 
 /**
  * The KVData stores data which is sent by clients in a key -> value fashion . 
  * @author Udhayaraj Sivalingam
  */
 
-public class KVData {
-	public ConcurrentHashMap<BigInteger, String> dataStore = new ConcurrentHashMap<BigInteger, String>();
+public class KVData implements StorageEngine {
+	/* sorted by hash, so the data of a range of the hash circle can be found without scanning the whole store */
+	public ConcurrentSkipListMap<HashKey, String> dataStore = new ConcurrentSkipListMap<HashKey, String>();
 	private Logger logger;
+	/* mutations are logged here before they are applied, null if the data is not persisted */
+	private WriteAheadLog wal;
+	/* keeps the order of the log and of the map in sync */
+	private final Object logLock = new Object();
+	/* logged mutations that are applied once their record is durable, in the order of the log */
+	private final LinkedList<PendingWrite> pending = new LinkedList<PendingWrite>();
+	/* version stamps of the logged mutations, written again when the log is rewritten; empty if the data is not persisted */
+	private final ConcurrentHashMap<HashKey, Long> versions = new ConcurrentHashMap<HashKey, Long>();
+	/* updated on every put and delete, see MerkleTree */
+	private volatile MerkleTree merkleTree;
 	
 	public KVData()
 	{
@@ -29,120 +47,384 @@ public class KVData {
 		this.logger = ls.getLogger();
 	}
 
+	/**
+	 * Parse data in the format of {@link #toString()}, the keys are the decimal hashes.
+	 */
 	public KVData(String data) {
+		this();
 		String[] dataArray = data.split("###");
 		for (String dataEntry : dataArray) {
-			String[] dataEntryValues = dataEntry.split("$$$");
-			dataStore.put(ConsistentHashing.hashKey(dataEntryValues[0]), dataEntryValues[0]);
+			String[] dataEntryValues = dataEntry.split(Pattern.quote("$$$"), 2);
+			if (dataEntryValues.length == 2) {
+				dataStore.put(HashKey.parse(dataEntryValues[0]), dataEntryValues[1]);
+			}
 		}
 	}
 	
 	@Override
 	public String toString() {
 		StringBuilder data = new StringBuilder();
-		for (BigInteger key : dataStore.keySet()) {
+		for (HashKey key : dataStore.keySet()) {
 			data.append(key.toString() + "$$$" + dataStore.get(key) + "###");
 		}
 		
 		return data.toString();
 	}
+	/**
+	 * Rebuild the data from the given write-ahead log and log all further mutations to it.
+	 * @return number of entries after the recovery
+	 */
+	public int recover(WriteAheadLog wal) throws IOException {
+		synchronized (logLock) {
+			wal.replay(new WriteAheadLog.ReplayHandler() {
+				public void put(HashKey key, String value, long version) {
+					dataStore.put(key, value);
+					setVersion(key, version);
+				}
+
+				public void delete(HashKey key, long version) {
+					dataStore.remove(key);
+					setVersion(key, version);
+				}
+			});
+			this.wal = wal;
+			compactLog();
+			logger.info("Recovered " + dataStore.size() + " entries from " + wal.getFile());
+			return dataStore.size();
+		}
+	}
+
+	/**
+	 * Close the write-ahead log, if any. Further mutations are no longer persisted.
+	 */
+	public void close() throws IOException {
+		synchronized (logLock) {
+			if (wal != null) {
+				applyPending();
+				wal.close();
+				wal = null;
+			}
+		}
+	}
+
 	/**
 	 * store/update/delete key,value pair in KVdata .
+	 * @throws IllegalStateException if the mutation could not be written to the write-ahead log,
+	 *  the data is left unchanged in that case
+	 */
+	public String put(HashKey key, String value) {
+		return put(key, value, 0);
+	}
+
+	/**
+	 * The mutation is applied once its log record is durable, so a write that fails is never visible.
+	 * The version stamp is only kept if the data is persisted.
+	 */
+	public String put(HashKey key, String value, long version) {
+		WriteAheadLog log;
+		PendingWrite write;
+		synchronized (logLock) {
+			log = wal;
+			if (log == null) {
+				return apply(key, value);
+			}
+			try {
+				long seq = value.equals("null") ? log.appendDelete(key, version) : log.appendPut(key, value, version);
+				write = new PendingWrite(key, value, version, seq);
+			} catch (IOException e) {
+				throw logFailure(e);
+			}
+			pending.add(write);
+		}
+
+		try {
+			log.commit(write.seq);
+		} catch (IOException e) {
+			synchronized (logLock) {
+				pending.remove(write);
+			}
+			throw logFailure(e);
+		}
+		synchronized (logLock) {
+			/* the records up to this one are committed as well, they are applied in the order of the log */
+			while (!pending.isEmpty() && pending.getFirst().seq <= write.seq) {
+				apply(pending.removeFirst());
+			}
+		}
+		compactLogIfNeeded(log);
+		return write.previous;
+	}
+
+	/* apply a logged mutation and keep its stamp */
+	private void apply(PendingWrite write) {
+		write.previous = apply(write.key, write.value);
+		setVersion(write.key, write.version);
+	}
+
+	private void setVersion(HashKey key, long version) {
+		if (version != 0) {
+			versions.put(key, version);
+		} else {
+			versions.remove(key);
+		}
+	}
+
+	/**
+	 * Set the stamps read from the write-ahead log and logged since.
 	 */
-	public String put(BigInteger key, String value) {
+	public void loadVersions(KeyVersions keyVersions) {
+		for (Entry<HashKey, Long> entry : versions.entrySet()) {
+			keyVersions.set(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private String apply(HashKey key, String value) {
 		String returnValue = null;
+		String previous;
 		if(!value.equals("null"))
 		{
-			returnValue = dataStore.putIfAbsent(key, value);
-			if(returnValue != null)
-			{
-
-				if(dataStore.replace(key, value)!= null)
-					returnValue = dataStore.get(key);
-			}
+			previous = dataStore.put(key, value);
+			if(previous != null)
+				returnValue = value;
 		}
 		else
 		{
 
-			returnValue = dataStore.remove(key);
+			previous = dataStore.remove(key);
+			returnValue = previous;
 
 		}
+		MerkleTree tree = merkleTree;
+		if (tree != null) {
+			tree.update(key, previous, value);
+		}
 		return returnValue;
 
 	}
+
+	public void setMerkleTree(MerkleTree tree) {
+		merkleTree = tree;
+	}
+
+	/* a range of keys was moved in or out */
+	private void invalidateMerkleTree() {
+		MerkleTree tree = merkleTree;
+		if (tree != null) {
+			tree.invalidate();
+		}
+	}
+
+	/**
+	 * Rewrite the log once it mostly consists of overwritten records.
+	 */
+	private void compactLogIfNeeded(WriteAheadLog log) {
+		if (log.getRecordCount() > Settings.WAL_COMPACTION_THRESHOLD && log.getRecordCount() > 2L * (dataStore.size() + versions.size())) {
+			synchronized (logLock) {
+				try {
+					compactLog();
+				} catch (IOException e) {
+					logger.error("Unable to compact write-ahead log " + log.getFile() + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/* caller holds logLock; deleted keys with a stamp are kept as delete records */
+	private void compactLog() throws IOException {
+		applyPending();
+		if (wal == null) {
+			return;
+		}
+		long records = dataStore.size();
+		for (HashKey key : versions.keySet()) {
+			if (!dataStore.containsKey(key)) {
+				records++;
+			}
+		}
+		if (wal.getRecordCount() > records) {
+			wal.rewrite(dataStore, versions);
+		}
+	}
+
+	/*
+	 * Force the records of the pending mutations and apply them, before records are written while holding
+	 * logLock or the log is rewritten. Caller holds logLock.
+	 */
+	private void applyPending() throws IOException {
+		if (pending.isEmpty()) {
+			return;
+		}
+		wal.commit(pending.getLast().seq);
+		while (!pending.isEmpty()) {
+			apply(pending.removeFirst());
+		}
+	}
+
+	/* a mutation whose log record may not be durable yet */
+	private static class PendingWrite {
+		final HashKey key;
+		final String value;
+		final long version;
+		final long seq;
+		String previous;
+
+		PendingWrite(HashKey key, String value, long version, long seq) {
+			this.key = key;
+			this.value = value;
+			this.version = version;
+			this.seq = seq;
+		}
+	}
+
+	private IllegalStateException logFailure(IOException e) {
+		logger.error("Unable to write to write-ahead log: " + e.getMessage());
+		return new IllegalStateException("Unable to write to write-ahead log: " + e.getMessage(), e);
+	}
 	/**
 	 * move data from one kvdata to other.
 	 */
-	public void moveData(HashMap<BigInteger,String> movingData)
+	public void moveData(HashMap<HashKey,String> movingData)
+	{
+		moveData(movingData, null);
+	}
+
+	public void moveData(HashMap<HashKey, String> movingData, Map<HashKey, Long> movingVersions)
 	{
 		if(!movingData.isEmpty())
 		{
-		if(!dataStore.isEmpty())
+		if (wal != null) {
+			WriteAheadLog log;
+			synchronized (logLock) {
+				log = wal;
+				try {
+					applyPending();
+					long seq = 0;
+					for (Entry<HashKey, String> pairs : movingData.entrySet()) {
+						Long version = movingVersions != null ? movingVersions.get(pairs.getKey()) : null;
+						seq = log.appendPut(pairs.getKey(), pairs.getValue(), version != null ? version : 0);
+					}
+					log.commit(seq);
+				} catch (IOException e) {
+					throw logFailure(e);
+				}
+				dataStore.putAll(movingData);
+				for (HashKey key : movingData.keySet()) {
+					Long version = movingVersions != null ? movingVersions.get(key) : null;
+					setVersion(key, version != null ? version : 0);
+				}
+			}
+			compactLogIfNeeded(log);
+		}
+		else if(!dataStore.isEmpty())
 		{
-			Iterator<Entry<BigInteger, String>> it = movingData.entrySet().iterator();
+			Iterator<Entry<HashKey, String>> it = movingData.entrySet().iterator();
 			while (it.hasNext()) {
-				Entry<BigInteger, String> pairs = (Map.Entry<BigInteger,String>)it.next();
+				Entry<HashKey, String> pairs = (Map.Entry<HashKey,String>)it.next();
 				dataStore.put(pairs.getKey(), pairs.getValue());
 			}
 		}
 		else
 			dataStore.putAll(movingData);
+		invalidateMerkleTree();
 		}
 
 	}
 	
+	public int size() {
+		return dataStore.size();
+	}
+
+	public Iterator<Entry<HashKey, String>> iterator() {
+		return dataStore.entrySet().iterator();
+	}
+
 	/**
 	 * get value for given key.
 	 */
-	public String get(BigInteger hashedKey)  {
+	public String get(HashKey hashedKey)  {
 		return dataStore.get(hashedKey);
 	}
 	
+	public List<Entry<HashKey, String>> readChunk(HashKey after, int maxBytes) {
+		return readChunk((after == null ? dataStore : dataStore.tailMap(after, false)).entrySet().iterator(), after, maxBytes);
+	}
+
+	/**
+	 * Copy the entries of a sorted iterator after the given key until the chunk is full.
+	 */
+	static List<Entry<HashKey, String>> readChunk(Iterator<Entry<HashKey, String>> entries, HashKey after, int maxBytes) {
+		List<Entry<HashKey, String>> chunk = new ArrayList<Entry<HashKey, String>>();
+		int bytes = 0;
+		while (bytes < maxBytes && entries.hasNext()) {
+			Entry<HashKey, String> entry = entries.next();
+			if (after == null || entry.getKey().compareTo(after) > 0) {
+				chunk.add(new AbstractMap.SimpleImmutableEntry<HashKey, String>(entry.getKey(), entry.getValue()));
+				bytes += HashKey.SIZE + entry.getValue().length();
+			}
+		}
+		return chunk;
+	}
+
 	/**
 	 * Find data set which is to be moved from one server to other.
 	 */
-	public HashMap<BigInteger,String> findMovingData(BigInteger startIndex, BigInteger endIndex,boolean corner)
+	public HashMap<HashKey,String> findMovingData(HashKey startIndex, HashKey endIndex,boolean corner)
 	{
-		BigInteger key;
-		HashMap<BigInteger, String> movingData = new HashMap<BigInteger,String>();
-		if(!dataStore.isEmpty())
+		HashMap<HashKey, String> movingData = new HashMap<HashKey,String>();
+		if(!corner)
 		{
-		Iterator<Entry<BigInteger, String>> it = dataStore.entrySet().iterator();
-		while (it.hasNext()) {
-			Map.Entry<BigInteger,String> pairs = (Entry<BigInteger, String>)it.next();
-			key = pairs.getKey();
-			if(!corner)
-			{
-			if((key.compareTo(startIndex)  >= 0  && key.compareTo(endIndex) <= 0 ))
-			{
-				logger.info("correct1");
-				movingData.put(key, pairs.getValue());
-			}
-			}
-			else
-			{
-			 if((key.compareTo(startIndex)  >= 0  &&  key.compareTo(endIndex) >= 0 )||(key.compareTo(startIndex)  <= 0  &&  key.compareTo(endIndex) <= 0 ))
-			{
-				logger.info("correct2");
-				movingData.put(key, pairs.getValue());
-			}
-			}
+			if(startIndex.compareTo(endIndex) <= 0)
+				movingData.putAll(dataStore.subMap(startIndex, true, endIndex, true));
 		}
+		else
+		{
+			/* the range wraps around the end of the hash circle */
+			movingData.putAll(dataStore.tailMap(startIndex.max(endIndex), true));
+			movingData.putAll(dataStore.headMap(startIndex.min(endIndex), true));
 		}
+		logger.info("Found " + movingData.size() + " entries to move");
 		return movingData;
 	}
 	/**
 	 * remove data set from server.
 	 */
-	public void remove(HashMap<BigInteger, String> movedData) {
+	public void remove(HashMap<HashKey, String> movedData) {
 		if(!movedData.isEmpty())
 		{
-		Iterator<Entry<BigInteger, String>> it = movedData.entrySet().iterator();
+		if (wal != null) {
+			WriteAheadLog log;
+			synchronized (logLock) {
+				log = wal;
+				List<HashKey> removed = new ArrayList<HashKey>();
+				try {
+					applyPending();
+					long seq = 0;
+					for (Entry<HashKey, String> pairs : movedData.entrySet()) {
+						if (pairs.getValue().equals(dataStore.get(pairs.getKey()))) {
+							seq = log.appendDelete(pairs.getKey(), 0);
+							removed.add(pairs.getKey());
+						}
+					}
+					log.commit(seq);
+				} catch (IOException e) {
+					throw logFailure(e);
+				}
+				for (HashKey key : removed) {
+					dataStore.remove(key);
+					versions.remove(key);
+				}
+			}
+			invalidateMerkleTree();
+			compactLogIfNeeded(log);
+			return;
+		}
+		Iterator<Entry<HashKey, String>> it = movedData.entrySet().iterator();
 		while(it.hasNext())
 		{
-			Map.Entry<BigInteger, String> pairs = (Map.Entry<BigInteger, String>)it.next();
+			Map.Entry<HashKey, String> pairs = (Map.Entry<HashKey, String>)it.next();
 			dataStore.remove(pairs.getKey(), pairs.getValue());
 		}
+		invalidateMerkleTree();
 		}
 	}
 
@@ -1,68 +1,92 @@
 package app_kvServer;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.math.BigInteger;
+import java.io.OutputStream;
 import java.net.BindException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.charset.Charset;
-import java.security.InvalidKeyException;
+import java.nio.channels.ServerSocketChannel;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
-import java.security.SignatureException;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import logger.LogSetup;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
-import common.CommonCrypto;
 import common.InfrastructureMetadata;
+import common.NamedThreadFactory;
 import common.ServerData;
 import common.Settings;
+import common.VirtualThreads;
 import common.communicator.ServerServerCommunicator;
 import consistent_hashing.ConsistentHashing;
+import consistent_hashing.HashKey;
+import crypto_protocol.CredentialStore;
+import crypto_protocol.SessionTicketKey;
 /**
  * The KVServer program which will handle multiple client request . 
  * @author Udhayaraj Sivalingam
  */
 public class KVServer extends Thread {
 	private final  static boolean DEBUG = false;
+	private static final int ACCEPT_BACKLOG = 1024;
 	private Logger logger;
 	private  boolean serveClientRequest = false;
 	private  boolean isWriteLocked = false;
-	private  KVData kvdata = new KVData();
-	private  List<HashMap<BigInteger,String>> movedDataList = new ArrayList<HashMap<BigInteger,String>>();
+	private  StorageEngine kvdata = new KVData();
+	private  List<HashMap<HashKey,String>> movedDataList = new ArrayList<HashMap<HashKey,String>>();
 	private  ServerData serverData = null;
 	private  int port;
 	private  ServerSocket serverSocket;
+	private NioServer nioServer;
+	private ExecutorService connectionExecutor;
+	/* runs the tasks that talk to other servers, e.g. the replication streams, a virtual thread each where available */
+	private final ExecutorService peerExecutor = VirtualThreads.newThreadPerTaskExecutor(new NamedThreadFactory("SERVER peer-", 0));
+	/* runs the secure handshakes of the client connections */
+	private HandshakeExecutor handshakeExecutor;
 	private  boolean running;
 	private  InfrastructureMetadata metaData;
 	private ConsistentHashing consistentHashing;
 
 	private ServerServerCommunicator nextServer;
 	private ServerServerCommunicator nextNextServer;
-	private KVData lastNodeData;
-	private KVData lastLastNodeData;
+	private StorageEngine lastNodeData;
+	private StorageEngine lastLastNodeData;
+	/* number of replica stores opened, names the directories of LSM replica stores */
+	private int replicaStores = 0;
+	private final ReplicaSync[] replicaSyncs = { new ReplicaSync(), new ReplicaSync() };
+	/* replicates the writes of the clients to nextServer and nextNextServer */
+	private final Replicator replicator = new Replicator(this);
+	/* version stamps of kvdata, lastNodeData and lastLastNodeData */
+	private final KeyVersions[] keyVersions = { new KeyVersions(), new KeyVersions(), new KeyVersions() };
+	/* compares the copies of the successors with kvdata and repairs them */
+	private final AntiEntropy antiEntropy = new AntiEntropy(this);
+	/* the Merkle trees of the copies asked for last by their coordinators */
+	private final MerkleTree[] merkleTrees = new MerkleTree[3];
+	/* connections to the other servers holding copies of a key, for quorum reads */
+	private final ConcurrentHashMap<String, ServerServerCommunicator> peers = new ConcurrentHashMap<String, ServerServerCommunicator>();
 
 	public static String SERVER_CERT_PATH = "";
 	public static String SERVER_PRIVKEY_PATH = "";
-	public static X509Certificate serverCertificate = null;
-	public static X509Certificate caCertificate = null;
-	private static PrivateKey serverPrivateKey;
-	private ArrayList<X509Certificate> trustedCAs;
+	/* the certificates and private key used by all handshakes of this server */
+	private static volatile CredentialStore credentials;
+	/* seals the session tickets of the clients, null if tickets are not issued */
+	private static volatile SessionTicketKey sessionTicketKey;
 
 
 
@@ -86,22 +110,22 @@ public class KVServer extends Thread {
 	}
 
 
-	public KVData getKvdata() {
+	public StorageEngine getKvdata() {
 		return kvdata;
 	}
 
 
-	public void setKvdata(KVData kvdata) {
+	public void setKvdata(StorageEngine kvdata) {
 		this.kvdata = kvdata;
 	}
 
 
-	public List<HashMap<BigInteger, String>> getMovedDataList() {
+	public List<HashMap<HashKey, String>> getMovedDataList() {
 		return movedDataList;
 	}
 
 
-	public void setMovedDataList(List<HashMap<BigInteger, String>> movedDataList) {
+	public void setMovedDataList(List<HashMap<HashKey, String>> movedDataList) {
 		this.movedDataList = movedDataList;
 	}
 
@@ -141,8 +165,36 @@ public class KVServer extends Thread {
 		return metaData;
 	}
 
+	/**
+	 * @return the executor running the tasks that talk to other servers
+	 */
+	ExecutorService getPeerExecutor() {
+		return peerExecutor;
+	}
+
+	/**
+	 * @return the executor of the secure handshakes, null before the server was started
+	 */
+	public HandshakeExecutor getHandshakeExecutor() {
+		return handshakeExecutor;
+	}
+
 	public static PrivateKey getPrivateKey() {
-		return serverPrivateKey;
+		return credentials.getPrivateKey();
+	}
+
+	/**
+	 * @return the current credentials of the server, loaded by the constructor
+	 */
+	public static CredentialStore getCredentials() {
+		return credentials;
+	}
+
+	/**
+	 * @return the key of the session tickets, null if the server does not issue tickets
+	 */
+	public static SessionTicketKey getSessionTicketKey() {
+		return sessionTicketKey;
 	}
 	/**
 	 * set metadata of server.
@@ -190,43 +242,16 @@ public class KVServer extends Thread {
 
 		this.logger.info("KVServer log running @port: " + port);
 
+		/* Load the CA, trusted CAs, server certificate and private key once for all handshakes */
 		try {
-			trustedCAs = CommonCrypto.loadTrustStore();
+			credentials = CredentialStore.getServer();
 		} catch (CertificateException e) {
-			logger.error("Unable to load Trust Store: " + e.getMessage() + "\nServer Application terminated.");
+			logger.error("Unable to import the Server or CA Certificate, or Certificate invalid.\nReason: " + e.getMessage() + "\nServer Application terminated.");
 			System.exit(1);
-		} catch (Exception e) {
-			logger.error("Unable to load Trust Store: " + e.getMessage() + "\nServer Application terminated.");
-			System.exit(1);
-		}
-		logger.info("---List of trusted CAs---");
-		for (X509Certificate cert : trustedCAs) {
-			logger.info(cert.getSubjectX500Principal().getName());
-		}
-
-		/* Try importing Server Certificate */
-		try {
-			createServerCertificate(KVServer.SERVER_CERT_PATH);
-		} catch (CertificateException e) {
-			throw new IllegalArgumentException("Unable to create Server X.509 Certificate from file: " + KVServer.SERVER_CERT_PATH);
 		} catch (FileNotFoundException e) {
-			throw new IllegalArgumentException("Server X.509 Certificate file not found at: " + KVServer.SERVER_CERT_PATH);
-		}
-
-		/* Try to import CA Certificate */
-		try {
-			importCACertificate(Settings.getCACertPath());
-		} catch (CertificateException e) {
-			logger.error("Unable to import CA Certificate from file: " + Settings.getCACertPath() + ", or Certificate invalid.\nReason: " + e.getMessage() + "\nServer Exiting.");
-			System.exit(1);
-		}
-
-		try {
-			serverPrivateKey = CommonCrypto.loadPrivateKey(SERVER_PRIVKEY_PATH, Charset.forName(Settings.CHARSET));
-		} catch (FileNotFoundException e) {
-			logger.error("Servers private key file not found at: " + SERVER_PRIVKEY_PATH + "\nServer Application terminated.");
+			logger.error("Servers credential file not found: " + e.getMessage() + "\nServer Application terminated.");
 			System.exit(1);
-		}catch (IOException e) {
+		} catch (IOException e) {
 			logger.error("Unable to read this Servers private key from file: " + SERVER_PRIVKEY_PATH +
 					",\nReason: " + e.getMessage() + "\nServer Application terminated.");
 			System.exit(1);
@@ -242,38 +267,33 @@ public class KVServer extends Thread {
 					",\nReason: " + e.getMessage() + "\nServer Application terminated.");
 			System.exit(1);
 		}
-	}
+		logger.info("---List of trusted CAs---");
+		for (X509Certificate cert : credentials.getTrustedCAs()) {
+			logger.info(cert.getSubjectX500Principal().getName());
+		}
 
-	private void createServerCertificate(String serverCertificatePath) throws CertificateException, FileNotFoundException {
-		File certificateFile = new File(serverCertificatePath);
-		CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
-		serverCertificate = (X509Certificate) certFactory.generateCertificate(new FileInputStream(certificateFile));
+		createSessionTicketKey();
 	}
 
+	/**
+	 * Read the certificates and the private key of this server again, e.g. after the
+	 * server certificate was renewed. New handshakes use the new credentials.
+	 * If they cannot be read the current credentials are kept.
+	 */
+	public void reloadCredentials() throws CertificateException, IOException, InvalidKeySpecException, NoSuchAlgorithmException {
+		credentials = CredentialStore.reloadServer();
+		createSessionTicketKey();
+		logger.info("Reloaded credentials, server certificate: " + credentials.getCertificate().getSubjectX500Principal());
+	}
 
-	public void importCACertificate(String path) throws CertificateException {
-		try {
-			caCertificate = CommonCrypto.importCACertificate(path);
-		} catch (CertificateException e) {
-			logger.error("Unable to create X.509 CA Certificate from file: " + path + 
-					"\nReason: " + e.getMessage() + 
-					"\nServer Application terminated.");
-			System.exit(1);
-		}
-
-		try {
-			if (!CommonCrypto.isCATrusted(caCertificate, this.trustedCAs)) {
-				logger.error("CA Certificate: " + caCertificate.getSubjectX500Principal() + " is not a trusted CA.\nServer Application terminated.");				
-				System.exit(1);
+	/* tickets sealed with the key of older credentials are not accepted any more */
+	private void createSessionTicketKey() {
+		if (Settings.USE_SESSION_TICKETS) {
+			try {
+				sessionTicketKey = new SessionTicketKey(credentials.getPrivateKey(), Settings.SESSION_TICKET_LIFETIME_MS);
+			} catch (GeneralSecurityException e) {
+				logger.warn("Unable to derive the session ticket key, sessions are not resumed: " + e.getMessage());
 			}
-		} catch (InvalidKeyException e) {
-			throw new CertificateException("Unable to import CA Certificate: " + e.getMessage());
-		} catch (NoSuchAlgorithmException e) {
-			throw new CertificateException("Unable to import CA Certificate: " + e.getMessage());
-		} catch (NoSuchProviderException e) {
-			throw new CertificateException("Unable to import CA Certificate: " + e.getMessage());
-		} catch (SignatureException e) {
-			throw new CertificateException("Unable to import CA Certificate: " + e.getMessage());
 		}
 	}
 
@@ -289,13 +309,19 @@ public class KVServer extends Thread {
 				while(isRunning()){
 					try {
 						Socket client = serverSocket.accept();                
-						ClientConnection connection = 
-								new ClientConnection(client,this);		
 						String ip = client.getInetAddress().getHostAddress();
 						serverData = new ServerData(ip+ ":" + port, ip, port);
 						Thread.currentThread().setName("SERVER " + client.getInetAddress().getHostAddress() + ":" + client.getLocalPort());
 						logger.info("Client Connected  [" + client.getInetAddress().getHostAddress() + ":" + client.getPort() + "]");	
-						new Thread(connection).start();
+						if (nioServer != null) {
+							nioServer.register(client.getChannel());
+						} else if (connectionExecutor != null) {
+							connectionExecutor.execute(new ClientConnection(client, this));
+						} else {
+							ClientConnection connection = 
+									new ClientConnection(client,this);		
+							new Thread(connection).start();
+						}
 					} catch (IOException e) {
 						logger.error("Error! " +
 								"Unable to establish connection. \n", e);
@@ -303,6 +329,21 @@ public class KVServer extends Thread {
 				}
 			}
 			logger.info("Server stopped.");
+			if (nioServer != null) {
+				nioServer.shutdown();
+			}
+			if (handshakeExecutor != null) {
+				handshakeExecutor.shutdown();
+			}
+			replicator.stop();
+			antiEntropy.stop();
+			for (ServerServerCommunicator peer : peers.values()) {
+				peer.disconnect();
+			}
+			if (connectionExecutor != null) {
+				connectionExecutor.shutdownNow();
+			}
+			peerExecutor.shutdown();
 			try {
 				if (serverSocket != null)
 					serverSocket.close();
@@ -323,7 +364,33 @@ public class KVServer extends Thread {
 	private boolean initializeServer() {
 		logger.info("Initialize server ...");
 		try {
-			serverSocket = new ServerSocket(port);
+			handshakeExecutor = new HandshakeExecutor(Settings.HANDSHAKE_THREADS, Settings.HANDSHAKE_QUEUE_SIZE, Settings.HANDSHAKE_REPORT_INTERVAL);
+			if (Settings.SERVER_IO.equals("NIO")) {
+				/* accept blocking on the server thread, the accepted channels are served by the NioServer */
+				serverSocket = ServerSocketChannel.open().socket();
+				serverSocket.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+				nioServer = new NioServer(new NioServer.HandlerFactory() {
+					public FrameHandler createHandler(Socket socket, OutputStream output) throws IOException {
+						return new ClientConnection(socket, KVServer.this, output);
+					}
+				}, Settings.SERVER_EVENT_LOOPS, Settings.SERVER_WORKER_THREADS, handshakeExecutor);
+				logger.info("Serving connections with " + Settings.SERVER_EVENT_LOOPS + " selector threads, "
+						+ Settings.SERVER_WORKER_THREADS + " worker threads and " + Settings.HANDSHAKE_THREADS + " handshake threads");
+			} else {
+				serverSocket = new ServerSocket(port);
+				if (Settings.SERVER_IO.equals("POOLED")) {
+					/* idle threads are reused for new connections, small stacks allow many concurrent connections */
+					connectionExecutor = Executors.newCachedThreadPool(
+							new NamedThreadFactory("SERVER connection-", Settings.CONNECTION_THREAD_STACK_SIZE));
+				} else if (Settings.SERVER_IO.equals("VIRTUAL")) {
+					/* one virtual thread per connection, the blocking reads do not occupy a platform thread */
+					connectionExecutor = VirtualThreads.newThreadPerTaskExecutor(
+							new NamedThreadFactory("SERVER connection-", Settings.CONNECTION_THREAD_STACK_SIZE));
+					if (!VirtualThreads.isAvailable()) {
+						logger.warn("Virtual threads require Java 21, serving connections with pooled platform threads.");
+					}
+				}
+			}
 
 			logger.info("Server listening on port: " 
 					+ serverSocket.getLocalPort());   
@@ -331,8 +398,6 @@ public class KVServer extends Thread {
 			String address = InetAddress.getLocalHost().getHostAddress();
 			serverData.add(new ServerData(address + ":" + port, address, port));
 			setMetaData(new InfrastructureMetadata(serverData));
-			return true;
-
 		} catch (IOException e) {
 			logger.error("Error! Cannot open server socket:");
 			if(e instanceof BindException){
@@ -340,6 +405,131 @@ public class KVServer extends Thread {
 			}
 			return false;
 		}
+
+		try {
+			openStorage();
+		} catch (IOException e) {
+			logger.error("Error! Unable to recover data from disk: " + e.getMessage());
+			return false;
+		}
+		replicator.start();
+		antiEntropy.start();
+		return true;
+	}
+
+
+	/**
+	 * Open the storage engine selected in the settings and recover the data of this server and its version stamps from disk.
+	 */
+	private void openStorage() throws IOException {
+		if (Settings.STORAGE_ENGINE.equals("LSM")) {
+			File directory = new File(Settings.SERVER_FILES + "lsm-" + port);
+			kvdata = new LSMStorageEngine(directory);
+			logger.info("Opened LSM storage " + directory.getAbsolutePath() + " with " + kvdata.size() + " entries");
+		} else if (Settings.USE_WRITE_AHEAD_LOG) {
+			File logFile = new File(Settings.SERVER_FILES + "kvdata-" + port + ".wal");
+			KVData data = new KVData();
+			int recovered = data.recover(new WriteAheadLog(logFile));
+			kvdata = data;
+			logger.info("Recovered " + recovered + " entries from write-ahead log " + logFile.getAbsolutePath());
+		}
+		kvdata.loadVersions(keyVersions[0]);
+	}
+
+	/**
+	 * Open an empty store for the replicated data of a predecessor with the storage engine selected in the
+	 * settings, like the own data. The replicated data is not recovered on startup: the predecessor streams
+	 * its whole data again, so the stores of a previous run are deleted.
+	 * @param numServer 1 for the last server in the hash circle, 2 for the second last
+	 */
+	synchronized StorageEngine openReplicaStorage(int numServer) throws IOException {
+		if (!Settings.STORAGE_ENGINE.equals("LSM")) {
+			return new KVData();
+		}
+		String prefix = "lsm-" + port + "-replica";
+		File[] stale = replicaStores == 0 ? new File(Settings.SERVER_FILES).listFiles() : null;
+		if (stale != null) {
+			for (File directory : stale) {
+				if (directory.getName().startsWith(prefix)) {
+					deleteDirectory(directory);
+				}
+			}
+		}
+		replicaStores++;
+		return new LSMStorageEngine(new File(Settings.SERVER_FILES + prefix + numServer + "-" + replicaStores));
+	}
+
+	/**
+	 * @param numServer 1 for the last server in the hash circle, 2 for the second last
+	 * @return the replicated data of that predecessor, a new empty store of {@link #openReplicaStorage(int)}
+	 * if there is none yet, e.g. because a replication batch arrived before the first chunk of the stream
+	 */
+	synchronized StorageEngine getOrOpenReplicaData(int numServer) throws IOException {
+		StorageEngine data = getData(numServer);
+		if (data == null) {
+			data = openReplicaStorage(numServer);
+			setReplicaData(numServer, data);
+		}
+		return data;
+	}
+
+	/**
+	 * Replace the replicated data of a predecessor with a store of {@link #openReplicaStorage(int)}.
+	 * The previous store is closed and its files are deleted.
+	 * @param numServer 1 for the last server in the hash circle, 2 for the second last
+	 */
+	void setReplicaData(int numServer, StorageEngine data) {
+		StorageEngine previous;
+		synchronized (this) {
+			previous = getData(numServer);
+			getVersions(numServer).clear();
+			if (numServer == 1) {
+				lastNodeData = data;
+			} else {
+				lastLastNodeData = data;
+			}
+		}
+		if (previous == null || previous == data) {
+			return;
+		}
+		try {
+			previous.close();
+			if (previous instanceof LSMStorageEngine) {
+				deleteDirectory(((LSMStorageEngine) previous).getDirectory());
+			}
+		} catch (IOException e) {
+			logger.error("Unable to remove the previous replicated data of server " + numServer + ": " + e.getMessage());
+		}
+	}
+
+	private static void deleteDirectory(File directory) throws IOException {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!file.delete()) {
+					throw new IOException("Unable to delete " + file);
+				}
+			}
+		}
+		if (directory.exists() && !directory.delete()) {
+			throw new IOException("Unable to delete " + directory);
+		}
+	}
+
+	/**
+	 * Flush and close the storage of this server, including the replicated data.
+	 */
+	public void closeStorage() {
+		for (StorageEngine data : new StorageEngine[] { kvdata, lastNodeData, lastLastNodeData }) {
+			if (data == null) {
+				continue;
+			}
+			try {
+				data.close();
+			} catch (IOException e) {
+				logger.error("Unable to close storage: " + e.getMessage());
+			}
+		}
 	}
 
 
@@ -392,7 +582,7 @@ public class KVServer extends Thread {
 	/**
 	 * @return the replicated data held from the last server in the hash circle
 	 */
-	public KVData getLastNodeData() {
+	public StorageEngine getLastNodeData() {
 		return lastNodeData;
 	}
 
@@ -400,7 +590,7 @@ public class KVServer extends Thread {
 	/**
 	 * @param change the replicated data held from the last server in the hash circle
 	 */
-	public void setLastNodeData(KVData lastNodeData) {
+	public void setLastNodeData(StorageEngine lastNodeData) {
 		this.lastNodeData = lastNodeData;
 	}
 
@@ -408,7 +598,7 @@ public class KVServer extends Thread {
 	/**
 	 * @return the replicated data held from the second last server in the hash circle
 	 */
-	public KVData getLastLastNodeData() {
+	public StorageEngine getLastLastNodeData() {
 		return lastLastNodeData;
 	}
 
@@ -416,10 +606,75 @@ public class KVServer extends Thread {
 	/**
 	 * @param change the replicated data held from the second last server in the hash circle
 	 */
-	public void setLastLastNodeData(KVData lastLastNodeData) {
+	public void setLastLastNodeData(StorageEngine lastLastNodeData) {
 		this.lastLastNodeData = lastLastNodeData;
 	}
 
+	/**
+	 * @param numServer 1 for the last server in the hash circle, 2 for the second last
+	 * @return the position of the replication stream received from that server
+	 */
+	ReplicaSync getReplicaSync(int numServer) {
+		return replicaSyncs[numServer == 1 ? 0 : 1];
+	}
+
+	/**
+	 * @param position 0 for the own data, 1 for the data of the last server in the hash circle, 2 for the second last
+	 * @return the data, null if there is none for that position yet
+	 */
+	public StorageEngine getData(int position) {
+		return position == 0 ? kvdata : position == 1 ? lastNodeData : lastLastNodeData;
+	}
+
+	/**
+	 * @param position 0 for the own data, 1 for the data of the last server in the hash circle, 2 for the second last
+	 * @return the version stamps of the keys of that data
+	 */
+	public KeyVersions getVersions(int position) {
+		return keyVersions[position];
+	}
+
+	/**
+	 * @param position 0 for the own data, 1 for the data of the last server in the hash circle, 2 for the second last
+	 * @param depth depth of the tree
+	 * @return the Merkle tree of the data, for the anti-entropy. The storage engine keeps it up to date on puts
+	 * and deletes, it is only built again if the depth or the engine changed or a range of keys was moved.
+	 */
+	synchronized MerkleTree getMerkleTree(int position, int depth) {
+		StorageEngine data = getData(position);
+		MerkleTree tree = merkleTrees[position];
+		if (tree == null || tree.getDepth() != depth || tree.isStale() || !tree.isFor(data)) {
+			tree = new MerkleTree(data, depth);
+			if (data != null) {
+				data.setMerkleTree(tree);
+			}
+			merkleTrees[position] = tree;
+		}
+		return tree;
+	}
+
+	/**
+	 * @return a connection to another server, opened when the first request is sent
+	 */
+	ServerServerCommunicator getPeer(ServerData server) {
+		ServerServerCommunicator peer = peers.get(server.getName());
+		if (peer == null) {
+			ServerServerCommunicator created = new ServerServerCommunicator(server.getAddress(), server.getPort());
+			peer = peers.putIfAbsent(server.getName(), created);
+			if (peer == null) {
+				peer = created;
+			}
+		}
+		return peer;
+	}
+
+	/**
+	 * @return the replication of the writes of the clients to the successors
+	 */
+	Replicator getReplicator() {
+		return replicator;
+	}
+
 
 	/**
 	 * Main entry point for the storage server application. 
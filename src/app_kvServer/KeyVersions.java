@@ -0,0 +1,95 @@
+package app_kvServer;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import consistent_hashing.HashKey;
+
+/**
+ * The version stamps of the keys of one copy of the data: the own data of a server or the data it
+ * replicates for a predecessor. The coordinator stamps every write with {@link #nextVersion(long)}
+ * above the current stamp of the key, the replicas keep the stamp they received, a quorum read
+ * returns the value with the highest stamp.
+ * A deleted key keeps its stamp, so the delete wins over older values of other copies.
+ * <p>
+ * Value and stamp of a key are changed together while holding {@link #lockFor(HashKey)}.
+ * The storage engines persist the stamps with the data and restore them with
+ * {@link StorageEngine#loadVersions(KeyVersions)}, moved and streamed data carries its stamps.
+ */
+public class KeyVersions {
+	/* version stamps hold the time in milliseconds in the upper bits and a counter in the lower 16 bits */
+	private static final int COUNTER_BITS = 16;
+	private static final int LOCK_STRIPES = 64;
+	private static long lastVersion = 0;
+
+	private final ConcurrentHashMap<HashKey, Long> versions = new ConcurrentHashMap<HashKey, Long>();
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	public KeyVersions() {
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * @return a stamp higher than all stamps this process created before and, as long as the clocks
+	 * of the servers are about synchronized, than those of the other servers created earlier
+	 */
+	public static long nextVersion() {
+		return nextVersion(0);
+	}
+
+	/**
+	 * @param after the current stamp of the key, 0 if it has none
+	 * @return a stamp like {@link #nextVersion()}, but also higher than the given one, so a write is never
+	 * stamped lower than the value it replaces, e.g. after a restart or if the clock of another server is ahead
+	 */
+	public static synchronized long nextVersion(long after) {
+		lastVersion = Math.max(Math.max(lastVersion + 1, System.currentTimeMillis() << COUNTER_BITS), after + 1);
+		return lastVersion;
+	}
+
+	/**
+	 * @return the lock to hold while value and stamp of the key are read or changed
+	 */
+	public Object lockFor(HashKey key) {
+		return locks[(key.hashCode() & 0x7FFFFFFF) % locks.length];
+	}
+
+	/**
+	 * @return the stamp of the key, 0 if it has none
+	 */
+	public long get(HashKey key) {
+		Long version = versions.get(key);
+		return version != null ? version : 0;
+	}
+
+	public void set(HashKey key, long version) {
+		versions.put(key, version);
+	}
+
+	/**
+	 * @return true if a write with this stamp replaces the current value of the key:
+	 * the stamp is at least as high as that of the key or the write has no stamp
+	 */
+	public boolean accepts(HashKey key, long version) {
+		return version == 0 || version >= get(key);
+	}
+
+	/**
+	 * Forget the stamp of a key, when the key was moved to another server.
+	 */
+	public void remove(HashKey key) {
+		versions.remove(key);
+	}
+
+	/**
+	 * Forget all stamps, when the data of the copy is replaced.
+	 */
+	public void clear() {
+		versions.clear();
+	}
+
+	public int size() {
+		return versions.size();
+	}
+}
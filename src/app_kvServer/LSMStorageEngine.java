@@ -0,0 +1,827 @@
+package app_kvServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import logger.LogSetup;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import common.Settings;
+import consistent_hashing.HashKey;
+
+/**
+ * Log-structured storage engine, so the data of a server is bounded by its disk instead of its heap.
+ * Mutations are logged to a write-ahead log and collected in a sorted memtable. A full memtable is
+ * written to an immutable, sorted segment file by a background thread, which also merges segments
+ * of similar size (size-tiered compaction). Reads check the memtable, the memtable being flushed and
+ * then the segments from the newest to the oldest; deleted keys are shadowed by tombstones until a
+ * compaction including the oldest segment drops them. The version stamps of the mutations are logged
+ * and written to the segments with the values, the stamps of the memtables are kept beside them.
+ *
+ * Files in the directory:
+ * wal-&lt;id&gt;.log             write-ahead log of the memtable with the given id
+ * segment-&lt;max&gt;-&lt;min&gt;.sst  data of the memtables min to max
+ * *.tmp                      unfinished segments, deleted on startup
+ */
+public class LSMStorageEngine implements StorageEngine {
+
+	/* marks deleted keys in memtables and segments, compared by identity */
+	static final String TOMBSTONE = new String("<tombstone>");
+
+	private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)-(\\d+)\\.sst");
+	private static final Pattern WAL_NAME = Pattern.compile("wal-(\\d+)\\.log");
+	/* an older segment joins a compaction if it is at most this factor larger than the newer segments combined */
+	private static final int SIZE_RATIO = 2;
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private Logger logger;
+	private final File directory;
+	private final long memtableSize;
+	private final int compactionTrigger;
+
+	/* serializes mutations and memtable switches */
+	private final Object writeLock = new Object();
+	private volatile ConcurrentSkipListMap<HashKey, String> memtable = new ConcurrentSkipListMap<HashKey, String>();
+	private volatile ConcurrentSkipListMap<HashKey, String> flushing = null;
+	/* version stamps of the entries of memtable and flushing, entries without a stamp have none */
+	private volatile ConcurrentHashMap<HashKey, Long> memtableVersions = new ConcurrentHashMap<HashKey, Long>();
+	private volatile ConcurrentHashMap<HashKey, Long> flushingVersions = null;
+	/* updated on every put and delete, see MerkleTree */
+	private volatile MerkleTree merkleTree;
+	private long memtableBytes = 0;
+	private long memtableId;
+	private WriteAheadLog wal;
+	/* logged mutations that are applied to the memtable once their record is durable, in the order of the log */
+	private final LinkedList<PendingWrite> pending = new LinkedList<PendingWrite>();
+	private long nextId;
+	/* newest first, replaced as a whole */
+	private volatile List<Segment> segments = new ArrayList<Segment>();
+	private final AtomicInteger size = new AtomicInteger(0);
+	private final ExecutorService background;
+	private volatile IOException backgroundFailure;
+	private boolean closed = false;
+
+	/**
+	 * Opens the engine with the settings from {@link Settings}.
+	 * @param directory directory holding the files of this engine, created if necessary
+	 */
+	public LSMStorageEngine(File directory) throws IOException {
+		this(directory, Settings.LSM_MEMTABLE_SIZE, Settings.LSM_COMPACTION_TRIGGER);
+	}
+
+	/**
+	 * Opens the engine and recovers the data found in the directory.
+	 * @param directory directory holding the files of this engine, created if necessary
+	 * @param memtableSize approximate size in bytes at which a memtable is written to a segment
+	 * @param compactionTrigger number of segments that starts a compaction
+	 */
+	public LSMStorageEngine(File directory, long memtableSize, int compactionTrigger) throws IOException {
+		LogSetup ls = new LogSetup("logs/server.log", "LSM", Level.ALL);
+		this.logger = ls.getLogger();
+		this.directory = directory;
+		this.memtableSize = memtableSize;
+		this.compactionTrigger = Math.max(2, compactionTrigger);
+
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Unable to create storage directory " + directory);
+		}
+		background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "LSM compaction " + LSMStorageEngine.this.directory.getName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		recover();
+	}
+
+	private void recover() throws IOException {
+		List<Segment> found = new ArrayList<Segment>();
+		List<Long> walIds = new ArrayList<Long>();
+		long maxId = 0;
+
+		File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("Unable to list storage directory " + directory);
+		}
+		for (File file : files) {
+			Matcher segmentMatcher = SEGMENT_NAME.matcher(file.getName());
+			Matcher walMatcher = WAL_NAME.matcher(file.getName());
+			if (file.getName().endsWith(".tmp")) {
+				file.delete();
+			} else if (segmentMatcher.matches()) {
+				long max = Long.parseLong(segmentMatcher.group(1));
+				long min = Long.parseLong(segmentMatcher.group(2));
+				found.add(Segment.open(file, max, min));
+				maxId = Math.max(maxId, max);
+			} else if (walMatcher.matches()) {
+				long id = Long.parseLong(walMatcher.group(1));
+				walIds.add(id);
+				maxId = Math.max(maxId, id);
+			}
+		}
+
+		/* inputs of a compaction that finished before the crash are covered by its output */
+		List<Segment> live = new ArrayList<Segment>();
+		for (Segment segment : found) {
+			boolean covered = false;
+			for (Segment other : found) {
+				if (other != segment && other.minId <= segment.minId && segment.maxId <= other.maxId
+						&& (other.minId != segment.minId || other.maxId != segment.maxId)) {
+					covered = true;
+				}
+			}
+			if (covered) {
+				segment.markObsolete();
+			} else {
+				live.add(segment);
+			}
+		}
+		Collections.sort(live, new Comparator<Segment>() {
+			public int compare(Segment s1, Segment s2) {
+				return s1.maxId < s2.maxId ? 1 : (s1.maxId == s2.maxId ? 0 : -1);
+			}
+		});
+		segments = live;
+		nextId = maxId + 1;
+
+		/* memtables that were not flushed before the shutdown */
+		Collections.sort(walIds);
+		if (!walIds.isEmpty()) {
+			final ConcurrentSkipListMap<HashKey, String> replayed = new ConcurrentSkipListMap<HashKey, String>();
+			final Map<HashKey, Long> replayedVersions = new HashMap<HashKey, Long>();
+			for (long id : walIds) {
+				WriteAheadLog log = new WriteAheadLog(walFile(id), WriteAheadLog.FsyncPolicy.NONE, 1, 1);
+				log.replay(new WriteAheadLog.ReplayHandler() {
+					public void put(HashKey key, String value, long version) {
+						replayed.put(key, value);
+						replayedVersions.put(key, version);
+					}
+
+					public void delete(HashKey key, long version) {
+						replayed.put(key, TOMBSTONE);
+						replayedVersions.put(key, version);
+					}
+				});
+				log.close();
+			}
+			if (!replayed.isEmpty()) {
+				writeSegment(withVersions(replayed, replayedVersions), replayed.size(), walIds.get(walIds.size() - 1), walIds.get(0));
+			}
+			for (long id : walIds) {
+				walFile(id).delete();
+			}
+		}
+
+		memtableId = nextId++;
+		wal = new WriteAheadLog(walFile(memtableId));
+
+		int count = 0;
+		Iterator<Entry<HashKey, String>> it = scan(null, null);
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		size.set(count);
+		logger.info("Opened storage " + directory + " with " + segments.size() + " segments and " + count + " entries.");
+	}
+
+	public String get(HashKey key) {
+		String value = memtable.get(key);
+		if (value == null) {
+			ConcurrentSkipListMap<HashKey, String> immutable = flushing;
+			if (immutable != null) {
+				value = immutable.get(key);
+			}
+		}
+		if (value == null) {
+			List<Segment> view = acquireSegments();
+			try {
+				for (Segment segment : view) {
+					value = segment.get(key);
+					if (value != null) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				logger.error("Unable to read from storage " + directory + ": " + e.getMessage());
+				throw new IllegalStateException("Unable to read from storage: " + e.getMessage(), e);
+			} finally {
+				releaseSegments(view);
+			}
+		}
+		return value == TOMBSTONE ? null : value;
+	}
+
+	public String put(HashKey key, String value) {
+		return put(key, value, 0);
+	}
+
+	/**
+	 * The mutation is applied to the memtable once its log record is durable, so a write that fails is never visible.
+	 */
+	public String put(HashKey key, String value, long version) {
+		WriteAheadLog log;
+		PendingWrite write;
+		synchronized (writeLock) {
+			if (value.equals("null") && version == 0 && pending.isEmpty() && get(key) == null) {
+				return null;
+			}
+			log = wal;
+			write = append(key, value.equals("null") ? TOMBSTONE : value, version);
+			pending.add(write);
+		}
+
+		try {
+			log.commit(write.seq);
+		} catch (IOException e) {
+			synchronized (writeLock) {
+				pending.remove(write);
+			}
+			logger.error("Unable to force write-ahead log: " + e.getMessage());
+			throw new IllegalStateException("Unable to force write-ahead log: " + e.getMessage(), e);
+		}
+		synchronized (writeLock) {
+			/* the records up to this one are committed as well, they are applied in the order of the log */
+			while (!pending.isEmpty() && pending.getFirst().seq <= write.seq) {
+				apply(pending.removeFirst());
+			}
+			switchMemtableIfFull();
+		}
+		return write.previous;
+	}
+
+	public void moveData(HashMap<HashKey, String> movingData) {
+		moveData(movingData, null);
+	}
+
+	public void moveData(HashMap<HashKey, String> movingData, Map<HashKey, Long> versions) {
+		synchronized (writeLock) {
+			applyPending();
+			List<PendingWrite> writes = new ArrayList<PendingWrite>();
+			for (Entry<HashKey, String> entry : movingData.entrySet()) {
+				Long version = versions != null ? versions.get(entry.getKey()) : null;
+				writes.add(append(entry.getKey(), entry.getValue(), version != null ? version : 0));
+			}
+			applyAll(writes);
+		}
+	}
+
+	/**
+	 * Moved data is applied like puts and deletes, so the tree stays up to date when a range is moved.
+	 */
+	public void setMerkleTree(MerkleTree tree) {
+		merkleTree = tree;
+	}
+
+	/**
+	 * Reads the stamps of all keys, including the tombstones not dropped by a compaction yet.
+	 */
+	public void loadVersions(KeyVersions versions) {
+		List<Segment> view = acquireSegments();
+		try {
+			Iterator<Entry<HashKey, String>> it = new MergingIterator(sources(null, view), null, true);
+			while (it.hasNext()) {
+				Entry<HashKey, String> entry = it.next();
+				long version = Segment.VersionedEntry.versionOf(entry);
+				if (version != 0) {
+					versions.set(entry.getKey(), version);
+				}
+			}
+		} finally {
+			releaseSegments(view);
+		}
+	}
+
+	public void remove(HashMap<HashKey, String> movedData) {
+		synchronized (writeLock) {
+			applyPending();
+			List<PendingWrite> writes = new ArrayList<PendingWrite>();
+			for (Entry<HashKey, String> entry : movedData.entrySet()) {
+				if (entry.getValue().equals(get(entry.getKey()))) {
+					writes.add(append(entry.getKey(), TOMBSTONE, 0));
+				}
+			}
+			applyAll(writes);
+		}
+	}
+
+	public HashMap<HashKey, String> findMovingData(HashKey startIndex, HashKey endIndex, boolean corner) {
+		HashMap<HashKey, String> movingData = new HashMap<HashKey, String>();
+		if (!corner) {
+			collect(scan(startIndex, endIndex), movingData);
+		} else {
+			collect(scan(startIndex.max(endIndex), null), movingData);
+			collect(scan(null, startIndex.min(endIndex)), movingData);
+		}
+		return movingData;
+	}
+
+	/**
+	 * Unlike {@link #iterator()} the chunk does not keep the segments open.
+	 */
+	public List<Entry<HashKey, String>> readChunk(HashKey after, int maxBytes) {
+		List<Segment> view = acquireSegments();
+		try {
+			return KVData.readChunk(new MergingIterator(sources(after, view), null, false), after, maxBytes);
+		} finally {
+			releaseSegments(view);
+		}
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Iterates over all live entries in ascending key order.
+	 * The iterator has to be exhausted, otherwise segments replaced by a compaction are kept open.
+	 */
+	public Iterator<Entry<HashKey, String>> iterator() {
+		return scan(null, null);
+	}
+
+	public void close() throws IOException {
+		synchronized (writeLock) {
+			if (closed) {
+				return;
+			}
+			applyPending();
+			closed = true;
+		}
+		background.shutdown();
+		try {
+			background.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		wal.close();
+		List<Segment> open;
+		synchronized (writeLock) {
+			open = segments;
+			segments = new ArrayList<Segment>();
+		}
+		for (Segment segment : open) {
+			segment.release();
+		}
+		logger.info("Closed storage " + directory);
+	}
+
+	@Override
+	public String toString() {
+		return "LSMStorageEngine[" + directory + ", " + size() + " entries, " + segments.size() + " segments]";
+	}
+
+	/* caller holds writeLock */
+	private PendingWrite append(HashKey key, String value, long version) {
+		if (closed) {
+			throw new IllegalStateException("Storage " + directory + " is closed.");
+		}
+		if (backgroundFailure != null) {
+			throw new IllegalStateException("Unable to write to storage: " + backgroundFailure.getMessage(), backgroundFailure);
+		}
+		try {
+			long seq = value == TOMBSTONE ? wal.appendDelete(key, version) : wal.appendPut(key, value, version);
+			return new PendingWrite(key, value, version, seq);
+		} catch (IOException e) {
+			logger.error("Unable to write to write-ahead log: " + e.getMessage());
+			throw new IllegalStateException("Unable to write to write-ahead log: " + e.getMessage(), e);
+		}
+	}
+
+	/* caller holds writeLock, the record of the mutation is committed */
+	private void apply(PendingWrite write) {
+		String oldValue = get(write.key);
+		if (write.value == TOMBSTONE) {
+			if (oldValue != null) {
+				size.decrementAndGet();
+			}
+			write.previous = oldValue;
+		} else {
+			if (oldValue == null) {
+				size.incrementAndGet();
+			}
+			write.previous = oldValue == null ? null : write.value;
+		}
+		memtable.put(write.key, write.value);
+		MerkleTree tree = merkleTree;
+		if (tree != null) {
+			tree.update(write.key, oldValue, write.value == TOMBSTONE ? null : write.value);
+		}
+		if (write.version != 0) {
+			memtableVersions.put(write.key, write.version);
+		} else {
+			memtableVersions.remove(write.key);
+		}
+		memtableBytes += ENTRY_OVERHEAD + (write.value == TOMBSTONE ? 0 : 2 * write.value.length());
+	}
+
+	/* commit and apply mutations logged while holding writeLock */
+	private void applyAll(List<PendingWrite> writes) {
+		if (writes.isEmpty()) {
+			return;
+		}
+		commitLocked(writes.get(writes.size() - 1).seq);
+		for (PendingWrite write : writes) {
+			apply(write);
+		}
+		switchMemtableIfFull();
+	}
+
+	/*
+	 * Commit and apply the pending mutations, before records are logged while holding writeLock or the
+	 * memtable is switched, so every record is applied to the memtable of its log. Caller holds writeLock.
+	 */
+	private void applyPending() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		commitLocked(pending.getLast().seq);
+		while (!pending.isEmpty()) {
+			apply(pending.removeFirst());
+		}
+	}
+
+	private void commitLocked(long seq) {
+		try {
+			wal.commit(seq);
+		} catch (IOException e) {
+			logger.error("Unable to force write-ahead log: " + e.getMessage());
+			throw new IllegalStateException("Unable to force write-ahead log: " + e.getMessage(), e);
+		}
+	}
+
+	/* a mutation whose log record may not be durable yet */
+	private static class PendingWrite {
+		final HashKey key;
+		final String value;
+		final long version;
+		final long seq;
+		String previous;
+
+		PendingWrite(HashKey key, String value, long version, long seq) {
+			this.key = key;
+			this.value = value;
+			this.version = version;
+			this.seq = seq;
+		}
+	}
+
+	/* caller holds writeLock */
+	private void switchMemtableIfFull() {
+		if (closed || memtableBytes < memtableSize) {
+			return;
+		}
+		/* only one memtable can be flushed at a time, writers wait for the flush */
+		while (flushing != null && backgroundFailure == null) {
+			try {
+				writeLock.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		if (backgroundFailure != null) {
+			return;
+		}
+		try {
+			applyPending();
+		} catch (IllegalStateException e) {
+			return;
+		}
+		if (memtableBytes < memtableSize) {
+			/* switched by another writer while waiting */
+			return;
+		}
+
+		final ConcurrentSkipListMap<HashKey, String> full = memtable;
+		final ConcurrentHashMap<HashKey, Long> fullVersions = memtableVersions;
+		final long fullId = memtableId;
+		final WriteAheadLog fullLog = wal;
+		try {
+			long newId = nextId;
+			WriteAheadLog newLog = new WriteAheadLog(walFile(newId));
+			nextId++;
+			flushing = full;
+			flushingVersions = fullVersions;
+			memtable = new ConcurrentSkipListMap<HashKey, String>();
+			memtableVersions = new ConcurrentHashMap<HashKey, Long>();
+			memtableBytes = 0;
+			memtableId = newId;
+			wal = newLog;
+		} catch (IOException e) {
+			logger.error("Unable to create write-ahead log, memtable keeps growing: " + e.getMessage());
+			return;
+		}
+
+		background.execute(new Runnable() {
+			public void run() {
+				try {
+					fullLog.close();
+					writeSegment(withVersions(full, fullVersions), full.size(), fullId, fullId);
+					walFile(fullId).delete();
+					synchronized (writeLock) {
+						flushing = null;
+						flushingVersions = null;
+						writeLock.notifyAll();
+					}
+					compactIfNeeded();
+				} catch (IOException e) {
+					logger.error("Unable to flush memtable " + fullId + " of storage " + directory + ": " + e.getMessage());
+					synchronized (writeLock) {
+						backgroundFailure = e;
+						writeLock.notifyAll();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes a new segment and publishes it as the newest one, or as replacement of the segments in the given id range.
+	 */
+	private void writeSegment(Iterator<Entry<HashKey, String>> entries, long expectedEntries, long maxId, long minId) throws IOException {
+		String name = "segment-" + maxId + "-" + minId + ".sst";
+		File tmp = new File(directory, name + ".tmp");
+		File file = new File(directory, name);
+		Segment.write(tmp, entries, expectedEntries);
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Unable to rename " + tmp + " to " + file);
+		}
+		Segment segment = Segment.open(file, maxId, minId);
+
+		List<Segment> replaced = new ArrayList<Segment>();
+		synchronized (writeLock) {
+			List<Segment> updated = new ArrayList<Segment>();
+			boolean added = false;
+			for (Segment existing : segments) {
+				if (existing.minId >= minId && existing.maxId <= maxId) {
+					replaced.add(existing);
+					continue;
+				}
+				if (!added && existing.maxId < maxId) {
+					updated.add(segment);
+					added = true;
+				}
+				updated.add(existing);
+			}
+			if (!added) {
+				updated.add(segment);
+			}
+			segments = updated;
+		}
+		for (Segment old : replaced) {
+			old.markObsolete();
+		}
+		logger.info("Wrote segment " + file.getName() + " with " + segment.getEntryCount() + " entries.");
+	}
+
+	/**
+	 * Merges the newest segments once there are too many of them. Older segments join the merge
+	 * while they are at most SIZE_RATIO times larger than the segments merged so far.
+	 */
+	private void compactIfNeeded() throws IOException {
+		List<Segment> current = segments;
+		if (current.size() < compactionTrigger) {
+			return;
+		}
+		int count = 1;
+		long mergedBytes = current.get(0).getSizeInBytes();
+		while (count < current.size() && current.get(count).getSizeInBytes() <= SIZE_RATIO * mergedBytes) {
+			mergedBytes += current.get(count).getSizeInBytes();
+			count++;
+		}
+		count = Math.max(count, 2);
+		List<Segment> run = current.subList(0, count);
+		boolean includesOldest = count == current.size();
+
+		long expectedEntries = 0;
+		List<Iterator<Entry<HashKey, String>>> sources = new ArrayList<Iterator<Entry<HashKey, String>>>();
+		for (Segment segment : run) {
+			expectedEntries += segment.getEntryCount();
+			sources.add(segment.iterator(null));
+		}
+		/* tombstones only shadow older data, which is gone once the oldest segment is merged */
+		Iterator<Entry<HashKey, String>> merged = new MergingIterator(sources, null, !includesOldest);
+		long start = System.currentTimeMillis();
+		writeSegment(merged, expectedEntries, run.get(0).maxId, run.get(run.size() - 1).minId);
+		logger.info("Compacted " + count + " segments in " + (System.currentTimeMillis() - start) + " ms.");
+	}
+
+	private File walFile(long id) {
+		return new File(directory, "wal-" + id + ".log");
+	}
+
+	private List<Segment> acquireSegments() {
+		while (true) {
+			List<Segment> view = segments;
+			List<Segment> acquired = new ArrayList<Segment>(view.size());
+			for (Segment segment : view) {
+				if (!segment.acquire()) {
+					break;
+				}
+				acquired.add(segment);
+			}
+			if (acquired.size() == view.size()) {
+				return acquired;
+			}
+			/* a compaction replaced one of the segments, retry with the new list */
+			releaseSegments(acquired);
+		}
+	}
+
+	private void releaseSegments(List<Segment> view) {
+		for (Segment segment : view) {
+			segment.release();
+		}
+	}
+
+	private void collect(Iterator<Entry<HashKey, String>> it, HashMap<HashKey, String> target) {
+		while (it.hasNext()) {
+			Entry<HashKey, String> entry = it.next();
+			target.put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * @param from smallest key (inclusive), null for no lower bound
+	 * @param to largest key (inclusive), null for no upper bound
+	 * @return live entries within the bounds in ascending key order
+	 */
+	private Iterator<Entry<HashKey, String>> scan(HashKey from, HashKey to) {
+		final List<Segment> view = acquireSegments();
+		return new MergingIterator(sources(from, view), to, false) {
+			@Override
+			protected void exhausted() {
+				releaseSegments(view);
+			}
+		};
+	}
+
+	/**
+	 * @return the sorted sources of the entries from the given key on, from the newest to the oldest
+	 */
+	private List<Iterator<Entry<HashKey, String>>> sources(HashKey from, List<Segment> view) {
+		List<Iterator<Entry<HashKey, String>>> sources = new ArrayList<Iterator<Entry<HashKey, String>>>();
+		sources.add(withVersions(range(memtable, from), memtableVersions));
+		ConcurrentSkipListMap<HashKey, String> immutable = flushing;
+		ConcurrentHashMap<HashKey, Long> immutableVersions = flushingVersions;
+		if (immutable != null) {
+			sources.add(withVersions(range(immutable, from), immutableVersions != null ? immutableVersions : new HashMap<HashKey, Long>()));
+		}
+		for (Segment segment : view) {
+			sources.add(segment.iterator(from));
+		}
+		return sources;
+	}
+
+	private static Map<HashKey, String> range(ConcurrentSkipListMap<HashKey, String> map, HashKey from) {
+		return from == null ? map : map.tailMap(from, true);
+	}
+
+	/**
+	 * @return the entries of a memtable in its order, with their version stamps like the entries of a segment
+	 */
+	private static Iterator<Entry<HashKey, String>> withVersions(Map<HashKey, String> entries, final Map<HashKey, Long> versions) {
+		final Iterator<Entry<HashKey, String>> it = entries.entrySet().iterator();
+		return new Iterator<Entry<HashKey, String>>() {
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public Entry<HashKey, String> next() {
+				Entry<HashKey, String> entry = it.next();
+				Long version = versions.get(entry.getKey());
+				return new Segment.VersionedEntry(entry.getKey(), entry.getValue(), version != null ? version : 0);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Merges sorted sources, ordered from the newest to the oldest. For keys present in several
+	 * sources the value of the newest source wins.
+	 */
+	private static class MergingIterator implements Iterator<Entry<HashKey, String>> {
+
+		private static class Head {
+			final Iterator<Entry<HashKey, String>> source;
+			final int age;
+			Entry<HashKey, String> entry;
+
+			Head(Iterator<Entry<HashKey, String>> source, int age) {
+				this.source = source;
+				this.age = age;
+			}
+		}
+
+		private final PriorityQueue<Head> heads;
+		private final HashKey to;
+		private final boolean keepTombstones;
+		private Entry<HashKey, String> next;
+		private boolean done = false;
+
+		MergingIterator(List<Iterator<Entry<HashKey, String>>> sources, HashKey to, boolean keepTombstones) {
+			this.to = to;
+			this.keepTombstones = keepTombstones;
+			this.heads = new PriorityQueue<Head>(Math.max(1, sources.size()), new Comparator<Head>() {
+				public int compare(Head h1, Head h2) {
+					int cmp = h1.entry.getKey().compareTo(h2.entry.getKey());
+					return cmp != 0 ? cmp : h1.age - h2.age;
+				}
+			});
+			for (int i = 0; i < sources.size(); i++) {
+				Head head = new Head(sources.get(i), i);
+				if (head.source.hasNext()) {
+					head.entry = head.source.next();
+					heads.add(head);
+				}
+			}
+			advance();
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public Entry<HashKey, String> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Entry<HashKey, String> result = next;
+			advance();
+			return result;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Called once when the last entry was returned.
+		 */
+		protected void exhausted() {
+		}
+
+		private void advance() {
+			next = null;
+			while (!heads.isEmpty()) {
+				Head newest = heads.poll();
+				Entry<HashKey, String> candidate = newest.entry;
+				moveOn(newest);
+				/* skip older versions of the same key */
+				while (!heads.isEmpty() && heads.peek().entry.getKey().equals(candidate.getKey())) {
+					moveOn(heads.poll());
+				}
+				if (to != null && candidate.getKey().compareTo(to) > 0) {
+					break;
+				}
+				if (candidate.getValue() != TOMBSTONE || keepTombstones) {
+					next = candidate;
+					return;
+				}
+			}
+			if (!done) {
+				done = true;
+				heads.clear();
+				exhausted();
+			}
+		}
+
+		private void moveOn(Head head) {
+			if (head.source.hasNext()) {
+				head.entry = head.source.next();
+				heads.add(head);
+			}
+		}
+	}
+}
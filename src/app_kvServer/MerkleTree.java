@@ -0,0 +1,217 @@
+package app_kvServer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import consistent_hashing.HashKey;
+
+/**
+ * Hash tree over the hashed key space of one copy of the data, used by {@link AntiEntropy} to find
+ * the keys in which the copy of a replica differs from that of its coordinator.
+ * <p>
+ * The key space is split into 16^depth leaves by the leading bits of the hashed keys. Every node has
+ * 16 children, a node of a level covers the leaves of its children. The hash of a node is the sum of
+ * the hashes of the key value pairs it covers, so it does not depend on the order of the keys and the
+ * tree is built with one pass over the data. Deleted keys ("null") are not part of the tree.
+ * <p>
+ * Since the hashes are sums, a put or delete only subtracts the hash of the old pair and adds that of
+ * the new one on the path from its leaf to the root, see {@link #update(HashKey, String, String)}.
+ * The engine of the copy does so for every mutation once the tree is attached to it with
+ * {@link StorageEngine#setMerkleTree(MerkleTree)}; moving a range of keys marks the tree stale, and it
+ * is built again. A pair changed while the tree is built may be counted with its old value, such a
+ * leaf is corrected with {@link #setLeaves(Set, Map)} when its keys are compared.
+ */
+public class MerkleTree {
+	public static final int FANOUT_BITS = 4;
+	public static final int FANOUT = 1 << FANOUT_BITS;
+	public static final int MAX_DEPTH = 5;
+	/* keys per leaf the depth is chosen for */
+	private static final int LEAF_KEYS = 8;
+
+	private final int depth;
+	/* hashes of the nodes, levels[0] holds the root and levels[depth] the leaves */
+	private final AtomicLongArray[] levels;
+	private final StorageEngine data;
+	private volatile boolean stale = false;
+
+	/**
+	 * @param data the copy, null for a copy without keys
+	 * @param depth number of levels below the root, 1 to {@link #MAX_DEPTH}
+	 */
+	public MerkleTree(StorageEngine data, int depth) {
+		if (depth < 1 || depth > MAX_DEPTH) {
+			throw new IllegalArgumentException("The depth of a Merkle tree must be between 1 and " + MAX_DEPTH + ", was " + depth);
+		}
+		this.depth = depth;
+		this.data = data;
+		long[][] hashes = new long[depth + 1][];
+		for (int level = 0; level <= depth; level++) {
+			hashes[level] = new long[1 << (FANOUT_BITS * level)];
+		}
+		long[] leaves = hashes[depth];
+		if (data != null) {
+			for (Map.Entry<HashKey, String> entry : data) {
+				if (!entry.getValue().equals("null")) {
+					leaves[leafOf(entry.getKey(), depth)] += entryHash(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		for (int level = depth - 1; level >= 0; level--) {
+			long[] children = hashes[level + 1];
+			long[] nodes = hashes[level];
+			for (int child = 0; child < children.length; child++) {
+				nodes[child >>> FANOUT_BITS] += children[child];
+			}
+		}
+		this.levels = new AtomicLongArray[depth + 1];
+		for (int level = 0; level <= depth; level++) {
+			levels[level] = new AtomicLongArray(hashes[level]);
+		}
+	}
+
+	/**
+	 * Apply a put or delete of the copy to the hashes.
+	 * @param oldValue the value before the mutation, null or "null" if the key did not exist
+	 * @param newValue the value after the mutation, null or "null" if the key was deleted
+	 */
+	public void update(HashKey key, String oldValue, String newValue) {
+		long delta = hashOf(key, newValue) - hashOf(key, oldValue);
+		if (delta != 0) {
+			add(depth, leafOf(key, depth), delta);
+		}
+	}
+
+	/**
+	 * Set the hashes of leaves to the sums of the hashes of their pairs.
+	 * @param entryHashes the {@link #entryHashes(StorageEngine, int, Set)} of the leaves, read from the copy
+	 */
+	public void setLeaves(Set<Integer> leaves, Map<HashKey, Long> entryHashes) {
+		Map<Integer, Long> sums = new HashMap<Integer, Long>();
+		for (int leaf : leaves) {
+			sums.put(leaf, 0L);
+		}
+		for (Map.Entry<HashKey, Long> entry : entryHashes.entrySet()) {
+			int leaf = leafOf(entry.getKey(), depth);
+			sums.put(leaf, sums.get(leaf) + entry.getValue());
+		}
+		for (Map.Entry<Integer, Long> sum : sums.entrySet()) {
+			setLeaf(sum.getKey(), sum.getValue());
+		}
+	}
+
+	/* set the hash of a leaf and its parents accordingly */
+	private void setLeaf(int leaf, long hash) {
+		long old = levels[depth].getAndSet(leaf, hash);
+		if (hash != old) {
+			add(depth - 1, leaf >>> FANOUT_BITS, hash - old);
+		}
+	}
+
+	/* add to a node and all nodes above it */
+	private void add(int level, int node, long delta) {
+		for (; level >= 0; level--, node >>>= FANOUT_BITS) {
+			levels[level].addAndGet(node, delta);
+		}
+	}
+
+	private static long hashOf(HashKey key, String value) {
+		return value == null || value.equals("null") ? 0 : entryHash(key, value);
+	}
+
+	/**
+	 * Mark the tree as no longer matching its copy, e.g. after a range of keys was moved.
+	 */
+	public void invalidate() {
+		stale = true;
+	}
+
+	/**
+	 * @return true if the tree has to be built again
+	 */
+	public boolean isStale() {
+		return stale;
+	}
+
+	/**
+	 * @return true if the tree was built from the given copy
+	 */
+	public boolean isFor(StorageEngine data) {
+		return this.data == data;
+	}
+
+	/**
+	 * @return the depth at which the leaves of a copy of this size hold a few keys each
+	 */
+	public static int depthFor(long size) {
+		int depth = 1;
+		while (depth < MAX_DEPTH && (long) LEAF_KEYS << (FANOUT_BITS * depth) < size) {
+			depth++;
+		}
+		return depth;
+	}
+
+	/**
+	 * @return the leaf of a tree of the given depth that covers the key
+	 */
+	public static int leafOf(HashKey key, int depth) {
+		return (int) (key.getHigh() >>> (64 - FANOUT_BITS * depth));
+	}
+
+	/**
+	 * @return 64 bit hash of a key value pair
+	 */
+	public static long entryHash(HashKey key, String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+		}
+		return mix(mix(hash ^ key.getHigh()) ^ key.getLow());
+	}
+
+	/* finalizer of MurmurHash3 */
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * The hashes of the key value pairs of the given leaves of a copy.
+	 * @param data the copy, null for a copy without keys
+	 */
+	public static Map<HashKey, Long> entryHashes(StorageEngine data, int depth, Set<Integer> leaves) {
+		Map<HashKey, Long> hashes = new HashMap<HashKey, Long>();
+		if (data != null) {
+			for (Map.Entry<HashKey, String> entry : data) {
+				if (!entry.getValue().equals("null") && leaves.contains(leafOf(entry.getKey(), depth))) {
+					hashes.put(entry.getKey(), entryHash(entry.getKey(), entry.getValue()));
+				}
+			}
+		}
+		return hashes;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @param level 0 for the root, {@link #getDepth()} for the leaves
+	 * @param node index of the node within its level
+	 */
+	public long getHash(int level, int node) {
+		return levels[level].get(node);
+	}
+
+	/**
+	 * @return number of nodes of a level
+	 */
+	public int getWidth(int level) {
+		return levels[level].length();
+	}
+}
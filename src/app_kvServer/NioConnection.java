@@ -0,0 +1,290 @@
+package app_kvServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import logger.LogSetup;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import common.Settings;
+import common.messages.Frame;
+import common.messages.FrameDecoder;
+
+/**
+ * One connection of a {@link NioServer}.
+ * Frames are decoded by the event loop and processed by the worker pool. At most one worker
+ * processes the frames of a connection at a time, so they are handled in the order they arrived.
+ * Frames of a secure handshake are processed by the handshake executor instead of the workers.
+ * Replies are written directly by the worker if the socket accepts them, otherwise
+ * they are queued and written by the event loop once the channel is writable.
+ * <p>
+ * Once the received frames waiting for a worker and the queued replies exceed
+ * {@link Settings#CONNECTION_HIGH_WATER_MARK} bytes, the event loop stops reading the connection
+ * until they dropped to half of it, so a client that sends faster than its requests are processed
+ * or its replies are read is slowed down by TCP instead of filling the heap.
+ */
+class NioConnection {
+	/* frames processed by one worker task before the connection yields the thread to other connections */
+	private static final int MAX_FRAMES_PER_TASK = 16;
+
+	private static final Logger logger = new LogSetup("logs/server.log", "Server", Level.ALL).getLogger();
+
+	private final SocketChannel channel;
+	private final NioEventLoop eventLoop;
+	private final Executor workers;
+	private final Executor handshakes;
+	private final FrameOutputStream output = new FrameOutputStream();
+	private FrameHandler handler;
+	private volatile SelectionKey key;
+
+	/* only used by the event loop */
+	private final FrameDecoder decoder = new FrameDecoder(Settings.MAX_MESSAGE_SIZE);
+
+	private final Queue<Frame> receivedFrames = new ConcurrentLinkedQueue<Frame>();
+	/* bytes of the received frames and of the queued replies */
+	private final AtomicLong backlog = new AtomicLong();
+	/* set by the event loop when the backlog exceeds the high-water mark */
+	private volatile boolean readPaused;
+	private final AtomicBoolean processing = new AtomicBoolean();
+	/* the scheduled task runs on the handshake executor, set before it is scheduled */
+	private boolean handshakeTask;
+	private final Runnable processTask = new Runnable() {
+		public void run() {
+			processFrames();
+		}
+	};
+
+	/* guarded by pendingWrites */
+	private final LinkedList<ByteBuffer> pendingWrites = new LinkedList<ByteBuffer>();
+	private boolean closeWhenWritten;
+	private volatile boolean closed;
+
+	NioConnection(SocketChannel channel, NioEventLoop eventLoop, Executor workers, Executor handshakes) {
+		this.channel = channel;
+		this.eventLoop = eventLoop;
+		this.workers = workers;
+		this.handshakes = handshakes;
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	SelectionKey getKey() {
+		return key;
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	void setHandler(FrameHandler handler) {
+		this.handler = handler;
+	}
+
+	OutputStream getOutputStream() {
+		return output;
+	}
+
+	/**
+	 * Decode the frames contained in the received data. Incomplete frames are kept until the rest arrives.
+	 * @throws IOException if a frame header is invalid
+	 */
+	void decode(ByteBuffer data) throws IOException {
+		Frame frame;
+		while ((frame = decoder.decode(data)) != null) {
+			received(frame);
+		}
+		if (!readPaused && backlog.get() > Settings.CONNECTION_HIGH_WATER_MARK) {
+			readPaused = true;
+			updateInterest();
+		}
+	}
+
+	/**
+	 * Set the interest in reading and writing, called by the event loop. Reading resumes once the
+	 * backlog dropped below half the high-water mark.
+	 */
+	void updateInterest() {
+		if (readPaused && backlog.get() <= Settings.CONNECTION_HIGH_WATER_MARK / 2) {
+			readPaused = false;
+		}
+		synchronized (pendingWrites) {
+			if (closed || !key.isValid()) {
+				return;
+			}
+			key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (pendingWrites.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+		}
+	}
+
+	/* called after frames were processed or replies written */
+	private void handled(long bytes) {
+		if (backlog.addAndGet(-bytes) <= Settings.CONNECTION_HIGH_WATER_MARK / 2 && readPaused) {
+			eventLoop.requestInterestUpdate(this);
+		}
+	}
+
+	private void received(Frame frame) {
+		backlog.addAndGet(frame.getPayload().length);
+		receivedFrames.add(frame);
+		if (processing.compareAndSet(false, true)) {
+			schedule();
+		}
+	}
+
+	/*
+	 * Schedule the processing of the received frames, called by the thread that set processing.
+	 * A connection whose handshake is not accepted by the handshake executor is closed.
+	 */
+	private void schedule() {
+		Frame next = receivedFrames.peek();
+		handshakeTask = next != null && handler.isHandshake(next.getIdent());
+		try {
+			(handshakeTask ? handshakes : workers).execute(processTask);
+		} catch (RejectedExecutionException e) {
+			logger.debug("Closing connection, its " + (handshakeTask ? "handshake" : "frame") + " was not accepted.");
+			close();
+			receivedFrames.clear();
+			processing.set(false);
+		}
+	}
+
+	private void processFrames() {
+		Frame frame;
+		int processed = 0;
+		while (processed < MAX_FRAMES_PER_TASK && !closed && (frame = receivedFrames.peek()) != null) {
+			/* the first frame after the handshake is processed by a worker */
+			if (handshakes != workers && handler.isHandshake(frame.getIdent()) != handshakeTask) {
+				break;
+			}
+			receivedFrames.poll();
+			try {
+				handler.processFrame(frame.getEncFlag(), frame.getIdent(), frame.getPayload());
+			} catch (IOException e) {
+				logger.debug("Closing connection: " + e.getMessage());
+				close();
+			} catch (RuntimeException e) {
+				logger.error("Unexpected error while processing message, closing connection.", e);
+				close();
+			}
+			handled(frame.getPayload().length);
+			processed++;
+		}
+		if (closed) {
+			receivedFrames.clear();
+		}
+		processing.set(false);
+		/* frames added after the last poll would otherwise wait for the next frame */
+		if (!closed && !receivedFrames.isEmpty() && processing.compareAndSet(false, true)) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Send a frame, called by the worker processing this connection.
+	 */
+	private void send(byte[] bytes) throws IOException {
+		boolean register = false;
+		synchronized (pendingWrites) {
+			if (closed || closeWhenWritten) {
+				throw new IOException("Connection is closed.");
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			if (pendingWrites.isEmpty()) {
+				channel.write(buffer);
+				if (!buffer.hasRemaining()) {
+					return;
+				}
+				register = true;
+			}
+			pendingWrites.add(buffer);
+			backlog.addAndGet(bytes.length);
+		}
+		if (register) {
+			eventLoop.requestInterestUpdate(this);
+		}
+	}
+
+	/**
+	 * Write queued data, called by the event loop when the channel is writable.
+	 */
+	void writePending() throws IOException {
+		long written = 0;
+		synchronized (pendingWrites) {
+			while (!pendingWrites.isEmpty()) {
+				ByteBuffer buffer = pendingWrites.getFirst();
+				channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					break;
+				}
+				pendingWrites.removeFirst();
+				written += buffer.limit();
+			}
+			if (pendingWrites.isEmpty() && closeWhenWritten) {
+				close();
+				return;
+			}
+		}
+		backlog.addAndGet(-written);
+		updateInterest();
+	}
+
+	private void closeGracefully() {
+		synchronized (pendingWrites) {
+			if (pendingWrites.isEmpty()) {
+				close();
+			} else {
+				closeWhenWritten = true;
+			}
+		}
+	}
+
+	/**
+	 * Close the channel immediately, pending writes are discarded.
+	 */
+	void close() {
+		closed = true;
+		SelectionKey selectionKey = key;
+		if (selectionKey != null) {
+			selectionKey.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.error("Unable to close connection: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Collects the bytes of one frame, flush sends them.
+	 */
+	private class FrameOutputStream extends ByteArrayOutputStream {
+		@Override
+		public synchronized void flush() throws IOException {
+			if (count > 0) {
+				byte[] bytes = toByteArray();
+				reset();
+				send(bytes);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+			closeGracefully();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import logger.LogSetup;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Selector thread of a {@link NioServer}. Reads from and writes to the channels of its connections.
+ * Other threads hand over new connections and write interest through queues and wake the selector up.
+ */
+class NioEventLoop extends Thread {
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private static final Logger logger = new LogSetup("logs/server.log", "Server", Level.ALL).getLogger();
+
+	private final Selector selector;
+	/* shared by all connections of this loop, idle connections do not hold a read buffer */
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	private final Queue<NioConnection> newConnections = new ConcurrentLinkedQueue<NioConnection>();
+	/* connections whose interest in reading or writing changed */
+	private final Queue<NioConnection> interestUpdates = new ConcurrentLinkedQueue<NioConnection>();
+	private volatile boolean running = true;
+	private volatile int connectionCount;
+
+	NioEventLoop(String name) throws IOException {
+		super(name);
+		setDaemon(true);
+		this.selector = Selector.open();
+	}
+
+	void register(NioConnection connection) {
+		newConnections.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * Update the interest of a connection, e.g. in writing its pending data or in reading again once its backlog was handled.
+	 */
+	void requestInterestUpdate(NioConnection connection) {
+		interestUpdates.add(connection);
+		selector.wakeup();
+	}
+
+	int getConnectionCount() {
+		return connectionCount;
+	}
+
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+				registerConnections();
+				updateInterest();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					NioConnection connection = (NioConnection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							read(connection);
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.writePending();
+						}
+					} catch (CancelledKeyException e) {
+						connection.close();
+					} catch (IOException e) {
+						logger.debug("Connection closed: " + e.getMessage());
+						connection.close();
+					}
+				}
+				connectionCount = selector.keys().size();
+			} catch (IOException e) {
+				logger.error("Error in selector loop " + getName() + ": " + e.getMessage());
+			}
+		}
+		closeAll();
+	}
+
+	private void read(NioConnection connection) throws IOException {
+		readBuffer.clear();
+		int read = connection.getChannel().read(readBuffer);
+		if (read < 0) {
+			connection.close();
+			return;
+		}
+		readBuffer.flip();
+		connection.decode(readBuffer);
+	}
+
+	private void registerConnections() {
+		NioConnection connection;
+		while ((connection = newConnections.poll()) != null) {
+			try {
+				connection.setKey(connection.getChannel().register(selector, SelectionKey.OP_READ, connection));
+			} catch (IOException e) {
+				logger.error("Unable to register connection: " + e.getMessage());
+				connection.close();
+			}
+		}
+	}
+
+	private void updateInterest() {
+		NioConnection connection;
+		while ((connection = interestUpdates.poll()) != null) {
+			SelectionKey key = connection.getKey();
+			if (key != null && key.isValid()) {
+				try {
+					connection.updateInterest();
+				} catch (CancelledKeyException e) {
+					connection.close();
+				}
+			}
+		}
+	}
+
+	private void closeAll() {
+		for (SelectionKey key : selector.keys()) {
+			((NioConnection) key.attachment()).close();
+		}
+		NioConnection connection;
+		while ((connection = newConnections.poll()) != null) {
+			connection.close();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			logger.error("Unable to close selector: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import logger.LogSetup;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import common.NamedThreadFactory;
+
+/**
+ * Non-blocking front end of a server. Accepted channels are distributed over a few
+ * selector threads ({@link NioEventLoop}) that read and write the frames of all connections.
+ * Complete frames are processed by a separate pool of worker threads, so a connection
+ * only occupies a thread while one of its messages is being processed.
+ * The frames of a secure handshake are processed by a {@link HandshakeExecutor}, if one is given.
+ */
+public class NioServer {
+
+	/**
+	 * Creates the handler for the frames of a new connection.
+	 */
+	public interface HandlerFactory {
+		/**
+		 * @param socket the socket of the connection, e.g. to look up the addresses
+		 * @param output stream that sends everything written to it when it is flushed,
+		 *  closing it closes the connection once all pending data is written
+		 * @throws IOException if the connection can not be served, it is closed in that case
+		 */
+		public FrameHandler createHandler(Socket socket, OutputStream output) throws IOException;
+	}
+
+	private static final Logger logger = new LogSetup("logs/server.log", "Server", Level.ALL).getLogger();
+
+	private final HandlerFactory handlerFactory;
+	private final NioEventLoop[] eventLoops;
+	private final ThreadPoolExecutor workers;
+	private final Executor handshakes;
+	private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+	/**
+	 * Starts the event loop and worker threads.
+	 * @param numEventLoops number of selector threads
+	 * @param numWorkers number of threads processing the received frames
+	 * @throws IOException if a selector could not be opened
+	 */
+	public NioServer(HandlerFactory handlerFactory, int numEventLoops, int numWorkers) throws IOException {
+		this(handlerFactory, numEventLoops, numWorkers, null);
+	}
+
+	/**
+	 * Starts the event loop and worker threads.
+	 * @param numEventLoops number of selector threads
+	 * @param numWorkers number of threads processing the received frames
+	 * @param handshakes processes the frames of the secure handshakes, null to process them by the workers
+	 * @throws IOException if a selector could not be opened
+	 */
+	public NioServer(HandlerFactory handlerFactory, int numEventLoops, int numWorkers, HandshakeExecutor handshakes) throws IOException {
+		this.handlerFactory = handlerFactory;
+		this.workers = new ThreadPoolExecutor(numWorkers, numWorkers, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("SERVER worker-", 0));
+		this.handshakes = handshakes != null ? handshakes : workers;
+		this.eventLoops = new NioEventLoop[numEventLoops];
+		for (int i = 0; i < numEventLoops; i++) {
+			eventLoops[i] = new NioEventLoop("SERVER selector-" + i);
+			eventLoops[i].start();
+		}
+	}
+
+	/**
+	 * Serve a connected channel. The channel is switched to non-blocking mode.
+	 * @throws IOException if the channel could not be configured or the handler could not be created
+	 */
+	public void register(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		NioEventLoop eventLoop = eventLoops[(nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length];
+		NioConnection connection = new NioConnection(channel, eventLoop, workers, handshakes);
+		try {
+			connection.setHandler(handlerFactory.createHandler(channel.socket(), connection.getOutputStream()));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		eventLoop.register(connection);
+	}
+
+	/**
+	 * @return number of open connections
+	 */
+	public int getConnectionCount() {
+		int count = 0;
+		for (NioEventLoop eventLoop : eventLoops) {
+			count += eventLoop.getConnectionCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Close all connections and stop the event loop and worker threads.
+	 */
+	public void shutdown() {
+		for (NioEventLoop eventLoop : eventLoops) {
+			eventLoop.shutdown();
+		}
+		workers.shutdown();
+		try {
+			if (!workers.awaitTermination(5, TimeUnit.SECONDS)) {
+				logger.warn("Worker threads did not finish within 5 seconds.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
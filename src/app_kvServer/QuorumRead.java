@@ -0,0 +1,207 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.RejectedExecutionException;
+
+import logger.LogSetup;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import common.ServerData;
+import common.messages.Consistency;
+import common.messages.InvalidMessageException;
+import common.messages.ServerServerMessage;
+import common.messages.ServerServerStatustype;
+import consistent_hashing.ConsistentHashing;
+import consistent_hashing.EmptyServerDataException;
+import consistent_hashing.HashKey;
+
+/**
+ * Reads a key from as many of its copies as a {@link Consistency} level requires: the copy of this
+ * server and those of the other servers responsible for the key, asked with SERVER_READ in parallel
+ * on the peer executor of the server. The read completes once enough copies answered.
+ * The value with the highest version stamp is returned.
+ * <p>
+ * A stamp of 0 means unknown, e.g. for data written before stamps were persisted: a copy without a
+ * stamp is neither older nor newer than a stamped one. Of two such copies, the one nearer to the
+ * coordinator wins, since the coordinator applies every write before its replicas do. Only a copy
+ * without stamp and without value, like that of a store that lost its data, loses every comparison.
+ * If another server returned a newer value than the own copy, the own copy is repaired.
+ */
+class QuorumRead {
+	private static final Logger logger = new LogSetup("logs/server.log", "Server", Level.ALL).getLogger();
+
+	private final KVServer server;
+	private final String key;
+	private final HashKey hashedKey;
+
+	private String value;
+	private long version;
+	/* position of the copy the value was read from, -1 if none was read */
+	private int source = -1;
+	private int copies;
+
+	QuorumRead(KVServer server, String key) {
+		this.server = server;
+		this.key = key;
+		this.hashedKey = ConsistentHashing.hashKey(key);
+	}
+
+	/**
+	 * @param self this server
+	 * @param consistency the number of copies to read
+	 * @return false if fewer copies than required could be read, e.g. because servers failed,
+	 * or this server is not responsible for the key
+	 */
+	boolean read(ServerData self, Consistency consistency) {
+		List<ServerData> servers;
+		try {
+			servers = server.getConsistentHashing().getServersForKey(key);
+		} catch (EmptyServerDataException e) {
+			logger.warn(e.getMessage());
+			return false;
+		}
+		int position = positionOf(servers, self);
+		if (position < 0) {
+			return false;
+		}
+		int required = consistency.copies(servers.size());
+
+		StorageEngine data = server.getData(position);
+		KeyVersions keyVersions = server.getVersions(position);
+		String ownValue = null;
+		long ownVersion = 0;
+		if (data != null) {
+			synchronized (keyVersions.lockFor(hashedKey)) {
+				ownValue = data.get(hashedKey);
+				ownVersion = keyVersions.get(hashedKey);
+			}
+			copies++;
+			take(position, ownValue, ownVersion);
+		}
+
+		if (copies < required) {
+			readRemote(servers, position, required);
+		}
+
+		if (copies < required) {
+			logger.warn("Read " + copies + " of " + required + " copies of key " + key + " required for " + consistency);
+			return false;
+		}
+		if (data != null && source != position && newer(version, value, ownVersion, ownValue)) {
+			repair(data, keyVersions, ownVersion);
+		}
+		return true;
+	}
+
+	/* ask the other copies in parallel and wait until enough answered or all failed */
+	private void readRemote(List<ServerData> servers, int position, int required) {
+		CompletionService<ServerServerMessage> replies = new ExecutorCompletionService<ServerServerMessage>(server.getPeerExecutor());
+		int asked = 0;
+		for (int i = 0; i < servers.size(); i++) {
+			if (i == position) {
+				continue;
+			}
+			final ServerData peer = servers.get(i);
+			final int copy = i;
+			try {
+				replies.submit(new Callable<ServerServerMessage>() {
+					public ServerServerMessage call() throws Exception {
+						return server.getPeer(peer).request(new ServerServerMessage(ServerServerStatustype.SERVER_READ, copy, key));
+					}
+				});
+				asked++;
+			} catch (RejectedExecutionException e) {
+				logger.warn("Unable to read key " + key + " from " + peer.getName() + ", the server is stopped.");
+			}
+		}
+
+		for (; asked > 0 && copies < required; asked--) {
+			try {
+				ServerServerMessage reply = replies.take().get();
+				copies++;
+				take(reply.getNumServer(), reply.getValue().equals("null") ? null : reply.getValue(), reply.getVersion());
+			} catch (InterruptedException e) {
+				logger.warn("Interrupted while reading key " + key);
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof InvalidMessageException) {
+					logger.error("Problems creating the message. Please check the protocol specification.");
+				} else {
+					logger.warn("Unable to read key " + key + " from a copy: " + e.getCause().getMessage());
+				}
+			}
+		}
+	}
+
+	/* keep the value of a copy if it is newer than the one read so far */
+	private void take(int position, String copyValue, long copyVersion) {
+		if (source < 0 || newer(copyVersion, copyValue, version, value)
+				|| (!newer(version, value, copyVersion, copyValue) && position < source)) {
+			value = copyValue;
+			version = copyVersion;
+			source = position;
+		}
+	}
+
+	/*
+	 * @return true if the first copy is known to be newer than the second: both are stamped and the
+	 * first stamp is higher, or the second copy has neither a stamp nor a value
+	 */
+	private static boolean newer(long version, String value, long otherVersion, String otherValue) {
+		if (version != 0 && otherVersion != 0) {
+			return version > otherVersion;
+		}
+		return otherVersion == 0 && otherValue == null && (version != 0 || value != null);
+	}
+
+	/* the own copy is older than that of another server */
+	private void repair(StorageEngine data, KeyVersions keyVersions, long ownVersion) {
+		synchronized (keyVersions.lockFor(hashedKey)) {
+			if (keyVersions.get(hashedKey) == ownVersion) {
+				data.put(hashedKey, value != null ? value : "null", version);
+				if (version != 0) {
+					keyVersions.set(hashedKey, version);
+				}
+			}
+		}
+	}
+
+	private static int positionOf(List<ServerData> servers, ServerData self) {
+		for (int i = 0; i < servers.size(); i++) {
+			ServerData server = servers.get(i);
+			if (server.getPort() == self.getPort() && server.getAddress().equals(self.getAddress())) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the value with the highest version stamp, null if the key does not exist
+	 */
+	String getValue() {
+		return value;
+	}
+
+	/**
+	 * @return the highest version stamp read
+	 */
+	long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return number of copies read
+	 */
+	int getCopies() {
+		return copies;
+	}
+}
@@ -0,0 +1,51 @@
+package app_kvServer;
+
+import consistent_hashing.HashKey;
+
+/**
+ * Position of the {@link ReplicationStream} a replica receives from one predecessor.
+ * A chunk continues the stream if it starts at or before the last key received: a chunk that
+ * is sent again after a reconnect overlaps the received data, which only refreshes the values.
+ * Chunks of an older stream or after a gap are not accepted.
+ */
+class ReplicaSync {
+	private long streamId;
+	/* last key received, null before the first entry */
+	private HashKey position;
+	private boolean active = false;
+	private long entries;
+
+	/**
+	 * The first chunk of a stream was received, the replicated data is replaced.
+	 */
+	void start(long streamId) {
+		this.streamId = streamId;
+		this.position = null;
+		this.active = true;
+		this.entries = 0;
+	}
+
+	boolean accepts(long streamId, HashKey after) {
+		return active && this.streamId == streamId && position != null && after.compareTo(position) <= 0;
+	}
+
+	/**
+	 * @param lastKey the last key of the chunk, null if it was empty
+	 * @param count number of entries of the chunk
+	 * @param complete true for the last chunk of the stream
+	 */
+	void received(HashKey lastKey, int count, boolean complete) {
+		if (lastKey != null && (position == null || lastKey.compareTo(position) > 0)) {
+			position = lastKey;
+		}
+		entries += count;
+		active = !complete;
+	}
+
+	/**
+	 * @return number of entries received in the current stream, including those sent twice
+	 */
+	long getEntries() {
+		return entries;
+	}
+}
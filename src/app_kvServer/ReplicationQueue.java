@@ -0,0 +1,385 @@
+package app_kvServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import logger.LogSetup;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import common.Settings;
+import common.communicator.ServerServerCommunicator;
+import common.messages.InvalidMessageException;
+import common.messages.ServerServerMessage;
+import common.messages.ServerServerStatustype;
+import consistent_hashing.ConsistentHashing;
+import consistent_hashing.HashKey;
+
+/**
+ * Replicates the writes of the clients to one successor in the background.
+ * Writers only add the written keys, a sender thread takes all keys added since the last batch,
+ * reads their current values and sends them as SERVER_PUT_BATCH messages of about
+ * {@link Settings#REPLICATION_BATCH_BYTES}, followed by a SERVER_ACK the successor sends back.
+ * A key written several times before the sender takes it is sent once, with its latest value and version stamp.
+ * <p>
+ * Every key added gets a sequence number, a batch is acknowledged with the number of the last key it holds.
+ * Writers that need the acknowledgement wait for {@link #getAcknowledged()} to reach their number, see {@link Replicator}.
+ * The values are read together with their version stamps before the communicator is taken; if an older
+ * value arrives after a newer one, e.g. from a {@link ReplicationStream}, the replica skips it by its stamp.
+ * <p>
+ * Hinted handoff: the keys of a batch that fails are kept as hints in a {@link HintLog} on disk, one per
+ * successor and position, instead of being held in memory. Every {@link Settings#REPLICATION_RETRY_MS}
+ * the hints are replayed in batches of {@link Settings#HINT_REPLAY_KEYS}, and before any new batch, so
+ * a batch is only acknowledged once the hinted keys written before it were acknowledged too.
+ * Hints are kept across restarts and replayed once the successor is reachable again. When the successor
+ * changes, the hint files of former successors at this position are deleted: the new successor receives
+ * the whole data from a ReplicationStream. Only the sender thread reads and writes the hint files,
+ * never while holding the monitor of the queue or the communicator.
+ */
+class ReplicationQueue implements Runnable {
+	private static final Logger logger = new LogSetup("logs/server.log", "Server", Level.ALL).getLogger();
+
+	private final KVServer server;
+	private final int numServer;
+	/* notified when a batch is acknowledged, shared by the queues of a server */
+	private final Object acknowledgements;
+
+	private Set<String> pending = new LinkedHashSet<String>();
+	/* sequence number of the last key added */
+	private long added = 0;
+	private volatile long acknowledged = 0;
+	private boolean stopped = false;
+
+	/* time the oldest write that is not acknowledged was added, 0 if all are acknowledged */
+	private volatile long unacknowledgedSince = 0;
+	/* hints of the current successor, opened by the sender thread */
+	private volatile HintLog hints;
+	private String hintsTarget;
+
+	private long batches = 0;
+	private long sentKeys = 0;
+	private long addedKeys = 0;
+	private long hintedKeys = 0;
+	private long replayedKeys = 0;
+
+	/**
+	 * @param numServer position of the successor, 1 for the next server and 2 for the one after it
+	 * @param acknowledgements notified whenever a batch is acknowledged
+	 */
+	ReplicationQueue(KVServer server, int numServer, Object acknowledgements) {
+		this.server = server;
+		this.numServer = numServer;
+		this.acknowledgements = acknowledgements;
+	}
+
+	/**
+	 * Start the sender on a thread of its own.
+	 */
+	void start() {
+		Thread thread = new Thread(this, "SERVER replication-queue-" + numServer);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the sender, keys that were not sent yet are dropped.
+	 */
+	synchronized void stop() {
+		stopped = true;
+		notifyAll();
+	}
+
+	/**
+	 * Add written keys to be replicated.
+	 * @return the sequence number to wait for, 0 if there is no successor
+	 */
+	long add(Collection<String> keys) {
+		if (currentReplica() == null) {
+			return 0;
+		}
+		synchronized (this) {
+			pending.addAll(keys);
+			addedKeys += keys.size();
+			if (added == acknowledged) {
+				unacknowledgedSince = System.currentTimeMillis();
+			}
+			added++;
+			notifyAll();
+			return added;
+		}
+	}
+
+	/**
+	 * @return the sequence number of the last key the successor acknowledged
+	 */
+	long getAcknowledged() {
+		return acknowledged;
+	}
+
+	public void run() {
+		while (true) {
+			Set<String> keys;
+			long sequence;
+			/* opens the hints of a new successor, outside the monitor */
+			boolean hinted = hasHints();
+			synchronized (this) {
+				if (pending.isEmpty() && !stopped && !hinted) {
+					try {
+						wait(Settings.REPLICATION_RETRY_MS);
+					} catch (InterruptedException e) {
+						logger.warn("Replication queue " + numServer + " interrupted.");
+						return;
+					}
+				}
+				if (stopped) {
+					logger.info("Replication queue " + numServer + ": " + addedKeys + " keys written, " + sentKeys
+							+ " keys sent in " + batches + " batches, " + hintedKeys + " keys hinted, " + replayedKeys + " hints replayed");
+					return;
+				}
+				if (pending.isEmpty() && !hinted) {
+					/* check the hints again */
+					continue;
+				}
+				keys = pending;
+				pending = new LinkedHashSet<String>();
+				sequence = added;
+			}
+
+			if (send(keys, sequence)) {
+				acknowledge(sequence);
+			} else {
+				/* the successor is unreachable, the keys are hinted and replayed later */
+				synchronized (this) {
+					if (stopped) {
+						continue;
+					}
+					try {
+						wait(Settings.REPLICATION_RETRY_MS);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Replay the hints of the successor, then send the batch. If there is no successor, e.g. because it
+	 * left the hash circle, the batch is dropped: a new successor receives the whole data from a ReplicationStream.
+	 * @return false if the successor could not be reached and the keys were hinted
+	 */
+	private boolean send(Set<String> keys, long sequence) {
+		ServerServerCommunicator replica = currentReplica();
+		if (replica == null) {
+			return true;
+		}
+		HintLog targetHints = null;
+		try {
+			targetHints = hintsFor(replica);
+			if (targetHints.size() > 0) {
+				replay(replica, targetHints, sequence);
+			}
+			if (!keys.isEmpty()) {
+				replica.sendAndAwaitAck(readBatch(keys), numServer, sequence);
+				batches++;
+				sentKeys += keys.size();
+			}
+			return true;
+		} catch (IOException e) {
+			logger.error("Replication of " + keys.size() + " keys to " + replica.getName() + " failed: " + e.getMessage());
+		} catch (InvalidMessageException e) {
+			logger.error("Problems creating the message. Please check the protocol specification.");
+			return true;
+		}
+		hint(replica, targetHints, keys);
+		return false;
+	}
+
+	/* keep the keys of a failed batch on disk until the successor is reachable again */
+	private void hint(ServerServerCommunicator replica, HintLog targetHints, Set<String> keys) {
+		if (keys.isEmpty()) {
+			return;
+		}
+		if (targetHints == null) {
+			logger.error("Dropped " + keys.size() + " keys for " + replica.getName() + ", its hints cannot be opened.");
+			return;
+		}
+		try {
+			int rejected = targetHints.add(keys);
+			hintedKeys += keys.size() - rejected;
+			if (rejected > 0) {
+				logger.warn("Hints for " + replica.getName() + " are full, dropped " + rejected + " keys, the anti-entropy repairs them.");
+			}
+		} catch (IOException e) {
+			logger.error("Unable to write hints for " + replica.getName() + ", dropped " + keys.size() + " keys: " + e.getMessage());
+		}
+	}
+
+	/* send the hinted keys in acknowledged batches, the hints are removed once all were acknowledged */
+	private void replay(ServerServerCommunicator replica, HintLog targetHints, long sequence) throws IOException, InvalidMessageException {
+		Set<String> hinted = targetHints.load();
+		Set<String> batch = new LinkedHashSet<String>();
+		for (String key : hinted) {
+			batch.add(key);
+			if (batch.size() >= Settings.HINT_REPLAY_KEYS) {
+				replica.sendAndAwaitAck(readBatch(batch), numServer, sequence);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			replica.sendAndAwaitAck(readBatch(batch), numServer, sequence);
+		}
+		targetHints.clear();
+		replayedKeys += hinted.size();
+		logger.info("Replayed " + hinted.size() + " hinted keys to " + replica.getName());
+	}
+
+	/* the hints of the current successor are replayed even if nothing is written */
+	private boolean hasHints() {
+		ServerServerCommunicator replica = currentReplica();
+		if (replica == null) {
+			return false;
+		}
+		try {
+			return hintsFor(replica).size() > 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/* called by the sender thread only */
+	private HintLog hintsFor(ServerServerCommunicator replica) throws IOException {
+		String target = replica.getAddress() + "_" + replica.getPort() + "." + numServer;
+		if (hints == null || !target.equals(hintsTarget)) {
+			File directory = new File(Settings.SERVER_FILES + "hints-" + server.getPort());
+			removeFormerHints(directory, target);
+			hints = new HintLog(new File(directory, target), Settings.HINT_MAX_KEYS);
+			hintsTarget = target;
+		}
+		return hints;
+	}
+
+	/* delete the hint files of the former successors at this position */
+	private void removeFormerHints(File directory, String target) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.getName().endsWith("." + numServer) && !file.getName().equals(target)) {
+				if (file.delete()) {
+					logger.info("Deleted the hints " + file + " of a former successor.");
+				} else {
+					logger.warn("Unable to delete the hints " + file + " of a former successor.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return time in milliseconds since the oldest write the successor did not acknowledge yet, 0 if it acknowledged all
+	 */
+	long getLagMillis() {
+		long since = unacknowledgedSince;
+		return since == 0 ? 0 : System.currentTimeMillis() - since;
+	}
+
+	/**
+	 * @return number of hints kept for the successor whose hints the sender opened last
+	 */
+	int getHintCount() {
+		HintLog current = hints;
+		return current != null ? current.size() : 0;
+	}
+
+	/**
+	 * @return replication lag, keys waiting to be sent and hints of the successor
+	 */
+	String getStatus() {
+		ServerServerCommunicator replica = currentReplica();
+		int waiting;
+		synchronized (this) {
+			waiting = pending.size();
+		}
+		HintLog current = hints;
+		long dropped = current != null ? current.getDropped() : 0;
+		return "Replication to successor " + numServer + " (" + (replica != null ? replica.getName() : "none") + "): lag "
+				+ getLagMillis() + " ms, " + waiting + " keys waiting, " + getHintCount() + " hints, " + dropped + " hints dropped";
+	}
+
+	/*
+	 * The current values of the keys, "null" for deleted keys, with their version stamps
+	 * in messages of about REPLICATION_BATCH_BYTES.
+	 * Keys this server no longer coordinates are skipped: they were moved to another server, whose
+	 * replicas hold them now. A missing key is only sent as a delete if the stamp of the delete is
+	 * recorded, a key moved away has none.
+	 */
+	private List<ServerServerMessage> readBatch(Set<String> keys) throws InvalidMessageException {
+		KeyVersions keyVersions = server.getVersions(0);
+		ConsistentHashing consistentHashing = server.getConsistentHashing();
+		String name = server.getServerData() != null ? server.getServerData().getName() : null;
+		List<ServerServerMessage> messages = new ArrayList<ServerServerMessage>();
+		List<String> batchKeys = new ArrayList<String>();
+		List<String> batchValues = new ArrayList<String>();
+		List<Long> batchVersions = new ArrayList<Long>();
+		int bytes = 0;
+		for (String key : keys) {
+			HashKey hashedKey = ConsistentHashing.hashKey(key);
+			if (consistentHashing != null && name != null && !name.equals(consistentHashing.getServerNameForHash(hashedKey))) {
+				continue;
+			}
+			String value;
+			long version;
+			synchronized (keyVersions.lockFor(hashedKey)) {
+				value = server.getKvdata().get(hashedKey);
+				version = keyVersions.get(hashedKey);
+			}
+			if (value == null) {
+				if (version == 0) {
+					continue;
+				}
+				value = "null";
+			}
+			batchKeys.add(key);
+			batchValues.add(value);
+			batchVersions.add(version);
+			bytes += key.length() + value.length();
+			if (bytes >= Settings.REPLICATION_BATCH_BYTES) {
+				messages.add(new ServerServerMessage(ServerServerStatustype.SERVER_PUT_BATCH, numServer, batchKeys, batchValues, batchVersions));
+				batchKeys = new ArrayList<String>();
+				batchValues = new ArrayList<String>();
+				batchVersions = new ArrayList<Long>();
+				bytes = 0;
+			}
+		}
+		if (!batchKeys.isEmpty()) {
+			messages.add(new ServerServerMessage(ServerServerStatustype.SERVER_PUT_BATCH, numServer, batchKeys, batchValues, batchVersions));
+		}
+		return messages;
+	}
+
+	private void acknowledge(long sequence) {
+		synchronized (this) {
+			acknowledged = sequence;
+			if (sequence == added) {
+				unacknowledgedSince = 0;
+			} else {
+				/* the first write of the next batch was added after this one was taken */
+				unacknowledgedSince = System.currentTimeMillis();
+			}
+		}
+		synchronized (acknowledgements) {
+			acknowledgements.notifyAll();
+		}
+	}
+
+	private ServerServerCommunicator currentReplica() {
+		return numServer == 1 ? server.getNextServer() : server.getNextNextServer();
+	}
+}
@@ -0,0 +1,133 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+
+import logger.LogSetup;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import common.Settings;
+import common.communicator.ServerServerCommunicator;
+import common.messages.InvalidMessageException;
+import common.messages.ServerServerMessage;
+import common.messages.ServerServerStatustype;
+import consistent_hashing.HashKey;
+
+/**
+ * Replicates the whole data of this server to a new successor as a stream of SERVER_SYNC_CHUNK
+ * messages of about {@link Settings#REPLICATION_CHUNK_BYTES} each, instead of a single SERVER_PUT_ALL
+ * that holds all data in one message. Only one chunk is kept in memory at a time.
+ * Each chunk continues after the last key of the previous one, so after a failed send the stream
+ * resumes with the same chunk on a new connection. The replica applies the chunks as they arrive,
+ * see {@link ReplicaSync}; the puts and deletes of the clients are replicated as usual during
+ * and after the stream.
+ * The entries carry their version stamps, so the replica skips an older update of a key that arrives
+ * after a newer one. An entry written while its chunk was read is read again together with its stamp.
+ * The stream stops when the successor changes.
+ */
+class ReplicationStream implements Runnable {
+	private static final Random random = new Random();
+	private static final Logger logger = new LogSetup("logs/server.log", "Server", Level.ALL).getLogger();
+
+	private final KVServer server;
+	private final ServerServerCommunicator replica;
+	private final int numServer;
+	private final long streamId;
+
+	/**
+	 * @param replica the successor
+	 * @param numServer position of the successor, 1 for the next server and 2 for the one after it
+	 */
+	ReplicationStream(KVServer server, ServerServerCommunicator replica, int numServer) {
+		this.server = server;
+		this.replica = replica;
+		this.numServer = numServer;
+		synchronized (random) {
+			this.streamId = random.nextLong();
+		}
+	}
+
+	/**
+	 * Send the data on a thread of the peer executor of the server.
+	 */
+	void start() {
+		try {
+			server.getPeerExecutor().execute(this);
+		} catch (RejectedExecutionException e) {
+			logger.warn("Replication stream to " + replica.getName() + " not started, the server is stopped.");
+		}
+	}
+
+	public void run() {
+		HashKey after = null;
+		long entries = 0;
+		int chunks = 0;
+		long start = System.currentTimeMillis();
+		try {
+			boolean last = false;
+			while (!last) {
+				if (currentReplica() != replica) {
+					logger.info("Replication to " + replica.getName() + " stopped after " + entries + " entries, the successor changed.");
+					return;
+				}
+				synchronized (replica) {
+					/* every stamp created from now on is higher */
+					long readFrom = KeyVersions.nextVersion();
+					List<Map.Entry<HashKey, String>> chunk = server.getKvdata().readChunk(after, Settings.REPLICATION_CHUNK_BYTES);
+					long[] versions = new long[chunk.size()];
+					chunk = withVersions(chunk, versions, readFrom);
+					last = chunk.isEmpty();
+					replica.sendMessageOrFail(new ServerServerMessage(ServerServerStatustype.SERVER_SYNC_CHUNK, numServer, streamId, after, chunk, versions, last));
+					if (!last) {
+						after = chunk.get(chunk.size() - 1).getKey();
+						entries += chunk.size();
+					}
+				}
+				chunks++;
+			}
+			logger.info("Replicated " + entries + " entries in " + chunks + " chunks to " + replica.getName()
+					+ " in " + (System.currentTimeMillis() - start) + " ms");
+		} catch (IOException e) {
+			logger.error("Replication to " + replica.getName() + " failed after " + entries + " entries: " + e.getMessage());
+		} catch (InvalidMessageException e) {
+			logger.error("Problems creating the message. Please check the protocol specification.");
+		}
+	}
+
+	/*
+	 * Fill in the stamps of the entries. A stamp below readFrom was created before the chunk was read,
+	 * so the value read is at least as new. The entries with a newer stamp are read again with their stamp.
+	 * @return the entries with the values the stamps belong to
+	 */
+	private List<Map.Entry<HashKey, String>> withVersions(List<Map.Entry<HashKey, String>> chunk, long[] versions, long readFrom) {
+		KeyVersions keyVersions = server.getVersions(0);
+		List<Map.Entry<HashKey, String>> entries = chunk;
+		for (int i = 0; i < versions.length; i++) {
+			HashKey key = chunk.get(i).getKey();
+			versions[i] = keyVersions.get(key);
+			if (versions[i] >= readFrom) {
+				String value;
+				synchronized (keyVersions.lockFor(key)) {
+					value = server.getKvdata().get(key);
+					versions[i] = keyVersions.get(key);
+				}
+				if (entries == chunk) {
+					entries = new ArrayList<Map.Entry<HashKey, String>>(chunk);
+				}
+				entries.set(i, new AbstractMap.SimpleImmutableEntry<HashKey, String>(key, value != null ? value : "null"));
+			}
+		}
+		return entries;
+	}
+
+	private ServerServerCommunicator currentReplica() {
+		return numServer == 1 ? server.getNextServer() : server.getNextNextServer();
+	}
+}
@@ -0,0 +1,101 @@
+package app_kvServer;
+
+import java.util.Collection;
+
+import common.Settings;
+import common.messages.Consistency;
+
+/**
+ * Replicates the writes of the clients to the next and the second next server through one
+ * {@link ReplicationQueue} per successor, and lets the writer wait for the acknowledgements
+ * its {@link Consistency} level requires. Only successors that exist are waited for, e.g. a server
+ * that is the only one in the hash circle answers at once.
+ */
+class Replicator {
+	private final Object acknowledgements = new Object();
+	private final ReplicationQueue[] queues;
+
+	Replicator(KVServer server) {
+		queues = new ReplicationQueue[] {
+				new ReplicationQueue(server, 1, acknowledgements),
+				new ReplicationQueue(server, 2, acknowledgements) };
+	}
+
+	void start() {
+		for (ReplicationQueue queue : queues) {
+			queue.start();
+		}
+	}
+
+	void stop() {
+		for (ReplicationQueue queue : queues) {
+			queue.stop();
+		}
+	}
+
+	/**
+	 * Replicate written keys and wait until enough successors acknowledged them.
+	 * @param keys the keys written, their current values are replicated
+	 * @param consistency the level requested by the client, null for {@link Settings#REPLICATION_CONSISTENCY}
+	 * @return false if the successors did not acknowledge the keys within {@link Settings#REPLICATION_ACK_TIMEOUT_MS},
+	 * they are still replicated later
+	 */
+	boolean replicate(Collection<String> keys, Consistency consistency) {
+		long[] sequences = new long[queues.length];
+		for (int i = 0; i < queues.length; i++) {
+			sequences[i] = queues[i].add(keys);
+		}
+
+		if (consistency == null) {
+			consistency = Settings.REPLICATION_CONSISTENCY;
+		}
+		int successors = 0;
+		for (long sequence : sequences) {
+			if (sequence > 0) {
+				successors++;
+			}
+		}
+		/* the copy of this server is written */
+		int required = Math.min(consistency.copies(1 + queues.length) - 1, successors);
+		long deadline = System.currentTimeMillis() + Settings.REPLICATION_ACK_TIMEOUT_MS;
+		synchronized (acknowledgements) {
+			while (acknowledged(sequences) < required) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				try {
+					acknowledgements.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return replication lag and hints of each successor
+	 */
+	String getStatus() {
+		StringBuilder status = new StringBuilder();
+		for (ReplicationQueue queue : queues) {
+			if (status.length() > 0) {
+				status.append("; ");
+			}
+			status.append(queue.getStatus());
+		}
+		return status.toString();
+	}
+
+	private int acknowledged(long[] sequences) {
+		int count = 0;
+		for (int i = 0; i < queues.length; i++) {
+			if (sequences[i] > 0 && queues[i].getAcknowledged() >= sequences[i]) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,449 @@
+package app_kvServer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.Settings;
+import consistent_hashing.HashKey;
+
+/**
+ * Immutable, sorted file of key-value pairs written by the {@link LSMStorageEngine}.
+ * A segment holds the data of the memtables with the ids minId to maxId; a segment
+ * with a higher maxId holds newer data.
+ *
+ * File layout: entries sorted by key | sparse index | bloom filter | footer
+ * entry:  key (16 bytes) | tombstone flag (byte) | version stamp (long) | value length (int) | value
+ * index:  count (int) | per INDEX_INTERVAL-th entry: key (16 bytes) | offset (long)
+ * bloom:  number of words (int) | words (long)
+ * footer: index offset (long) | bloom offset (long) | entry count (long) | MAGIC (int)
+ * Segments written by older versions end with MAGIC_UNVERSIONED, their entries have no version stamp.
+ * The iterators return {@link VersionedEntry} entries.
+ */
+class Segment {
+
+	private static final int MAGIC = 0x4C534D32;
+	private static final int MAGIC_UNVERSIONED = 0x4C534D31;
+	private static final int FOOTER_SIZE = 8 + 8 + 8 + 4;
+	private static final int INDEX_INTERVAL = 32;
+	private static final int BLOOM_BITS_PER_KEY = 10;
+	private static final int BLOOM_HASHES = 7;
+	private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+	/* key + tombstone flag + version stamp + value length */
+	private static final int ENTRY_HEADER_SIZE = HashKey.SIZE + 1 + 8 + 4;
+
+	/**
+	 * An entry of a segment with the version stamp of its last mutation, 0 if it has none.
+	 */
+	static class VersionedEntry extends AbstractMap.SimpleImmutableEntry<HashKey, String> {
+		private static final long serialVersionUID = 1L;
+
+		final long version;
+
+		VersionedEntry(HashKey key, String value, long version) {
+			super(key, value);
+			this.version = version;
+		}
+
+		/**
+		 * @return the version stamp of the entry, 0 if it is none of a segment or has no stamp
+		 */
+		static long versionOf(Entry<HashKey, String> entry) {
+			return entry instanceof VersionedEntry ? ((VersionedEntry) entry).version : 0;
+		}
+	}
+
+	final long maxId;
+	final long minId;
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final HashKey[] indexKeys;
+	private final long[] indexOffsets;
+	private final long dataEnd;
+	private final long[] bloom;
+	private final long entryCount;
+	/* false for segments of older versions without version stamps */
+	private final boolean versioned;
+	private final int entryHeaderSize;
+	/* one reference is held by the engine as long as the segment is live */
+	private final AtomicInteger refs = new AtomicInteger(1);
+	private volatile boolean obsolete = false;
+
+	private Segment(File file, long maxId, long minId) throws IOException {
+		this.file = file;
+		this.maxId = maxId;
+		this.minId = minId;
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+
+		try {
+			long length = channel.size();
+			if (length < FOOTER_SIZE) {
+				throw new IOException("Segment " + file + " is too short.");
+			}
+			ByteBuffer footer = read(length - FOOTER_SIZE, FOOTER_SIZE);
+			long indexOffset = footer.getLong();
+			long bloomOffset = footer.getLong();
+			entryCount = footer.getLong();
+			int magic = footer.getInt();
+			if ((magic != MAGIC && magic != MAGIC_UNVERSIONED) || indexOffset > bloomOffset || bloomOffset > length - FOOTER_SIZE) {
+				throw new IOException("Segment " + file + " is corrupted.");
+			}
+			versioned = magic == MAGIC;
+			entryHeaderSize = versioned ? ENTRY_HEADER_SIZE : ENTRY_HEADER_SIZE - 8;
+			dataEnd = indexOffset;
+
+			ByteBuffer index = read(indexOffset, (int) (bloomOffset - indexOffset));
+			int indexCount = index.getInt();
+			indexKeys = new HashKey[indexCount];
+			indexOffsets = new long[indexCount];
+			for (int i = 0; i < indexCount; i++) {
+				indexKeys[i] = HashKey.read(index);
+				indexOffsets[i] = index.getLong();
+			}
+
+			ByteBuffer bloomBuffer = read(bloomOffset, (int) (length - FOOTER_SIZE - bloomOffset));
+			bloom = new long[bloomBuffer.getInt()];
+			for (int i = 0; i < bloom.length; i++) {
+				bloom[i] = bloomBuffer.getLong();
+			}
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		} catch (RuntimeException e) {
+			raf.close();
+			throw new IOException("Segment " + file + " is corrupted: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Opens an existing segment file.
+	 */
+	static Segment open(File file, long maxId, long minId) throws IOException {
+		return new Segment(file, maxId, minId);
+	}
+
+	/**
+	 * Writes the given entries (ascending by key) to a new segment file and forces it to the disk.
+	 * Values identical to {@link LSMStorageEngine#TOMBSTONE} are written as tombstones,
+	 * the version stamps are taken from {@link VersionedEntry} entries.
+	 * @param expectedEntries upper bound of the number of entries, used to size the bloom filter
+	 */
+	static void write(File file, Iterator<Entry<HashKey, String>> entries, long expectedEntries) throws IOException {
+		long[] bloom = new long[(int) Math.max(1, Math.min(Integer.MAX_VALUE / 64, (expectedEntries * BLOOM_BITS_PER_KEY + 63) / 64))];
+		List<HashKey> indexKeys = new ArrayList<HashKey>();
+		List<Long> indexOffsets = new ArrayList<Long>();
+
+		FileOutputStream fileOutput = new FileOutputStream(file);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutput, SCAN_BUFFER_SIZE));
+			long offset = 0;
+			long count = 0;
+			while (entries.hasNext()) {
+				Entry<HashKey, String> entry = entries.next();
+				HashKey key = entry.getKey();
+				if (count % INDEX_INTERVAL == 0) {
+					indexKeys.add(key);
+					indexOffsets.add(offset);
+				}
+				addToBloom(bloom, key);
+
+				out.writeLong(key.getHigh());
+				out.writeLong(key.getLow());
+				if (entry.getValue() == LSMStorageEngine.TOMBSTONE) {
+					out.writeByte(1);
+					out.writeLong(VersionedEntry.versionOf(entry));
+					out.writeInt(0);
+					offset += ENTRY_HEADER_SIZE;
+				} else {
+					byte[] value = entry.getValue().getBytes(Settings.CHARSET);
+					out.writeByte(0);
+					out.writeLong(VersionedEntry.versionOf(entry));
+					out.writeInt(value.length);
+					out.write(value);
+					offset += ENTRY_HEADER_SIZE + value.length;
+				}
+				count++;
+			}
+
+			long indexOffset = offset;
+			out.writeInt(indexKeys.size());
+			offset += 4;
+			for (int i = 0; i < indexKeys.size(); i++) {
+				out.writeLong(indexKeys.get(i).getHigh());
+				out.writeLong(indexKeys.get(i).getLow());
+				out.writeLong(indexOffsets.get(i));
+				offset += HashKey.SIZE + 8;
+			}
+
+			long bloomOffset = offset;
+			out.writeInt(bloom.length);
+			for (long word : bloom) {
+				out.writeLong(word);
+			}
+
+			out.writeLong(indexOffset);
+			out.writeLong(bloomOffset);
+			out.writeLong(count);
+			out.writeInt(MAGIC);
+			out.flush();
+			fileOutput.getChannel().force(true);
+		} finally {
+			fileOutput.close();
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	long getEntryCount() {
+		return entryCount;
+	}
+
+	long getSizeInBytes() {
+		return file.length();
+	}
+
+	/**
+	 * @return the value for the key, {@link LSMStorageEngine#TOMBSTONE} if the key was deleted
+	 *  or null if the segment does not contain the key
+	 */
+	String get(HashKey key) throws IOException {
+		if (!mightContain(bloom, key)) {
+			return null;
+		}
+		int block = floorIndex(key);
+		if (block < 0) {
+			return null;
+		}
+		long start = indexOffsets[block];
+		long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+		ByteBuffer buffer = read(start, (int) (end - start));
+		while (buffer.hasRemaining()) {
+			int cmp = HashKey.read(buffer).compareTo(key);
+			boolean tombstone = buffer.get() == 1;
+			if (versioned) {
+				buffer.getLong();
+			}
+			int valueLength = buffer.getInt();
+			if (cmp == 0) {
+				if (tombstone) {
+					return LSMStorageEngine.TOMBSTONE;
+				}
+				byte[] value = new byte[valueLength];
+				buffer.get(value);
+				return new String(value, Settings.CHARSET);
+			} else if (cmp > 0) {
+				return null;
+			}
+			buffer.position(buffer.position() + valueLength);
+		}
+		return null;
+	}
+
+	/**
+	 * @param from the smallest key to return, null to start at the first key
+	 * @return iterator over the entries in ascending key order, including tombstones, as {@link VersionedEntry} entries
+	 */
+	Iterator<Entry<HashKey, String>> iterator(HashKey from) {
+		long start = 0;
+		if (from != null) {
+			int block = floorIndex(from);
+			start = block < 0 ? 0 : indexOffsets[block];
+		}
+		return new SegmentIterator(start, from);
+	}
+
+	/**
+	 * Take a reference on the segment, so it is not closed while it is read.
+	 * @return false if the segment was already closed
+	 */
+	boolean acquire() {
+		while (true) {
+			int current = refs.get();
+			if (current <= 0) {
+				return false;
+			}
+			if (refs.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/* the segment is closed when the last reference is released, obsolete segments are deleted then */
+	private void release(boolean delete) {
+		if (refs.decrementAndGet() == 0) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// nothing left to do with the file
+			}
+			if (delete) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Drop the reference of the engine; the file is deleted once no reader uses it any more.
+	 */
+	void markObsolete() {
+		obsolete = true;
+		release(true);
+	}
+
+	/**
+	 * Release a reader's reference.
+	 */
+	void release() {
+		release(obsolete);
+	}
+
+	private int floorIndex(HashKey key) {
+		int low = 0;
+		int high = indexKeys.length - 1;
+		int result = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (indexKeys[mid].compareTo(key) <= 0) {
+				result = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return result;
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of segment " + file);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void addToBloom(long[] bloom, HashKey key) {
+		long bits = (long) bloom.length * 64;
+		long h1 = mix(key.getLow());
+		long h2 = mix(key.getHigh() ^ 0x9E3779B97F4A7C15L) | 1;
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+			bloom[(int) (bit >>> 6)] |= 1L << (bit & 63);
+		}
+	}
+
+	private static boolean mightContain(long[] bloom, HashKey key) {
+		long bits = (long) bloom.length * 64;
+		long h1 = mix(key.getLow());
+		long h2 = mix(key.getHigh() ^ 0x9E3779B97F4A7C15L) | 1;
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+			if ((bloom[(int) (bit >>> 6)] & (1L << (bit & 63))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* finalizer of MurmurHash3, spreads the bits of small keys */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Reads the entries sequentially using positional reads, so several iterators can share the channel.
+	 */
+	private class SegmentIterator implements Iterator<Entry<HashKey, String>> {
+		private long position;
+		private final HashKey from;
+		private ByteBuffer buffer = ByteBuffer.allocate(0);
+		private long bufferStart;
+		private Entry<HashKey, String> next;
+
+		SegmentIterator(long start, HashKey from) {
+			this.position = start;
+			this.bufferStart = start;
+			this.from = from;
+			advance();
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public Entry<HashKey, String> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Entry<HashKey, String> result = next;
+			advance();
+			return result;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void advance() {
+			try {
+				next = null;
+				while (position < dataEnd) {
+					ByteBuffer header = ensure(entryHeaderSize);
+					HashKey k = HashKey.read(header);
+					boolean tombstone = header.get() == 1;
+					long version = versioned ? header.getLong() : 0;
+					int valueLength = header.getInt();
+					byte[] value = new byte[valueLength];
+					ensure(valueLength).get(value);
+					position += entryHeaderSize + valueLength;
+
+					if (from != null && k.compareTo(from) < 0) {
+						continue;
+					}
+					String v = tombstone ? LSMStorageEngine.TOMBSTONE : new String(value, Settings.CHARSET);
+					next = new VersionedEntry(k, v, version);
+					return;
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to read segment " + file + ": " + e.getMessage(), e);
+			}
+		}
+
+		/* makes sure the next length bytes are buffered */
+		private ByteBuffer ensure(int length) throws IOException {
+			if (buffer.remaining() < length) {
+				long readPosition = bufferStart + buffer.position();
+				int size = (int) Math.min(Math.max(length, SCAN_BUFFER_SIZE), dataEnd - readPosition);
+				if (size < length) {
+					throw new IOException("Unexpected end of segment data");
+				}
+				buffer = read(readPosition, size);
+				bufferStart = readPosition;
+			}
+			return buffer;
+		}
+	}
+}
@@ -1,7 +1,13 @@
 package app_kvServer;
 
 
-import java.math.BigInteger;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import logger.LogSetup;
 
@@ -10,7 +16,9 @@ import org.apache.log4j.Logger;
 
 import common.messages.InvalidMessageException;
 import common.messages.ServerServerMessage;
+import common.messages.ServerServerStatustype;
 import consistent_hashing.ConsistentHashing;
+import consistent_hashing.HashKey;
 
 public class ServerConnection {
 
@@ -34,8 +42,10 @@ public class ServerConnection {
 
 	/**
 	 * Process the message
+	 * @return the reply to send back, null if the message has none
+	 * @throws InvalidMessageException if the reply cannot be created
 	 */
-	public void process() {
+	public ServerServerMessage process() throws InvalidMessageException {
 		switch (serverServerMessage.getCommand()) {
 		case SERVER_PUT:
 			put(serverServerMessage.getNumServer(), serverServerMessage.getKey(), serverServerMessage.getValue());
@@ -46,32 +56,233 @@ public class ServerConnection {
 		case SERVER_PUT_ALL:
 			putAll(serverServerMessage.getNumServer(), serverServerMessage.getData());
 			break;
+		case SERVER_PUT_BATCH:
+			putBatch(serverServerMessage.getNumServer(), serverServerMessage.getKeys(), serverServerMessage.getValues(), serverServerMessage.getVersions());
+			break;
+		case SERVER_SYNC_CHUNK:
+			syncChunk(serverServerMessage);
+			break;
+		case SERVER_ACK:
+			/* the messages of the batch were received on this connection before and are applied */
+			return new ServerServerMessage(ServerServerStatustype.SERVER_ACK, serverServerMessage.getNumServer(), serverServerMessage.getSequence());
+		case SERVER_READ:
+			return read(serverServerMessage.getNumServer(), serverServerMessage.getKey());
+		case SERVER_MERKLE:
+			return merkle(serverServerMessage);
+		case SERVER_MERKLE_KEYS:
+			return merkleKeys(serverServerMessage);
+		case SERVER_REPAIR:
+			repair(serverServerMessage.getNumServer(), serverServerMessage.getEntries(), serverServerMessage.getEntryVersions());
+			break;
+		}
+		return null;
+	}
+
+	/*
+	 * Anti-entropy of a coordinator: the hashes of nodes of the Merkle tree of the copy. The tree is
+	 * built when the root is asked for and kept for the requests of the lower levels.
+	 */
+	private ServerServerMessage merkle(ServerServerMessage request) throws InvalidMessageException {
+		int depth = request.getDepth();
+		int level = request.getLevel();
+		if (depth < 1 || depth > MerkleTree.MAX_DEPTH || level > depth) {
+			throw new InvalidMessageException("Invalid level " + level + " of a Merkle tree of depth " + depth + ".");
+		}
+		MerkleTree tree = serverInstance.getMerkleTree(request.getNumServer(), depth);
+		int[] nodes = request.getNodes();
+		long[] hashes = new long[nodes.length];
+		for (int i = 0; i < nodes.length; i++) {
+			if (nodes[i] < 0 || nodes[i] >= tree.getWidth(level)) {
+				throw new InvalidMessageException("Invalid node " + nodes[i] + " of level " + level + " of a Merkle tree.");
+			}
+			hashes[i] = tree.getHash(level, nodes[i]);
+		}
+		return new ServerServerMessage(ServerServerStatustype.SERVER_MERKLE, request.getNumServer(), depth, level, hashes);
+	}
+
+	/*
+	 * Anti-entropy of a coordinator: the keys of the copy in leaves of the Merkle tree that differ
+	 * from those of the coordinator.
+	 */
+	private ServerServerMessage merkleKeys(ServerServerMessage request) throws InvalidMessageException {
+		int depth = request.getDepth();
+		if (depth < 1 || depth > MerkleTree.MAX_DEPTH) {
+			throw new InvalidMessageException("Invalid depth " + depth + " of a Merkle tree.");
+		}
+		Set<Integer> leaves = new HashSet<Integer>();
+		for (int leaf : request.getNodes()) {
+			leaves.add(leaf);
+		}
+		Map<HashKey, Long> entryHashes = MerkleTree.entryHashes(serverInstance.getData(request.getNumServer()), depth, leaves);
+		HashKey[] keys = new HashKey[entryHashes.size()];
+		long[] hashes = new long[entryHashes.size()];
+		int i = 0;
+		for (Map.Entry<HashKey, Long> entry : entryHashes.entrySet()) {
+			keys[i] = entry.getKey();
+			hashes[i] = entry.getValue();
+			i++;
+		}
+		serverInstance.getMerkleTree(request.getNumServer(), depth).setLeaves(leaves, entryHashes);
+		return new ServerServerMessage(ServerServerStatustype.SERVER_MERKLE_KEYS, request.getNumServer(), depth, keys, hashes);
+	}
+
+	/*
+	 * The current values of keys in which the copy differed from the coordinator, like putBatch.
+	 */
+	private void repair(int numServer, List<Map.Entry<HashKey, String>> entries, long[] versions) {
+		StorageEngine data = numServer == 1 ? serverInstance.getLastNodeData() : serverInstance.getLastLastNodeData();
+		if (data == null) {
+			return;
+		}
+		KeyVersions keyVersions = serverInstance.getVersions(numServer);
+		for (int i = 0; i < entries.size(); i++) {
+			HashKey hashedKey = entries.get(i).getKey();
+			synchronized (keyVersions.lockFor(hashedKey)) {
+				if (keyVersions.accepts(hashedKey, versions[i])) {
+					data.put(hashedKey, entries.get(i).getValue(), versions[i]);
+					if (versions[i] != 0) {
+						keyVersions.set(hashedKey, versions[i]);
+					}
+				}
+			}
 		}
 	}
 
-	private void putAll(int numServer, KVData data) {
-		if (numServer == 1) {
-			serverInstance.setLastNodeData(data);
-		} else {
-			serverInstance.setLastLastNodeData(data);
+	/*
+	 * A quorum read of another server: value and version stamp of the copy of the key at the
+	 * given position in relation to the coordinator of the key.
+	 */
+	private ServerServerMessage read(int position, String key) throws InvalidMessageException {
+		HashKey hashedKey = ConsistentHashing.hashKey(key);
+		StorageEngine data = serverInstance.getData(position);
+		KeyVersions keyVersions = serverInstance.getVersions(position);
+		String value = null;
+		long version = 0;
+		if (data != null) {
+			synchronized (keyVersions.lockFor(hashedKey)) {
+				value = data.get(hashedKey);
+				version = keyVersions.get(hashedKey);
+			}
+		}
+		return new ServerServerMessage(ServerServerStatustype.SERVER_READ, position, key, value != null ? value : "null", version);
+	}
+
+	/*
+	 * A chunk of the data of a predecessor, sent by its ReplicationStream. The first chunk of a stream
+	 * replaces the replicated data, the following ones are applied like putBatch, with their stamps.
+	 */
+	private void syncChunk(ServerServerMessage chunk) {
+		int numServer = chunk.getNumServer();
+		ReplicaSync sync = serverInstance.getReplicaSync(numServer);
+		synchronized (sync) {
+			if (chunk.getAfter() == null) {
+				if (!putAll(numServer, null)) {
+					return;
+				}
+				sync.start(chunk.getStreamId());
+			} else if (!sync.accepts(chunk.getStreamId(), chunk.getAfter())) {
+				logger.warn("Dropped a replication chunk of server " + numServer + " after key " + chunk.getAfter() + ", it does not continue the current stream.");
+				return;
+			}
+			List<Map.Entry<HashKey, String>> entries = chunk.getEntries();
+			long[] versions = chunk.getEntryVersions();
+			StorageEngine data = replicaData(numServer);
+			if (data == null) {
+				return;
+			}
+			KeyVersions keyVersions = serverInstance.getVersions(numServer);
+			for (int i = 0; i < entries.size(); i++) {
+				HashKey hashedKey = entries.get(i).getKey();
+				synchronized (keyVersions.lockFor(hashedKey)) {
+					if (keyVersions.accepts(hashedKey, versions[i])) {
+						data.put(hashedKey, entries.get(i).getValue(), versions[i]);
+						if (versions[i] != 0) {
+							keyVersions.set(hashedKey, versions[i]);
+						}
+					}
+				}
+			}
+			sync.received(entries.isEmpty() ? null : entries.get(entries.size() - 1).getKey(), entries.size(), chunk.isLastChunk());
+			if (chunk.isLastChunk()) {
+				logger.info("Received " + sync.getEntries() + " replicated entries of server " + numServer);
+			}
+		}
+	}
+
+	/*
+	 * The tuples written on the coordinator, in order; a value of "null" deletes the key like SERVER_DELETE.
+	 * A tuple older than the copy of the key is skipped.
+	 */
+	private void putBatch(int numServer, List<String> keys, List<String> values, List<Long> versions) {
+		StorageEngine data = replicaData(numServer);
+		if (data == null) {
+			return;
+		}
+		KeyVersions keyVersions = serverInstance.getVersions(numServer);
+		for (int i = 0; i < keys.size(); i++) {
+			HashKey hashedKey = ConsistentHashing.hashKey(keys.get(i));
+			long version = versions != null ? versions.get(i) : 0;
+			synchronized (keyVersions.lockFor(hashedKey)) {
+				if (keyVersions.accepts(hashedKey, version)) {
+					data.put(hashedKey, values.get(i), version);
+					if (version != 0) {
+						keyVersions.set(hashedKey, version);
+					}
+				}
+			}
 		}
 	}
 
+	/*
+	 * The replicated data of a predecessor. A batch may arrive before the first chunk of the replication
+	 * stream that creates the store, the store is then created here; the stream replaces it later.
+	 * Returns null if the store could not be opened.
+	 */
+	private StorageEngine replicaData(int numServer) {
+		try {
+			return serverInstance.getOrOpenReplicaData(numServer);
+		} catch (IOException e) {
+			logger.error("Unable to open the storage for the replicated data of server " + numServer + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/*
+	 * Replace the replicated data with a new store of the configured engine, filled with the received data.
+	 * The data of SERVER_PUT_ALL is only decoded on the heap, it is not kept as the replica.
+	 */
+	private boolean putAll(int numServer, StorageEngine received) {
+		StorageEngine data;
+		try {
+			data = serverInstance.openReplicaStorage(numServer);
+		} catch (IOException e) {
+			logger.error("Unable to open the storage for the replicated data of server " + numServer + ": " + e.getMessage());
+			return false;
+		}
+		if (received != null && received.size() > 0) {
+			HashMap<HashKey, String> entries = new HashMap<HashKey, String>();
+			for (Map.Entry<HashKey, String> entry : received) {
+				entries.put(entry.getKey(), entry.getValue());
+			}
+			data.moveData(entries);
+		}
+		serverInstance.setReplicaData(numServer, data);
+		return true;
+	}
+
 	private void delete(int numServer, String key) {
-		if (numServer == 1) {
-			serverInstance.getLastNodeData().dataStore.remove(key);
-		} else {
-			serverInstance.getLastLastNodeData().dataStore.remove(key);
+		HashKey hashedKey = ConsistentHashing.hashKey(key);
+		StorageEngine data = replicaData(numServer);
+		if (data != null) {
+			data.put(hashedKey, "null");
 		}
 	}
 
 	private void put(int numServer, String key, String value) {
-		BigInteger hashedKey = ConsistentHashing.hashKey(serverServerMessage.getKey());
-		
-		if (numServer == 1) {
-			serverInstance.getLastNodeData().put(hashedKey, serverServerMessage.getValue());
-		} else {
-			serverInstance.getLastLastNodeData().put(hashedKey, serverServerMessage.getValue());
+		HashKey hashedKey = ConsistentHashing.hashKey(serverServerMessage.getKey());
+		StorageEngine data = replicaData(numServer);
+		if (data != null) {
+			data.put(hashedKey, serverServerMessage.getValue());
 		}
 	}
 }
@@ -0,0 +1,90 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import consistent_hashing.HashKey;
+
+/**
+ * Storage of the key-value pairs a KVServer is coordinator for.
+ * Keys are the hashes of the client keys, a value of "null" passed to put deletes the key.
+ * Iterating over an engine returns all live entries in no particular order.
+ * Engines that persist their data also persist the version stamps of the mutations, see {@link KeyVersions},
+ * and hand them back with {@link #loadVersions(KeyVersions)} after a restart.
+ */
+public interface StorageEngine extends Iterable<Map.Entry<HashKey, String>> {
+
+	/**
+	 * Store, update or delete (value "null") a key-value pair.
+	 * @return null if a new key was stored, the stored value if an existing key was updated,
+	 *  the removed value if a key was deleted (null if there was none)
+	 * @throws IllegalStateException if the mutation could not be persisted, the data is left unchanged in that case
+	 */
+	public String put(HashKey key, String value);
+
+	/**
+	 * Store, update or delete (value "null") a key-value pair like {@link #put(HashKey, String)},
+	 * and persist the version stamp of the mutation with it.
+	 * @param version the version stamp, 0 if the mutation has none
+	 */
+	public String put(HashKey key, String value, long version);
+
+	/**
+	 * @return the value for the given key or null if there is none
+	 */
+	public String get(HashKey key);
+
+	/**
+	 * Store all given pairs, e.g. the data moved to this server by another server.
+	 */
+	public void moveData(HashMap<HashKey, String> movingData);
+
+	/**
+	 * Store all given pairs and persist their version stamps with them.
+	 * @param versions the version stamps of the pairs, pairs without one are stored with stamp 0
+	 */
+	public void moveData(HashMap<HashKey, String> movingData, Map<HashKey, Long> versions);
+
+	/**
+	 * Set the persisted version stamps of the keys, including those of deleted keys the engine still knows,
+	 * after the engine was opened. Engines that do not persist their data set none.
+	 */
+	public void loadVersions(KeyVersions versions);
+
+	/**
+	 * Keep the given tree up to date on every put and delete, instead of the tree set before.
+	 * Engines that move data in or out without updating the tree mark it stale, see {@link MerkleTree#invalidate()}.
+	 */
+	public void setMerkleTree(MerkleTree tree);
+
+	/**
+	 * Find the pairs whose keys lie in the given range.
+	 * @param corner true if the range wraps around the end of the hash circle
+	 */
+	public HashMap<HashKey, String> findMovingData(HashKey startIndex, HashKey endIndex, boolean corner);
+
+	/**
+	 * Remove the given pairs, unless their value changed in the meantime.
+	 */
+	public void remove(HashMap<HashKey, String> movedData);
+
+	/**
+	 * Read the entries following a key in ascending key order, to transfer the data in chunks of bounded size.
+	 * @param after the last key of the previous chunk (exclusive), null to start with the smallest key
+	 * @param maxBytes approximate size of the entries of the chunk, a chunk holds at least one entry
+	 * @return the entries of the chunk, empty if there are none after the key
+	 */
+	public List<Map.Entry<HashKey, String>> readChunk(HashKey after, int maxBytes);
+
+	/**
+	 * @return number of stored pairs
+	 */
+	public int size();
+
+	/**
+	 * Persist pending data and release all resources of the engine.
+	 */
+	public void close() throws IOException;
+}
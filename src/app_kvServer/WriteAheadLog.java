@@ -0,0 +1,415 @@
+package app_kvServer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+import logger.LogSetup;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import common.Settings;
+import consistent_hashing.HashKey;
+
+/**
+ * Append-only write-ahead log for the data of a KVServer.
+ * Every mutation is appended as a checksummed record before it is applied to
+ * the in-memory store, so the store can be rebuilt by replaying the log after
+ * a crash or a restart. A record holds the version stamp of the mutation, see
+ * {@link KeyVersions}, records of older logs without a stamp are replayed with stamp 0.
+ *
+ * Records are handed to the operating system immediately; the fsync policy only
+ * decides when they are forced to the disk:
+ * ALWAYS  - a write is acknowledged after it was forced. Concurrent writers share
+ *           a single force (group commit).
+ * BATCH   - a background thread forces the log as soon as batchSize records are
+ *           pending or batchIntervalMs elapsed, writers do not wait for it.
+ * NONE    - the log is never forced explicitly.
+ */
+public class WriteAheadLog {
+
+	public enum FsyncPolicy {
+		ALWAYS,
+		BATCH,
+		NONE
+	}
+
+	/**
+	 * Receives the records of the log during replay
+	 */
+	public interface ReplayHandler {
+		public void put(HashKey key, String value, long version);
+		public void delete(HashKey key, long version);
+	}
+
+	/* records without a version stamp, written by older versions */
+	private static final byte OP_PUT = 1;
+	private static final byte OP_DELETE = 2;
+	private static final byte OP_PUT_VERSIONED = 3;
+	private static final byte OP_DELETE_VERSIONED = 4;
+	/* length + checksum */
+	private static final int HEADER_SIZE = 8;
+	/* op + key + value length */
+	private static final int MIN_RECORD_SIZE = 1 + HashKey.SIZE + 4;
+	/* op + key + version + value length */
+	private static final int VERSIONED_RECORD_SIZE = MIN_RECORD_SIZE + 8;
+	private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+	private Logger logger;
+	private final File file;
+	private final FsyncPolicy policy;
+	private final int batchSize;
+	private final long batchIntervalMs;
+
+	private FileOutputStream fileOutput;
+	private FileChannel channel;
+	/* held while the channel is forced, taken before this so rewrite and close wait for a running force */
+	private final Object syncLock = new Object();
+	private long appendedSeq = 0;
+	private volatile long syncedSeq = 0;
+	private long recordCount = 0;
+	private boolean closed = false;
+	private Thread flusher;
+
+	/**
+	 * Opens (or creates) the log using the fsync settings from {@link Settings}.
+	 * @param file the log file
+	 * @throws IOException if the file cannot be opened for appending
+	 */
+	public WriteAheadLog(File file) throws IOException {
+		this(file, FsyncPolicy.valueOf(Settings.WAL_FSYNC_POLICY), Settings.WAL_FSYNC_BATCH_SIZE, Settings.WAL_FSYNC_INTERVAL_MS);
+	}
+
+	/**
+	 * Opens (or creates) the log.
+	 * @param file the log file
+	 * @param policy when records are forced to the disk
+	 * @param batchSize number of pending records that triggers a force (BATCH only)
+	 * @param batchIntervalMs maximum time a record stays unforced (BATCH only)
+	 * @throws IOException if the file cannot be opened for appending
+	 */
+	public WriteAheadLog(File file, FsyncPolicy policy, int batchSize, long batchIntervalMs) throws IOException {
+		LogSetup ls = new LogSetup("logs/server.log", "WAL", Level.ALL);
+		this.logger = ls.getLogger();
+
+		this.file = file;
+		this.policy = policy;
+		this.batchSize = Math.max(1, batchSize);
+		this.batchIntervalMs = Math.max(1, batchIntervalMs);
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Unable to create directory for write-ahead log: " + dir);
+		}
+		open();
+
+		if (policy == FsyncPolicy.BATCH) {
+			flusher = new Thread(new Runnable() {
+				public void run() {
+					flushLoop();
+				}
+			}, "WAL flusher " + file.getName());
+			flusher.setDaemon(true);
+			flusher.start();
+		}
+	}
+
+	private void open() throws IOException {
+		fileOutput = new FileOutputStream(file, true);
+		channel = fileOutput.getChannel();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public FsyncPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return number of records written to the current log file (including replayed ones)
+	 */
+	public synchronized long getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * Append a put record. The record is not necessarily durable until {@link #commit(long)} returns.
+	 * @param version the version stamp of the mutation, 0 if it has none
+	 * @return sequence number of the record
+	 */
+	public long appendPut(HashKey key, String value, long version) throws IOException {
+		return append(encode(OP_PUT_VERSIONED, key, value, version));
+	}
+
+	/**
+	 * Append a delete record. The record is not necessarily durable until {@link #commit(long)} returns.
+	 * @param version the version stamp of the mutation, 0 if it has none
+	 * @return sequence number of the record
+	 */
+	public long appendDelete(HashKey key, long version) throws IOException {
+		return append(encode(OP_DELETE_VERSIONED, key, null, version));
+	}
+
+	private synchronized long append(byte[] record) throws IOException {
+		if (closed) {
+			throw new IOException("Write-ahead log " + file + " is closed.");
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		recordCount++;
+		appendedSeq++;
+
+		if (policy == FsyncPolicy.BATCH && appendedSeq - syncedSeq >= batchSize) {
+			notifyAll();
+		}
+		return appendedSeq;
+	}
+
+	/**
+	 * Waits until the record with the given sequence number is durable according to the fsync policy.
+	 * With ALWAYS, all records appended so far are forced by the first waiting thread,
+	 * the other writers find their record already covered.
+	 * @param seq sequence number returned by one of the append methods
+	 */
+	public void commit(long seq) throws IOException {
+		if (policy == FsyncPolicy.ALWAYS) {
+			force(seq);
+		}
+	}
+
+	private void force(long seq) throws IOException {
+		synchronized (syncLock) {
+			if (syncedSeq >= seq) {
+				return;
+			}
+			long target;
+			FileChannel current;
+			synchronized (this) {
+				if (closed) {
+					throw new IOException("Write-ahead log " + file + " is closed.");
+				}
+				target = appendedSeq;
+				current = channel;
+			}
+			/* appends continue during the force, the channel is only replaced or closed while holding syncLock */
+			current.force(false);
+			syncedSeq = target;
+		}
+	}
+
+	private void flushLoop() {
+		while (true) {
+			synchronized (this) {
+				try {
+					if (!closed && appendedSeq - syncedSeq < batchSize) {
+						wait(batchIntervalMs);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (closed) {
+					return;
+				}
+			}
+			try {
+				long seq;
+				synchronized (this) {
+					seq = appendedSeq;
+				}
+				force(seq);
+			} catch (IOException e) {
+				logger.error("Unable to force write-ahead log " + file + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Replays all intact records of the log. A truncated or corrupted tail (e.g. after a crash during a write)
+	 * is cut off, so that new records are appended after the last intact one.
+	 * @param handler receives the replayed records in order
+	 * @return number of replayed records
+	 */
+	public synchronized long replay(ReplayHandler handler) throws IOException {
+		long validLength = 0;
+		long replayed = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			CRC32 crc = new CRC32();
+			while (true) {
+				int length;
+				int checksum;
+				byte[] payload;
+				try {
+					length = in.readInt();
+					checksum = in.readInt();
+					if (length < MIN_RECORD_SIZE || length > MAX_RECORD_SIZE) {
+						logger.warn("Invalid record length " + length + " in write-ahead log " + file + " at offset " + validLength);
+						break;
+					}
+					payload = new byte[length];
+					in.readFully(payload);
+				} catch (EOFException e) {
+					break;
+				}
+
+				crc.reset();
+				crc.update(payload);
+				if ((int) crc.getValue() != checksum) {
+					logger.warn("Checksum mismatch in write-ahead log " + file + " at offset " + validLength);
+					break;
+				}
+
+				ByteBuffer buffer = ByteBuffer.wrap(payload);
+				byte op = buffer.get();
+				HashKey key = HashKey.read(buffer);
+				long version = 0;
+				if (op == OP_PUT_VERSIONED || op == OP_DELETE_VERSIONED) {
+					if (length < VERSIONED_RECORD_SIZE) {
+						logger.warn("Invalid record length " + length + " in write-ahead log " + file + " at offset " + validLength);
+						break;
+					}
+					version = buffer.getLong();
+				}
+				if (op == OP_PUT || op == OP_PUT_VERSIONED) {
+					byte[] valueBytes = new byte[buffer.getInt()];
+					buffer.get(valueBytes);
+					handler.put(key, new String(valueBytes, Settings.CHARSET), version);
+				} else if (op == OP_DELETE || op == OP_DELETE_VERSIONED) {
+					handler.delete(key, version);
+				} else {
+					logger.warn("Unknown record type " + op + " in write-ahead log " + file + " at offset " + validLength);
+					break;
+				}
+
+				validLength += HEADER_SIZE + length;
+				replayed++;
+			}
+		} finally {
+			in.close();
+		}
+
+		if (validLength < file.length()) {
+			logger.warn("Truncating write-ahead log " + file + " from " + file.length() + " to " + validLength + " bytes.");
+			channel.truncate(validLength);
+			channel.force(false);
+		}
+		recordCount = replayed;
+		logger.info("Replayed " + replayed + " records from write-ahead log " + file);
+		return replayed;
+	}
+
+	/**
+	 * Replaces the log with a compact one that contains exactly one put record per entry of the snapshot
+	 * and one delete record per stamped key that is not in the snapshot, so deleted keys keep their stamp.
+	 * The caller has to make sure no records are appended while the snapshot is written.
+	 * @param snapshot the current content of the store
+	 * @param versions the version stamps of the keys, entries without one are written with stamp 0
+	 */
+	public void rewrite(Map<HashKey, String> snapshot, Map<HashKey, Long> versions) throws IOException {
+		synchronized (syncLock) {
+			synchronized (this) {
+				rewriteLocked(snapshot, versions);
+			}
+		}
+	}
+
+	private void rewriteLocked(Map<HashKey, String> snapshot, Map<HashKey, Long> versions) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		int records = snapshot.size();
+		try {
+			out.setLength(0);
+			FileChannel tmpChannel = out.getChannel();
+			for (Entry<HashKey, String> entry : snapshot.entrySet()) {
+				Long version = versions.get(entry.getKey());
+				writeFully(tmpChannel, encode(OP_PUT_VERSIONED, entry.getKey(), entry.getValue(), version != null ? version : 0));
+			}
+			for (Entry<HashKey, Long> entry : versions.entrySet()) {
+				if (!snapshot.containsKey(entry.getKey())) {
+					writeFully(tmpChannel, encode(OP_DELETE_VERSIONED, entry.getKey(), null, entry.getValue()));
+					records++;
+				}
+			}
+			tmpChannel.force(true);
+		} finally {
+			out.close();
+		}
+
+		channel.close();
+		fileOutput.close();
+		if (!tmp.renameTo(file)) {
+			/* renameTo does not replace existing files on every platform */
+			if (!file.delete() || !tmp.renameTo(file)) {
+				open();
+				throw new IOException("Unable to replace write-ahead log " + file + " with " + tmp);
+			}
+		}
+		open();
+		recordCount = records;
+		syncedSeq = appendedSeq;
+		logger.info("Rewrote write-ahead log " + file + " with " + recordCount + " records.");
+	}
+
+	/**
+	 * Forces all pending records and closes the log.
+	 */
+	public void close() throws IOException {
+		synchronized (syncLock) {
+			long seq;
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				seq = appendedSeq;
+			}
+			force(seq);
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+				channel.close();
+				fileOutput.close();
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel channel, byte[] record) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private byte[] encode(byte op, HashKey key, String value, long version) throws IOException {
+		byte[] valueBytes = value == null ? new byte[0] : value.getBytes(Settings.CHARSET);
+		int length = VERSIONED_RECORD_SIZE + valueBytes.length;
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+		buffer.putInt(length);
+		buffer.putInt(0); // checksum, filled in below
+		buffer.put(op);
+		key.write(buffer);
+		buffer.putLong(version);
+		buffer.putInt(valueBytes.length);
+		buffer.put(valueBytes);
+
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), HEADER_SIZE, length);
+		buffer.putInt(4, (int) crc.getValue());
+		return buffer.array();
+	}
+}
@@ -0,0 +1,400 @@
+package client;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import logger.LogSetup;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import common.ServerData;
+import common.messages.InvalidMessageException;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVQuery;
+
+/**
+ * Serves the asynchronous requests of a {@link KVStore} with one selector thread and one
+ * connection per server of the ring. Connections are opened on first use by a separate thread,
+ * because the handshake blocks. Requests answered with SERVER_NOT_RESPONSIBLE are sent again
+ * with the updated meta data, GETs that a replica cannot answer are sent to the coordinator.
+ * GETs a replica does not answer in time are hedged: sent to the next replica too, the first
+ * answer completes the future, see {@link ReadHedging}.
+ * The replies to MGET and MPUT batches are handed to the store as they are.
+ */
+class AsyncDispatcher extends Thread {
+	private static final Logger logger = new LogSetup("logs/client.log", "<Async Module>", Level.ALL).getLogger();
+	private static final int MAX_ATTEMPTS = 3;
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * A PUT or GET request, or an MGET or MPUT batch, and the future of its result.
+	 */
+	static class Request {
+		final StatusType type;
+		final String key;
+		final String value;
+		/* the keys and values of a batch and the server it is sent to */
+		final List<String> keys;
+		final List<String> values;
+		final ServerData server;
+		final KVFuture future = new KVFuture();
+		/* GETs are sent to any replica first */
+		boolean toCoordinator;
+		int attempts;
+		int requestId;
+		/* the replica a GET routed by the ReadRouter is in flight at, and since when */
+		ServerData readServer;
+		long readSent;
+		boolean tracked;
+		/* a hedge is sent to the next replica of the GET it was created for */
+		ServerData target;
+		Request hedged;
+
+		Request(StatusType type, String key, String value) {
+			this.type = type;
+			this.key = key;
+			this.value = value;
+			this.toCoordinator = type == StatusType.PUT;
+			this.keys = null;
+			this.values = null;
+			this.server = null;
+		}
+
+		/**
+		 * @param values the values of an MPUT, null for an MGET
+		 */
+		Request(StatusType type, List<String> keys, List<String> values, ServerData server) {
+			this.type = type;
+			this.key = null;
+			this.value = null;
+			this.keys = keys;
+			this.values = values;
+			this.server = server;
+			this.toCoordinator = true;
+		}
+
+		boolean isBatch() {
+			return keys != null;
+		}
+
+		KVQuery createQuery() throws InvalidMessageException {
+			if (isBatch()) {
+				List<KVQuery> entries = new ArrayList<KVQuery>(keys.size());
+				for (int i = 0; i < keys.size(); i++) {
+					entries.add(values != null ? new KVQuery(StatusType.PUT, keys.get(i), values.get(i)) : new KVQuery(StatusType.GET, keys.get(i)));
+				}
+				return new KVQuery(type, entries);
+			}
+			return type == StatusType.PUT ? new KVQuery(type, key, value) : new KVQuery(type, key);
+		}
+	}
+
+	private final KVStore store;
+	private final Selector selector;
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	private final ConcurrentHashMap<String, AsyncLink> links = new ConcurrentHashMap<String, AsyncLink>();
+	private final ConcurrentLinkedQueue<AsyncLink> newLinks = new ConcurrentLinkedQueue<AsyncLink>();
+	private final ConcurrentLinkedQueue<AsyncLink> writeRequests = new ConcurrentLinkedQueue<AsyncLink>();
+	private final ExecutorService connector;
+	private final ScheduledExecutorService hedgeTimer;
+	private volatile boolean running = true;
+
+	AsyncDispatcher(KVStore store) throws IOException {
+		super("KVStore dispatcher");
+		setDaemon(true);
+		this.store = store;
+		this.selector = Selector.open();
+		this.connector = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "KVStore connector");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.hedgeTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "KVStore hedge timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Send the request to the responsible server, called by any thread.
+	 */
+	void submit(final Request request) {
+		if (!running) {
+			request.future.fail(new IOException("The asynchronous connections of the store are closed."));
+			return;
+		}
+		final ServerData server;
+		if (request.isBatch()) {
+			server = request.server;
+		} else if (request.target != null) {
+			server = request.target;
+		} else {
+			server = store.routeAsync(request.key, request.toCoordinator);
+		}
+		if (server == null) {
+			request.future.fail(new ConnectException("No server is responsible for key " + request.key));
+			return;
+		}
+		if (!request.isBatch() && !request.toCoordinator) {
+			startRead(request, server);
+			if (request.hedged == null && request.attempts == 0) {
+				scheduleHedge(request, server);
+			}
+		}
+		AsyncLink link = links.get(serverId(server));
+		if (link != null && link.isOpen()) {
+			link.send(request);
+			return;
+		}
+		try {
+			connector.execute(new Runnable() {
+				public void run() {
+					try {
+						openLink(server).send(request);
+					} catch (IOException e) {
+						logger.warn("Unable to connect to " + serverId(server) + ": " + e.getMessage());
+						request.future.fail(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			request.future.fail(new IOException("The asynchronous connections of the store are closed."));
+		}
+	}
+
+	void requestWrite(AsyncLink link) {
+		writeRequests.add(link);
+		selector.wakeup();
+	}
+
+	/**
+	 * Close all connections, pending requests fail.
+	 */
+	void shutdown() {
+		running = false;
+		connector.shutdownNow();
+		hedgeTimer.shutdownNow();
+		if (store.getReadHedging().getHedges() > 0) {
+			logger.info(store.getReadHedging().getStatistics());
+		}
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+				AsyncLink link;
+				while ((link = newLinks.poll()) != null) {
+					try {
+						link.register(selector);
+					} catch (IOException e) {
+						closeLink(link, e);
+					}
+				}
+				while ((link = writeRequests.poll()) != null) {
+					try {
+						link.flush();
+					} catch (IOException e) {
+						closeLink(link, e);
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					link = (AsyncLink) key.attachment();
+					try {
+						if (key.isValid() && key.isWritable()) {
+							link.flush();
+						}
+						if (key.isValid() && key.isReadable()) {
+							link.read(readBuffer);
+						}
+					} catch (CancelledKeyException e) {
+						// closed by another thread
+					} catch (IOException e) {
+						closeLink(link, e);
+					}
+				}
+			} catch (IOException e) {
+				logger.error("Selector of the asynchronous connections failed: " + e.getMessage());
+				running = false;
+			}
+		}
+
+		IOException closed = new IOException("The asynchronous connections of the store are closed.");
+		for (AsyncLink link : links.values()) {
+			link.close(closed);
+		}
+		links.clear();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			logger.warn("Unable to close selector: " + e.getMessage());
+		}
+	}
+
+	/* called by the selector thread for each reply */
+	void handleReply(AsyncLink link, Request request, KVQuery reply) throws InvalidMessageException {
+		endRead(request, false);
+		if (request.isBatch()) {
+			request.future.complete(reply);
+		} else if (reply.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE && "metaData".equals(reply.getKey())) {
+			store.updateMetaData(reply.getValue());
+			retry(request, reply);
+		} else if (reply.getStatus() == StatusType.GET_ERROR && !request.toCoordinator
+				&& !sameServer(link.getServer(), store.routeAsync(request.key, true))) {
+			/* a replica that does not have the key, the coordinator may */
+			request.toCoordinator = true;
+			retry(request, reply);
+		} else {
+			request.future.complete(new KVResult(reply.getStatus(), reply.getKey(), reply.getValue()));
+		}
+	}
+
+	/* the latency and the requests in flight of the replicas are measured for the ReadRouter */
+	private void startRead(final Request request, ServerData server) {
+		synchronized (request) {
+			request.readServer = server;
+			request.readSent = System.nanoTime();
+			if (!request.tracked) {
+				request.tracked = true;
+				request.future.addListener(new KVFuture.Listener() {
+					public void completed(KVFuture future) {
+						endRead(request, future.isFailed());
+					}
+				});
+			}
+		}
+		store.getReadRouter().started(server);
+	}
+
+	private void endRead(Request request, boolean failed) {
+		ServerData server;
+		long sent;
+		synchronized (request) {
+			server = request.readServer;
+			sent = request.readSent;
+			request.readServer = null;
+		}
+		if (server != null) {
+			long nanos = System.nanoTime() - sent;
+			store.getReadRouter().finished(server, nanos, failed);
+			if (!failed) {
+				store.getReadHedging().record(nanos);
+			}
+		}
+	}
+
+	/* send the GET to the next replica too if the replica did not answer in time */
+	private void scheduleHedge(final Request request, final ServerData server) {
+		final ReadHedging hedging = store.getReadHedging();
+		long delay = hedging.started();
+		if (delay < 0) {
+			return;
+		}
+		try {
+			hedgeTimer.schedule(new Runnable() {
+				public void run() {
+					if (request.future.isDone() || !running) {
+						return;
+					}
+					ServerData next = store.nextReplica(request.key, server);
+					if (next == null || !hedging.tryHedge()) {
+						return;
+					}
+					Request hedge = new Request(StatusType.GET, request.key, null);
+					hedge.target = next;
+					hedge.hedged = request;
+					hedge.future.addListener(new KVFuture.Listener() {
+						public void completed(KVFuture future) {
+							if (future.isFailed()) {
+								return;
+							}
+							try {
+								if (request.future.complete(future.get())) {
+									hedging.won();
+								}
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							} catch (ExecutionException e) {
+								// failed hedges are ignored
+							}
+						}
+					});
+					submit(hedge);
+				}
+			}, delay, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			// shut down
+		}
+	}
+
+	private void retry(Request request, KVQuery reply) throws InvalidMessageException {
+		request.target = null;
+		if (++request.attempts >= MAX_ATTEMPTS) {
+			request.future.complete(new KVResult(reply.getStatus(), reply.getKey(), reply.getValue()));
+		} else {
+			submit(request);
+		}
+	}
+
+	/* runs on the connector thread */
+	private AsyncLink openLink(ServerData server) throws IOException {
+		String id = serverId(server);
+		AsyncLink link = links.get(id);
+		if (link != null && link.isOpen()) {
+			return link;
+		}
+		link = new AsyncLink(this, server, store.openConnection(server));
+		links.put(id, link);
+		if (!running) {
+			IOException closed = new IOException("The asynchronous connections of the store are closed.");
+			link.close(closed);
+			throw closed;
+		}
+		newLinks.add(link);
+		selector.wakeup();
+		logger.info("Opened asynchronous connection to " + id);
+		return link;
+	}
+
+	private void closeLink(AsyncLink link, IOException cause) {
+		logger.warn("Closing asynchronous connection to " + serverId(link.getServer()) + ": " + cause.getMessage());
+		links.remove(serverId(link.getServer()), link);
+		link.close(cause);
+	}
+
+	private static boolean sameServer(ServerData a, ServerData b) {
+		return a != null && b != null && a.getAddress().equals(b.getAddress()) && a.getPort() == b.getPort();
+	}
+
+	private static String serverId(ServerData server) {
+		return server.getAddress() + ":" + server.getPort();
+	}
+}
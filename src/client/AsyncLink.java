@@ -0,0 +1,199 @@
+package client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import common.ServerData;
+import common.Settings;
+import common.messages.Frame;
+import common.messages.FrameDecoder;
+import common.messages.InvalidMessageException;
+import common.messages.KVQuery;
+import crypto_protocol.SessionInfo;
+
+/**
+ * The connection of an {@link AsyncDispatcher} to one server. The handshake is done by a blocking
+ * KVStore, then the channel is switched to non-blocking mode and served by the selector thread.
+ * Requests are encrypted by the submitting thread and queued for the selector thread. A server answers
+ * the requests of a connection in order, so each reply belongs to the oldest pending request;
+ * in the binary format this is checked with the request id.
+ */
+class AsyncLink {
+	private final AsyncDispatcher dispatcher;
+	private final ServerData server;
+	private final SocketChannel channel;
+	private final SessionInfo session;
+	private final boolean binary;
+	private final FrameDecoder frameDecoder = new FrameDecoder(Settings.MAX_MESSAGE_SIZE);
+	/* set while the link is queued for a write by the selector thread */
+	private final AtomicBoolean writeRequested = new AtomicBoolean();
+
+	/* guarded by this */
+	private final LinkedList<AsyncDispatcher.Request> pending = new LinkedList<AsyncDispatcher.Request>();
+	private final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+	private int nextRequestId = 1;
+	private boolean closed;
+	private SelectionKey key;
+
+	/**
+	 * @param connection a store that completed the handshake and CONNECT with the server
+	 */
+	AsyncLink(AsyncDispatcher dispatcher, ServerData server, KVStore connection) throws IOException {
+		this.dispatcher = dispatcher;
+		this.server = server;
+		this.channel = connection.getChannel();
+		this.session = connection.getSession();
+		this.binary = connection.usesRequestIds();
+		channel.configureBlocking(false);
+	}
+
+	ServerData getServer() {
+		return server;
+	}
+
+	synchronized boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * Queue a request, called by any thread.
+	 */
+	void send(AsyncDispatcher.Request request) {
+		try {
+			synchronized (this) {
+				if (closed) {
+					throw new ClosedChannelException();
+				}
+				KVQuery query = request.createQuery();
+				query.setRequestId(nextRequestId);
+				byte[] bytes = binary ? query.toBinary() : query.toBytes();
+				if (bytes == null && request.isBatch()) {
+					throw new IOException("The " + request.type + " of " + request.keys.size() + " keys exceeds the maximum message size"
+							+ " or the server does not support the binary format.");
+				} else if (bytes == null) {
+					throw new IOException("The request for key " + request.key + " exceeds the maximum message size.");
+				}
+				writeQueue.add(ByteBuffer.wrap(KVCommunication.encryptFrame(bytes, session)));
+				request.requestId = nextRequestId;
+				pending.add(request);
+				nextRequestId = nextRequestId == Integer.MAX_VALUE ? 1 : nextRequestId + 1;
+			}
+		} catch (IOException e) {
+			request.future.fail(e);
+			return;
+		} catch (InvalidMessageException e) {
+			request.future.fail(e);
+			return;
+		}
+		if (writeRequested.compareAndSet(false, true)) {
+			dispatcher.requestWrite(this);
+		}
+	}
+
+	/* the methods below are called by the selector thread */
+
+	void register(Selector selector) throws IOException {
+		synchronized (this) {
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+		}
+		flush();
+	}
+
+	/**
+	 * Write the queued requests with one gathering write, waits for OP_WRITE if the socket buffer is full.
+	 */
+	void flush() throws IOException {
+		writeRequested.set(false);
+		synchronized (this) {
+			if (key == null || closed) {
+				return;
+			}
+			if (!writeQueue.isEmpty()) {
+				channel.write(writeQueue.toArray(new ByteBuffer[writeQueue.size()]));
+				while (!writeQueue.isEmpty() && !writeQueue.getFirst().hasRemaining()) {
+					writeQueue.removeFirst();
+				}
+			}
+			key.interestOps(writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Read the available data and hand complete replies to the dispatcher.
+	 */
+	void read(ByteBuffer readBuffer) throws IOException {
+		readBuffer.clear();
+		if (channel.read(readBuffer) < 0) {
+			throw new EOFException("Connection closed by " + server.getAddress() + ":" + server.getPort());
+		}
+		readBuffer.flip();
+
+		Frame frame;
+		while ((frame = frameDecoder.decode(readBuffer)) != null) {
+			AsyncDispatcher.Request request;
+			synchronized (this) {
+				request = pending.poll();
+			}
+			if (request == null) {
+				throw new IOException("Received a reply from " + server.getAddress() + ":" + server.getPort() + " without a pending request.");
+			}
+			try {
+				byte[] bytes = frame.getPayload();
+				if (frame.getEncFlag() == 1) {
+					bytes = session.decrypt(bytes);
+				}
+				KVQuery reply = new KVQuery(bytes);
+				if (binary && reply.getRequestId() != request.requestId) {
+					throw new IOException("Received the reply to request " + reply.getRequestId()
+							+ " while waiting for the reply to request " + request.requestId);
+				}
+				dispatcher.handleReply(this, request, reply);
+			} catch (IOException e) {
+				request.future.fail(e);
+				throw e;
+			} catch (InvalidMessageException e) {
+				request.future.fail(e);
+			} catch (GeneralSecurityException e) {
+				/* the reply could not be decrypted */
+				request.future.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Close the channel and fail the pending requests.
+	 */
+	void close(IOException cause) {
+		List<AsyncDispatcher.Request> failed;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			failed = new ArrayList<AsyncDispatcher.Request>(pending);
+			pending.clear();
+			writeQueue.clear();
+			if (key != null) {
+				key.cancel();
+			}
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		for (AsyncDispatcher.Request request : failed) {
+			request.future.fail(cause);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import crypto_protocol.SessionInfo;
+
+/**
+ * Idle connections of a {@link KVStore} to the servers of the ring. When the responsible server
+ * changes, the store parks its connection here and takes the connection to the new server, so
+ * the handshake is done once per server instead of once per switch.
+ * <p>
+ * The pool holds one connection per server and at most maxSize connections, the least recently
+ * used one is closed first. Connections that were idle for longer than the idle timeout, or
+ * that were closed by the server, are closed instead of being returned.
+ */
+class ConnectionPool {
+
+	/**
+	 * An authenticated connection and the state negotiated at CONNECT.
+	 */
+	static class Connection {
+		final KVCommunication communication;
+		final SessionInfo session;
+		final boolean binaryProtocol;
+		long idleSince;
+
+		Connection(KVCommunication communication, SessionInfo session, boolean binaryProtocol) {
+			this.communication = communication;
+			this.session = session;
+			this.binaryProtocol = binaryProtocol;
+		}
+	}
+
+	private final int maxSize;
+	private final long idleTimeoutMs;
+	/* in access order, the eldest connection was used least recently */
+	private final LinkedHashMap<String, Connection> idle = new LinkedHashMap<String, Connection>(16, 0.75f, true);
+
+	ConnectionPool(int maxSize, long idleTimeoutMs) {
+		this.maxSize = maxSize;
+		this.idleTimeoutMs = idleTimeoutMs;
+	}
+
+	/**
+	 * Take the idle connection to a server.
+	 * @return a usable connection or null if there is none
+	 */
+	Connection take(String address, int port) {
+		Connection connection;
+		synchronized (this) {
+			connection = idle.remove(id(address, port));
+		}
+		if (connection == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() - connection.idleSince > idleTimeoutMs || !connection.communication.isAlive()) {
+			connection.communication.closeConnection();
+			return null;
+		}
+		return connection;
+	}
+
+	/**
+	 * Keep a connection for later use. A connection to the same server that is already idle is closed.
+	 */
+	void release(String address, int port, Connection connection) {
+		List<Connection> evicted = new ArrayList<Connection>();
+		long now = System.currentTimeMillis();
+		connection.idleSince = now;
+		synchronized (this) {
+			Connection previous = idle.put(id(address, port), connection);
+			if (previous != null) {
+				evicted.add(previous);
+			}
+			Iterator<Connection> connections = idle.values().iterator();
+			while (connections.hasNext()) {
+				Connection eldest = connections.next();
+				if (idle.size() <= maxSize && now - eldest.idleSince <= idleTimeoutMs) {
+					break;
+				}
+				connections.remove();
+				evicted.add(eldest);
+			}
+		}
+		for (Connection closed : evicted) {
+			closed.communication.closeConnection();
+		}
+	}
+
+	/**
+	 * Close all idle connections.
+	 */
+	void closeAll() {
+		List<Connection> closed;
+		synchronized (this) {
+			closed = new ArrayList<Connection>(idle.values());
+			idle.clear();
+		}
+		for (Connection connection : closed) {
+			connection.communication.closeConnection();
+		}
+	}
+
+	private static String id(String address, int port) {
+		return address + ":" + port;
+	}
+}
@@ -42,4 +42,27 @@ public interface KVCommInterface {
 	 *             KV server).
 	 */
 	public KVMessage get(String key) throws Exception;
+
+	/**
+	 * Inserts a key-value pair into the KVServer without waiting for the reply.
+	 * 
+	 * @param key
+	 *            the key that identifies the given value.
+	 * @param value
+	 *            the value that is indexed by the given key.
+	 * @return the future confirmation of the insertion or error. It fails
+	 *         if the request could not be sent.
+	 */
+	public KVFuture putAsync(String key, String value);
+
+	/**
+	 * Retrieves the value for a given key from the KVServer without waiting
+	 * for the reply.
+	 * 
+	 * @param key
+	 *            the key that identifies the value.
+	 * @return the future value, which is indexed by the given key. It fails
+	 *         if the request could not be sent.
+	 */
+	public KVFuture getAsync(String key);
 }
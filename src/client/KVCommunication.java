@@ -3,16 +3,15 @@ package client;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
 import logger.LogSetup;
 
 import org.apache.log4j.Level;
@@ -20,6 +19,8 @@ import org.apache.log4j.Logger;
 
 import common.CommonCrypto;
 import common.Settings;
+import common.messages.Frame;
+import common.messages.FrameDecoder;
 import common.messages.InvalidMessageException;
 import crypto_protocol.SessionInfo;
 
@@ -37,10 +38,9 @@ public class KVCommunication {
 	private SocketStatus socketStatus;
 	private OutputStream output;
  	private InputStream input;
+ 	private FrameDecoder frameDecoder;
  	private String moduleName = "<KVComm Module>";
- 	private static final int TIMEOUT_MS = 3000;
-	private static final int BUFFER_SIZE = 1024;
-	private static final int DROP_SIZE = 4096 * BUFFER_SIZE;
+ 	static final int TIMEOUT_MS = 3000;
 	
 	/**
 	 * Initializes communication by establishing a connection to the given address and port
@@ -69,8 +69,14 @@ public class KVCommunication {
 	 */
 	private void connect(String address, int port) throws UnknownHostException, IOException, SocketTimeoutException
 	{
-		clientSocket = new Socket(address, port);
+		InetSocketAddress serverAddress = new InetSocketAddress(address, port);
+		if (serverAddress.isUnresolved())
+			throw new UnknownHostException(address);
+		/* opened as channel, so the connection can be handed to an AsyncDispatcher after the handshake */
+		clientSocket = SocketChannel.open(serverAddress).socket();
 		clientSocket.setSoTimeout(TIMEOUT_MS);
+		input = clientSocket.getInputStream();
+		frameDecoder = new FrameDecoder(input, Settings.MAX_MESSAGE_SIZE);
 		setSocketStatus(SocketStatus.CONNECTED);
 		
 		if(KVClient.DEBUG)
@@ -141,30 +147,32 @@ public class KVCommunication {
 	public void sendMessageEncrypted(byte[] msgBytes, SessionInfo session) throws IOException, SocketTimeoutException {
 		if (msgBytes != null) {
 
-			byte[] bytes = null;
-			byte[] encryptedBytes = null;
-			try {
-				/* Encrypt contents AES-CBC-128 */	 
-				SecretKeySpec k = new SecretKeySpec(session.getEncKey().getEncoded(), "AES");
-				Cipher cipher = Cipher.getInstance(Settings.TRANSFER_ENCRYPTION);
-				cipher.init (Cipher.ENCRYPT_MODE, k, new IvParameterSpec(session.getIV()));
-				encryptedBytes = cipher.doFinal(msgBytes);
-				bytes = ByteBuffer.allocate(12 + encryptedBytes.length).putInt(1).putInt(1).putInt(encryptedBytes.length).put(encryptedBytes).array();
-			} catch (Exception e) {
-				e.printStackTrace();
-				throw new IOException("Unable to encrypt message: " + e.getMessage());
-			}
+			byte[] bytes = encryptFrame(msgBytes, session);
 			
 			output.write(bytes, 0, bytes.length);
 			output.flush();
 
-			logger.debug("Sent to           [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " + new String(encryptedBytes, Settings.CHARSET));
+			logger.debug("Sent to           [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " + new String(bytes, 12, bytes.length - 12, Settings.CHARSET));
 			
 		} else {
 			throw new IOException("Unable to transmit message, the message was null.");
 		}
 	}
 	
+	/**
+	 * Encrypt a message with the session key and add the header of an encrypted client message.
+	 * @return the frame ready to be sent
+	 * @throws IOException if the message could not be encrypted
+	 */
+	static byte[] encryptFrame(byte[] msgBytes, SessionInfo session) throws IOException {
+		try {
+			/* Encrypt contents AES-CBC-128 with the cipher of the session */
+			return new Frame(1, 1, session.encrypt(msgBytes)).toBytes();
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Unable to encrypt message: " + e.getMessage());
+		}
+	}
+	
 	/**
 	 * Method sends a Message using this socket.
 	 * @param msg the message that is to be sent.
@@ -183,82 +191,33 @@ public class KVCommunication {
 		sendMessageInternal(msgBytes, 3);
 	}
 	
-	public byte[] receiveMessage(Key decryptionKey, byte[] IV) throws IOException, SocketTimeoutException {
-		input = clientSocket.getInputStream();
-		int index = 0;
-		byte[] msgBytes = null, tmp = null;
-		byte[] bufferBytes = new byte[BUFFER_SIZE];
-		
-		/* read message encryption flag */
-		byte[] encFlagBytes = new byte[4];
-		input.read(encFlagBytes);
-		int encFlag = ByteBuffer.wrap(encFlagBytes).getInt(); // 0 = Plain, 1 = Encrypted
-		
-		if (encFlag != 0 && encFlag != 1)
-			throw new IOException("Encryption flag of received message was set to invalid value");
-		
-		/* read message identity */
-		byte[] identBytes = new byte[4];
-		input.read(identBytes);
-		int ident = ByteBuffer.wrap(identBytes).getInt(); // 1 = CLIENT, 2 = SERVER, 3 = ECS
-		
-		if (ident != 1 && ident != 2 && ident != 3)
-			throw new IOException("Ident flag of received message was set to invalid value");
-		
-		/* read length of message */
-		byte[] lenBytes = new byte[4];
-		input.read(lenBytes);
-		int msgLen = ByteBuffer.wrap(lenBytes).getInt();
-		
-		if (msgLen < 0)
-			throw new IOException("Length field of received message was invalid (negative).");
-		
-		logger.debug("new message - length: " + msgLen + ", ident: " + ident);
-
-		for (int i = 0; i < msgLen; i++) {
-			/* read next byte */
-			byte read = (byte) input.read();
-			
-			/* if buffer filled, copy to msg array */
-			if(index == BUFFER_SIZE) {
-				if(msgBytes == null){
-					tmp = new byte[BUFFER_SIZE];
-					System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-				} else {
-					tmp = new byte[msgBytes.length + BUFFER_SIZE];
-					System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-					System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
-							BUFFER_SIZE);
-				}
-
-				msgBytes = tmp;
-				bufferBytes = new byte[BUFFER_SIZE];
-				index = 0;
-			} 
-
-			/* only read valid characters, i.e. letters and constants */
-			bufferBytes[index] = read;
-			index++;
+	/**
+	 * Receive a message and decrypt it with the cipher of the session if it is encrypted.
+	 * @param session the session of the connection
+	 * @return the plain message
+	 * @throws IOException if the message could not be received or decrypted
+	 */
+	public byte[] receiveMessage(SessionInfo session) throws IOException, SocketTimeoutException {
+		Frame frame = frameDecoder.readFrame();
+		byte[] msgBytes = frame.getPayload();
+		logger.debug("new message - length: " + msgBytes.length + ", ident: " + frame.getIdent());
 
-			/* stop reading is DROP_SIZE is reached */
-			/*
-			if(msgBytes != null && msgBytes.length + index >= DROP_SIZE) {
-				reading = false;
-			}*/
+		if (frame.getEncFlag() == 0) {
+			return msgBytes;
 		}
-		// logger.debug("DONE READING.");
-
-		if(msgBytes == null){
-			tmp = new byte[index];
-			System.arraycopy(bufferBytes, 0, tmp, 0, index);
-		} else {
-			tmp = new byte[msgBytes.length + index];
-			System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-			System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
+		try {
+			return session.decrypt(msgBytes);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Unable to decrypt message:\n" + e.getMessage());
 		}
+	}
+
+	public byte[] receiveMessage(Key decryptionKey, byte[] IV) throws IOException, SocketTimeoutException {
+		Frame frame = frameDecoder.readFrame();
+		int encFlag = frame.getEncFlag(); // 0 = Plain, 1 = Encrypted
+		byte[] msgBytes = frame.getPayload();
+		logger.debug("new message - length: " + msgBytes.length + ", ident: " + frame.getIdent());
 
-		msgBytes = tmp;
-			
 		if (encFlag == 0) {
 			logger.debug("Received Plain from     [" + this.clientSocket.getInetAddress().getHostAddress() + ":" + this.clientSocket.getPort() + "] " + "RAW DATA\n<" + new String(msgBytes, Settings.CHARSET) + ">");
 			return msgBytes;
@@ -306,4 +265,27 @@ public class KVCommunication {
 	public Socket getSocket() {
 		return this.clientSocket;
 	}
+
+	/**
+	 * Check without blocking whether an idle connection is still usable: it was not closed
+	 * by the server and no data arrived that is not the reply to a request.
+	 * @return true if the connection can be used for the next request
+	 */
+	public boolean isAlive() {
+		if (socketStatus != SocketStatus.CONNECTED || clientSocket == null || clientSocket.isClosed()) {
+			return false;
+		}
+		SocketChannel channel = clientSocket.getChannel();
+		try {
+			channel.configureBlocking(false);
+			try {
+				return channel.read(ByteBuffer.allocate(1)) == 0;
+			} finally {
+				channel.configureBlocking(true);
+			}
+		} catch (IOException e) {
+			logger.debug(moduleName + ": Idle connection is broken: " + e.getMessage());
+			return false;
+		}
+	}
 }
@@ -0,0 +1,122 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import logger.LogSetup;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import common.messages.KVMessage;
+
+/**
+ * Result of an asynchronous request of a {@link KVStore}. The result can be waited for with
+ * {@link #get()} or handled by a {@link Listener} once it arrives, without a waiting thread.
+ * Requests cannot be cancelled once they are submitted.
+ */
+public class KVFuture implements Future<KVMessage> {
+	private static final Logger logger = new LogSetup("logs/client.log", "<KVFuture>", Level.ALL).getLogger();
+
+	/**
+	 * Called once the request completed or failed. Listeners run on the thread that completes the
+	 * request, usually the selector thread of the store, and must not block.
+	 */
+	public interface Listener {
+		void completed(KVFuture future);
+	}
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final List<Listener> listeners = new ArrayList<Listener>();
+	private boolean completed;
+	private KVMessage result;
+	private Throwable failure;
+
+	/**
+	 * Run the listener when the request completes, or right away if it already did.
+	 */
+	public void addListener(Listener listener) {
+		synchronized (this) {
+			if (!completed) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.completed(this);
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * @return true if the request completed without a result because of an error
+	 */
+	public synchronized boolean isFailed() {
+		return failure != null;
+	}
+
+	public KVMessage get() throws InterruptedException, ExecutionException {
+		done.await();
+		return getResult();
+	}
+
+	public KVMessage get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException("No reply within " + timeout + " " + unit);
+		}
+		return getResult();
+	}
+
+	boolean complete(KVMessage message) {
+		return finish(message, null);
+	}
+
+	boolean fail(Throwable cause) {
+		return finish(null, cause);
+	}
+
+	private synchronized KVMessage getResult() throws ExecutionException {
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return result;
+	}
+
+	private boolean finish(KVMessage message, Throwable cause) {
+		List<Listener> toNotify;
+		synchronized (this) {
+			if (completed) {
+				return false;
+			}
+			completed = true;
+			result = message;
+			failure = cause;
+			toNotify = new ArrayList<Listener>(listeners);
+			listeners.clear();
+		}
+		done.countDown();
+		for (Listener listener : toNotify) {
+			try {
+				listener.completed(this);
+			} catch (RuntimeException e) {
+				/* must not stop the thread that completes the requests */
+				logger.error("Listener of a request failed: " + e.getMessage(), e);
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,149 @@
+package client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import common.ServerData;
+import common.messages.InvalidMessageException;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVQuery;
+
+/**
+ * Sends a sequence of PUT and GET requests over the connection of a {@link KVStore} without waiting
+ * for the reply to each request. Up to the window size of requests are in flight at a time. A server
+ * processes the requests of a connection in order, so the replies arrive in the order of the requests.
+ * In the binary format every request carries an id, which the server copies to its reply.
+ * <p>
+ * Before a PUT is sent to another server than the connected one, the pipeline waits for the
+ * replies in flight. Requests the server was not responsible for are repeated with
+ * {@link KVStore#put(String, String)} and {@link KVStore#get(String)} before any later request is sent,
+ * so the requests for one key keep their order.
+ * <p>
+ * A pipeline is used by one thread at a time and must not be used after it threw an exception.
+ */
+public class KVPipeline {
+
+	private static class Request {
+		final KVQuery query;
+		KVMessage result;
+
+		Request(KVQuery query) {
+			this.query = query;
+		}
+	}
+
+	private final KVStore store;
+	private final int window;
+	private final List<Request> requests = new ArrayList<Request>();
+	private final LinkedList<Request> inFlight = new LinkedList<Request>();
+	private final List<Request> failed = new ArrayList<Request>();
+	private int nextRequestId = 1;
+
+	KVPipeline(KVStore store, int window) {
+		this.store = store;
+		this.window = window;
+	}
+
+	/**
+	 * Queue a PUT request, it is sent as soon as the window allows.
+	 */
+	public void put(String key, String value) throws IOException, InvalidMessageException {
+		retryFailed();
+		ServerData coordinator = store.getResponsibleServerCoordinator(key);
+		if (coordinator != null && !store.isConnectedTo(coordinator)) {
+			drain();
+			retryFailed();
+			store.connectServer(key, coordinator);
+		}
+		send(new KVQuery(StatusType.PUT, key, value));
+	}
+
+	/**
+	 * Queue a GET request. Like {@link KVStore#get(String)} it is sent to the connected server first.
+	 */
+	public void get(String key) throws IOException, InvalidMessageException {
+		retryFailed();
+		send(new KVQuery(StatusType.GET, key));
+	}
+
+	/**
+	 * Wait for the replies to all queued requests.
+	 * @return the results in the order of the requests, null for requests that could not be repeated
+	 */
+	public List<KVMessage> sync() throws IOException, InvalidMessageException {
+		drain();
+		retryFailed();
+		List<KVMessage> results = new ArrayList<KVMessage>(requests.size());
+		for (Request request : requests) {
+			results.add(request.result);
+		}
+		requests.clear();
+		return results;
+	}
+
+	/**
+	 * @return number of requests sent whose reply was not received yet
+	 */
+	public int getInFlight() {
+		return inFlight.size();
+	}
+
+	private void send(KVQuery query) throws IOException, InvalidMessageException {
+		while (inFlight.size() >= window) {
+			receive();
+		}
+		query.setRequestId(nextRequestId);
+		nextRequestId = nextRequestId == Integer.MAX_VALUE ? 1 : nextRequestId + 1;
+
+		Request request = new Request(query);
+		requests.add(request);
+		inFlight.add(request);
+		store.sendRequest(query);
+	}
+
+	private void drain() throws IOException, InvalidMessageException {
+		while (!inFlight.isEmpty()) {
+			receive();
+		}
+	}
+
+	private void receive() throws IOException, InvalidMessageException {
+		Request request = inFlight.removeFirst();
+		KVQuery reply = store.receiveReply();
+		if (store.usesRequestIds() && reply.getRequestId() != request.query.getRequestId()) {
+			throw new InvalidMessageException("Received the reply to request " + reply.getRequestId()
+					+ " while waiting for the reply to request " + request.query.getRequestId());
+		}
+
+		String key = request.query.getKey();
+		if (reply.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE && reply.getKey().equals("metaData")) {
+			store.updateMetaData(reply.getValue());
+			failed.add(request);
+		} else if (reply.getStatus() == StatusType.GET_ERROR && !store.isConnectedTo(store.getResponsibleServerCoordinator(key))) {
+			/* a replica that does not have the key, the coordinator may */
+			failed.add(request);
+		} else {
+			request.result = new KVResult(reply.getStatus(), reply.getKey(), reply.getValue());
+		}
+	}
+
+	/* repeat failed requests one at a time; the replies in flight come from the same server and are received first */
+	private void retryFailed() throws IOException, InvalidMessageException {
+		while (!failed.isEmpty()) {
+			drain();
+			List<Request> retries = new ArrayList<Request>(failed);
+			failed.clear();
+			for (Request request : retries) {
+				KVQuery query = request.query;
+				if (query.getStatus() == StatusType.PUT) {
+					request.result = store.put(query.getKey(), query.getValue());
+				} else {
+					request.result = store.get(query.getKey());
+				}
+			}
+		}
+	}
+}
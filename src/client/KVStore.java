@@ -1,8 +1,6 @@
 package client;
 
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Serializable;
@@ -11,21 +9,27 @@ import java.net.ConnectException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.nio.charset.Charset;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.UnsupportedCharsetException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
-import java.security.PrivateKey;
 import java.security.SignatureException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -38,9 +42,11 @@ import org.apache.log4j.Logger;
 
 import app_kvClient.SocketStatus;
 import crypto_protocol.ClientInitMessage;
+import crypto_protocol.CredentialStore;
 import crypto_protocol.ClientKeyExchangeMessage;
 import crypto_protocol.ErrorMessage;
 import crypto_protocol.Message;
+import crypto_protocol.MessageCodec;
 import crypto_protocol.MessageType;
 import common.CommonCrypto;
 import crypto_protocol.SessionInfo;
@@ -50,7 +56,10 @@ import crypto_protocol.ServerAuthConfirmationMessage;
 import common.ServerData;
 import crypto_protocol.ServerInitMessage;
 import crypto_protocol.SessionException;
+import crypto_protocol.SessionTicket;
 import common.Settings;
+import common.messages.BinaryCodec;
+import common.messages.Consistency;
 import common.messages.InvalidMessageException;
 import common.messages.KVMessage;
 import common.messages.KVQuery;
@@ -75,11 +84,23 @@ public class KVStore implements KVCommInterface {
 	private ConsistentHashing consHash;
 	private String name = "";
 	private String moduleName = "<KVStore Module>";
-	private Random generator = new Random();
 	private SessionInfo session;
+	/* ticket of the last session, shared with the stores created by openConnection */
+	private AtomicReference<SessionTicket> sessionTicket = new AtomicReference<SessionTicket>();
 	private boolean handshakeComplete = false;
-	private ArrayList<X509Certificate> trustedCAs;
-	private PrivateKey clientPrivateKey;
+	/* queries are sent in the binary format if the connected server accepted it at CONNECT */
+	private boolean binaryProtocol = false;
+	private int pipelineWindow = Settings.CLIENT_PIPELINE_WINDOW;
+	/* serves putAsync and getAsync, created on first use */
+	private AsyncDispatcher dispatcher;
+	/* connections to the servers this store was connected to before */
+	private final ConnectionPool pool = new ConnectionPool(Settings.CLIENT_POOL_SIZE, Settings.CLIENT_POOL_IDLE_TIMEOUT_MS);
+	/* certificates and private key of this process, shared by all stores */
+	private CredentialStore credentials;
+	/* chooses the copy a GET is sent to, shared by all stores */
+	private ReadRouter readRouter = ReadRouter.getShared();
+	/* hedges the GETs that are slow to answer */
+	private final ReadHedging readHedging = new ReadHedging();
 
 
 	/**
@@ -102,20 +123,23 @@ public class KVStore implements KVCommInterface {
 		this.consHash = new ConsistentHashing(metaData.getServers());
 		
 		/* 
-		 * Try to import clients private key
+		 * Load the CA, trusted CAs, client certificate and private key once per process.
 		 * Please make sure key is in pkcs 8 format.
 		 * For conversion you can use:
 		 * "openssl pkcs8 -topk8 -nocrypt -inform PEM -outform DER -in inputKey.key.pem -out pkcs8OutputKey.key.pem"
 		 */
 		try {
-			this.clientPrivateKey = CommonCrypto.loadPrivateKey(Settings.CLIENT_PRIVKEY_PATH, Charset.forName(Settings.CHARSET));
+			this.credentials = CredentialStore.getClient();
 		} catch (UnsupportedCharsetException e) {
 			logger.error("Cannot read Clients private key at: " + Settings.CLIENT_PRIVKEY_PATH + ",\nbecause the Charset " + Settings.CHARSET + " is not supported.\nClient Application terminated.");
 			System.exit(1);
+		} catch (CertificateException e) {
+			logger.error("Unable to import the Client or CA Certificate, or Certificate invalid.\nReason: " + e.getMessage() + "\nClient Application terminated.");
+			System.exit(1);
 		} catch (FileNotFoundException e) {
-			logger.error("Clients private key file not found at: " + Settings.CLIENT_PRIVKEY_PATH + "\nClient Application terminated.");
+			logger.error("Clients credential file not found: " + e.getMessage() + "\nClient Application terminated.");
 			System.exit(1);
-		}catch (IOException e) {
+		} catch (IOException e) {
 			logger.error("Unable to read this clients private key from file: " + Settings.CLIENT_PRIVKEY_PATH +
 					",\nReason: " + e.getMessage() + "\nClient Application terminated.");
 			System.exit(1);
@@ -132,39 +156,11 @@ public class KVStore implements KVCommInterface {
 			System.exit(1);
 		}
 		
-		/* Load trusted CAs from trust store */
-		try {
-			trustedCAs = CommonCrypto.loadTrustStore();
-		} catch (CertificateException e) {
-			logger.error("Unable to load Trust Store: " + e.getMessage() + "\nClient Application terminated.");
-			System.exit(1);
-		} catch (Exception e) {
-			logger.error("Unable to load Trust Store: " + e.getMessage() + "\nServer Application terminated.");
-			System.exit(1);
-		}
-		logger.info("---List of trusted CAs---");
-		for (X509Certificate cert : trustedCAs) {
-			logger.info(cert.getSubjectX500Principal().getName());
+		logger.debug("---List of trusted CAs---");
+		for (X509Certificate cert : credentials.getTrustedCAs()) {
+			logger.debug(cert.getSubjectX500Principal().getName());
 		}
 	}
-	
-	/**
-	 * Imports the client certificate from the specified path
-	 * @param path Path to the client certificate file
-	 * @throws CertificateException
-	 * @throws FileNotFoundException
-	 */
-	public void importClientCertificate(String path) throws CertificateException, FileNotFoundException {
-		logger.debug("Trying to import X509 client Certificate from: " + path);
-		File certificateFile = new File(path);
-		CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
-		X509Certificate clientCert = (X509Certificate) certFactory.generateCertificate(new FileInputStream(certificateFile));
-		
-		if (clientCert != null)
-			session.setClientCertificate(clientCert);
-		else
-			logger.debug("Unable to import client certificate from " + path);
-	}
 
 	public void initLog() {
 		LogSetup ls = new LogSetup("logs/client.log", name, Level.ALL);
@@ -178,6 +174,7 @@ public class KVStore implements KVCommInterface {
 	public void connect() throws UnknownHostException, IOException, InvalidMessageException, ConnectException {
 		// System.out.println("New KVComm " + address + " " + port + " " + this.name);
 		handshakeComplete = false;
+		binaryProtocol = false;
 		logger.debug("Trying to create new KVComm " + address + ":" + port);
 		kvComm = new KVCommunication(address, port, this.name);
 		
@@ -196,18 +193,22 @@ public class KVStore implements KVCommInterface {
 		}
 		
 		if (handshakeComplete) {
-			KVQuery kvQueryConnectMessage = new KVQuery(KVMessage.StatusType.CONNECT);
+			/* ask for the binary format, servers that do not know it ignore the key and answer in text */
+			KVQuery kvQueryConnectMessage = Settings.BINARY_PROTOCOL
+					? new KVQuery(KVMessage.StatusType.CONNECT, BinaryCodec.PROTOCOL)
+					: new KVQuery(KVMessage.StatusType.CONNECT);
 			logger.debug("Trying to send connect message to " + address + ":" + port);
 			kvComm.sendMessageEncrypted(kvQueryConnectMessage.toBytes(), session);
 			logger.debug("Sent Connect message to " + address + ":" + port);
 			logger.debug("Waiting for response from " + address + ":" + port);
-			byte[] connectResponse = kvComm.receiveMessage(session.getEncKey(), session.getIV());
+			byte[] connectResponse = kvComm.receiveMessage(session);
 			logger.debug("Response received " + address + ":" + port);
 	
 			KVQuery kvQueryMessage = new KVQuery(connectResponse);
 	
 	
 			if (kvQueryMessage.getStatus() == StatusType.CONNECT_SUCCESS) {
+				binaryProtocol = kvQueryMessage.isBinary();
 				if (DEBUG) {
 					logger.info(moduleName + ": Connected to KVServer");
 					logger.info(moduleName + ": Server Message: " + kvQueryMessage.getTextMessage());
@@ -241,16 +242,29 @@ public class KVStore implements KVCommInterface {
 		}
 		
 		logger.info("SEND >> " + obj.toString());
-		byte[] bytes = CommonCrypto.objectToByteArray(obj);
+		byte[] bytes = Settings.SERIALIZED_HANDSHAKE || !(obj instanceof Message) ? CommonCrypto.objectToByteArray(obj) : MessageCodec.encode((Message) obj);
 		kvComm.sendMessage(bytes);
 	}
 	
 	/**
-	 * General receive method
+	 * General receive method. Java serialized messages are only accepted if the
+	 * client sends them as well, see {@link Settings#SERIALIZED_HANDSHAKE}.
 	 * @return Message received Message
 	 * @throws IOException
 	 */
 	public Message bytesToMessage(byte[] bytes) throws IOException {
+		if (MessageCodec.isEncoded(bytes)) {
+			try {
+				Message message = MessageCodec.decode(bytes);
+				logger.info("RECEIVE << " + message);
+				return message;
+			} catch (InvalidMessageException e) {
+				throw new IOException("Received an invalid handshake message: " + e.getMessage());
+			}
+		}
+		if (!Settings.SERIALIZED_HANDSHAKE) {
+			throw new IOException("Received a Java serialized handshake message, which is not accepted.");
+		}
 		
 		try {
 			Object input =  CommonCrypto.objectFromByteArray(bytes);
@@ -333,43 +347,15 @@ public class KVStore implements KVCommInterface {
 		session.setLocalPort(clientSocket.getLocalPort());
 		session.setRemotePort(clientSocket.getPort());
 		
-		/* Try to import Client Certificate */
-		try {
-			importClientCertificate(Settings.CLIENT_CERT_PATH);
-		} catch (CertificateException e) {
-			throw new IllegalArgumentException("Unable to create X.509 Certificate from file: " + Settings.CLIENT_CERT_PATH);
-		} catch (FileNotFoundException e) {
-			throw new IllegalArgumentException("X.509 Certificate file not found at: " + Settings.CLIENT_CERT_PATH);
-		}
+		/* Certificates imported once per process */
+		session.setClientCertificate(credentials.getCertificate());
+		session.setCACertificate(credentials.getCACertificate());
 		
-		/* Try to import CA Certificate */
-		try {
-			session.setCACertificate(CommonCrypto.importCACertificate(Settings.getCACertPath()));
-			if (!CommonCrypto.isCATrusted(session.getCACertificate(), this.trustedCAs)) {
-				logger.error("CA Certificate: " + session.getCACertificate().getSubjectX500Principal() + " is not a trusted CA.\nClient Application terminated.");				
-				System.exit(1);
-			}
-		} catch (CertificateException e) {
-			logger.error("Unable to import CA Certificate from file: " + Settings.getCACertPath() + ", or Certificate invalid.\nReason: " + e.getMessage() + "\nClient Application Exiting.");
-			System.exit(1);
-		} catch (InvalidKeyException e) {
-			logger.error("Unable to import CA Certificate: " + e.getMessage() + ".\nClient Application terminated.");
-			System.exit(1);
-		} catch (NoSuchAlgorithmException e) {
-			logger.error("Unable to import CA Certificate: " + e.getMessage() + ".\nClient Application terminated.");
-			System.exit(1);
-		} catch (NoSuchProviderException e) {
-			logger.error("Unable to import CA Certificate: " + e.getMessage() + ".\nClient Application terminated.");
-			System.exit(1);
-		} catch (SignatureException e) {
-			logger.error("Unable to import CA Certificate: " + e.getMessage() + ".\nClient Application terminated.");
-			System.exit(1);
-		}
-		
-		
-		
-		// Send ClientInit
-		ClientInitMessage clientInitMessage = new ClientInitMessage();
+		// Send ClientInit, with the ticket of an earlier session to resume it
+		SessionTicket ticket = Settings.USE_SESSION_TICKETS ? sessionTicket.get() : null;
+		if (ticket != null && ticket.isExpired())
+			ticket = null;
+		ClientInitMessage clientInitMessage = new ClientInitMessage(ticket != null ? ticket.getTicket() : null);
 		session.setClientNonce(clientInitMessage.getNonce());
 		try {
 			sendObject(clientInitMessage);
@@ -379,19 +365,28 @@ public class KVStore implements KVCommInterface {
 		
 		
 		// Wait for ServerInit
-		Message message = bytesToMessage(kvComm.receiveMessage(session.getEncKey(), session.getIV()));
+		Message message = bytesToMessage(kvComm.receiveMessage(session));
 		if (!verifyMessageType(message, MessageType.ServerInitMessage))
 			throw new HandshakeException("Invalid Message received.");
 		
 		ServerInitMessage serverInitMessage = (ServerInitMessage) message;
 		session.setServerNonce(serverInitMessage.getNonce());
+		if (!clientInitMessage.getOfferedCiphers().contains(serverInitMessage.getCipherSuite()))
+			throw new HandshakeException("The server chose the cipher suite <" + serverInitMessage.getCipherSuite() + ">, which was not offered.");
+		session.setTransferEncryption(serverInitMessage.getCipherSuite(), true);
 		session.setClientAuthRequired(serverInitMessage.isClientAuthRequired());
 		session.setServerCertificate(serverInitMessage.getCertificate());
 		
+		if (serverInitMessage.isResumed()) {
+			if (ticket == null)
+				throw new HandshakeException("The server resumed a session without a session ticket.");
+			resumeSession(ticket);
+			return;
+		}
 		
 		// Verify validity of certificate 
 		try {
-			CommonCrypto.verifyCertificate(session.getServerCertificate(), session.getCACertificate());
+			credentials.verify(session.getServerCertificate());
 		} catch (CertificateException e) {
 			//logger.error("Unable to verify the received X.509 Server Certificate: " + e.getMessage());
 			throw new HandshakeException("Unable to verify the received X.509 Server Certificate: " + e.getMessage());
@@ -413,30 +408,9 @@ public class KVStore implements KVCommInterface {
 		session.setMasterSecret(generateMasterSecret(47));
 		
 		
-		// Generate two session keys, one for encryption, one for mac
-		try {
-			session.setEncKey(CommonCrypto.generateSessionKey(Settings.ALGORITHM_HASHING, session.getMasterSecret(), session.getClientNonce(), session.getServerNonce(), new String("00000000").getBytes(Settings.CHARSET)));
-			session.setMacKey(CommonCrypto.generateSessionKey(Settings.ALGORITHM_HASHING, session.getMasterSecret(), session.getClientNonce(), session.getServerNonce(), new String("11111111").getBytes(Settings.CHARSET)));
-		} catch (IOException e) {
-			throw new HandshakeException ("I/O failed during generation of session keys. Message: " + e.getMessage());
-		} catch (InvalidKeyException e) {
-			throw new HandshakeException ("Unable to generate Session Keys. The key was invalid. Message: " + e.getMessage());
-		} catch (NoSuchAlgorithmException e) {
-			throw new HandshakeException ("Unable to generate Session Keys. The specified algorithm was invalid. Message: " + e.getMessage());
-		}
+		generateSessionKeys();
 		
-		// Generate Session hash
-		try {
-			session.setSecureSessionHash(CommonCrypto.generateSessionHash(Settings.ALGORITHM_HASHING, session.getMacKey(), session.getClientNonce(), session.getServerNonce(), session.getServerCertificate().getEncoded(), session.isClientAuthRequired()));
-		} catch (IOException e) {
-			throw new HandshakeException ("I/O failed during generation of session hash. Message: " + e.getMessage());
-		} catch (InvalidKeyException e) {
-			throw new HandshakeException ("Unable to generate Session Hash. The key was invalid. Message: " + e.getMessage());
-		} catch (NoSuchAlgorithmException e) {
-			throw new HandshakeException ("Unable to generate Session Hash. The specified algorithm was invalid. Message: " + e.getMessage());
-		} catch (CertificateEncodingException e) {
-			throw new HandshakeException ("Unable to generate Session Hash. The specified Certificate has invalid encoding. Message: " + e.getMessage());
-		}
+		generateSessionHash();
 		
 		
 		// Encrypt master secret with public key from verified Server certificate
@@ -470,7 +444,7 @@ public class KVStore implements KVCommInterface {
 			try {
 				byte[] sigContent = CommonCrypto.concatenateByteArray(session.getServerNonce(), session.getEncryptedSecret());
 				byte[] sigContentHash = CommonCrypto.generateHash(Settings.ALGORITHM_HASHING, session.getMacKey(), sigContent);
-				byte[] signature = CommonCrypto.sign(sigContentHash, Settings.ALGORITHM_ENCRYPTION, this.clientPrivateKey);
+				byte[] signature = CommonCrypto.sign(sigContentHash, Settings.ALGORITHM_ENCRYPTION, credentials.getPrivateKey());
 				
 				ClientKeyExchangeMessage clientKeyExchangeMessage = new ClientKeyExchangeMessage(session.getEncryptedSecret(), session.getSecureSessionHash(), session.getClientCertificate(), signature);
 				
@@ -504,6 +478,56 @@ public class KVStore implements KVCommInterface {
 			}
 		}
 		
+		generateConfirmationHash();
+		
+		receiveAuthConfirmation();
+	}
+
+	/*
+	 * Resume the session of the ticket: the server restored the master secret from the ticket,
+	 * so no master secret is encrypted and the server certificate needs no verification.
+	 * A server without the master secret cannot compute the confirmation hash.
+	 */
+	private void resumeSession(SessionTicket ticket) throws HandshakeException, IOException, SessionException {
+		session.setMasterSecret(ticket.getMasterSecret());
+		session.setEncryptedSecret(ticket.getTicket());
+		generateSessionKeys();
+		generateSessionHash();
+		generateConfirmationHash();
+		receiveAuthConfirmation();
+		logger.info("Resumed session with session ticket.");
+	}
+
+	private void generateSessionKeys() throws HandshakeException {
+		// Generate two session keys, one for encryption, one for mac
+		try {
+			session.setEncKey(CommonCrypto.generateSessionKey(Settings.ALGORITHM_HASHING, session.getMasterSecret(), session.getClientNonce(), session.getServerNonce(), new String("00000000").getBytes(Settings.CHARSET)));
+			session.setMacKey(CommonCrypto.generateSessionKey(Settings.ALGORITHM_HASHING, session.getMasterSecret(), session.getClientNonce(), session.getServerNonce(), new String("11111111").getBytes(Settings.CHARSET)));
+		} catch (IOException e) {
+			throw new HandshakeException ("I/O failed during generation of session keys. Message: " + e.getMessage());
+		} catch (InvalidKeyException e) {
+			throw new HandshakeException ("Unable to generate Session Keys. The key was invalid. Message: " + e.getMessage());
+		} catch (NoSuchAlgorithmException e) {
+			throw new HandshakeException ("Unable to generate Session Keys. The specified algorithm was invalid. Message: " + e.getMessage());
+		}
+	}
+
+	private void generateSessionHash() throws HandshakeException {
+		// Generate Session hash
+		try {
+			session.setSecureSessionHash(CommonCrypto.generateSessionHash(Settings.ALGORITHM_HASHING, session.getMacKey(), session.getClientNonce(), session.getTransferEncryption(), session.getServerNonce(), session.getServerCertificate().getEncoded(), session.isClientAuthRequired()));
+		} catch (IOException e) {
+			throw new HandshakeException ("I/O failed during generation of session hash. Message: " + e.getMessage());
+		} catch (InvalidKeyException e) {
+			throw new HandshakeException ("Unable to generate Session Hash. The key was invalid. Message: " + e.getMessage());
+		} catch (NoSuchAlgorithmException e) {
+			throw new HandshakeException ("Unable to generate Session Hash. The specified algorithm was invalid. Message: " + e.getMessage());
+		} catch (CertificateEncodingException e) {
+			throw new HandshakeException ("Unable to generate Session Hash. The specified Certificate has invalid encoding. Message: " + e.getMessage());
+		}
+	}
+
+	private void generateConfirmationHash() throws HandshakeException {
 		// Compute confirmation Hash
 		try {
 		if (session.isClientAuthRequired())
@@ -517,12 +541,11 @@ public class KVStore implements KVCommInterface {
 		} catch (NoSuchAlgorithmException e) {
 			throw new HandshakeException ("Unable to generate Confirmation Hash. The specified algorithm was invalid. Message: " + e.getMessage());
 		}
-		
-		
-		
+	}
+
+	private void receiveAuthConfirmation() throws HandshakeException, IOException, SessionException {
 		// Wait for ServerAuthConfirmation
-		// Wait for ServerInit
-		message = bytesToMessage(kvComm.receiveMessage(session.getEncKey(), session.getIV()));
+		Message message = bytesToMessage(kvComm.receiveMessage(session));
 		if (!verifyMessageType(message, MessageType.ServerAuthConfirmationMessage))
 			throw new HandshakeException("Invalid Message received.");
 		
@@ -536,6 +559,8 @@ public class KVStore implements KVCommInterface {
 		}
 		
 		session.setIV(serverAuthConfirmationMessage.getIV());
+		if (serverAuthConfirmationMessage.getSessionTicket() != null)
+			sessionTicket.set(new SessionTicket(serverAuthConfirmationMessage.getSessionTicket(), session.getMasterSecret(), Settings.SESSION_TICKET_LIFETIME_MS));
 		
 		logger.debug(session);
 		
@@ -551,13 +576,16 @@ public class KVStore implements KVCommInterface {
 	}
 
 	/**
-	 * Disconnect from the KVServer.
+	 * Disconnect from the KVServer and close the idle connections to other servers
+	 * and the connections of the asynchronous requests.
 	 */
 	@Override
 	public void disconnect() {
+		pool.closeAll();
+		closeAsync();
 		if (kvComm != null && kvComm.getSocketStatus() == SocketStatus.CONNECTED) {
 			try {
-				kvComm.sendMessageEncrypted(new KVQuery(StatusType.DISCONNECT).toBytes(), session);
+				kvComm.sendMessageEncrypted(encode(new KVQuery(StatusType.DISCONNECT)), session);
 			} catch (IOException ex) {
 				logger.error(moduleName + ": Unable to send disconnect message, an IO Error occured:\n" + ex.getMessage());
 			} catch (InvalidMessageException ex) {
@@ -571,7 +599,7 @@ public class KVStore implements KVCommInterface {
 				logger.info(moduleName + ": Waiting for disconnect response from server...");
 
 			try {
-				byte[] disconnectResponse = kvComm.receiveMessage(session.getEncKey(), session.getIV());
+				byte[] disconnectResponse = kvComm.receiveMessage(session);
 				KVQuery kvQueryMessage = new KVQuery(disconnectResponse);
 				if (kvQueryMessage.getStatus() == StatusType.DISCONNECT_SUCCESS) {
 					if (DEBUG)
@@ -609,12 +637,362 @@ public class KVStore implements KVCommInterface {
 		}
 	}
 
+	private byte[] encode(KVQuery query) {
+		return binaryProtocol ? query.toBinary() : query.toBytes();
+	}
+
+	/* keep the connection to the current server in the pool instead of closing it */
+	private void parkConnection() {
+		pool.release(address, port, new ConnectionPool.Connection(kvComm, session, binaryProtocol));
+		kvComm = null;
+	}
+
+	/* continue with the pooled connection to the current server, false if there is none */
+	private boolean resumeConnection() {
+		ConnectionPool.Connection connection = pool.take(address, port);
+		if (connection == null) {
+			return false;
+		}
+		kvComm = connection.communication;
+		session = connection.session;
+		binaryProtocol = connection.binaryProtocol;
+		handshakeComplete = true;
+		if (DEBUG)
+			logger.info(moduleName + ": Reusing the connection to " + address + ":" + port);
+		return true;
+	}
+
+	/**
+	 * Create a pipeline for a sequence of requests. The pipeline sends up to the pipeline window
+	 * of requests before it waits for their replies, instead of one round trip per request.
+	 * @return a new pipeline that uses the connection of this store
+	 */
+	public KVPipeline pipeline() {
+		return new KVPipeline(this, pipelineWindow);
+	}
+
+	/**
+	 * @param window maximum number of requests a pipeline has in flight, 1 sends one request at a time
+	 */
+	public void setPipelineWindow(int window) {
+		if (window < 1) {
+			throw new IllegalArgumentException("The pipeline window must be at least 1, was " + window);
+		}
+		this.pipelineWindow = window;
+	}
+
+	public int getPipelineWindow() {
+		return pipelineWindow;
+	}
+
+	/**
+	 * @param router chooses the copy of a key each GET is sent to, by default the router shared by all stores of the process
+	 */
+	public void setReadRouter(ReadRouter router) {
+		this.readRouter = router;
+	}
+
+	public ReadRouter getReadRouter() {
+		return readRouter;
+	}
+
+	/**
+	 * @return when the GETs of this store are hedged and how often they were
+	 */
+	public ReadHedging getReadHedging() {
+		return readHedging;
+	}
+
+	/**
+	 * Send a PUT request without waiting for the reply. The request is sent over a connection to the
+	 * coordinator of the key that is served by a selector thread, so any number of requests can be in flight.
+	 * Like the other asynchronous methods, this one may be called by several threads.
+	 * @return the future result of the request
+	 */
+	@Override
+	public KVFuture putAsync(String key, String value) {
+		return submitAsync(new AsyncDispatcher.Request(StatusType.PUT, key, value));
+	}
+
+	/**
+	 * Send a GET request without waiting for the reply. Like {@link #get(String)} it is sent to any replica
+	 * of the key first and to the coordinator if the replica does not have the key.
+	 * If the replica does not answer in time, the GET is sent to the next replica too, see {@link ReadHedging}.
+	 * @return the future result of the request
+	 */
+	@Override
+	public KVFuture getAsync(String key) {
+		return submitAsync(new AsyncDispatcher.Request(StatusType.GET, key, null));
+	}
+
+	/**
+	 * Retrieve the values of several keys with one MGET per responsible server instead of one
+	 * GET per key. The keys are grouped by their coordinator and the batches for the different
+	 * servers are in flight at the same time, over the connections of the asynchronous requests.
+	 * @return the result for each key, in the order of the keys. A GET_SUCCESS result holds the key
+	 *         and its value. The result is null if the request for the key failed.
+	 * @throws InterruptedException if the thread was interrupted while waiting for the replies
+	 */
+	public Map<String, KVMessage> mget(Collection<String> keys) throws InterruptedException {
+		return batch(StatusType.MGET, new ArrayList<String>(keys), null);
+	}
+
+	/**
+	 * Insert, update or delete several tuples with one MPUT per responsible server instead of one
+	 * PUT per tuple, like {@link #mget(Collection)}. The coordinator replicates the tuples of a batch
+	 * with one message per replica.
+	 * @return the result for each key, in the order of the tuples, null if the request for the key failed
+	 * @throws InterruptedException if the thread was interrupted while waiting for the replies
+	 */
+	public Map<String, KVMessage> mput(Map<String, String> tuples) throws InterruptedException {
+		return batch(StatusType.MPUT, new ArrayList<String>(tuples.keySet()), new ArrayList<String>(tuples.values()));
+	}
+
+	/*
+	 * Keys the server was not responsible for are grouped again with the meta data of the reply.
+	 * The keys of batches that failed, for example because the server does not support the binary
+	 * format, are sent with single asynchronous requests.
+	 */
+	private Map<String, KVMessage> batch(StatusType type, List<String> keys, List<String> values) throws InterruptedException {
+		KVMessage[] results = new KVMessage[keys.size()];
+		List<Integer> pending = new ArrayList<Integer>(keys.size());
+		for (int i = 0; i < keys.size(); i++) {
+			pending.add(i);
+		}
+		List<Integer> single = new ArrayList<Integer>();
+
+		for (int attempt = 0; attempt < NUM_RETRIES && !pending.isEmpty(); attempt++) {
+			List<AsyncDispatcher.Request> requests = new ArrayList<AsyncDispatcher.Request>();
+			List<List<Integer>> requestIndices = new ArrayList<List<Integer>>();
+			splitBatches(type, keys, values, pending, requests, requestIndices);
+
+			pending = new ArrayList<Integer>();
+			for (int r = 0; r < requests.size(); r++) {
+				List<Integer> indices = requestIndices.get(r);
+				KVQuery reply;
+				try {
+					reply = (KVQuery) requests.get(r).future.get();
+				} catch (ExecutionException e) {
+					logger.warn(moduleName + ": " + type + " of " + indices.size() + " keys failed, sending single requests: " + e.getCause().getMessage());
+					single.addAll(indices);
+					continue;
+				}
+				try {
+					if (reply.getStatus() != type || reply.getEntries().size() < indices.size()) {
+						logger.warn(moduleName + ": Received " + reply.getStatus() + " as reply to " + type + ", sending single requests.");
+						single.addAll(indices);
+						continue;
+					}
+					List<KVQuery> entries = reply.getEntries();
+					if (entries.size() > indices.size()) {
+						/* the meta data follows the results if the server was not responsible for some keys */
+						updateMetaData(entries.get(indices.size()).getValue());
+					}
+					for (int i = 0; i < indices.size(); i++) {
+						KVQuery entry = entries.get(i);
+						int index = indices.get(i);
+						results[index] = new KVResult(entry.getStatus(), entry.getKey(), entry.getValue());
+						if (entry.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
+							pending.add(index);
+						}
+					}
+				} catch (InvalidMessageException e) {
+					logger.error(moduleName + ": Invalid reply to " + type + ": " + e.getMessage());
+					single.addAll(indices);
+				}
+			}
+		}
+
+		List<KVFuture> futures = new ArrayList<KVFuture>(single.size());
+		for (int index : single) {
+			futures.add(type == StatusType.MPUT ? putAsync(keys.get(index), values.get(index)) : getAsync(keys.get(index)));
+		}
+		for (int i = 0; i < single.size(); i++) {
+			int index = single.get(i);
+			try {
+				KVMessage result = futures.get(i).get();
+				/* a single GET_SUCCESS carries the value in place of the key */
+				results[index] = result.getStatus() == StatusType.GET_SUCCESS ? new KVResult(StatusType.GET_SUCCESS, keys.get(index), result.getKey()) : result;
+			} catch (ExecutionException e) {
+				logger.error(moduleName + ": Request for key " + keys.get(index) + " failed: " + e.getCause().getMessage());
+			} catch (InvalidMessageException e) {
+				logger.error(moduleName + ": Invalid reply for key " + keys.get(index) + ": " + e.getMessage());
+			}
+		}
+
+		Map<String, KVMessage> merged = new LinkedHashMap<String, KVMessage>();
+		for (int i = 0; i < keys.size(); i++) {
+			merged.put(keys.get(i), results[i]);
+		}
+		return merged;
+	}
+
+	/* group the keys by coordinator and submit one request per Settings.CLIENT_BATCH_SIZE keys of a coordinator */
+	private void splitBatches(StatusType type, List<String> keys, List<String> values, List<Integer> indices,
+			List<AsyncDispatcher.Request> requests, List<List<Integer>> requestIndices) {
+		/* ServerData has no hashCode, the groups are identified by address and port */
+		Map<String, ServerData> servers = new HashMap<String, ServerData>();
+		Map<String, List<Integer>> groups = new HashMap<String, List<Integer>>();
+		Map<String, Integer> groupSizes = new HashMap<String, Integer>();
+		for (int index : indices) {
+			ServerData server = routeAsync(keys.get(index), true);
+			if (server == null) {
+				continue;
+			}
+			String id = server.getAddress() + ":" + server.getPort();
+			List<Integer> group = groups.get(id);
+			int size = groupSizes.containsKey(id) ? groupSizes.get(id) : 0;
+			if (group == null) {
+				group = new ArrayList<Integer>();
+				groups.put(id, group);
+				servers.put(id, server);
+			}
+			group.add(index);
+			size += keys.get(index).length() + (values != null ? values.get(index).length() : 0);
+			if (group.size() >= Settings.CLIENT_BATCH_SIZE || size >= Settings.CLIENT_BATCH_BYTES) {
+				submitBatch(type, keys, values, server, group, requests, requestIndices);
+				groups.remove(id);
+				size = 0;
+			}
+			groupSizes.put(id, size);
+		}
+		for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+			submitBatch(type, keys, values, servers.get(group.getKey()), group.getValue(), requests, requestIndices);
+		}
+	}
+
+	private void submitBatch(StatusType type, List<String> keys, List<String> values, ServerData server, List<Integer> indices,
+			List<AsyncDispatcher.Request> requests, List<List<Integer>> requestIndices) {
+		List<String> batchKeys = new ArrayList<String>(indices.size());
+		List<String> batchValues = values != null ? new ArrayList<String>(indices.size()) : null;
+		for (int index : indices) {
+			batchKeys.add(keys.get(index));
+			if (values != null) {
+				batchValues.add(values.get(index));
+			}
+		}
+		AsyncDispatcher.Request request = new AsyncDispatcher.Request(type, batchKeys, batchValues, server);
+		submitAsync(request);
+		requests.add(request);
+		requestIndices.add(indices);
+	}
+
+	/**
+	 * Close the connections used by the asynchronous requests, pending requests fail.
+	 * Later asynchronous requests open new connections.
+	 */
+	public synchronized void closeAsync() {
+		if (dispatcher != null) {
+			dispatcher.shutdown();
+			dispatcher = null;
+		}
+	}
+
+	private KVFuture submitAsync(AsyncDispatcher.Request request) {
+		AsyncDispatcher current;
+		synchronized (this) {
+			if (dispatcher == null) {
+				try {
+					dispatcher = new AsyncDispatcher(this);
+					dispatcher.start();
+				} catch (IOException e) {
+					request.future.fail(e);
+					return request.future;
+				}
+			}
+			current = dispatcher;
+		}
+		current.submit(request);
+		return request.future;
+	}
+
+	/* responsible server for an asynchronous request */
+	synchronized ServerData routeAsync(String key, boolean coordinator) {
+		return coordinator ? getResponsibleServerCoordinator(key) : getResponsibleServer(key);
+	}
+
+	/* the server after the given one among the servers holding a copy of the key, null if there is none */
+	synchronized ServerData nextReplica(String key, ServerData server) {
+		List<ServerData> servers;
+		try {
+			servers = consHash.getServersForKey(key);
+		} catch (IllegalArgumentException ex) {
+			return null;
+		} catch (EmptyServerDataException ex) {
+			return null;
+		}
+		for (int i = 0; i < servers.size(); i++) {
+			ServerData replica = servers.get(i);
+			if (replica.getAddress().equals(server.getAddress()) && replica.getPort() == server.getPort()) {
+				ServerData next = servers.get((i + 1) % servers.size());
+				return next.getAddress().equals(server.getAddress()) && next.getPort() == server.getPort() ? null : next;
+			}
+		}
+		return null;
+	}
+
+	/* a second store connected to the server, its connection is taken over by the AsyncDispatcher */
+	KVStore openConnection(ServerData server) throws IOException {
+		KVStore connection = new KVStore(server.getAddress(), server.getPort(), name);
+		connection.sessionTicket = sessionTicket;
+		try {
+			connection.connect();
+		} catch (InvalidMessageException e) {
+			throw new IOException("Unable to connect to " + server.getAddress() + ":" + server.getPort() + ": " + e.getMessage());
+		}
+		if (!connection.handshakeComplete) {
+			if (connection.kvComm != null) {
+				connection.kvComm.closeConnection();
+			}
+			throw new IOException("Handshake with " + server.getAddress() + ":" + server.getPort() + " failed.");
+		}
+		return connection;
+	}
+
+	SocketChannel getChannel() {
+		return kvComm.getSocket().getChannel();
+	}
+
+	SessionInfo getSession() {
+		return session;
+	}
+
+	/* send a request of a pipeline, connects to the last server if the connection was lost */
+	void sendRequest(KVQuery query) throws IOException, InvalidMessageException {
+		if (kvComm == null || kvComm.getSocketStatus() != SocketStatus.CONNECTED) {
+			connect();
+		}
+		kvComm.sendMessageEncrypted(encode(query), session);
+	}
+
+	/* receive the reply to the oldest request of a pipeline */
+	KVQuery receiveReply() throws IOException, InvalidMessageException {
+		return new KVQuery(kvComm.receiveMessage(session));
+	}
+
+	/* request ids are only sent in the binary format */
+	boolean usesRequestIds() {
+		return binaryProtocol;
+	}
+
+	boolean isConnectedTo(ServerData server) {
+		return server != null && server.getAddress().equals(address) && server.getPort() == port;
+	}
+
+	/* replace stale meta data with the meta data sent by a server that was not responsible */
+	synchronized void updateMetaData(String serverMetaData) {
+		if (DEBUG)
+			logger.info(moduleName + ": Received new MetaData from Server: " + serverMetaData);
+		this.metaData.update(serverMetaData);
+		this.consHash.update(metaData.getServers());
+	}
+
 	/**
 	 * Find and connect to the responsible server coordinator for a given key according to the current meta data
 	 * @param key The key that we want to find the responsible server for
 	 * @return ServerData for the responsible Server
 	 */
-	private ServerData getResponsibleServerCoordinator(String key) {
+	ServerData getResponsibleServerCoordinator(String key) {
 		/* Obtain responsible server according to current meta data */
 		ServerData responsibleServer = null;
 		try {
@@ -630,7 +1008,7 @@ public class KVStore implements KVCommInterface {
 		return responsibleServer;
 	}
 
-	private void connectServer(String key, ServerData responsibleServer) {
+	void connectServer(String key, ServerData responsibleServer) {
 		if (DEBUG)
 			logger.info(moduleName + ": The responsible Server for key " + key + " is: " + responsibleServer.getAddress() + ":" + responsibleServer.getPort());
 		/* Make sure we select the correct server and connect to it */
@@ -638,21 +1016,23 @@ public class KVStore implements KVCommInterface {
 			if (DEBUG)
 				logger.info(moduleName + ": We are currently not connected to the responsible server (Connected to: " + this.address + ":" + this.port);
 
-			if (kvComm.getSocketStatus() == SocketStatus.CONNECTED) {
+			if (kvComm != null && kvComm.getSocketStatus() == SocketStatus.CONNECTED) {
 				if (DEBUG)
-					logger.info(moduleName + ": Disconnecting from " + address + ":" + port + " (currently connected Server)");
+					logger.info(moduleName + ": Keeping the connection to " + address + ":" + port + " (currently connected Server) for later requests");
 
-				this.disconnect();
+				parkConnection();
 			}
 
 			this.address = responsibleServer.getAddress();
 			this.port = responsibleServer.getPort();
 
 			try {
-				if (DEBUG)
-					logger.info(moduleName + ": Connecting to Responsible Server: " + address + ":" + port);
+				if (!resumeConnection()) {
+					if (DEBUG)
+						logger.info(moduleName + ": Connecting to Responsible Server: " + address + ":" + port);
 
-				this.connect();
+					this.connect();
+				}
 			} catch (UnknownHostException ex) {
 				logger.warn(moduleName + ": Put Request Failed. Responsible Server is Unknown Host!");
 			} catch (IOException ex) {
@@ -664,7 +1044,7 @@ public class KVStore implements KVCommInterface {
 	}
 
 	/**
-	 * Find a responsible server for a given key according to the current meta data
+	 * Find a server holding a copy of a given key according to the current meta data, chosen by the {@link ReadRouter}
 	 * @param key The key that we want to find the responsible server for
 	 * @return ServerData for the responsible Server
 	 */
@@ -672,8 +1052,7 @@ public class KVStore implements KVCommInterface {
 		/* Obtain responsible server according to current meta data */
 		ServerData responsibleServer = null;
 		try {
-			List<ServerData> servers = consHash.getServersForKey(key);
-			responsibleServer = servers.get(generator.nextInt(servers.size()));
+			responsibleServer = readRouter.choose(consHash.getServersForKey(key));
 		} catch (IllegalArgumentException ex) {
 			logger.error(moduleName + ": Failed to obtain responsible server for key " + key + ": The obtained value for the server hash was of invalid format.");
 			// ex.printStackTrace();
@@ -693,17 +1072,32 @@ public class KVStore implements KVCommInterface {
 	 */
 	@Override
 	public KVMessage put(String key, String value) throws ConnectException {
+		return put(key, value, null);
+	}
+
+	/**
+	 * Put a key value pair to the remote KVServer and choose when the server answers, see {@link Consistency}.
+	 * The level is only sent if the server accepted the binary format at CONNECT, otherwise the server decides.
+	 * @param key The key that should be inserted
+	 * @param value The value associated with the key
+	 * @param consistency the level, null for the default of the server
+	 * @return KVMessage Information retrieved from the server, PUT_ERROR or DELETE_ERROR if the replicas
+	 * did not acknowledge the update in time
+	 */
+	public KVMessage put(String key, String value, Consistency consistency) throws ConnectException {
 		/* Find & if necessary, connect to responsible Server */
 		ServerData responsibleServer = getResponsibleServerCoordinator(key);
 		connectServer(key, responsibleServer);
 
-		if (kvComm.getSocketStatus() == SocketStatus.CONNECTED) {
+		if (kvComm != null && kvComm.getSocketStatus() == SocketStatus.CONNECTED) {
 			if (DEBUG)
 				logger.info(moduleName + ": Connected to the responsible Server: " + address + ":" + port);
 
 			try {
 				/* Optimistic Query, send put request to current connected server */
-				kvComm.sendMessageEncrypted(new KVQuery(StatusType.PUT, key, value).toBytes(), session);
+				KVQuery putQuery = new KVQuery(StatusType.PUT, key, value);
+				putQuery.setConsistency(consistency);
+				kvComm.sendMessageEncrypted(encode(putQuery), session);
 
 				if (DEBUG)
 					logger.info(moduleName + ": Sent PUT Request for <key, value>: <" + key + ", " + value + ">");
@@ -718,7 +1112,7 @@ public class KVStore implements KVCommInterface {
 				logger.info("Waiting for PUT response from server...");
 
 			try {
-				byte[] putResponse = kvComm.receiveMessage(session.getEncKey(), session.getIV());
+				byte[] putResponse = kvComm.receiveMessage(session);
 				KVQuery kvQueryMessage = new KVQuery(putResponse);
 				KVResult kvResult = new KVResult(kvQueryMessage.getStatus(), kvQueryMessage.getKey(), kvQueryMessage.getValue());
 				//System.out.println(kvResult.getStatus());
@@ -743,7 +1137,7 @@ public class KVStore implements KVCommInterface {
 							return null;
 						}
 						/* Retry PUT */
-						return this.put(key, value);
+						return this.put(key, value, consistency);
 					}
 				}
 
@@ -767,7 +1161,7 @@ public class KVStore implements KVCommInterface {
 			try {
 				// try to reconnect
 				connect();
-				return this.put(key, value); 
+				return this.put(key, value, consistency); 
 			} catch (UnknownHostException e) {
 				throw new ConnectException(moduleName + ": Not connected to a KVServer (put). UnknownHost " + address + ":" + port);
 			} catch (IOException e) {
@@ -785,15 +1179,65 @@ public class KVStore implements KVCommInterface {
 	 */
 	@Override
 	public KVMessage get(String key) throws ConnectException {
+		return get(key, null);
+	}
+
+	/**
+	 * Obtain the value of a given key and choose how many copies of the key the server reads, see {@link Consistency}.
+	 * The level is only sent if the server accepted the binary format at CONNECT, otherwise the server decides.
+	 * A GET at the default level is hedged like an asynchronous one if {@link ReadHedging} is enabled.
+	 * @param key the key that the value should be obtained for
+	 * @param consistency the level, null for the default of the server
+	 * @return KVMessage Information from the server, GET_ERROR if the key does not exist or not enough copies could be read
+	 */
+	public KVMessage get(String key, Consistency consistency) throws ConnectException {
+		if (consistency == null && readHedging.isEnabled() && kvComm != null && kvComm.getSocketStatus() == SocketStatus.CONNECTED) {
+			KVMessage result = getHedged(key);
+			if (result != null) {
+				return result;
+			}
+		}
+		return getDirect(key, consistency);
+	}
+
+	/*
+	 * Send the GET as an asynchronous request and wait for the first answer of the replica or its hedge.
+	 * Returns null if the request failed or was not answered in time, the GET is then sent over the
+	 * connection of the store.
+	 */
+	private KVMessage getHedged(String key) {
+		try {
+			return getAsync(key).get(KVCommunication.TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			logger.warn(moduleName + ": Hedged GET for key " + key + " failed: " + e.getCause().getMessage());
+		} catch (TimeoutException e) {
+			logger.warn(moduleName + ": Hedged GET for key " + key + " was not answered in time.");
+		}
+		return null;
+	}
+
+	/* send the GET over the connection of the store */
+	private KVMessage getDirect(String key, Consistency consistency) throws ConnectException {
 		logger.warn("Trying to get Key <" + key + ">");
 
 		/* Find & if necessary, connect to responsible Server */
 		ServerData responsibleServer = getResponsibleServer(key);
+		if (responsibleServer != null && kvComm != null && kvComm.getSocketStatus() == SocketStatus.CONNECTED
+				&& !isConnectedTo(responsibleServer)) {
+			/* spread the reads over the copies, the connection to the last server is kept in the pool */
+			connectServer(key, responsibleServer);
+		}
 
 		if (kvComm != null && kvComm.getSocketStatus() == SocketStatus.CONNECTED) {
 			/* Optimistic query to currently connected Server */
+			ServerData readServer = new ServerData(name, address, port);
+			boolean replied = false;
+			long sent = System.nanoTime();
+			readRouter.started(readServer);
 			try {
-				kvComm.sendMessageEncrypted(new KVQuery(StatusType.GET, key).toBytes(), session);
+				kvComm.sendMessageEncrypted(encode(getQuery(key, consistency)), session);
 
 				if (DEBUG)
 					logger.info(moduleName + ": Sent GET Request for <key>: <" + key + ">");
@@ -810,7 +1254,9 @@ public class KVStore implements KVCommInterface {
 				logger.info("Waiting for GET response from server...");
 
 			try {
-				byte[] getResponse = kvComm.receiveMessage(session.getEncKey(), session.getIV());
+				byte[] getResponse = kvComm.receiveMessage(session);
+				readRouter.finished(readServer, System.nanoTime() - sent, false);
+				replied = true;
 				KVQuery kvQueryMessage = new KVQuery(getResponse);
 				KVResult kvResult = new KVResult(kvQueryMessage.getStatus(), kvQueryMessage.getKey(),kvQueryMessage.getValue());
 
@@ -822,12 +1268,15 @@ public class KVStore implements KVCommInterface {
 					if (responsibleServer.getPort() == port && responsibleServer.getAddress().equals(address)) {
 						return kvResult;
 					} else {
+						parkConnection();
 						address = responsibleServer.getAddress();
 						port = responsibleServer.getPort();
 						name = responsibleServer.getName();
-						connect();
-						kvComm.sendMessageEncrypted(new KVQuery(StatusType.GET, key).toBytes(), session);
-						getResponse = kvComm.receiveMessage(session.getEncKey(), session.getIV());
+						if (!resumeConnection()) {
+							connect();
+						}
+						kvComm.sendMessageEncrypted(encode(getQuery(key, consistency)), session);
+						getResponse = kvComm.receiveMessage(session);
 						kvQueryMessage = new KVQuery(getResponse);
 						return new KVResult(kvQueryMessage.getStatus(), kvQueryMessage.getKey(),kvQueryMessage.getValue());
 					}
@@ -852,7 +1301,7 @@ public class KVStore implements KVCommInterface {
 							return null;
 						}
 						/* Retry GET */
-						return this.get(key);
+						return getDirect(key, consistency);
 					} else {
 						throw new InvalidMessageException(moduleName + ": Invalid Response Message received from Server:\n" +
 								"  Type: " + kvResult.getStatus() + "\n" +
@@ -872,17 +1321,26 @@ public class KVStore implements KVCommInterface {
 				logger.error(moduleName + ": Failed to obtain responsible server for key " + key + ": The obtained value for the server hash was of invalid format.");
 				// ex.printStackTrace();
 			}
+			if (!replied) {
+				readRouter.finished(readServer, System.nanoTime() - sent, true);
+			}
 			return null;
 		} else {
 			try {
 				connectServer(key, responsibleServer);
-				return this.get(key); 
+				return getDirect(key, consistency); 
 			} catch (IOException e) {
 				throw new ConnectException(moduleName + ": Not connected to a KVServer (get). IO Failure " + address + ":" + port  + ", message: " + e.getMessage());
 			}
 		}
 	}
 
+	private static KVQuery getQuery(String key, Consistency consistency) throws InvalidMessageException {
+		KVQuery query = new KVQuery(StatusType.GET, key);
+		query.setConsistency(consistency);
+		return query;
+	}
+
 	/**
 	 * Obtain the current meta data for this KVStore
 	 * @return {@link InfrastructureMetadata} The meta data for this instance of KVStore
@@ -0,0 +1,156 @@
+package client;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.Settings;
+
+/**
+ * Decides when a GET is hedged: if the copy it was sent to did not answer within a
+ * percentile of the recent GET latencies, the same GET is sent to the next copy of the key and the
+ * first answer is taken. A single slow server, e.g. one moving data or pausing for a garbage
+ * collection, then no longer determines the tail latency.
+ * <p>
+ * The percentile is taken over the last {@value #WINDOW} answered GETs, no GET is hedged before
+ * {@value #MIN_SAMPLES} were answered. At most a maximum rate of the GETs is hedged, so a slowdown of
+ * all servers does not double the load. The counts of GETs, hedges and hedges that answered first
+ * are kept as metrics.
+ */
+public class ReadHedging {
+	private static final int WINDOW = 1024;
+	private static final int MIN_SAMPLES = 32;
+	/* samples recorded before the percentile is computed again */
+	private static final int UPDATE_INTERVAL = 64;
+
+	private final double percentile;
+	private final long minDelayNanos;
+	private final double maxRate;
+
+	private final long[] latencies = new long[WINDOW];
+	private int next;
+	private int samples;
+	private int sinceUpdate;
+	private long delayNanos = -1;
+
+	private final AtomicLong reads = new AtomicLong();
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong wins = new AtomicLong();
+
+	/**
+	 * Hedging as configured by {@link Settings#CLIENT_HEDGE_PERCENTILE}, {@link Settings#CLIENT_HEDGE_MIN_DELAY_MS}
+	 * and {@link Settings#CLIENT_HEDGE_MAX_RATE}.
+	 */
+	public ReadHedging() {
+		this(Settings.CLIENT_HEDGE_PERCENTILE, Settings.CLIENT_HEDGE_MIN_DELAY_MS, Settings.CLIENT_HEDGE_MAX_RATE);
+	}
+
+	/**
+	 * @param percentile percentile of the recent latencies after which a GET is hedged, 0 to never hedge
+	 * @param minDelayMs a GET is hedged after at least this time
+	 * @param maxRate maximum share of the GETs that is hedged
+	 */
+	public ReadHedging(double percentile, long minDelayMs, double maxRate) {
+		this.percentile = percentile;
+		this.minDelayNanos = minDelayMs * 1000000;
+		this.maxRate = maxRate;
+	}
+
+	/**
+	 * @return true unless hedging is disabled by a percentile of 0
+	 */
+	public boolean isEnabled() {
+		return percentile > 0;
+	}
+
+	/**
+	 * Record the latency of an answered GET.
+	 */
+	public synchronized void record(long nanos) {
+		latencies[next] = nanos;
+		next = (next + 1) % WINDOW;
+		if (samples < WINDOW) {
+			samples++;
+		}
+		if (++sinceUpdate >= UPDATE_INTERVAL) {
+			delayNanos = -1;
+		}
+	}
+
+	/**
+	 * A GET is sent.
+	 * @return time after which it is hedged in nanoseconds, -1 if it is not hedged
+	 */
+	public long started() {
+		reads.incrementAndGet();
+		return getDelayNanos();
+	}
+
+	/**
+	 * @return time after which a GET is hedged in nanoseconds, -1 if hedging is disabled or too few GETs were answered
+	 */
+	public synchronized long getDelayNanos() {
+		if (percentile <= 0 || samples < MIN_SAMPLES) {
+			return -1;
+		}
+		if (delayNanos < 0) {
+			long[] sorted = Arrays.copyOf(latencies, samples);
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percentile / 100 * samples) - 1;
+			delayNanos = Math.max(minDelayNanos, sorted[Math.max(0, Math.min(samples - 1, index))]);
+			sinceUpdate = 0;
+		}
+		return delayNanos;
+	}
+
+	/**
+	 * Called when a GET was not answered in time.
+	 * @return true if it is hedged, false if the maximum rate of hedges is reached
+	 */
+	public boolean tryHedge() {
+		while (true) {
+			long count = hedges.get();
+			if (count + 1 > maxRate * reads.get()) {
+				return false;
+			}
+			if (hedges.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * The hedge answered before the GET it was sent for.
+	 */
+	public void won() {
+		wins.incrementAndGet();
+	}
+
+	public long getReads() {
+		return reads.get();
+	}
+
+	public long getHedges() {
+		return hedges.get();
+	}
+
+	/**
+	 * @return number of hedges that answered before the GET they were sent for
+	 */
+	public long getWins() {
+		return wins.get();
+	}
+
+	/**
+	 * @return share of the GETs that were hedged
+	 */
+	public double getHedgeRate() {
+		long count = reads.get();
+		return count > 0 ? (double) hedges.get() / count : 0;
+	}
+
+	public String getStatistics() {
+		long delay = getDelayNanos();
+		return String.format("Hedged reads: %d GETs, %d hedged (%.2f%%), %d hedges answered first, delay %.2f ms",
+				reads.get(), hedges.get(), getHedgeRate() * 100, wins.get(), delay >= 0 ? delay / 1e6 : 0);
+	}
+}
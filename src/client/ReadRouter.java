@@ -0,0 +1,185 @@
+package client;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.ServerData;
+import common.Settings;
+
+/**
+ * Chooses which of the servers holding a copy of a key answers a GET: the coordinator or one of
+ * its two successors. Spreading the reads keeps a hot key from loading the CPU of its coordinator
+ * while the replicas are idle. The router keeps the requests in flight and an average of the
+ * observed latency per server, the stores of a process share one router, see {@link #getShared()}.
+ * <ul>
+ * <li>RANDOM: any copy.</li>
+ * <li>ROUND_ROBIN: the copies one after the other.</li>
+ * <li>LEAST_OUTSTANDING: the copy with the fewest requests in flight, any of them on a tie.</li>
+ * <li>LOWEST_LATENCY: the copy with the lowest average latency weighted with the requests in flight.
+ * Servers without samples are tried first, and every {@value #EXPLORE_INTERVAL}th read goes to
+ * any copy, so a server that was slow once is measured again.</li>
+ * </ul>
+ */
+public class ReadRouter {
+
+	public enum Policy {
+		RANDOM, ROUND_ROBIN, LEAST_OUTSTANDING, LOWEST_LATENCY;
+
+		/**
+		 * @return the policy of this name, RANDOM if there is none
+		 */
+		public static Policy parse(String name) {
+			for (Policy policy : values()) {
+				if (policy.name().equalsIgnoreCase(name)) {
+					return policy;
+				}
+			}
+			return RANDOM;
+		}
+	}
+
+	/* weight of a new latency sample in the average */
+	private static final double SMOOTHING = 0.2;
+	private static final int EXPLORE_INTERVAL = 20;
+
+	private static ReadRouter shared;
+
+	private final Policy policy;
+	private final ConcurrentHashMap<String, Load> loads = new ConcurrentHashMap<String, Load>();
+	private final AtomicInteger reads = new AtomicInteger();
+	private final Random generator = new Random();
+
+	public ReadRouter(Policy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * @return the router of this process, using the policy of {@link Settings#CLIENT_READ_ROUTING}
+	 */
+	public static synchronized ReadRouter getShared() {
+		if (shared == null) {
+			shared = new ReadRouter(Policy.parse(Settings.CLIENT_READ_ROUTING));
+		}
+		return shared;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @param servers the servers holding a copy of the key, coordinator first
+	 * @return the server to read from
+	 */
+	public ServerData choose(List<ServerData> servers) {
+		int read = reads.getAndIncrement() & 0x7FFFFFFF;
+		switch (policy) {
+		case ROUND_ROBIN:
+			return servers.get(read % servers.size());
+		case LEAST_OUTSTANDING:
+			return leastLoaded(servers, false);
+		case LOWEST_LATENCY:
+			if (read % EXPLORE_INTERVAL == EXPLORE_INTERVAL - 1) {
+				return servers.get(generator.nextInt(servers.size()));
+			}
+			return leastLoaded(servers, true);
+		default:
+			return servers.get(generator.nextInt(servers.size()));
+		}
+	}
+
+	/*
+	 * Server with the lowest score, starting at a random server so ties are spread.
+	 * Without latency the score is the number of requests in flight.
+	 */
+	private ServerData leastLoaded(List<ServerData> servers, boolean latency) {
+		int first = generator.nextInt(servers.size());
+		ServerData best = null;
+		double bestScore = Double.MAX_VALUE;
+		for (int i = 0; i < servers.size(); i++) {
+			ServerData server = servers.get((first + i) % servers.size());
+			Load load = loads.get(id(server));
+			double score;
+			if (load == null) {
+				score = 0;
+			} else if (latency) {
+				score = load.getLatencyNanos() * (load.outstanding.get() + 1);
+			} else {
+				score = load.outstanding.get();
+			}
+			if (score < bestScore) {
+				best = server;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * A read was sent to the server.
+	 */
+	public void started(ServerData server) {
+		load(server).outstanding.incrementAndGet();
+	}
+
+	/**
+	 * The read sent to the server was answered or failed. A failed read counts as twice the average
+	 * latency of the server, at least as the time it took to fail.
+	 * @param nanos time from sending the read until the reply or the failure
+	 */
+	public void finished(ServerData server, long nanos, boolean failed) {
+		Load load = load(server);
+		load.outstanding.decrementAndGet();
+		load.addSample(failed ? Math.max(nanos, 2 * load.getLatencyNanos()) : nanos);
+	}
+
+	/**
+	 * @return requests in flight to the server
+	 */
+	public int getOutstanding(ServerData server) {
+		Load load = loads.get(id(server));
+		return load != null ? load.outstanding.get() : 0;
+	}
+
+	/**
+	 * @return average latency of the reads of the server in nanoseconds, 0 if none was measured
+	 */
+	public double getLatencyNanos(ServerData server) {
+		Load load = loads.get(id(server));
+		return load != null ? load.getLatencyNanos() : 0;
+	}
+
+	private Load load(ServerData server) {
+		String id = id(server);
+		Load load = loads.get(id);
+		if (load == null) {
+			Load created = new Load();
+			load = loads.putIfAbsent(id, created);
+			if (load == null) {
+				load = created;
+			}
+		}
+		return load;
+	}
+
+	private static String id(ServerData server) {
+		return server.getAddress() + ":" + server.getPort();
+	}
+
+	private static class Load {
+		final AtomicInteger outstanding = new AtomicInteger();
+		private double latencyNanos;
+		private boolean measured;
+
+		synchronized void addSample(double nanos) {
+			latencyNanos = measured ? latencyNanos + SMOOTHING * (nanos - latencyNanos) : nanos;
+			measured = true;
+		}
+
+		synchronized double getLatencyNanos() {
+			return latencyNanos;
+		}
+	}
+}
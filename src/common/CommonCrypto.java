@@ -129,7 +129,6 @@ public class CommonCrypto {
 			
 			IvParameterSpec IVSpec = new IvParameterSpec(IV);
 			cipher.init(Cipher.DECRYPT_MODE, keySpec, IVSpec);
-			System.out.println("Cipher init");
 			return cipher.doFinal(encryptedSource);
 		} catch (NoSuchAlgorithmException e) {
 			throw new IllegalArgumentException("Unable to decrypt contents, using " + algorithm + ", Message: " + e.getMessage());
@@ -272,6 +271,7 @@ public class CommonCrypto {
 	 * @param algorithm
 	 * @param macKey
 	 * @param clientNonce
+	 * @param cipherSuite the transfer encryption chosen by the server
 	 * @param serverNonce
 	 * @param serverCertificate
 	 * @param clientAuth
@@ -282,7 +282,7 @@ public class CommonCrypto {
 	 * @throws InvalidKeyException
 	 */
 	public static byte[] generateSessionHash(String algorithm, SecretKeySpec macKey, 
-			byte[] clientNonce, byte[] serverNonce, byte[] serverCertificate, boolean clientAuth) 
+			byte[] clientNonce, String cipherSuite, byte[] serverNonce, byte[] serverCertificate, boolean clientAuth) 
 			throws NoSuchAlgorithmException, UnsupportedEncodingException, IOException, InvalidKeyException {
 		
 		Mac hmac = Mac.getInstance(algorithm);
@@ -290,7 +290,7 @@ public class CommonCrypto {
 		ByteArrayOutputStream contentStream = new ByteArrayOutputStream();
 		contentStream.write("ClientInit".getBytes(Settings.CHARSET));
 		contentStream.write(clientNonce);
-		contentStream.write(Settings.TRANSFER_ENCRYPTION.getBytes(Settings.CHARSET));
+		contentStream.write(cipherSuite.getBytes(Settings.CHARSET));
 		contentStream.write("ServerInit".getBytes(Settings.CHARSET));
 		contentStream.write(serverNonce);
 		contentStream.write(serverCertificate);
@@ -0,0 +1,28 @@
+package common;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates numbered daemon threads for the thread pools of the servers and the ECS.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+	private final String prefix;
+	private final long stackSize;
+	private final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * @param prefix name of the threads, followed by their number
+	 * @param stackSize requested stack size of the threads in bytes, 0 for the default of the VM
+	 */
+	public NamedThreadFactory(String prefix, long stackSize) {
+		this.prefix = prefix;
+		this.stackSize = stackSize;
+	}
+
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(null, runnable, prefix + count.getAndIncrement(), stackSize);
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -1,5 +1,7 @@
 package common;
 
+import common.messages.Consistency;
+
 /**
  * Global settings
  * @author Elias Tatros
@@ -16,6 +18,11 @@ public final class Settings {
 	public static final String ALGORITHM_HASHING = "HmacSHA1"; // Secure hashing algorithm
 	public static final String ALGORITHM_ENCRYPTION = "RSA"; // Encryption used during authentication
 	public static final String TRANSFER_ENCRYPTION = "AES/CBC/PKCS5Padding"; //Symmetric file transfer encryption
+	public static String PREFERRED_TRANSFER_ENCRYPTION = "AES/GCM/NoPadding"; // Transfer encryption negotiated with peers that support it, TRANSFER_ENCRYPTION otherwise
+	public static boolean USE_SESSION_TICKETS = true; // Servers issue session tickets, clients resume a session with a ticket instead of a full handshake
+	public static long SESSION_TICKET_LIFETIME_MS = 60 * 60 * 1000; // Tickets older than this are rejected, the client does a full handshake
+	public static boolean SERIALIZED_HANDSHAKE = false; // Clients send Java serialized handshake messages instead of the MessageCodec encoding, for servers without it
+	public static boolean ACCEPT_SERIALIZED_HANDSHAKE = true; // Servers accept the Java serialized handshake messages of clients without the MessageCodec encoding
 	public static final String CHARSET = "UTF-8";
 	public static String PAYLOAD_FILE = "payload.txt";
 	public static boolean USE_CLIENT_AUTH = true;
@@ -28,6 +35,43 @@ public final class Settings {
 	public static final String TRUSTED_CA_PATH = home + "/certs/trustStore/";
 	public static final String SERVER_FILES = "serverFiles/";
 	public static final String CLIENT_FILES = "clientFiles/";
+	public static boolean USE_WRITE_AHEAD_LOG = true; // Persist the data of a server in SERVER_FILES and recover it on startup (HEAP)
+	public static String WAL_FSYNC_POLICY = "ALWAYS"; // ALWAYS, BATCH or NONE
+	public static int WAL_FSYNC_BATCH_SIZE = 128; // Pending records that trigger a force (BATCH)
+	public static long WAL_FSYNC_INTERVAL_MS = 10; // Maximum time until a record is forced (BATCH)
+	public static int WAL_COMPACTION_THRESHOLD = 100000; // Minimum number of log records before the log is rewritten
+	public static String STORAGE_ENGINE = "HEAP"; // HEAP (KVData) or LSM (LSMStorageEngine)
+	public static long LSM_MEMTABLE_SIZE = 4 * 1024 * 1024; // Approximate memtable size in bytes before it is written to a segment
+	public static int LSM_COMPACTION_TRIGGER = 4; // Number of segments that starts a compaction
+	public static String SERVER_IO = "NIO"; // NIO (selector threads and worker pool), POOLED (one pooled thread per connection), VIRTUAL (one virtual thread per connection, Java 21, pooled platform threads before) or BLOCKING (one new thread per connection)
+	public static long CONNECTION_THREAD_STACK_SIZE = 256 * 1024; // Stack size of the connection threads in bytes (POOLED, and VIRTUAL before Java 21)
+	public static int SERVER_EVENT_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2); // Selector threads of a NIO server
+	public static int SERVER_WORKER_THREADS = 32; // Threads processing the requests of a NIO server
+	public static int HANDSHAKE_THREADS = Runtime.getRuntime().availableProcessors(); // Threads running the secure handshakes of a server
+	public static int HANDSHAKE_QUEUE_SIZE = 256; // Handshakes waiting for a thread, further connections are closed until the queue drains
+	public static int HANDSHAKE_REPORT_INTERVAL = 1000; // Handshakes between two log entries of the handshake queue depth and latency, 0 to disable
+	public static int MAX_MESSAGE_SIZE = 64 * 1024 * 1024; // Largest accepted message in bytes (NIO)
+	public static int CONNECTION_HIGH_WATER_MARK = 4 * 1024 * 1024; // Bytes of unprocessed frames and unwritten replies of a connection above which it is no longer read, until half of them are handled (NIO)
+	public static int CLIENT_POOL_SIZE = 16; // Idle connections a KVStore keeps to servers it is not connected to
+	public static long CLIENT_POOL_IDLE_TIMEOUT_MS = 60000; // Idle connections older than this are closed instead of reused
+	public static int CLIENT_PIPELINE_WINDOW = 32; // Requests a KVPipeline sends before it waits for their replies
+	public static int CLIENT_BATCH_SIZE = 1000; // Maximum number of keys of one MGET or MPUT
+	public static int CLIENT_BATCH_BYTES = 1024 * 1024; // Approximate size of the keys and values of one MPUT in bytes
+	public static String CLIENT_READ_ROUTING = "LOWEST_LATENCY"; // Copy of a key a GET is sent to: RANDOM, ROUND_ROBIN, LEAST_OUTSTANDING or LOWEST_LATENCY (client.ReadRouter)
+	public static double CLIENT_HEDGE_PERCENTILE = 95; // A GET at the default level not answered within this percentile of the recent GET latencies is sent to the next copy too, 0 to disable
+	public static long CLIENT_HEDGE_MIN_DELAY_MS = 1; // A GET is hedged after at least this time
+	public static double CLIENT_HEDGE_MAX_RATE = 0.1; // Maximum share of the GETs that is hedged
+	public static int REPLICATION_CHUNK_BYTES = 64 * 1024; // Approximate size of a chunk when the whole data of a server is replicated to a new successor
+	public static int REPLICATION_BATCH_BYTES = 64 * 1024; // Approximate size of one SERVER_PUT_BATCH of the replication queue of a successor
+	public static Consistency REPLICATION_CONSISTENCY = Consistency.LOCAL; // Copies a PUT writes before it is answered if the client did not request a level
+	public static Consistency READ_CONSISTENCY = Consistency.LOCAL; // Copies a GET reads if the client did not request a level, QUORUM for both sees the last answered PUT
+	public static long REPLICATION_ACK_TIMEOUT_MS = 2000; // A PUT at level ONE or ALL fails if the replicas did not acknowledge it in time
+	public static long REPLICATION_RETRY_MS = 500; // Pause before a replication batch is sent again after a failure
+	public static long SERVER_REPLY_TIMEOUT_MS = 3000; // Time a server waits for the reply to a request or replication batch it sent to another server
+	public static int HINT_MAX_KEYS = 100000; // Keys kept on disk for a successor that cannot be reached, the anti-entropy repairs the keys dropped beyond
+	public static int HINT_REPLAY_KEYS = 1000; // Hinted keys sent to a successor that is reachable again per acknowledged batch
+	public static long ANTI_ENTROPY_INTERVAL_MS = 60000; // Pause between two comparisons of the copies of the successors with the own data, 0 to disable
+	public static boolean BINARY_PROTOCOL = true; // Binary message format: requested by clients at CONNECT, accepted by servers and used for replication
 
 	public static String getCACertPath() {
 		return Settings.CA_CERT_PATH;
@@ -0,0 +1,62 @@
+package common;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates executors that run every task on a virtual thread of its own, so blocking I/O
+ * on many connections does not need one platform thread per connection.
+ * Virtual threads require Java 21, the executor is looked up at runtime to keep the
+ * sources compatible with older runtimes. On older runtimes the executors use a cached
+ * pool of platform threads instead, see {@link #isAvailable()}.
+ */
+public final class VirtualThreads {
+
+	private static final Method NEW_EXECUTOR = lookup();
+
+	private VirtualThreads() {
+	}
+
+	private static Method lookup() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			/* on Java 19 and 20 the method exists, but fails unless preview features are enabled */
+			((ExecutorService) method.invoke(null)).shutdown();
+			return method;
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (IllegalAccessException e) {
+			return null;
+		} catch (InvocationTargetException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the executors run their tasks on virtual threads
+	 */
+	public static boolean isAvailable() {
+		return NEW_EXECUTOR != null;
+	}
+
+	/**
+	 * Create an executor that starts a new virtual thread for every task.
+	 * @param fallback creates the platform threads of a cached pool if virtual threads are not available
+	 * @return the executor, shut it down once it is not used any more
+	 */
+	public static ExecutorService newThreadPerTaskExecutor(ThreadFactory fallback) {
+		if (NEW_EXECUTOR != null) {
+			try {
+				return (ExecutorService) NEW_EXECUTOR.invoke(null);
+			} catch (IllegalAccessException e) {
+				/* checked once in lookup() */
+			} catch (InvocationTargetException e) {
+				/* checked once in lookup() */
+			}
+		}
+		return Executors.newCachedThreadPool(fallback);
+	}
+}
@@ -27,7 +27,7 @@ public abstract class ServerCommunicator extends ServerData {
 	public void connect() throws UnknownHostException, IOException {
 		try {
 			logger.info("Trying to connect to " + getAddress() + ":" + getPort());
-			communication = new KVCommunication(getAddress(), getPort(), "Server-Server");
+			communication = openConnection();
 			logger.info("Connected to " + getAddress() + ":" + getPort());
 		} catch (UnknownHostException e) {
 			logger.error("Error! Couldn't connect to " + getAddress() + ":" + getPort());
@@ -42,11 +42,23 @@ public abstract class ServerCommunicator extends ServerData {
 		}
 	}
 	
+	/**
+	 * Open a new connection to the server. Nagle's algorithm is disabled, replication waits for
+	 * the acknowledgement of small messages.
+	 */
+	protected KVCommunication openConnection() throws UnknownHostException, IOException {
+		KVCommunication connection = new KVCommunication(getAddress(), getPort(), "Server-Server");
+		connection.getSocket().setTcpNoDelay(true);
+		return connection;
+	}
+
 	/**
 	 * Gracefully closes the connection to the KVServer.
 	 */
 	public void disconnect() {
-		communication.closeConnection();
+		if (communication != null) {
+			communication.closeConnection();
+		}
 	}
 
 	/**
@@ -55,7 +67,7 @@ public abstract class ServerCommunicator extends ServerData {
 	 * @throws SocketTimeoutException Couldn't deliver the message in the expected time.
 	 * @throws IOException Thrown when there is a problem in the communication.
 	 */
-	protected void sendMessage(byte[] msgBytes, Object type) throws SocketTimeoutException, IOException {
+	protected synchronized void sendMessage(byte[] msgBytes, Object type) throws SocketTimeoutException, IOException {
 		if (type != null)
 			logger.debug("Sending " + type + " to " + getAddress() + ":" + getPort());
 		else
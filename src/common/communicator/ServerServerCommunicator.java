@@ -1,12 +1,15 @@
 package common.communicator;
 
 import java.io.IOException;
+import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.List;
 
 import logger.LogSetup;
 
 import org.apache.log4j.Level;
 
+import common.Settings;
 import common.communicator.ServerCommunicator;
 import common.messages.InvalidMessageException;
 import common.messages.ServerServerMessage;
@@ -43,4 +46,137 @@ public class ServerServerCommunicator extends ServerCommunicator {
 		}
 		sendMessage(msgBytes, type);
 	}
+
+	/**
+	 * Sends an ServerServerMessage without decoding it again to log its type
+	 * @param message the message
+	 * @throws SocketTimeoutException thrown if the message wasn't delivered on time
+	 * @throws IOException Signals that an I/O exception of some sort has occurred
+	 */
+	public void sendMessage(ServerServerMessage message) throws SocketTimeoutException, IOException {
+		sendMessage(message.toBytes(), message.getCommand());
+	}
+
+	/**
+	 * Sends an ServerServerMessage and reports a failure instead of only logging it.
+	 * If sending fails, e.g. because the server closed the connection, the connection
+	 * is opened again and the message is sent once more.
+	 * @param message the message
+	 * @throws IOException if the message could not be sent on the new connection either
+	 */
+	public synchronized void sendMessageOrFail(ServerServerMessage message) throws IOException {
+		byte[] msgBytes = message.toBytes();
+		logger.debug("Sending " + message.getCommand() + " to " + getAddress() + ":" + getPort());
+		try {
+			if (communication == null) {
+				throw new IOException("Not connected.");
+			}
+			communication.sendMessageECS(msgBytes);
+		} catch (IOException e) {
+			logger.warn("Unable to send " + message.getCommand() + " to " + getAddress() + ":" + getPort() + ", reconnecting: " + e.getMessage());
+			if (communication != null) {
+				communication.closeConnection();
+			}
+			communication = openConnection();
+			communication.sendMessageECS(msgBytes);
+		}
+	}
+
+	/**
+	 * Sends the messages of a replication batch followed by a SERVER_ACK and waits until the server
+	 * sends the acknowledgement back, i.e. until it applied the messages. If sending or waiting fails,
+	 * the connection is opened again and the whole batch is sent once more, the server applies it twice.
+	 * @param messages the updates of the batch
+	 * @param numServer position of the server in relation to this one
+	 * @param sequence the sequence number of the batch
+	 * @throws IOException if the batch was not acknowledged on the new connection either,
+	 * a SocketTimeoutException if the server did not answer in time
+	 */
+	public synchronized void sendAndAwaitAck(List<ServerServerMessage> messages, int numServer, long sequence) throws IOException {
+		try {
+			if (communication == null) {
+				throw new IOException("Not connected.");
+			}
+			sendBatch(messages, numServer, sequence);
+		} catch (IOException e) {
+			logger.warn("Replication batch " + sequence + " to " + getAddress() + ":" + getPort() + " failed, reconnecting: " + e.getMessage());
+			if (communication != null) {
+				communication.closeConnection();
+			}
+			communication = openConnection();
+			sendBatch(messages, numServer, sequence);
+		}
+	}
+
+	/**
+	 * Sends a request and waits for the reply, a message of the same command. The connection is opened
+	 * with the first request; if it fails, it is closed and the next request opens a new one.
+	 * @param message the request
+	 * @return the reply
+	 * @throws IOException if the request could not be sent, the reply was not received or was not a
+	 * message of the same command, a SocketTimeoutException if the server did not answer within
+	 * {@link Settings#SERVER_REPLY_TIMEOUT_MS}
+	 */
+	public synchronized ServerServerMessage request(ServerServerMessage message) throws IOException {
+		try {
+			if (communication == null) {
+				communication = openConnection();
+			}
+			communication.sendMessageECS(message.toBytes());
+			ServerServerMessage reply = receive(System.currentTimeMillis() + Settings.SERVER_REPLY_TIMEOUT_MS);
+			if (reply.getCommand() != message.getCommand()) {
+				throw new IOException("Unexpected reply " + reply.getCommand() + " to " + message.getCommand());
+			}
+			return reply;
+		} catch (InvalidMessageException e) {
+			disconnect();
+			communication = null;
+			throw new IOException("Invalid reply to " + message.getCommand() + ": " + e.getMessage());
+		} catch (IOException e) {
+			disconnect();
+			communication = null;
+			throw e;
+		}
+	}
+
+	private void sendBatch(List<ServerServerMessage> messages, int numServer, long sequence) throws IOException {
+		try {
+			for (ServerServerMessage message : messages) {
+				communication.sendMessageECS(message.toBytes());
+			}
+			communication.sendMessageECS(new ServerServerMessage(ServerServerStatustype.SERVER_ACK, numServer, sequence).toBytes());
+			logger.debug("Sent replication batch " + sequence + " of " + messages.size() + " messages to " + getAddress() + ":" + getPort());
+
+			/* acknowledgements of earlier batches may still arrive, anything else is an error */
+			long deadline = System.currentTimeMillis() + Settings.SERVER_REPLY_TIMEOUT_MS;
+			ServerServerMessage reply;
+			do {
+				reply = receive(deadline);
+				if (reply.getCommand() != ServerServerStatustype.SERVER_ACK || reply.getSequence() > sequence) {
+					throw new IOException("Unexpected reply " + reply.getCommand() + " to replication batch " + sequence);
+				}
+			} while (reply.getSequence() != sequence);
+		} catch (InvalidMessageException e) {
+			throw new IOException("Invalid reply to replication batch " + sequence + ": " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Receive the next message, waiting at most until the deadline.
+	 * @throws SocketTimeoutException if the deadline passed
+	 */
+	private ServerServerMessage receive(long deadline) throws IOException, InvalidMessageException {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+			throw new SocketTimeoutException("No reply from " + getAddress() + ":" + getPort() + " in time.");
+		}
+		Socket socket = communication.getSocket();
+		int timeout = socket.getSoTimeout();
+		socket.setSoTimeout((int) remaining);
+		try {
+			return new ServerServerMessage(communication.receiveMessage(null));
+		} finally {
+			socket.setSoTimeout(timeout);
+		}
+	}
 }
@@ -0,0 +1,167 @@
+package common.messages;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import common.Settings;
+
+/**
+ * Helpers for the binary message format, the alternative to the newline separated text format.
+ * A binary message starts with {@link #MAGIC}, the format {@link #VERSION} and an opcode,
+ * followed by the fields of the message. Strings are written as a varint length and the
+ * UTF-8 bytes, so keys and values may contain any character, including newlines.
+ * If the opcode has {@link #REQUEST_ID_FLAG} set, a varint request id follows it. Replies carry the id of
+ * their request, so a client with several requests in flight can match the replies.
+ * <p>
+ * The text format always starts with the name of a command, so the first byte tells the formats apart.
+ * Clients ask for the binary format by sending {@link #PROTOCOL} as key of their CONNECT query.
+ */
+public final class BinaryCodec {
+	/** First byte of every binary message, never the first byte of a text message */
+	public static final byte MAGIC = (byte) 0xB1;
+	/** Version of the binary format */
+	public static final byte VERSION = 1;
+	/** Sent as key of a CONNECT query by clients that understand this version of the format */
+	public static final String PROTOCOL = "BINARY/" + VERSION;
+	/** Set in the opcode of a message that carries a request id */
+	public static final int REQUEST_ID_FLAG = 0x80;
+	/** Magic byte, version and opcode */
+	public static final int HEADER_SIZE = 3;
+
+	private static final Charset CHARSET = Charset.forName(Settings.CHARSET);
+
+	private BinaryCodec() {
+	}
+
+	/**
+	 * @return true if the message is in the binary format
+	 */
+	public static boolean isBinary(byte[] bytes) {
+		return bytes.length > 0 && bytes[0] == MAGIC;
+	}
+
+	/**
+	 * Check magic byte and version of a binary message.
+	 * @return a buffer positioned at the opcode
+	 * @throws InvalidMessageException if the message is not binary or of an unknown version
+	 */
+	public static ByteBuffer readHeader(byte[] bytes) throws InvalidMessageException {
+		if (bytes.length < HEADER_SIZE || bytes[0] != MAGIC) {
+			throw new InvalidMessageException("Not a binary message.");
+		}
+		if (bytes[1] != VERSION) {
+			throw new InvalidMessageException("Unsupported version of the binary format: " + bytes[1]);
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		buffer.position(2);
+		return buffer;
+	}
+
+	/**
+	 * Allocate a message and write the header.
+	 * @param bodySize size of the fields following the opcode
+	 */
+	public static ByteBuffer allocate(int opcode, int bodySize) {
+		return ByteBuffer.allocate(HEADER_SIZE + bodySize).put(MAGIC).put(VERSION).put((byte) opcode);
+	}
+
+	/**
+	 * @return number of bytes written by {@link #writeVarint(ByteBuffer, int)}
+	 */
+	public static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Write a non-negative int in 7 bit groups, least significant first, the high bit marks that more groups follow.
+	 */
+	public static void writeVarint(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	public static int readVarint(ByteBuffer buffer) throws InvalidMessageException {
+		int value = 0;
+		try {
+			for (int shift = 0; shift < 32; shift += 7) {
+				byte b = buffer.get();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					if (value < 0) {
+						throw new InvalidMessageException("Negative length in binary message.");
+					}
+					return value;
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			throw new InvalidMessageException("Binary message ended within a length field.");
+		}
+		throw new InvalidMessageException("Length field of binary message is too long.");
+	}
+
+	/**
+	 * @return the UTF-8 bytes of the string, null is encoded like the empty string
+	 */
+	public static byte[] encode(String value) {
+		return value == null ? new byte[0] : value.getBytes(CHARSET);
+	}
+
+	/**
+	 * @return number of bytes written by {@link #writeBytes(ByteBuffer, byte[])}
+	 */
+	public static int fieldSize(byte[] bytes) {
+		return varintSize(bytes.length) + bytes.length;
+	}
+
+	/**
+	 * Write the length of the bytes followed by the bytes.
+	 */
+	public static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+		writeVarint(buffer, bytes.length);
+		buffer.put(bytes);
+	}
+
+	/**
+	 * Read a string written as a length and its UTF-8 bytes.
+	 */
+	public static String readString(ByteBuffer buffer) throws InvalidMessageException {
+		int length = readVarint(buffer);
+		if (length > buffer.remaining()) {
+			throw new InvalidMessageException("Field of " + length + " bytes exceeds the binary message.");
+		}
+		String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, CHARSET);
+		buffer.position(buffer.position() + length);
+		return value;
+	}
+
+	/**
+	 * Read a byte array written by {@link #writeBytes(ByteBuffer, byte[])}.
+	 */
+	public static byte[] readBytes(ByteBuffer buffer) throws InvalidMessageException {
+		int length = readVarint(buffer);
+		if (length > buffer.remaining()) {
+			throw new InvalidMessageException("Field of " + length + " bytes exceeds the binary message.");
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @throws InvalidMessageException if the buffer contains data after the last field
+	 */
+	public static void checkFullyRead(ByteBuffer buffer) throws InvalidMessageException {
+		if (buffer.hasRemaining()) {
+			throw new InvalidMessageException(buffer.remaining() + " unexpected bytes after the last field of binary message.");
+		}
+	}
+}
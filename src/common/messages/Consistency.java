@@ -0,0 +1,44 @@
+package common.messages;
+
+/**
+ * How many of the N copies of a key a query waits for: the coordinator and its two successors hold a copy.
+ * A PUT is answered once that many copies are written, a GET once that many copies were read, it returns
+ * the value with the newest version. With R + W > N, e.g. QUORUM for both, a GET sees the last answered PUT.
+ * A client chooses the level per query, see {@link KVQuery#setConsistency(Consistency)},
+ * queries without a level are answered with the level of the server settings.
+ */
+public enum Consistency {
+	LOCAL,	/* only the copy of the server that answers, the replicas are updated in the background */
+	ONE,	/* that copy and one other */
+	QUORUM,	/* a majority of the copies */
+	ALL;	/* all copies */
+
+	/**
+	 * @param replicas number of copies of the key, N
+	 * @return number of copies the level waits for, at most N
+	 */
+	public int copies(int replicas) {
+		switch (this) {
+		case LOCAL:
+			return Math.min(1, replicas);
+		case ONE:
+			return Math.min(2, replicas);
+		case QUORUM:
+			return replicas / 2 + 1;
+		default:
+			return replicas;
+		}
+	}
+
+	/**
+	 * @return the stronger of both levels, a level that is null is ignored
+	 */
+	public static Consistency strongest(Consistency a, Consistency b) {
+		if (a == null) {
+			return b;
+		} else if (b == null) {
+			return a;
+		}
+		return a.compareTo(b) >= 0 ? a : b;
+	}
+}
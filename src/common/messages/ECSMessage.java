@@ -1,6 +1,5 @@
 package common.messages;
 
-import java.math.BigInteger;
 import java.util.HashMap;
 import java.util.Map.Entry;
 
@@ -11,6 +10,7 @@ import org.apache.log4j.Logger;
 
 import common.InfrastructureMetadata;
 import common.ServerData;
+import consistent_hashing.HashKey;
 
 /**
  * Create a message from or to ECS/Server.
@@ -22,10 +22,12 @@ public class ECSMessage {
 
 	private ECSStatusType command;
 	private InfrastructureMetadata metadata;
-	private BigInteger startIndex;
-	private BigInteger endIndex;
+	private HashKey startIndex;
+	private HashKey endIndex;
 	private ServerData server;
-	private HashMap<BigInteger, String> movingData;
+	private HashMap<HashKey, String> movingData;
+	/* the version stamps of the moving data, keys without a stamp are missing */
+	private HashMap<HashKey, Long> movingVersions;
 	private final String movingDataEmpty = "EMPTY"; 
 
 	private Logger logger;
@@ -82,8 +84,8 @@ public class ECSMessage {
 					throw new InvalidMessageException("Incorrect number of arguments or command.");
 				}
 				metadata = null;
-				startIndex = new BigInteger(arguments[1]);
-				endIndex = new BigInteger(arguments[2]);
+				startIndex = HashKey.parse(arguments[1]);
+				endIndex = HashKey.parse(arguments[2]);
 				server = new ServerData(arguments[3], arguments[4], Integer.parseInt(arguments[5]));
 				break;
 			default:
@@ -133,7 +135,18 @@ public class ECSMessage {
 	 * @param movingData The data that is being transfered from one server node to the other.
 	 * @throws InvalidMessageException Thrown when the command is not associated with the movingData.
 	 */
-	public ECSMessage(ECSStatusType command, HashMap<BigInteger, String> movingData) throws InvalidMessageException {
+	public ECSMessage(ECSStatusType command, HashMap<HashKey, String> movingData) throws InvalidMessageException {
+		this(command, movingData, new HashMap<HashKey, Long>());
+	}
+
+	/**
+	 * Construct a message with the moving data and their version stamps.
+	 * @param command The type of the message.
+	 * @param movingData The data that is being transfered from one server node to the other.
+	 * @param movingVersions The version stamps of the data, keys without a stamp may be missing.
+	 * @throws InvalidMessageException Thrown when the command is not associated with the movingData.
+	 */
+	public ECSMessage(ECSStatusType command, HashMap<HashKey, String> movingData, HashMap<HashKey, Long> movingVersions) throws InvalidMessageException {
 		LogSetup ls = new LogSetup("logs/ecs.log", "ECS", Level.ALL);
 		this.logger = ls.getLogger();
 		
@@ -142,6 +155,7 @@ public class ECSMessage {
 		}
 		this.command = command;
 		this.movingData = movingData;
+		this.movingVersions = movingVersions;
 	}
 
 	/**
@@ -152,7 +166,7 @@ public class ECSMessage {
 	 * @param server The server that the indexes correspond. 
 	 * @throws InvalidMessageException Thrown when the command entered is correctly associated if less arguments. 
 	 */
-	public ECSMessage(ECSStatusType command, BigInteger startIndex, BigInteger endIndex, ServerData server) throws InvalidMessageException {
+	public ECSMessage(ECSStatusType command, HashKey startIndex, HashKey endIndex, ServerData server) throws InvalidMessageException {
 		LogSetup ls = new LogSetup("logs/ecs.log", "ECS", Level.ALL);
 		this.logger = ls.getLogger();
 		
@@ -228,7 +242,7 @@ public class ECSMessage {
 	 * @return The start index of the server associated with the message.
 	 * @throws InvalidMessageException Thrown when the command is not associated with a start index argument.
 	 */
-	public BigInteger getStartIndex() throws InvalidMessageException {
+	public HashKey getStartIndex() throws InvalidMessageException {
 		if (command != ECSStatusType.MOVE_DATA) {
 			throw new InvalidMessageException("Incorrect number of arguments or unknown command.");
 		}
@@ -240,7 +254,7 @@ public class ECSMessage {
 	 * @return The end index of the server associated with the message.
 	 * @throws InvalidMessageException Thrown when the command is not associated with an end index argument.
 	 */
-	public BigInteger getEndIndex() throws InvalidMessageException {
+	public HashKey getEndIndex() throws InvalidMessageException {
 		if (command != ECSStatusType.MOVE_DATA) {
 			throw new InvalidMessageException("Incorrect number of arguments or unknown command.");
 		}
@@ -264,32 +278,52 @@ public class ECSMessage {
 	 * @return The data the is being moved from one server to another.
 	 * @throws InvalidMessageException Thrown when the command is not associated with a moving data argument.
 	 */
-	public HashMap<BigInteger, String> getMovingData() throws InvalidMessageException {
+	public HashMap<HashKey, String> getMovingData() throws InvalidMessageException {
 		if (command != ECSStatusType.MOVE_DATA_INTERNAL) {
 			throw new InvalidMessageException("Incorrect number of arguments or unknown command.");
 		}
 		return movingData;
 	}
 
+	/**
+	 * Get the version stamps of the data that is being moved.
+	 * @return The version stamps of the moving data, keys without a stamp are missing.
+	 * @throws InvalidMessageException Thrown when the command is not associated with a moving data argument.
+	 */
+	public HashMap<HashKey, Long> getMovingVersions() throws InvalidMessageException {
+		if (command != ECSStatusType.MOVE_DATA_INTERNAL) {
+			throw new InvalidMessageException("Incorrect number of arguments or unknown command.");
+		}
+		return movingVersions;
+	}
+
+	/* the entries as key,version,value; the version is 0 if the key has no stamp */
 	private String getData() {
 		StringBuilder data = new StringBuilder();
 		if (movingData.isEmpty()) {
 			return movingDataEmpty;
 		} else {
-			for (Entry<BigInteger, String> entry : movingData.entrySet()) {
-				data.append(entry.getKey().toString() + "," + entry.getValue() + ";");
+			for (Entry<HashKey, String> entry : movingData.entrySet()) {
+				Long version = movingVersions.get(entry.getKey());
+				data.append(entry.getKey().toString() + "," + (version != null ? version : 0) + "," + entry.getValue() + ";");
 			}
 		}
 		return data.toString();
 	}
 
 	private void createMovingData(String movingData) {
-		this.movingData = new HashMap<BigInteger, String>();
+		this.movingData = new HashMap<HashKey, String>();
+		this.movingVersions = new HashMap<HashKey, Long>();
 		if (!movingData.equals(movingDataEmpty)) {
 			String[] data = movingData.split(";");
 			for (String dataStr : data) {
-				String[] dataEntry = dataStr.split(",");
-				this.movingData.put(new BigInteger(dataEntry[0]), dataEntry[1]);
+				String[] dataEntry = dataStr.split(",", 3);
+				HashKey key = HashKey.parse(dataEntry[0]);
+				this.movingData.put(key, dataEntry[2]);
+				long version = Long.parseLong(dataEntry[1]);
+				if (version != 0) {
+					this.movingVersions.put(key, version);
+				}
 			}
 		}
 	}
@@ -0,0 +1,45 @@
+package common.messages;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message as it is sent over a connection: encryption flag, identity of the sender,
+ * payload length and payload, the header fields are 4 byte integers.
+ */
+public class Frame {
+	/** Size of the header in bytes */
+	public static final int HEADER_SIZE = 12;
+
+	private final int encFlag;
+	private final int ident;
+	private final byte[] payload;
+
+	/**
+	 * @param encFlag 0 = Plain, 1 = Encrypted
+	 * @param ident 1 = CLIENT, 2 = SERVER, 3 = ECS
+	 */
+	public Frame(int encFlag, int ident, byte[] payload) {
+		this.encFlag = encFlag;
+		this.ident = ident;
+		this.payload = payload;
+	}
+
+	public int getEncFlag() {
+		return encFlag;
+	}
+
+	public int getIdent() {
+		return ident;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @return header and payload as they are sent
+	 */
+	public byte[] toBytes() {
+		return ByteBuffer.allocate(HEADER_SIZE + payload.length).putInt(encFlag).putInt(ident).putInt(payload.length).put(payload).array();
+	}
+}
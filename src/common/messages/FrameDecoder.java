@@ -0,0 +1,130 @@
+package common.messages;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the bytes received on one connection into {@link Frame}s.
+ * The header is validated and the payload length checked against the size limit
+ * before the payload is allocated. Payloads are read in bulk, the header and read
+ * buffers are reused for all frames of the connection.
+ * <p>
+ * Data can either be pushed with {@link #decode(ByteBuffer)}, e.g. by a selector thread,
+ * or pulled from a blocking stream with {@link #readFrame()}.
+ */
+public class FrameDecoder {
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+	private final int maxPayloadSize;
+	private final InputStream input;
+	private final ByteBuffer readBuffer;
+	private final ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE);
+	private ByteBuffer payload;
+	private int encFlag;
+	private int ident;
+
+	/**
+	 * Creates a decoder for data passed to {@link #decode(ByteBuffer)}.
+	 * @param maxPayloadSize largest accepted payload in bytes
+	 */
+	public FrameDecoder(int maxPayloadSize) {
+		this(null, maxPayloadSize);
+	}
+
+	/**
+	 * Creates a decoder that reads frames from a stream with {@link #readFrame()}.
+	 * The decoder reads ahead, so the stream must not be read by anyone else.
+	 * @param maxPayloadSize largest accepted payload in bytes
+	 */
+	public FrameDecoder(InputStream input, int maxPayloadSize) {
+		this.input = input;
+		this.maxPayloadSize = maxPayloadSize;
+		this.readBuffer = input != null ? ByteBuffer.allocate(READ_BUFFER_SIZE) : null;
+		if (readBuffer != null) {
+			readBuffer.limit(0);
+		}
+	}
+
+	/**
+	 * Decode the next frame from the given data. The data of an incomplete frame is kept until the rest arrives.
+	 * @return the next complete frame or null if all data was consumed without completing one
+	 * @throws IOException if the header of a frame is invalid
+	 */
+	public Frame decode(ByteBuffer data) throws IOException {
+		while (data.hasRemaining() || (payload != null && !payload.hasRemaining())) {
+			if (payload == null) {
+				transfer(data, header);
+				if (header.hasRemaining()) {
+					return null;
+				}
+				header.flip();
+				readHeader();
+			}
+			transfer(data, payload);
+			if (!payload.hasRemaining()) {
+				Frame frame = new Frame(encFlag, ident, payload.array());
+				payload = null;
+				return frame;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Read the next frame from the stream, blocks until it is complete.
+	 * If the read times out, the data received so far is kept for the next call.
+	 * @throws EOFException if the stream ended
+	 * @throws IOException if the header of the frame is invalid or the stream could not be read
+	 */
+	public Frame readFrame() throws IOException {
+		while (true) {
+			Frame frame = decode(readBuffer);
+			if (frame != null) {
+				return frame;
+			}
+			int read;
+			if (payload != null && payload.remaining() >= READ_BUFFER_SIZE) {
+				/* large payloads are read directly, without copying them through the read buffer */
+				read = input.read(payload.array(), payload.position(), payload.remaining());
+				if (read > 0) {
+					payload.position(payload.position() + read);
+				}
+			} else {
+				read = input.read(readBuffer.array());
+				readBuffer.position(0);
+				readBuffer.limit(Math.max(read, 0));
+			}
+			if (read < 0) {
+				throw new EOFException("Connection closed by peer.");
+			}
+		}
+	}
+
+	private void readHeader() throws IOException {
+		encFlag = header.getInt(); // 0 = Plain, 1 = Encrypted
+		ident = header.getInt(); // 1 = CLIENT, 2 = SERVER, 3 = ECS
+		int length = header.getInt();
+		header.clear();
+
+		if (encFlag != 0 && encFlag != 1)
+			throw new IOException("Encryption flag of received message was set to invalid value");
+		if (ident != 1 && ident != 2 && ident != 3)
+			throw new IOException("Ident flag of received message was set to invalid value");
+		if (length < 0)
+			throw new IOException("Length field of received message was invalid (negative).");
+		if (length > maxPayloadSize)
+			throw new IOException("Received message of " + length + " bytes exceeds the limit of " + maxPayloadSize + " bytes.");
+
+		payload = ByteBuffer.allocate(length);
+	}
+
+	private static void transfer(ByteBuffer source, ByteBuffer target) {
+		int length = Math.min(source.remaining(), target.remaining());
+		int limit = source.limit();
+		source.limit(source.position() + length);
+		target.put(source);
+		source.limit(limit);
+	}
+}
@@ -31,7 +31,9 @@ public interface KVMessage {
 		CONNECT_ERROR,			/* Connect - request not successful */
 		DISCONNECT,				/* Disconnect - request */
 		DISCONNECT_SUCCESS,		/* Disconnect - request successful */
-		FAILED 					/* Failed - unknown message or message too big*/
+		FAILED, 				/* Failed - unknown message or message too big*/
+		MGET,					/* Batch of GET requests, the reply holds one result per key */
+		MPUT					/* Batch of PUT requests, the reply holds one result per key */
 }
 
 	/**
@@ -1,37 +1,58 @@
 package common.messages;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import logger.LogSetup;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import common.Settings;
+
 /**
  * Create a message from or to client/server.
- * Implements the protocol established for this application
+ * Implements the protocol established for this application.
+ * Queries are sent in the text format or, if negotiated at CONNECT, in the binary format of {@link BinaryCodec}.
+ * MGET and MPUT queries carry a batch of GET or PUT queries and only exist in the binary format.
  * @author Claynon de Souza
  *
  */
 public class KVQuery implements KVMessage {
+	/* binary opcodes are the ordinals, new status types have to be appended */
+	private static final StatusType[] STATUS_TYPES = StatusType.values();
+	private static final Consistency[] CONSISTENCY_LEVELS = Consistency.values();
+	/* a batch may be larger than a single query, half the frame limit leaves room for the encryption */
+	private static final int MAX_BATCH_SIZE = Settings.MAX_MESSAGE_SIZE / 2;
+	private static final Logger logger = new LogSetup("logs/KVQuery.log", "KVQuery", Level.ALL).getLogger();
+
 	private StatusType command;
 	private String key;
 	private String value;
 	private int numArgs;
+	private boolean binary;
+	/* 0 if the query has no id, only sent in the binary format */
+	private int requestId;
+	/* the queries of an MGET or MPUT, null for other queries */
+	private List<KVQuery> entries;
+	/* consistency level requested by a PUT, null for the default of the server; only sent in the binary format */
+	private Consistency consistency;
 
 	private String[] arguments;
 
-	private  Logger logger;
-
-	public void initLog() {
-		LogSetup ls = new LogSetup("logs/KVQuery.log", "KVQuery", Level.ALL);
-		this.logger = ls.getLogger();
-	}
 	/**
-	 * Construct a query from a message received in the form of an array of bytes
+	 * Construct a query from a message received in the form of an array of bytes,
+	 * in the text or in the binary format.
 	 * @param bytes
 	 * @throws InvalidMessageException
 	 */
 	public KVQuery(byte[] bytes) throws InvalidMessageException {
-		initLog();
+		if (BinaryCodec.isBinary(bytes)) {
+			readBinary(bytes);
+			return;
+		}
 		String message;
 
 		message = new String(bytes);
@@ -65,8 +86,6 @@ public class KVQuery implements KVMessage {
 	 * @throws InvalidMessageException thrown when a command that is not associated with exactly one argument is entered
 	 */
 	public KVQuery(StatusType command) throws InvalidMessageException {
-		initLog();
-		
 		if (command != StatusType.CONNECT && command != StatusType.CONNECT_ERROR
 				&& command != StatusType.DISCONNECT && command != StatusType.DISCONNECT_SUCCESS )
 			throw new InvalidMessageException("Incorrect number of arguments or unknown command.");
@@ -79,13 +98,12 @@ public class KVQuery implements KVMessage {
 	 * Constructs an query with only one argument.
 	 * @param command the type of the query
 	 * @param argument  may contain the key (key-value) of the query or the message from a connection. Depends on the command. 
+	 * A CONNECT query may carry the message format requested by the client.
 	 * @throws InvalidMessageException thrown when a command that is not associated with exactly one argument is entered
 	 */
 	public KVQuery(StatusType command, String argument) throws InvalidMessageException {
-		initLog();
-		
 		if (command != StatusType.GET && command != StatusType.GET_ERROR && command != StatusType.GET_SUCCESS
-				&& command != StatusType.FAILED && command != StatusType.CONNECT_SUCCESS)
+				&& command != StatusType.FAILED && command != StatusType.CONNECT_SUCCESS && command != StatusType.CONNECT)
 			throw new InvalidMessageException("Incorrect number of arguments for the command");
 
 		this.command = command;
@@ -101,8 +119,6 @@ public class KVQuery implements KVMessage {
 	 * @throws InvalidMessageException thrown when a command associated with less than two arguments is entered
 	 */
 	public KVQuery(StatusType command, String key, String value) throws InvalidMessageException {
-		initLog();
-		
 		if (command != StatusType.GET_SUCCESS
 				&& command != StatusType.PUT			&& command != StatusType.PUT_SUCCESS
 				&& command != StatusType.PUT_UPDATE		&& command != StatusType.PUT_ERROR
@@ -117,6 +133,23 @@ public class KVQuery implements KVMessage {
 		this.numArgs = 3;
 	}
 
+	/**
+	 * Constructs a batch of queries. The request of an MGET holds GET queries, that of an MPUT PUT queries.
+	 * The reply has the same command and holds the reply to each query, in the order of the request.
+	 * @param command MGET or MPUT
+	 * @param entries the queries of the batch
+	 * @throws InvalidMessageException thrown when the command is no batch command
+	 */
+	public KVQuery(StatusType command, List<KVQuery> entries) throws InvalidMessageException {
+		if (command != StatusType.MGET && command != StatusType.MPUT) {
+			throw new InvalidMessageException("Incorrect number of arguments for the command.");
+		}
+		this.command = command;
+		this.entries = entries;
+		this.key = "";
+		this.value = "";
+	}
+
 	/**
 	 * Transform the query to an array of bytes to be sent to a client or server.
 	 * Marshalling method.
@@ -125,7 +158,10 @@ public class KVQuery implements KVMessage {
 	 */
 	public byte[] toBytes() {
 		byte[] bytes;
-		if (numArgs == 1) {
+		if (entries != null) {
+			logger.error("Cannot convert " + command + " to bytes, batches are only sent in the binary format.");
+			return null;
+		} else if (numArgs == 1) {
 			String message = command.toString() + "\r";
 			bytes = message.getBytes();
 		} else if (numArgs == 2) {
@@ -149,6 +185,142 @@ public class KVQuery implements KVMessage {
 		return bytes;
 	}
 
+	/**
+	 * Transform the query to the binary format: opcode, the request id if it is set, number of arguments
+	 * after the command and the key and value as length and UTF-8 bytes.
+	 * The upper four bits of the number of arguments hold the consistency level plus one if it is set.
+	 * 
+	 * @return an array of bytes with the query ready to be sent. Returns null if the query is too large.
+	 */
+	public byte[] toBinary() {
+		if (entries != null) {
+			return batchToBinary();
+		}
+		byte[] keyBytes = numArgs >= 2 ? BinaryCodec.encode(key) : null;
+		byte[] valueBytes = numArgs == 3 ? BinaryCodec.encode(value) : null;
+		int size = 1 + (requestId != 0 ? BinaryCodec.varintSize(requestId) : 0)
+				+ (keyBytes != null ? BinaryCodec.fieldSize(keyBytes) : 0) + (valueBytes != null ? BinaryCodec.fieldSize(valueBytes) : 0);
+
+		if (BinaryCodec.HEADER_SIZE + size > DROP_SIZE) {
+			logger.error("Cannot convert KVQuery to bytes, since the payload would be too large.\n"
+					+ "  Payload: " + (BinaryCodec.HEADER_SIZE + size) / 1024 + " kb"
+					+ "  Maxmium allowed: " + DROP_SIZE / 1024 + " kb");
+			return null;
+		}
+
+		ByteBuffer buffer = allocate(size);
+		writeFields(buffer, numArgs, consistency, keyBytes, valueBytes);
+		return buffer.array();
+	}
+
+	/*
+	 * A batch is written as the number of queries followed by the opcode, number of arguments,
+	 * key and value of each query. Its size is limited by the frame size instead of DROP_SIZE.
+	 */
+	private byte[] batchToBinary() {
+		List<byte[]> fields = new ArrayList<byte[]>(2 * entries.size());
+		int size = (requestId != 0 ? BinaryCodec.varintSize(requestId) : 0) + BinaryCodec.varintSize(entries.size());
+		for (KVQuery entry : entries) {
+			byte[] keyBytes = entry.numArgs >= 2 ? BinaryCodec.encode(entry.key) : null;
+			byte[] valueBytes = entry.numArgs == 3 ? BinaryCodec.encode(entry.value) : null;
+			fields.add(keyBytes);
+			fields.add(valueBytes);
+			size += 2 + (keyBytes != null ? BinaryCodec.fieldSize(keyBytes) : 0) + (valueBytes != null ? BinaryCodec.fieldSize(valueBytes) : 0);
+		}
+
+		if (BinaryCodec.HEADER_SIZE + size > MAX_BATCH_SIZE) {
+			logger.error("Cannot convert " + command + " to bytes, since the payload would be too large.\n"
+					+ "  Payload: " + (BinaryCodec.HEADER_SIZE + size) / 1024 + " kb"
+					+ "  Maxmium allowed: " + MAX_BATCH_SIZE / 1024 + " kb");
+			return null;
+		}
+
+		ByteBuffer buffer = allocate(size);
+		BinaryCodec.writeVarint(buffer, entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			KVQuery entry = entries.get(i);
+			buffer.put((byte) entry.command.ordinal());
+			writeFields(buffer, entry.numArgs, entry.consistency, fields.get(2 * i), fields.get(2 * i + 1));
+		}
+		return buffer.array();
+	}
+
+	/* header and opcode, followed by the request id if it is set */
+	private ByteBuffer allocate(int size) {
+		if (requestId == 0) {
+			return BinaryCodec.allocate(command.ordinal(), size);
+		}
+		ByteBuffer buffer = BinaryCodec.allocate(command.ordinal() | BinaryCodec.REQUEST_ID_FLAG, size);
+		BinaryCodec.writeVarint(buffer, requestId);
+		return buffer;
+	}
+
+	private static void writeFields(ByteBuffer buffer, int numArgs, Consistency consistency, byte[] keyBytes, byte[] valueBytes) {
+		buffer.put((byte) ((numArgs - 1) | (consistency != null ? (consistency.ordinal() + 1) << 4 : 0)));
+		if (keyBytes != null) {
+			BinaryCodec.writeBytes(buffer, keyBytes);
+		}
+		if (valueBytes != null) {
+			BinaryCodec.writeBytes(buffer, valueBytes);
+		}
+	}
+
+	/**
+	 * @return true if the query is an MGET or MPUT
+	 */
+	public boolean isBatch() {
+		return entries != null;
+	}
+
+	/**
+	 * @return the queries of an MGET or MPUT
+	 * @throws InvalidMessageException if the query is no batch
+	 */
+	public List<KVQuery> getEntries() throws InvalidMessageException {
+		if (entries == null) {
+			throw new InvalidMessageException("This command is no batch. " + command.toString());
+		}
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * @return true if the query was received in the binary format
+	 */
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * @return the id of the request or of the request this is the reply to, 0 if it has none
+	 */
+	public int getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * Set the id that matches a reply to its request. It is only sent in the binary format.
+	 * @param requestId a positive id or 0 for none
+	 */
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+
+	/**
+	 * @return the consistency level requested by the query, null if the server decides
+	 */
+	public Consistency getConsistency() {
+		return consistency;
+	}
+
+	/**
+	 * Request when the server answers a PUT, see {@link Consistency}.
+	 * The level is only sent in the binary format, servers answer text queries with their default level.
+	 * @param consistency the level or null for the default of the server
+	 */
+	public void setConsistency(Consistency consistency) {
+		this.consistency = consistency;
+	}
+
 	/**
 	 * Get the type of command the message is
 	 * @return the command of the message
@@ -190,6 +362,68 @@ public class KVQuery implements KVMessage {
 		return this.value;
 	}
 
+	private void readBinary(byte[] bytes) throws InvalidMessageException {
+		ByteBuffer buffer = BinaryCodec.readHeader(bytes);
+		int opcode = buffer.get() & 0xFF;
+		if ((opcode & BinaryCodec.REQUEST_ID_FLAG) != 0) {
+			opcode &= ~BinaryCodec.REQUEST_ID_FLAG;
+			requestId = BinaryCodec.readVarint(buffer);
+		}
+		command = readCommand(buffer, opcode);
+
+		if (command == StatusType.MGET || command == StatusType.MPUT) {
+			if (bytes.length > MAX_BATCH_SIZE) {
+				throw new InvalidMessageException("Incorrect number of arguments or size of message exceeded.");
+			}
+			int count = BinaryCodec.readVarint(buffer);
+			/* every query takes at least two bytes, a bogus count must not allocate a huge list */
+			entries = new ArrayList<KVQuery>(Math.min(count, buffer.remaining() / 2));
+			for (int i = 0; i < count; i++) {
+				if (!buffer.hasRemaining()) {
+					throw new InvalidMessageException("Binary message ended within the queries of " + command + ".");
+				}
+				KVQuery entry = new KVQuery();
+				entry.command = readCommand(buffer, buffer.get() & 0xFF);
+				entry.readFields(buffer);
+				entry.binary = true;
+				entries.add(entry);
+			}
+			key = "";
+			value = "";
+		} else {
+			if (bytes.length > DROP_SIZE) {
+				throw new InvalidMessageException("Incorrect number of arguments or size of message exceeded.");
+			}
+			readFields(buffer);
+		}
+		BinaryCodec.checkFullyRead(buffer);
+		binary = true;
+	}
+
+	/* an entry of a batch, filled by readBinary */
+	private KVQuery() {
+	}
+
+	private static StatusType readCommand(ByteBuffer buffer, int opcode) throws InvalidMessageException {
+		if (opcode >= STATUS_TYPES.length || !buffer.hasRemaining()) {
+			throw new InvalidMessageException("This code does not represent a command.");
+		}
+		return STATUS_TYPES[opcode];
+	}
+
+	private void readFields(ByteBuffer buffer) throws InvalidMessageException {
+		int fields = buffer.get() & 0xFF;
+		numArgs = (fields & 0x0F) + 1;
+		int level = fields >> 4;
+		if (numArgs > 3 || level > CONSISTENCY_LEVELS.length) {
+			throw new InvalidMessageException("Incorrect number of arguments or size of message exceeded.");
+		}
+		consistency = level > 0 ? CONSISTENCY_LEVELS[level - 1] : null;
+		/* same defaults as for text queries */
+		key = numArgs >= 2 ? BinaryCodec.readString(buffer) : "";
+		value = numArgs == 3 ? BinaryCodec.readString(buffer) : "";
+	}
+
 	private void setType(String command) throws InvalidMessageException {
 		try {
 			this.command = StatusType.valueOf(command);
@@ -1,12 +1,49 @@
 package common.messages;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 import app_kvServer.KVData;
+import app_kvServer.StorageEngine;
+import common.Settings;
+import consistent_hashing.HashKey;
 
 public class ServerServerMessage {
+	/* opcodes of server messages follow those of the client queries, in the order of ServerServerStatustype */
+	private static final int OPCODE_OFFSET = 0x40;
+	private static final ServerServerStatustype[] COMMANDS = ServerServerStatustype.values();
+
 	private ServerServerStatustype command;
 	private String key;
 	private String value;
-	private KVData serverData;
+	private StorageEngine serverData;
+	/* the tuples of SERVER_PUT_BATCH, a value of "null" deletes the key, and their version stamps, 0 if unknown */
+	private List<String> keys;
+	private List<String> values;
+	private List<Long> versions;
+	/* SERVER_SYNC_CHUNK: the stream, the last key of the previous chunk (null for the first chunk) and the entries */
+	private long streamId;
+	private HashKey after;
+	private boolean lastChunk;
+	private List<Map.Entry<HashKey, String>> entries;
+	/* SERVER_ACK: the sequence number of the replication batch it acknowledges */
+	private long sequence;
+	/* SERVER_READ: true for the reply, which carries value and version stamp of the key */
+	private boolean reply;
+	private long version;
+	/* SERVER_MERKLE: depth and level of the tree, the nodes asked for and, in the reply, their hashes */
+	private int depth;
+	private int level;
+	private int[] nodes;
+	private long[] hashes;
+	/* SERVER_MERKLE_KEYS: the leaves asked for (nodes) and, in the reply, their keys with the hashes of the pairs */
+	private HashKey[] hashKeys;
+	/* SERVER_REPAIR and SERVER_SYNC_CHUNK: the version stamps of the entries */
+	private long[] entryVersions;
 	private int numServer;
 	private final String EMPTY = "EMPTY";
 
@@ -16,6 +53,10 @@ public class ServerServerMessage {
 	 * @throws InvalidMessageException Thrown when the message does not have the correct number of arguments or the command is not associated if the number of arguments given.
 	 */
 	public ServerServerMessage(byte[] bytes) throws InvalidMessageException {
+		if (BinaryCodec.isBinary(bytes)) {
+			readBinary(bytes);
+			return;
+		}
 		String message;
 		String[] arguments;
 
@@ -56,7 +97,7 @@ public class ServerServerMessage {
 	 * @param key the key of the tuple
 	 */
 	public ServerServerMessage(ServerServerStatustype command, int numServer, String key) throws InvalidMessageException {
-		if (command != ServerServerStatustype.SERVER_DELETE) {
+		if (command != ServerServerStatustype.SERVER_DELETE && command != ServerServerStatustype.SERVER_READ) {
 			throw new InvalidMessageException("Incorrect number of arguments or command.");
 		}
 		this.command = command;
@@ -91,7 +132,7 @@ public class ServerServerMessage {
 	 * @param command The type of the message.
 	 * @param numServer Indicates the server to which the message is going, according to its position in the hash circle in relation to the sender.
 	 */
-	public ServerServerMessage(ServerServerStatustype command, int numServer, KVData serverData) throws InvalidMessageException {
+	public ServerServerMessage(ServerServerStatustype command, int numServer, StorageEngine serverData) throws InvalidMessageException {
 		if (command != ServerServerStatustype.SERVER_PUT_ALL) {
 			throw new InvalidMessageException("Incorrect number of arguments or command.");
 		}
@@ -103,10 +144,225 @@ public class ServerServerMessage {
 	}
 
 	/**
-	 * Transform the message in an array of bytes to be sent.
+	 * Constructs a message that replicates the tuples written by one batch of a client
+	 * @param command The type of the message.
+	 * @param numServer Indicates the server to which the message is going, according to its position in the hash circle in relation to the sender.
+	 * @param keys the keys of the tuples
+	 * @param values the values of the tuples, "null" for deleted keys
+	 */
+	public ServerServerMessage(ServerServerStatustype command, int numServer, List<String> keys, List<String> values) throws InvalidMessageException {
+		this(command, numServer, keys, values, null);
+	}
+
+	/**
+	 * Constructs a message that replicates written tuples with their version stamps
+	 * @param command The type of the message.
+	 * @param numServer Indicates the server to which the message is going, according to its position in the hash circle in relation to the sender.
+	 * @param keys the keys of the tuples
+	 * @param values the values of the tuples, "null" for deleted keys
+	 * @param versions the version stamps of the tuples, null if they have none
+	 */
+	public ServerServerMessage(ServerServerStatustype command, int numServer, List<String> keys, List<String> values, List<Long> versions) throws InvalidMessageException {
+		if (command != ServerServerStatustype.SERVER_PUT_BATCH || keys.size() != values.size()
+				|| (versions != null && versions.size() != keys.size())) {
+			throw new InvalidMessageException("Incorrect number of arguments or command.");
+		}
+		this.command = command;
+		this.numServer = numServer;
+		this.keys = keys;
+		this.values = values;
+		this.versions = versions;
+		key = null;
+		value = null;
+		serverData = null;
+	}
+
+	/**
+	 * Constructs the reply to a SERVER_READ
+	 * @param command The type of the message.
+	 * @param numServer the position of the replying server in relation to the coordinator of the key
+	 * @param key the key that was read
+	 * @param value the value of the key, "null" if the server has none
+	 * @param version the version stamp of the key, 0 if it has none
+	 */
+	public ServerServerMessage(ServerServerStatustype command, int numServer, String key, String value, long version) throws InvalidMessageException {
+		if (command != ServerServerStatustype.SERVER_READ) {
+			throw new InvalidMessageException("Incorrect number of arguments or command.");
+		}
+		this.command = command;
+		this.numServer = numServer;
+		this.key = key;
+		this.value = value;
+		this.version = version;
+		this.reply = true;
+		serverData = null;
+	}
+
+	/**
+	 * Constructs a chunk of the stream that replicates the whole data of a server, see {@link StorageEngine#readChunk(HashKey, int)}
+	 * @param command The type of the message.
+	 * @param numServer Indicates the server to which the message is going, according to its position in the hash circle in relation to the sender.
+	 * @param streamId identifies the stream, a new stream replaces the data of an older one
+	 * @param after the last key of the previous chunk, null for the first chunk of a stream
+	 * @param entries the entries following that key in ascending key order
+	 * @param lastChunk true if no entries follow
+	 */
+	public ServerServerMessage(ServerServerStatustype command, int numServer, long streamId, HashKey after,
+			List<Map.Entry<HashKey, String>> entries, boolean lastChunk) throws InvalidMessageException {
+		this(command, numServer, streamId, after, entries, null, lastChunk);
+	}
+
+	/**
+	 * Constructs a chunk of the stream like above, with the version stamps of the entries.
+	 * @param versions the version stamps of the entries, 0 if unknown, null if none has a stamp
+	 */
+	public ServerServerMessage(ServerServerStatustype command, int numServer, long streamId, HashKey after,
+			List<Map.Entry<HashKey, String>> entries, long[] versions, boolean lastChunk) throws InvalidMessageException {
+		if (command != ServerServerStatustype.SERVER_SYNC_CHUNK || (versions != null && versions.length != entries.size())) {
+			throw new InvalidMessageException("Incorrect number of arguments or command.");
+		}
+		this.command = command;
+		this.numServer = numServer;
+		this.streamId = streamId;
+		this.after = after;
+		this.entries = entries;
+		this.entryVersions = versions != null ? versions : new long[entries.size()];
+		this.lastChunk = lastChunk;
+		key = null;
+		value = null;
+		serverData = null;
+	}
+
+	/**
+	 * Constructs an acknowledgement. Sent after the updates of a replication batch, the replica
+	 * sends it back once it applied the messages received before it.
+	 * @param command The type of the message.
+	 * @param numServer Indicates the server to which the message is going, according to its position in the hash circle in relation to the sender.
+	 * @param sequence the sequence number of the batch
+	 */
+	public ServerServerMessage(ServerServerStatustype command, int numServer, long sequence) throws InvalidMessageException {
+		if (command != ServerServerStatustype.SERVER_ACK) {
+			throw new InvalidMessageException("Incorrect number of arguments or command.");
+		}
+		this.command = command;
+		this.numServer = numServer;
+		this.sequence = sequence;
+		key = null;
+		value = null;
+		serverData = null;
+	}
+
+	/**
+	 * Constructs a request for the hashes of nodes of the Merkle tree of a copy, see {@link app_kvServer.MerkleTree}
+	 * @param command The type of the message.
+	 * @param numServer position of the copy in relation to the coordinator
+	 * @param depth depth of the tree
+	 * @param level level of the nodes, 0 for the root
+	 * @param nodes the nodes within the level
+	 */
+	public ServerServerMessage(ServerServerStatustype command, int numServer, int depth, int level, int[] nodes) throws InvalidMessageException {
+		if (command != ServerServerStatustype.SERVER_MERKLE) {
+			throw new InvalidMessageException("Incorrect number of arguments or command.");
+		}
+		this.command = command;
+		this.numServer = numServer;
+		this.depth = depth;
+		this.level = level;
+		this.nodes = nodes;
+		serverData = null;
+	}
+
+	/**
+	 * Constructs the reply to a SERVER_MERKLE
+	 * @param hashes the hashes of the nodes asked for, in the order of the request
+	 */
+	public ServerServerMessage(ServerServerStatustype command, int numServer, int depth, int level, long[] hashes) throws InvalidMessageException {
+		if (command != ServerServerStatustype.SERVER_MERKLE) {
+			throw new InvalidMessageException("Incorrect number of arguments or command.");
+		}
+		this.command = command;
+		this.numServer = numServer;
+		this.depth = depth;
+		this.level = level;
+		this.hashes = hashes;
+		this.reply = true;
+		serverData = null;
+	}
+
+	/**
+	 * Constructs a request for the keys in leaves of the Merkle tree of a copy
+	 * @param command The type of the message.
+	 * @param numServer position of the copy in relation to the coordinator
+	 * @param depth depth of the tree
+	 * @param leaves the leaves
+	 */
+	public ServerServerMessage(ServerServerStatustype command, int numServer, int depth, int[] leaves) throws InvalidMessageException {
+		if (command != ServerServerStatustype.SERVER_MERKLE_KEYS) {
+			throw new InvalidMessageException("Incorrect number of arguments or command.");
+		}
+		this.command = command;
+		this.numServer = numServer;
+		this.depth = depth;
+		this.nodes = leaves;
+		serverData = null;
+	}
+
+	/**
+	 * Constructs the reply to a SERVER_MERKLE_KEYS
+	 * @param keys the keys in the leaves asked for
+	 * @param hashes the hashes of the key value pairs, see {@link app_kvServer.MerkleTree#entryHash(HashKey, String)}
+	 */
+	public ServerServerMessage(ServerServerStatustype command, int numServer, int depth, HashKey[] keys, long[] hashes) throws InvalidMessageException {
+		if (command != ServerServerStatustype.SERVER_MERKLE_KEYS) {
+			throw new InvalidMessageException("Incorrect number of arguments or command.");
+		}
+		this.command = command;
+		this.numServer = numServer;
+		this.depth = depth;
+		this.hashKeys = keys;
+		this.hashes = hashes;
+		this.reply = true;
+		serverData = null;
+	}
+
+	/**
+	 * Constructs a repair of a copy: the current values of keys in which it differs from the coordinator.
+	 * @param command The type of the message.
+	 * @param numServer position of the copy in relation to the coordinator
+	 * @param entries the keys and values, a value of "null" deletes the key
+	 * @param versions the version stamps of the entries, 0 if unknown
+	 */
+	public ServerServerMessage(ServerServerStatustype command, int numServer, List<Map.Entry<HashKey, String>> entries, long[] versions) throws InvalidMessageException {
+		if (command != ServerServerStatustype.SERVER_REPAIR) {
+			throw new InvalidMessageException("Incorrect number of arguments or command.");
+		}
+		this.command = command;
+		this.numServer = numServer;
+		this.entries = entries;
+		this.entryVersions = versions;
+		serverData = null;
+	}
+
+	/**
+	 * Transform the message in an array of bytes to be sent, in the binary format
+	 * if Settings.BINARY_PROTOCOL is set and in the text format otherwise.
+	 * SERVER_PUT_ALL, SERVER_PUT and SERVER_DELETE also exist in the text format, the other commands only in the binary format.
 	 * @return The message in an array of bytes.
 	 */
 	public byte[] toBytes() {
+		return Settings.BINARY_PROTOCOL || !hasTextFormat() ? toBinary() : toText();
+	}
+
+	private boolean hasTextFormat() {
+		return command == ServerServerStatustype.SERVER_PUT_ALL || command == ServerServerStatustype.SERVER_PUT
+				|| command == ServerServerStatustype.SERVER_DELETE;
+	}
+
+	/**
+	 * Transform the message to the text format: command, server and arguments separated by newlines.
+	 * @return The message in an array of bytes.
+	 */
+	public byte[] toText() {
 		String message = command.toString() + "\n" + numServer + "\n";
 
 		switch (command) {
@@ -117,17 +373,397 @@ public class ServerServerMessage {
 			message += key + "\n" + value + "\r";
 			break;
 		case SERVER_PUT_ALL:
-			if (serverData.toString().length() != 0) {
-				message += serverData.toString() + "\r";
+			if (serverData.size() != 0) {
+				message += serialize(serverData) + "\r";
 			} else {
 				message += EMPTY + "\r";
 			}
 			break;
+		default:
+			throw new IllegalStateException(command + " only exists in the binary format.");
 		}
 
 		return message.getBytes();
 	}
 
+	/**
+	 * Transform the message to the binary format of {@link BinaryCodec}. The data of SERVER_PUT_ALL
+	 * is written as the number of entries followed by the 16 byte hash and the value of each entry,
+	 * that of SERVER_PUT_BATCH as the number of tuples followed by the key, value and 8 byte version stamp of each tuple.
+	 * A SERVER_SYNC_CHUNK starts with the 8 byte stream id, a byte of flags (1 = last chunk, 2 = after is set)
+	 * and the 16 byte hash after which the chunk continues, followed by its entries like SERVER_PUT_ALL,
+	 * each with its 8 byte version stamp.
+	 * A SERVER_ACK holds the 8 byte sequence number. A SERVER_READ holds the key and a byte that is 1 for the reply,
+	 * the reply continues with the value and the 8 byte version stamp.
+	 * A SERVER_MERKLE starts with a byte that is 1 for the reply, the depth and the level, followed by the number of
+	 * nodes and the nodes, or the 8 byte hashes in the reply. A SERVER_MERKLE_KEYS starts with the reply byte and the
+	 * depth, followed by the number of leaves and the leaves, or the 16 byte keys and 8 byte hashes in the reply.
+	 * A SERVER_REPAIR holds the number of entries followed by the 16 byte hash, the value and the 8 byte version stamp of each entry.
+	 * @return The message in an array of bytes.
+	 */
+	public byte[] toBinary() {
+		byte[] keyBytes = null;
+		byte[] valueBytes = null;
+		List<HashKey> hashes = null;
+		List<byte[]> values = null;
+		List<byte[]> fields = null;
+		int size = BinaryCodec.varintSize(numServer);
+
+		switch (command) {
+		case SERVER_DELETE:
+			keyBytes = BinaryCodec.encode(key);
+			size += BinaryCodec.fieldSize(keyBytes);
+			break;
+		case SERVER_PUT:
+			keyBytes = BinaryCodec.encode(key);
+			valueBytes = BinaryCodec.encode(value);
+			size += BinaryCodec.fieldSize(keyBytes) + BinaryCodec.fieldSize(valueBytes);
+			break;
+		case SERVER_PUT_ALL:
+			/* the data may change while it is sent, so the entries are collected once */
+			hashes = new ArrayList<HashKey>(serverData.size());
+			values = new ArrayList<byte[]>(serverData.size());
+			for (Map.Entry<HashKey, String> entry : serverData) {
+				byte[] entryValue = BinaryCodec.encode(entry.getValue());
+				hashes.add(entry.getKey());
+				values.add(entryValue);
+				size += HashKey.SIZE + BinaryCodec.fieldSize(entryValue);
+			}
+			size += BinaryCodec.varintSize(values.size());
+			break;
+		case SERVER_PUT_BATCH:
+			fields = new ArrayList<byte[]>(2 * keys.size());
+			for (int i = 0; i < keys.size(); i++) {
+				byte[] entryKey = BinaryCodec.encode(keys.get(i));
+				byte[] entryValue = BinaryCodec.encode(this.values.get(i));
+				fields.add(entryKey);
+				fields.add(entryValue);
+				size += BinaryCodec.fieldSize(entryKey) + BinaryCodec.fieldSize(entryValue) + 8;
+			}
+			size += BinaryCodec.varintSize(keys.size());
+			break;
+		case SERVER_SYNC_CHUNK:
+			values = new ArrayList<byte[]>(entries.size());
+			for (Map.Entry<HashKey, String> entry : entries) {
+				byte[] entryValue = BinaryCodec.encode(entry.getValue());
+				values.add(entryValue);
+				size += HashKey.SIZE + BinaryCodec.fieldSize(entryValue) + 8;
+			}
+			size += 8 + 1 + (after != null ? HashKey.SIZE : 0) + BinaryCodec.varintSize(entries.size());
+			break;
+		case SERVER_ACK:
+			size += 8;
+			break;
+		case SERVER_READ:
+			keyBytes = BinaryCodec.encode(key);
+			size += BinaryCodec.fieldSize(keyBytes) + 1;
+			if (reply) {
+				valueBytes = BinaryCodec.encode(value);
+				size += BinaryCodec.fieldSize(valueBytes) + 8;
+			}
+			break;
+		case SERVER_MERKLE:
+			size += 1 + BinaryCodec.varintSize(depth) + BinaryCodec.varintSize(level);
+			if (reply) {
+				size += BinaryCodec.varintSize(this.hashes.length) + 8 * this.hashes.length;
+			} else {
+				size += varintsSize(nodes);
+			}
+			break;
+		case SERVER_MERKLE_KEYS:
+			size += 1 + BinaryCodec.varintSize(depth);
+			if (reply) {
+				size += BinaryCodec.varintSize(hashKeys.length) + (HashKey.SIZE + 8) * hashKeys.length;
+			} else {
+				size += varintsSize(nodes);
+			}
+			break;
+		case SERVER_REPAIR:
+			values = new ArrayList<byte[]>(entries.size());
+			for (Map.Entry<HashKey, String> entry : entries) {
+				byte[] entryValue = BinaryCodec.encode(entry.getValue());
+				values.add(entryValue);
+				size += HashKey.SIZE + BinaryCodec.fieldSize(entryValue) + 8;
+			}
+			size += BinaryCodec.varintSize(entries.size());
+			break;
+		}
+
+		ByteBuffer buffer = BinaryCodec.allocate(OPCODE_OFFSET + command.ordinal(), size);
+		BinaryCodec.writeVarint(buffer, numServer);
+		switch (command) {
+		case SERVER_DELETE:
+			BinaryCodec.writeBytes(buffer, keyBytes);
+			break;
+		case SERVER_PUT:
+			BinaryCodec.writeBytes(buffer, keyBytes);
+			BinaryCodec.writeBytes(buffer, valueBytes);
+			break;
+		case SERVER_PUT_ALL:
+			BinaryCodec.writeVarint(buffer, values.size());
+			for (int i = 0; i < values.size(); i++) {
+				hashes.get(i).write(buffer);
+				BinaryCodec.writeBytes(buffer, values.get(i));
+			}
+			break;
+		case SERVER_PUT_BATCH:
+			BinaryCodec.writeVarint(buffer, keys.size());
+			for (int i = 0; i < keys.size(); i++) {
+				BinaryCodec.writeBytes(buffer, fields.get(2 * i));
+				BinaryCodec.writeBytes(buffer, fields.get(2 * i + 1));
+				buffer.putLong(versions != null ? versions.get(i) : 0);
+			}
+			break;
+		case SERVER_SYNC_CHUNK:
+			buffer.putLong(streamId);
+			buffer.put((byte) ((lastChunk ? 1 : 0) | (after != null ? 2 : 0)));
+			if (after != null) {
+				after.write(buffer);
+			}
+			BinaryCodec.writeVarint(buffer, entries.size());
+			for (int i = 0; i < entries.size(); i++) {
+				entries.get(i).getKey().write(buffer);
+				BinaryCodec.writeBytes(buffer, values.get(i));
+				buffer.putLong(entryVersions[i]);
+			}
+			break;
+		case SERVER_ACK:
+			buffer.putLong(sequence);
+			break;
+		case SERVER_READ:
+			BinaryCodec.writeBytes(buffer, keyBytes);
+			buffer.put((byte) (reply ? 1 : 0));
+			if (reply) {
+				BinaryCodec.writeBytes(buffer, valueBytes);
+				buffer.putLong(version);
+			}
+			break;
+		case SERVER_MERKLE:
+			buffer.put((byte) (reply ? 1 : 0));
+			BinaryCodec.writeVarint(buffer, depth);
+			BinaryCodec.writeVarint(buffer, level);
+			if (reply) {
+				BinaryCodec.writeVarint(buffer, this.hashes.length);
+				for (long hash : this.hashes) {
+					buffer.putLong(hash);
+				}
+			} else {
+				writeVarints(buffer, nodes);
+			}
+			break;
+		case SERVER_MERKLE_KEYS:
+			buffer.put((byte) (reply ? 1 : 0));
+			BinaryCodec.writeVarint(buffer, depth);
+			if (reply) {
+				BinaryCodec.writeVarint(buffer, hashKeys.length);
+				for (int i = 0; i < hashKeys.length; i++) {
+					hashKeys[i].write(buffer);
+					buffer.putLong(this.hashes[i]);
+				}
+			} else {
+				writeVarints(buffer, nodes);
+			}
+			break;
+		case SERVER_REPAIR:
+			BinaryCodec.writeVarint(buffer, entries.size());
+			for (int i = 0; i < entries.size(); i++) {
+				entries.get(i).getKey().write(buffer);
+				BinaryCodec.writeBytes(buffer, values.get(i));
+				buffer.putLong(entryVersions[i]);
+			}
+			break;
+		}
+		return buffer.array();
+	}
+
+	private static int varintsSize(int[] numbers) {
+		int size = BinaryCodec.varintSize(numbers.length);
+		for (int number : numbers) {
+			size += BinaryCodec.varintSize(number);
+		}
+		return size;
+	}
+
+	private static void writeVarints(ByteBuffer buffer, int[] numbers) {
+		BinaryCodec.writeVarint(buffer, numbers.length);
+		for (int number : numbers) {
+			BinaryCodec.writeVarint(buffer, number);
+		}
+	}
+
+	private static int[] readVarints(ByteBuffer buffer) throws InvalidMessageException {
+		int count = BinaryCodec.readVarint(buffer);
+		/* every number takes at least one byte */
+		if (count > buffer.remaining()) {
+			throw new InvalidMessageException("Binary message ended within a list of numbers.");
+		}
+		int[] numbers = new int[count];
+		for (int i = 0; i < count; i++) {
+			numbers[i] = BinaryCodec.readVarint(buffer);
+		}
+		return numbers;
+	}
+
+	private void readBinary(byte[] bytes) throws InvalidMessageException {
+		ByteBuffer buffer = BinaryCodec.readHeader(bytes);
+		int opcode = (buffer.get() & 0xFF) - OPCODE_OFFSET;
+		if (opcode < 0 || opcode >= COMMANDS.length) {
+			throw new InvalidMessageException("This code does not represent a command.");
+		}
+		command = COMMANDS[opcode];
+		numServer = BinaryCodec.readVarint(buffer);
+
+		switch (command) {
+		case SERVER_PUT_ALL:
+			int count = BinaryCodec.readVarint(buffer);
+			KVData data = new KVData();
+			try {
+				for (int i = 0; i < count; i++) {
+					HashKey hash = HashKey.read(buffer);
+					data.dataStore.put(hash, BinaryCodec.readString(buffer));
+				}
+			} catch (BufferUnderflowException e) {
+				throw new InvalidMessageException("Binary message ended within the data of " + command + ".");
+			}
+			serverData = data;
+			break;
+		case SERVER_PUT:
+			key = BinaryCodec.readString(buffer);
+			value = BinaryCodec.readString(buffer);
+			break;
+		case SERVER_DELETE:
+			key = BinaryCodec.readString(buffer);
+			break;
+		case SERVER_PUT_BATCH:
+			int size = BinaryCodec.readVarint(buffer);
+			/* every tuple takes at least ten bytes, a bogus count must not allocate huge lists */
+			keys = new ArrayList<String>(Math.min(size, buffer.remaining() / 10));
+			values = new ArrayList<String>(Math.min(size, buffer.remaining() / 10));
+			versions = new ArrayList<Long>(Math.min(size, buffer.remaining() / 10));
+			try {
+				for (int i = 0; i < size; i++) {
+					keys.add(BinaryCodec.readString(buffer));
+					values.add(BinaryCodec.readString(buffer));
+					versions.add(buffer.getLong());
+				}
+			} catch (BufferUnderflowException e) {
+				throw new InvalidMessageException("Binary message ended within the data of " + command + ".");
+			}
+			break;
+		case SERVER_SYNC_CHUNK:
+			try {
+				streamId = buffer.getLong();
+				int flags = buffer.get();
+				lastChunk = (flags & 1) != 0;
+				after = (flags & 2) != 0 ? HashKey.read(buffer) : null;
+				int entryCount = BinaryCodec.readVarint(buffer);
+				/* every entry takes at least 25 bytes */
+				if (entryCount > buffer.remaining() / (HashKey.SIZE + 9)) {
+					throw new InvalidMessageException("Binary message ended within the entries of " + command + ".");
+				}
+				entries = new ArrayList<Map.Entry<HashKey, String>>(entryCount);
+				entryVersions = new long[entryCount];
+				for (int i = 0; i < entryCount; i++) {
+					HashKey hash = HashKey.read(buffer);
+					entries.add(new AbstractMap.SimpleImmutableEntry<HashKey, String>(hash, BinaryCodec.readString(buffer)));
+					entryVersions[i] = buffer.getLong();
+				}
+			} catch (BufferUnderflowException e) {
+				throw new InvalidMessageException("Binary message ended within the data of " + command + ".");
+			}
+			break;
+		case SERVER_ACK:
+			if (buffer.remaining() < 8) {
+				throw new InvalidMessageException("Binary message ended within the sequence number of " + command + ".");
+			}
+			sequence = buffer.getLong();
+			break;
+		case SERVER_READ:
+			try {
+				key = BinaryCodec.readString(buffer);
+				reply = buffer.get() != 0;
+				if (reply) {
+					value = BinaryCodec.readString(buffer);
+					version = buffer.getLong();
+				}
+			} catch (BufferUnderflowException e) {
+				throw new InvalidMessageException("Binary message ended within the data of " + command + ".");
+			}
+			break;
+		case SERVER_MERKLE:
+			try {
+				reply = buffer.get() != 0;
+				depth = BinaryCodec.readVarint(buffer);
+				level = BinaryCodec.readVarint(buffer);
+				if (reply) {
+					int hashCount = BinaryCodec.readVarint(buffer);
+					if (hashCount > buffer.remaining() / 8) {
+						throw new InvalidMessageException("Binary message ended within the hashes of " + command + ".");
+					}
+					hashes = new long[hashCount];
+					for (int i = 0; i < hashCount; i++) {
+						hashes[i] = buffer.getLong();
+					}
+				} else {
+					nodes = readVarints(buffer);
+				}
+			} catch (BufferUnderflowException e) {
+				throw new InvalidMessageException("Binary message ended within the data of " + command + ".");
+			}
+			break;
+		case SERVER_MERKLE_KEYS:
+			try {
+				reply = buffer.get() != 0;
+				depth = BinaryCodec.readVarint(buffer);
+				if (reply) {
+					int keyCount = BinaryCodec.readVarint(buffer);
+					if (keyCount > buffer.remaining() / (HashKey.SIZE + 8)) {
+						throw new InvalidMessageException("Binary message ended within the keys of " + command + ".");
+					}
+					hashKeys = new HashKey[keyCount];
+					hashes = new long[keyCount];
+					for (int i = 0; i < keyCount; i++) {
+						hashKeys[i] = HashKey.read(buffer);
+						hashes[i] = buffer.getLong();
+					}
+				} else {
+					nodes = readVarints(buffer);
+				}
+			} catch (BufferUnderflowException e) {
+				throw new InvalidMessageException("Binary message ended within the data of " + command + ".");
+			}
+			break;
+		case SERVER_REPAIR:
+			try {
+				int entryCount = BinaryCodec.readVarint(buffer);
+				/* every entry takes at least 25 bytes */
+				if (entryCount > buffer.remaining() / (HashKey.SIZE + 9)) {
+					throw new InvalidMessageException("Binary message ended within the entries of " + command + ".");
+				}
+				entries = new ArrayList<Map.Entry<HashKey, String>>(entryCount);
+				entryVersions = new long[entryCount];
+				for (int i = 0; i < entryCount; i++) {
+					HashKey hash = HashKey.read(buffer);
+					entries.add(new AbstractMap.SimpleImmutableEntry<HashKey, String>(hash, BinaryCodec.readString(buffer)));
+					entryVersions[i] = buffer.getLong();
+				}
+			} catch (BufferUnderflowException e) {
+				throw new InvalidMessageException("Binary message ended within the data of " + command + ".");
+			}
+			break;
+		}
+		BinaryCodec.checkFullyRead(buffer);
+	}
+
+	/* same format as KVData.toString(), read by KVData(String) */
+	private static String serialize(StorageEngine data) {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<HashKey, String> entry : data) {
+			builder.append(entry.getKey().toString()).append("$$$").append(entry.getValue()).append("###");
+		}
+		return builder.toString();
+	}
+
 	private void checkLength(int length) throws InvalidMessageException {
 		switch (command) {
 		case SERVER_PUT:
@@ -141,6 +777,8 @@ public class ServerServerMessage {
 				throw new InvalidMessageException("Incorrect number of arguments");
 			}
 			break;
+		default:
+			throw new InvalidMessageException(command + " only exists in the binary format.");
 		}
 	}
 
@@ -157,6 +795,119 @@ public class ServerServerMessage {
 		return value;
 	}
 
+	/**
+	 * @return the keys of SERVER_PUT_BATCH
+	 */
+	public List<String> getKeys() {
+		return keys;
+	}
+
+	/**
+	 * @return the values of SERVER_PUT_BATCH, in the order of the keys
+	 */
+	public List<String> getValues() {
+		return values;
+	}
+
+	/**
+	 * @return the version stamps of SERVER_PUT_BATCH, in the order of the keys, 0 for tuples without a stamp;
+	 * null if the message was created without stamps
+	 */
+	public List<Long> getVersions() {
+		return versions;
+	}
+
+	/**
+	 * @return true if the SERVER_READ, SERVER_MERKLE or SERVER_MERKLE_KEYS is the reply
+	 */
+	public boolean isReply() {
+		return reply;
+	}
+
+	/**
+	 * @return the version stamp of the key of a SERVER_READ reply, 0 if it has none
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the stream of a SERVER_SYNC_CHUNK
+	 */
+	public long getStreamId() {
+		return streamId;
+	}
+
+	/**
+	 * @return the key after which a SERVER_SYNC_CHUNK continues, null for the first chunk
+	 */
+	public HashKey getAfter() {
+		return after;
+	}
+
+	/**
+	 * @return the entries of a SERVER_SYNC_CHUNK in ascending key order, or of a SERVER_REPAIR
+	 */
+	public List<Map.Entry<HashKey, String>> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return true if the SERVER_SYNC_CHUNK is the last one of its stream
+	 */
+	public boolean isLastChunk() {
+		return lastChunk;
+	}
+
+	/**
+	 * @return the depth of the Merkle tree of a SERVER_MERKLE or SERVER_MERKLE_KEYS
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the level of the nodes of a SERVER_MERKLE
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return the nodes of a SERVER_MERKLE or the leaves of a SERVER_MERKLE_KEYS request
+	 */
+	public int[] getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @return the hashes of the nodes of a SERVER_MERKLE reply or of the pairs of a SERVER_MERKLE_KEYS reply
+	 */
+	public long[] getHashes() {
+		return hashes;
+	}
+
+	/**
+	 * @return the keys of a SERVER_MERKLE_KEYS reply
+	 */
+	public HashKey[] getHashKeys() {
+		return hashKeys;
+	}
+
+	/**
+	 * @return the version stamps of the entries of a SERVER_REPAIR or SERVER_SYNC_CHUNK
+	 */
+	public long[] getEntryVersions() {
+		return entryVersions;
+	}
+
+	/**
+	 * @return the sequence number of the replication batch a SERVER_ACK acknowledges
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
 	public int getNumServer() {
 		return numServer;
 	}
@@ -169,7 +920,7 @@ public class ServerServerMessage {
 		}
 	}
 
-	public KVData getData() {
+	public StorageEngine getData() {
 		return serverData;
 	}
 }
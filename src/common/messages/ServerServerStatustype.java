@@ -3,5 +3,12 @@ package common.messages;
 public enum ServerServerStatustype {
 	SERVER_PUT_ALL,
 	SERVER_PUT,
-	SERVER_DELETE
+	SERVER_DELETE,
+	SERVER_PUT_BATCH,
+	SERVER_SYNC_CHUNK,
+	SERVER_ACK,
+	SERVER_READ,
+	SERVER_MERKLE,
+	SERVER_MERKLE_KEYS,
+	SERVER_REPAIR
 }
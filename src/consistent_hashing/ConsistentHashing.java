@@ -1,7 +1,7 @@
 package consistent_hashing;
 
 import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -27,18 +27,29 @@ import common.ServerData;
  *
  */
 public class ConsistentHashing {
-	private static MessageDigest md5digest;
+	/* MessageDigest is not thread-safe, so every thread hashes with its own instance and output buffer */
+	private static final ThreadLocal<MessageDigest> md5digest = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				logger.error("Failed to create MessageDigest. The specified algorithm is not supported.");
+				throw new IllegalStateException("MD5 is not supported: " + e.getMessage());
+			}
+		}
+	};
+	private static final ThreadLocal<byte[]> digestBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[HashKey.SIZE];
+		}
+	};
 	private static Logger logger;
-	private SortedMap<BigInteger, String> hashCircle;
+	private SortedMap<HashKey, String> hashCircle;
 
 	static {
 		initLog();
-		try {
-			md5digest = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			logger.error("Failed to create MessageDigest. The specified algorithm is not supported.");
-			// e.printStackTrace();
-		}
 	}
 
 	public static void initLog() {
@@ -50,7 +61,7 @@ public class ConsistentHashing {
 	 * Enables Consistent Hashing, start with empty circle
 	 */
 	public ConsistentHashing() {
-		hashCircle =  new TreeMap<BigInteger, String>();
+		hashCircle =  new TreeMap<HashKey, String>();
 	}
 
 	/**
@@ -59,16 +70,9 @@ public class ConsistentHashing {
 	 */
 	public ConsistentHashing(ArrayList<ServerData> servers) {
 		initLog();
-		hashCircle =  new TreeMap<BigInteger, String>();
+		hashCircle =  new TreeMap<HashKey, String>();
 		logger = Logger.getRootLogger();
 
-		try {
-			md5digest = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			logger.error("Failed to create MessageDigest. The specified algorithm is not supported.");
-			// e.printStackTrace();
-		}
-
 		for (ServerData server : servers) {
 			addServer(server.getAddress(), server.getPort());
 		}
@@ -80,17 +84,14 @@ public class ConsistentHashing {
 	 * @param port Remote port number
 	 * @return 128-bit md5 hash
 	 */
-	public static BigInteger hashServer(String address, int port) {
+	public static HashKey hashServer(String address, int port) {
 		String hashStr = address + ":" + port;
 		try {
-			md5digest.reset();
-			byte[] bytes = md5digest.digest(hashStr.getBytes("US-ASCII"));
-			return new BigInteger(1,bytes);
-			//return byteArrToInt(bytes);
+			return md5(hashStr.getBytes("US-ASCII"));
 		} catch (UnsupportedEncodingException e) {
 			logger.error("Failed to generate hash for Server. The specified encoding is not supported.");
 			// e.printStackTrace();
-			return BigInteger.ZERO;
+			return HashKey.ZERO;
 		}
 	}
 
@@ -99,24 +100,35 @@ public class ConsistentHashing {
 	 * @param key A String key that should be hashed
 	 * @return 128-bit md5 hash
 	 */
-	public static BigInteger hashKey(String key) {
+	public static HashKey hashKey(String key) {
 		try {
-			md5digest.reset();
-			byte[] bytes = md5digest.digest(key.getBytes("US-ASCII"));
-			return new BigInteger(1,bytes);
+			return md5(key.getBytes("US-ASCII"));
 		} catch (UnsupportedEncodingException e) {
 			logger.error("Failed to generate hash for Server. The specified encoding is not supported.");
 			// e.printStackTrace();
-			return BigInteger.ZERO;
+			return HashKey.ZERO;
 		}
 	}
 
+	private static HashKey md5(byte[] input) {
+		MessageDigest digest = md5digest.get();
+		byte[] output = digestBuffer.get();
+		digest.reset();
+		digest.update(input);
+		try {
+			digest.digest(output, 0, output.length);
+		} catch (DigestException e) {
+			throw new IllegalStateException("Failed to generate md5 hash: " + e.getMessage());
+		}
+		return HashKey.fromBytes(output, 0);
+	}
+
 	/**
 	 * Add a new server, hashing it to the circle
 	 * @param address IP address of the server
 	 * @param port Remote port number of the server
 	 */
-	public void addServer(String address, int port) {
+	public synchronized void addServer(String address, int port) {
 		String name = address + ":" + port;
 		hashCircle.put(hashServer(address, port), name);
 	}
@@ -126,9 +138,9 @@ public class ConsistentHashing {
 	 * @param address IP address of the server
 	 * @param port Remote port number of the server
 	 */
-	public void removeServer(String address, int port) {
+	public synchronized void removeServer(String address, int port) {
 		String name = address + ":" + port;
-		for (BigInteger hash : hashCircle.keySet()) {
+		for (HashKey hash : hashCircle.keySet()) {
 			if (hashCircle.get(hash).equals(name)) {
 				hashCircle.remove(hash);
 				break;
@@ -140,7 +152,7 @@ public class ConsistentHashing {
 	 * Clear all server hashes from circle and replace with new data provided
 	 * @param servers List of servers to hash and add to the circle 
 	 */
-	public void update(ArrayList<ServerData> servers) {
+	public synchronized void update(ArrayList<ServerData> servers) {
 		hashCircle.clear();
 
 		if (servers != null && servers.size() > 0)
@@ -167,11 +179,11 @@ public class ConsistentHashing {
 			throw new EmptyServerDataException("There are no Servers in the hashCircle");
 		}
 
-		BigInteger keyHash = hashKey(key); // obtain hash of the provided key
+		HashKey keyHash = hashKey(key); // obtain hash of the provided key
 		// logger.debug("Key " + key + " hashed to " + keyHash);
 
 		if (!hashCircle.containsKey(keyHash)) { // hash of key not in circle? -> Find next larger server hash in clock-wise direction
-			SortedMap<BigInteger, String> tailMap = Collections.synchronizedSortedMap(hashCircle.tailMap(keyHash)); // Obtain the tailMap for the key hash
+			SortedMap<HashKey, String> tailMap = Collections.synchronizedSortedMap(hashCircle.tailMap(keyHash)); // Obtain the tailMap for the key hash
 
 			if (tailMap.isEmpty()) { // TailMap was empty, hence Wrap-around and return the first server in the map
 				try {
@@ -199,6 +211,19 @@ public class ConsistentHashing {
 		}
 	}
 
+	/**
+	 * Obtain the name of the responsible server for a hashed key
+	 * @param keyHash The hash of the key
+	 * @return The name ("<IP>:<Port>") of the responsible server, null if there are no servers in the hashCircle
+	 */
+	public synchronized String getServerNameForHash(HashKey keyHash) {
+		if (hashCircle.isEmpty()) {
+			return null;
+		}
+		SortedMap<HashKey, String> tailMap = hashCircle.tailMap(keyHash); // includes a server with equal hash
+		return hashCircle.get(tailMap.isEmpty() ? hashCircle.firstKey() : tailMap.firstKey());
+	}
+
 	/**
 	 * Return a list with the servers responsible for this key
 	 * @throws EmptyServerDataException thrown if there are no servers in the hash circle
@@ -226,10 +251,10 @@ public class ConsistentHashing {
 	}
 
 	private ServerData getNextServer(ServerData server) {
-		BigInteger hashServer = hashServer(server.getAddress(), server.getPort());
+		HashKey hashServer = hashServer(server.getAddress(), server.getPort());
 		boolean next = false;
 
-		for (BigInteger hash : hashCircle.keySet()) {
+		for (HashKey hash : hashCircle.keySet()) {
 			if (next) {
 				return serverDataFromValue(hashCircle.get(hash));
 			} else if (hashServer.equals(hash)) {
@@ -265,7 +290,7 @@ public class ConsistentHashing {
 	 * Obtain the hash-circle
 	 * @return The hash-circle as a SortedMap
 	 */
-	public SortedMap<BigInteger, String> getHashCircle() {
+	public SortedMap<HashKey, String> getHashCircle() {
 		return hashCircle;
 	}
 }
@@ -0,0 +1,151 @@
+package consistent_hashing;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * Unsigned 128-bit md5 hash of a key or a server, stored in two longs.
+ * Replaces BigInteger in the request path: creating, comparing and hashing
+ * a HashKey does not allocate anything besides the object itself.
+ * The decimal String form is the same as the one of the equivalent non-negative BigInteger,
+ * so it can be exchanged with other servers in text messages.
+ */
+public final class HashKey implements Comparable<HashKey> {
+
+	/** Size of a HashKey in bytes */
+	public static final int SIZE = 16;
+	public static final HashKey ZERO = new HashKey(0, 0);
+
+	private static final BigInteger TWO_POW_64 = BigInteger.ONE.shiftLeft(64);
+
+	private final long high;
+	private final long low;
+
+	public HashKey(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	/**
+	 * @param value a value interpreted as unsigned 64 bit number
+	 */
+	public static HashKey valueOf(long value) {
+		return new HashKey(0, value);
+	}
+
+	/**
+	 * Read a key from 16 bytes in big-endian order.
+	 */
+	public static HashKey fromBytes(byte[] bytes, int offset) {
+		long high = 0;
+		long low = 0;
+		for (int i = 0; i < 8; i++) {
+			high = (high << 8) | (bytes[offset + i] & 0xFF);
+			low = (low << 8) | (bytes[offset + 8 + i] & 0xFF);
+		}
+		return new HashKey(high, low);
+	}
+
+	/**
+	 * Read a key from the next 16 bytes of the buffer.
+	 */
+	public static HashKey read(ByteBuffer buffer) {
+		long high = buffer.getLong();
+		long low = buffer.getLong();
+		return new HashKey(high, low);
+	}
+
+	/**
+	 * Parse the decimal representation returned by {@link #toString()}.
+	 * @throws NumberFormatException if the String is no number in the range 0 to 2^128-1
+	 */
+	public static HashKey parse(String value) throws NumberFormatException {
+		return fromBigInteger(new BigInteger(value.trim()));
+	}
+
+	/**
+	 * @throws NumberFormatException if the value is not in the range 0 to 2^128-1
+	 */
+	public static HashKey fromBigInteger(BigInteger value) throws NumberFormatException {
+		if (value.signum() < 0 || value.bitLength() > 128) {
+			throw new NumberFormatException(value + " is not an unsigned 128-bit number");
+		}
+		return new HashKey(value.shiftRight(64).longValue(), value.longValue());
+	}
+
+	public BigInteger toBigInteger() {
+		BigInteger high = BigInteger.valueOf(this.high >>> 1).shiftLeft(1).or(BigInteger.valueOf(this.high & 1));
+		BigInteger low = BigInteger.valueOf(this.low >>> 1).shiftLeft(1).or(BigInteger.valueOf(this.low & 1));
+		return high.multiply(TWO_POW_64).add(low);
+	}
+
+	/**
+	 * Write the key as 16 bytes in big-endian order.
+	 */
+	public void write(ByteBuffer buffer) {
+		buffer.putLong(high);
+		buffer.putLong(low);
+	}
+
+	public byte[] toBytes() {
+		byte[] bytes = new byte[SIZE];
+		for (int i = 0; i < 8; i++) {
+			bytes[7 - i] = (byte) (high >>> (8 * i));
+			bytes[15 - i] = (byte) (low >>> (8 * i));
+		}
+		return bytes;
+	}
+
+	public long getHigh() {
+		return high;
+	}
+
+	public long getLow() {
+		return low;
+	}
+
+	public HashKey min(HashKey other) {
+		return compareTo(other) <= 0 ? this : other;
+	}
+
+	public HashKey max(HashKey other) {
+		return compareTo(other) >= 0 ? this : other;
+	}
+
+	public int compareTo(HashKey other) {
+		if (high != other.high) {
+			return (high ^ Long.MIN_VALUE) < (other.high ^ Long.MIN_VALUE) ? -1 : 1;
+		}
+		if (low != other.low) {
+			return (low ^ Long.MIN_VALUE) < (other.low ^ Long.MIN_VALUE) ? -1 : 1;
+		}
+		return 0;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof HashKey)) {
+			return false;
+		}
+		HashKey other = (HashKey) obj;
+		return high == other.high && low == other.low;
+	}
+
+	@Override
+	public int hashCode() {
+		/* md5 bits are evenly distributed already */
+		long bits = high ^ low;
+		return (int) (bits ^ (bits >>> 32));
+	}
+
+	/**
+	 * @return the decimal representation of the unsigned value
+	 */
+	@Override
+	public String toString() {
+		return toBigInteger().toString();
+	}
+}
@@ -0,0 +1,112 @@
+package crypto_protocol;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.crypto.Cipher;
+
+import common.Settings;
+
+/**
+ * The transfer encryptions a peer supports and the negotiation of the one used by a session.
+ * The client offers its suites in the ClientInitMessage, the server picks the first one it supports
+ * and names it in the ServerInitMessage. Peers that do not offer a list use {@link Settings#TRANSFER_ENCRYPTION}.
+ */
+public final class CipherSuites {
+	public static final String AES_CBC = "AES/CBC/PKCS5Padding";
+	public static final String AES_GCM = "AES/GCM/NoPadding";
+	/* length of the authentication tag of a GCM record in bits */
+	public static final int GCM_TAG_LENGTH = 128;
+	/* length of a GCM nonce in bytes */
+	public static final int GCM_NONCE_LENGTH = 12;
+
+	/* GCMParameterSpec is looked up at runtime, the project is built for Java 6 */
+	private static final Constructor<?> gcmParameterSpec = findGcmParameterSpec();
+	private static final List<String> supported = probeSupported();
+
+	private CipherSuites() {
+	}
+
+	/**
+	 * @return the suites this JVM can use, in order of preference
+	 */
+	public static List<String> getSupported() {
+		return supported;
+	}
+
+	public static boolean isSupported(String cipherSuite) {
+		return supported.contains(cipherSuite);
+	}
+
+	/**
+	 * @return true if the suite authenticates each record and needs a nonce per record
+	 */
+	public static boolean isAEAD(String cipherSuite) {
+		return AES_GCM.equals(cipherSuite);
+	}
+
+	/**
+	 * Pick the suite of a session on the server.
+	 * @param offered the suites offered by the client in order of its preference, null for a client without a list
+	 * @return the first offered suite this JVM supports, {@link Settings#TRANSFER_ENCRYPTION} if there is none
+	 */
+	public static String choose(List<String> offered) {
+		if (offered != null) {
+			for (String cipherSuite : offered) {
+				if (isSupported(cipherSuite)) {
+					return cipherSuite;
+				}
+			}
+		}
+		return Settings.TRANSFER_ENCRYPTION;
+	}
+
+	/**
+	 * @return the parameters of a GCM record with the given nonce
+	 */
+	static AlgorithmParameterSpec gcmParameters(byte[] nonce) throws InvalidAlgorithmParameterException {
+		if (gcmParameterSpec == null) {
+			throw new InvalidAlgorithmParameterException(AES_GCM + " is not supported by this JVM.");
+		}
+		try {
+			return (AlgorithmParameterSpec) gcmParameterSpec.newInstance(GCM_TAG_LENGTH, nonce);
+		} catch (InstantiationException e) {
+			throw new InvalidAlgorithmParameterException("Unable to create GCM parameters: " + e.getMessage());
+		} catch (IllegalAccessException e) {
+			throw new InvalidAlgorithmParameterException("Unable to create GCM parameters: " + e.getMessage());
+		} catch (InvocationTargetException e) {
+			throw new InvalidAlgorithmParameterException("Unable to create GCM parameters: " + e.getCause());
+		}
+	}
+
+	private static Constructor<?> findGcmParameterSpec() {
+		try {
+			return Class.forName("javax.crypto.spec.GCMParameterSpec").getConstructor(int.class, byte[].class);
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static List<String> probeSupported() {
+		List<String> suites = new ArrayList<String>();
+		for (String cipherSuite : new String[] { Settings.PREFERRED_TRANSFER_ENCRYPTION, Settings.TRANSFER_ENCRYPTION }) {
+			if (suites.contains(cipherSuite) || (isAEAD(cipherSuite) && gcmParameterSpec == null)) {
+				continue;
+			}
+			try {
+				Cipher.getInstance(cipherSuite);
+				suites.add(cipherSuite);
+			} catch (Exception e) {
+				// not available in this JVM
+			}
+		}
+		return Collections.unmodifiableList(suites);
+	}
+}
@@ -2,13 +2,18 @@ package crypto_protocol;
 
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 
 import common.Settings;
 
 /**
  * Initial Message sent by the Client
- * Contains the client nonce and chosen cipher suite.
+ * Contains the client nonce, the cipher suite of clients without negotiation
+ * and the cipher suites offered to the server.
+ * A client that resumes a session also sends its session ticket.
  * @author Elias Tatros
  *
  */
@@ -24,8 +29,18 @@ public class ClientInitMessage implements Message, Serializable {
 	private byte[] clientNonce;
 	/* Chosen cipher suite */
 	private String cipherSuite = Settings.TRANSFER_ENCRYPTION;
+	/* Offered cipher suites in order of preference, null if sent by a client without negotiation */
+	private ArrayList<String> offeredCiphers = new ArrayList<String>(CipherSuites.getSupported());
+	/* Ticket of the session to resume, null for a full handshake */
+	private byte[] sessionTicket;
 	
 	public ClientInitMessage() {
+		this(null);
+	}
+	
+	public ClientInitMessage(byte[] sessionTicket) {
+		this.sessionTicket = sessionTicket;
+		
 		/* Generate Nonce */
 		this.clientNonce = new byte[nonceLength];
 		
@@ -33,6 +48,16 @@ public class ClientInitMessage implements Message, Serializable {
 		rand.nextBytes(this.clientNonce);
 	}
 	
+	/**
+	 * Constructor for a message decoded by the {@link MessageCodec}
+	 */
+	ClientInitMessage(byte[] clientNonce, String cipherSuite, List<String> offeredCiphers, byte[] sessionTicket) {
+		this.clientNonce = clientNonce;
+		this.cipherSuite = cipherSuite;
+		this.offeredCiphers = new ArrayList<String>(offeredCiphers);
+		this.sessionTicket = sessionTicket;
+	}
+	
 	public MessageType getType() {
 		return MESSAGE_TYPE;
 	}
@@ -45,10 +70,23 @@ public class ClientInitMessage implements Message, Serializable {
 		return this.cipherSuite;
 	}
 	
+	/**
+	 * @return the offered cipher suites in order of preference
+	 */
+	public List<String> getOfferedCiphers() {
+		if (offeredCiphers == null)
+			return Collections.singletonList(cipherSuite);
+		return Collections.unmodifiableList(offeredCiphers);
+	}
+	
+	public byte[] getSessionTicket() {
+		return this.sessionTicket;
+	}
+	
 	@Override
 	public String toString() {
 		try {
-			return new String("Type: " + MESSAGE_TYPE + ", cipherSuite: " + cipherSuite + ", nonce: " + new String(clientNonce, Settings.CHARSET));
+			return new String("Type: " + MESSAGE_TYPE + ", cipherSuite: " + cipherSuite + ", offered: " + offeredCiphers + ", ticket: " + (sessionTicket != null) + ", nonce: " + new String(clientNonce, Settings.CHARSET));
 		} catch (UnsupportedEncodingException e) {
 			return new String("Type: " + MESSAGE_TYPE + ", cipherSuite: " + cipherSuite + ", nonce: " + "<ENCODING_NOT_SUPPORTED> " + e.getMessage());
 		} 
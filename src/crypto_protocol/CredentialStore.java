@@ -0,0 +1,190 @@
+package crypto_protocol;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.SignatureException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import common.CommonCrypto;
+import common.Settings;
+
+/**
+ * The credentials of this process: the CA certificate, the trusted CAs, the own certificate
+ * and the own private key. They are read from disk once and shared by all handshakes
+ * instead of being imported again for every connection.
+ * A store is immutable, {@link #reloadServer()} and {@link #reloadClient()} replace it
+ * with a store read from the current files, handshakes in progress keep the old one.
+ * The store also remembers the peer certificates it verified, so a peer that connects again
+ * is not verified again. Only the validity period of these certificates is checked again.
+ */
+public final class CredentialStore {
+	/* verified peer certificates kept per store */
+	public static final int VERIFIED_CACHE_SIZE = 1024;
+
+	private static CredentialStore server;
+	private static CredentialStore client;
+
+	private final X509Certificate caCertificate;
+	private final List<X509Certificate> trustedCAs;
+	private final X509Certificate certificate;
+	private final PrivateKey privateKey;
+	private final Map<X509Certificate, Boolean> verified;
+
+	private CredentialStore(String caPath, String certificatePath, String privateKeyPath)
+			throws CertificateException, IOException, InvalidKeySpecException, NoSuchAlgorithmException {
+		this.trustedCAs = Collections.unmodifiableList(loadTrustStore());
+		this.caCertificate = CommonCrypto.importCACertificate(caPath);
+		if (!isTrusted(caCertificate)) {
+			throw new CertificateException("CA Certificate: " + caCertificate.getSubjectX500Principal() + " is not a trusted CA.");
+		}
+		this.certificate = loadCertificate(certificatePath);
+		this.privateKey = CommonCrypto.loadPrivateKey(privateKeyPath, Charset.forName(Settings.CHARSET));
+		this.verified = new LinkedHashMap<X509Certificate, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<X509Certificate, Boolean> eldest) {
+				return size() > VERIFIED_CACHE_SIZE;
+			}
+		};
+	}
+
+	/**
+	 * @return the credentials of the server, read from the files in {@link Settings} on first use
+	 */
+	public static synchronized CredentialStore getServer()
+			throws CertificateException, IOException, InvalidKeySpecException, NoSuchAlgorithmException {
+		if (server == null) {
+			server = new CredentialStore(Settings.getCACertPath(), Settings.SERVER_CERT_PATH, Settings.SERVER_PRIVKEY_PATH);
+		}
+		return server;
+	}
+
+	/**
+	 * Read the credentials of the server again, e.g. after a certificate was renewed.
+	 * If they cannot be read the current credentials are kept.
+	 */
+	public static synchronized CredentialStore reloadServer()
+			throws CertificateException, IOException, InvalidKeySpecException, NoSuchAlgorithmException {
+		server = new CredentialStore(Settings.getCACertPath(), Settings.SERVER_CERT_PATH, Settings.SERVER_PRIVKEY_PATH);
+		return server;
+	}
+
+	/**
+	 * @return the credentials of the client, read from the files in {@link Settings} on first use
+	 */
+	public static synchronized CredentialStore getClient()
+			throws CertificateException, IOException, InvalidKeySpecException, NoSuchAlgorithmException {
+		if (client == null) {
+			client = new CredentialStore(Settings.getCACertPath(), Settings.CLIENT_CERT_PATH, Settings.CLIENT_PRIVKEY_PATH);
+		}
+		return client;
+	}
+
+	/**
+	 * Read the credentials of the client again, e.g. after a certificate was renewed.
+	 * If they cannot be read the current credentials are kept.
+	 */
+	public static synchronized CredentialStore reloadClient()
+			throws CertificateException, IOException, InvalidKeySpecException, NoSuchAlgorithmException {
+		client = new CredentialStore(Settings.getCACertPath(), Settings.CLIENT_CERT_PATH, Settings.CLIENT_PRIVKEY_PATH);
+		return client;
+	}
+
+	public X509Certificate getCACertificate() {
+		return caCertificate;
+	}
+
+	public List<X509Certificate> getTrustedCAs() {
+		return trustedCAs;
+	}
+
+	public X509Certificate getCertificate() {
+		return certificate;
+	}
+
+	public PrivateKey getPrivateKey() {
+		return privateKey;
+	}
+
+	/**
+	 * Verify that the certificate of a peer is valid and signed by the CA, see
+	 * {@link CommonCrypto#verifyCertificate(X509Certificate, X509Certificate)}.
+	 * The signature of a certificate that was verified before is not checked again.
+	 */
+	public void verify(X509Certificate peerCertificate) throws InvalidKeyException, CertificateException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+		if (peerCertificate == null)
+			throw new CertificateException("The specified subject certificate was null.");
+
+		boolean known;
+		synchronized (verified) {
+			known = verified.get(peerCertificate) != null;
+		}
+		if (known) {
+			peerCertificate.checkValidity();
+			return;
+		}
+
+		CommonCrypto.verifyCertificate(peerCertificate, caCertificate);
+		synchronized (verified) {
+			verified.put(peerCertificate, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * @return true if the certificate was verified by this store before
+	 */
+	public boolean isVerified(X509Certificate peerCertificate) {
+		synchronized (verified) {
+			return verified.containsKey(peerCertificate);
+		}
+	}
+
+	private boolean isTrusted(X509Certificate ca) throws CertificateException {
+		try {
+			return CommonCrypto.isCATrusted(ca, new ArrayList<X509Certificate>(trustedCAs));
+		} catch (InvalidKeyException e) {
+			throw new CertificateException("Unable to verify CA Certificate: " + e.getMessage());
+		} catch (NoSuchAlgorithmException e) {
+			throw new CertificateException("Unable to verify CA Certificate: " + e.getMessage());
+		} catch (NoSuchProviderException e) {
+			throw new CertificateException("Unable to verify CA Certificate: " + e.getMessage());
+		} catch (SignatureException e) {
+			throw new CertificateException("Unable to verify CA Certificate: " + e.getMessage());
+		}
+	}
+
+	private static ArrayList<X509Certificate> loadTrustStore() throws CertificateException {
+		try {
+			return CommonCrypto.loadTrustStore();
+		} catch (CertificateException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new CertificateException("Unable to load Trust Store: " + e.getMessage());
+		}
+	}
+
+	private static X509Certificate loadCertificate(String path) throws CertificateException, IOException {
+		InputStream certificateFile = new FileInputStream(path);
+		try {
+			CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
+			return (X509Certificate) certFactory.generateCertificate(certificateFile);
+		} finally {
+			certificateFile.close();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package crypto_protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import common.messages.BinaryCodec;
+import common.messages.InvalidMessageException;
+
+/**
+ * Explicit encoding of the handshake messages, replaces their Java serialization.
+ * A message uses the header of the {@link BinaryCodec} with the opcode {@link #OPCODE_OFFSET}
+ * plus its {@link MessageType}, followed by a byte of flags and the fields of the message,
+ * each written as a length and its bytes. Optional fields are empty if not set.
+ * Nothing but these fields is read from the peer, unlike an ObjectInputStream that creates
+ * any serializable class named by the stream before the peer is authenticated.
+ */
+public final class MessageCodec {
+	public static final int OPCODE_OFFSET = 0x60;
+	private static final int FLAG_CLIENT_AUTH = 0x01;
+	private static final int FLAG_RESUMED = 0x02;
+	private static final byte[] NONE = new byte[0];
+
+	private MessageCodec() {
+	}
+
+	/**
+	 * @return true if the bytes are a handshake message in this encoding, not a serialized object
+	 */
+	public static boolean isEncoded(byte[] bytes) {
+		if (bytes.length < BinaryCodec.HEADER_SIZE || !BinaryCodec.isBinary(bytes)) {
+			return false;
+		}
+		int ordinal = (bytes[2] & 0xFF) - OPCODE_OFFSET;
+		return ordinal >= 0 && ordinal < MessageType.values().length;
+	}
+
+	public static byte[] encode(Message message) throws IOException {
+		try {
+			switch (message.getType()) {
+			case ClientInitMessage:
+				ClientInitMessage clientInit = (ClientInitMessage) message;
+				return encode(MessageType.ClientInitMessage, 0, clientInit.getNonce(), BinaryCodec.encode(clientInit.getCipherSuite()),
+						BinaryCodec.encode(join(clientInit.getOfferedCiphers())), optional(clientInit.getSessionTicket()));
+			case ServerInitMessage:
+				ServerInitMessage serverInit = (ServerInitMessage) message;
+				return encode(MessageType.ServerInitMessage, (serverInit.isClientAuthRequired() ? FLAG_CLIENT_AUTH : 0) | (serverInit.isResumed() ? FLAG_RESUMED : 0),
+						serverInit.getNonce(), BinaryCodec.encode(serverInit.getCipherSuite()), serverInit.getCertificate().getEncoded());
+			case ClientKeyExchangeMessage:
+				ClientKeyExchangeMessage keyExchange = (ClientKeyExchangeMessage) message;
+				if (keyExchange.isClientAuthRequired()) {
+					return encode(MessageType.ClientKeyExchangeMessage, FLAG_CLIENT_AUTH, keyExchange.getEncryptedSecret(), keyExchange.getSecureSessionHash(),
+							keyExchange.getClientCertificate().getEncoded(), keyExchange.getSignature());
+				}
+				return encode(MessageType.ClientKeyExchangeMessage, 0, keyExchange.getEncryptedSecret(), keyExchange.getSecureSessionHash());
+			case ServerAuthConfirmationMessage:
+				ServerAuthConfirmationMessage confirmation = (ServerAuthConfirmationMessage) message;
+				return encode(MessageType.ServerAuthConfirmationMessage, confirmation.requireClientAuth ? FLAG_CLIENT_AUTH : 0,
+						confirmation.getConfirmationHash(), confirmation.getIV(), optional(confirmation.getSessionTicket()));
+			case ErrorMessage:
+				return encode(MessageType.ErrorMessage, 0, BinaryCodec.encode(((ErrorMessage) message).getMessage()));
+			default:
+				throw new IOException("Unable to encode handshake message of type " + message.getType());
+			}
+		} catch (CertificateEncodingException e) {
+			throw new IOException("Unable to encode certificate of " + message.getType() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @throws InvalidMessageException if the bytes are not a complete handshake message of a known type
+	 */
+	public static Message decode(byte[] bytes) throws InvalidMessageException {
+		ByteBuffer buffer = BinaryCodec.readHeader(bytes);
+		int ordinal = (buffer.get() & 0xFF) - OPCODE_OFFSET;
+		if (ordinal < 0 || ordinal >= MessageType.values().length) {
+			throw new InvalidMessageException("Unknown handshake message opcode " + (ordinal + OPCODE_OFFSET));
+		}
+		MessageType type = MessageType.values()[ordinal];
+		Message message;
+		try {
+			int flags = buffer.get();
+			switch (type) {
+			case ClientInitMessage:
+				message = new ClientInitMessage(BinaryCodec.readBytes(buffer), BinaryCodec.readString(buffer),
+						split(BinaryCodec.readString(buffer)), readOptional(buffer));
+				break;
+			case ServerInitMessage:
+				message = new ServerInitMessage(BinaryCodec.readBytes(buffer), BinaryCodec.readString(buffer), readCertificate(buffer),
+						(flags & FLAG_CLIENT_AUTH) != 0, (flags & FLAG_RESUMED) != 0);
+				break;
+			case ClientKeyExchangeMessage:
+				byte[] encryptedSecret = BinaryCodec.readBytes(buffer);
+				byte[] sessionHash = BinaryCodec.readBytes(buffer);
+				if ((flags & FLAG_CLIENT_AUTH) != 0) {
+					message = new ClientKeyExchangeMessage(encryptedSecret, sessionHash, readCertificate(buffer), BinaryCodec.readBytes(buffer));
+				} else {
+					message = new ClientKeyExchangeMessage(encryptedSecret, sessionHash);
+				}
+				break;
+			case ServerAuthConfirmationMessage:
+				message = new ServerAuthConfirmationMessage(BinaryCodec.readBytes(buffer), BinaryCodec.readBytes(buffer),
+						(flags & FLAG_CLIENT_AUTH) != 0, readOptional(buffer));
+				break;
+			case ErrorMessage:
+				message = new ErrorMessage(BinaryCodec.readString(buffer));
+				break;
+			default:
+				throw new InvalidMessageException("Unsupported handshake message " + type);
+			}
+		} catch (BufferUnderflowException e) {
+			throw new InvalidMessageException("Handshake message " + type + " is truncated.");
+		}
+		BinaryCodec.checkFullyRead(buffer);
+		return message;
+	}
+
+	private static byte[] encode(MessageType type, int flags, byte[]... fields) {
+		int size = 1;
+		for (byte[] field : fields) {
+			size += BinaryCodec.fieldSize(field);
+		}
+		ByteBuffer buffer = BinaryCodec.allocate(OPCODE_OFFSET + type.ordinal(), size);
+		buffer.put((byte) flags);
+		for (byte[] field : fields) {
+			BinaryCodec.writeBytes(buffer, field);
+		}
+		return buffer.array();
+	}
+
+	private static byte[] optional(byte[] field) {
+		return field != null ? field : NONE;
+	}
+
+	private static byte[] readOptional(ByteBuffer buffer) throws InvalidMessageException {
+		byte[] field = BinaryCodec.readBytes(buffer);
+		return field.length > 0 ? field : null;
+	}
+
+	private static X509Certificate readCertificate(ByteBuffer buffer) throws InvalidMessageException {
+		try {
+			CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
+			return (X509Certificate) certFactory.generateCertificate(new ByteArrayInputStream(BinaryCodec.readBytes(buffer)));
+		} catch (CertificateException e) {
+			throw new InvalidMessageException("Invalid certificate in handshake message: " + e.getMessage());
+		}
+	}
+
+	/* cipher suite names do not contain commas */
+	private static String join(List<String> values) {
+		StringBuilder sb = new StringBuilder();
+		for (String value : values) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(value);
+		}
+		return sb.toString();
+	}
+
+	private static List<String> split(String values) {
+		List<String> list = new ArrayList<String>();
+		if (values.length() > 0) {
+			for (String value : values.split(",")) {
+				list.add(value);
+			}
+		}
+		return list;
+	}
+}
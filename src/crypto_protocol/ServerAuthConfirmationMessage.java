@@ -7,7 +7,8 @@ import common.Settings;
 
 /**
  * Final confirmation Message sent by server.
- * Contains HMAC of all message contents up to this point.
+ * Contains HMAC of all message contents up to this point
+ * and a new session ticket if the server issues tickets.
  * @author Elias Tatros
  *
  */
@@ -18,11 +19,17 @@ public class ServerAuthConfirmationMessage implements Message, Serializable {
 	private byte[] confirmationHash;
 	private byte[] IV;
 	boolean requireClientAuth;
+	private byte[] sessionTicket;
 
 	public ServerAuthConfirmationMessage(byte[] secureHash, byte[] IV, boolean requireClientAuth) {
+		this(secureHash, IV, requireClientAuth, null);
+	}
+
+	public ServerAuthConfirmationMessage(byte[] secureHash, byte[] IV, boolean requireClientAuth, byte[] sessionTicket) {
 		this.requireClientAuth = requireClientAuth;
 		this.confirmationHash = secureHash;
 		this.IV = IV;
+		this.sessionTicket = sessionTicket;
 	}
 	
 	public byte[] getConfirmationHash() {
@@ -33,6 +40,13 @@ public class ServerAuthConfirmationMessage implements Message, Serializable {
 		return this.IV;
 	}
 	
+	/**
+	 * @return ticket to resume the session with, null if the server does not issue tickets
+	 */
+	public byte[] getSessionTicket() {
+		return this.sessionTicket;
+	}
+	
 	public MessageType getType() {
 		return MESSAGE_TYPE;
 	}
@@ -4,7 +4,7 @@ import java.io.File;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
@@ -13,7 +13,8 @@ import common.Settings;
 /**
  * First Message sent by Server during handshake.
  * Contains the Servers random nonce, used cipher suite, server certificate
- * and the authentication type (simple or mutual)
+ * and the authentication type (simple or mutual).
+ * If the session of the client's ticket is resumed, the ServerAuthConfirmationMessage follows immediately.
  * @author Elias Tatros
  *
  */
@@ -24,13 +25,19 @@ public class ServerInitMessage implements Message, Serializable {
 	public static final MessageType MESSAGE_TYPE = MessageType.ServerInitMessage;
 	private final int nonceLength = 28; // length of nonce in bytes
 	private byte[] serverNonce; // contains randomly generated nonce
-	private List<String> supportedCiphers = Arrays.asList(Settings.TRANSFER_ENCRYPTION);
+	private List<String> supportedCiphers = new ArrayList<String>(CipherSuites.getSupported());
 	private String cipherSuite = "";
 	private boolean requireClientAuth;
+	private boolean resumed;
 	private transient File certificateFile;
 	X509Certificate serverCertificate;
 	
 	public ServerInitMessage(String cipherSuite, X509Certificate serverCertificate, boolean requireClientAuth) {
+		this(cipherSuite, serverCertificate, requireClientAuth, false);
+	}
+	
+	public ServerInitMessage(String cipherSuite, X509Certificate serverCertificate, boolean requireClientAuth, boolean resumed) {
+		this.resumed = resumed;
 		this.serverNonce = new byte[nonceLength];
 		this.requireClientAuth = requireClientAuth;
 		this.serverCertificate = serverCertificate;
@@ -45,7 +52,16 @@ public class ServerInitMessage implements Message, Serializable {
 		}
 	}
 	
-
+	/**
+	 * Constructor for a message decoded by the {@link MessageCodec}
+	 */
+	ServerInitMessage(byte[] serverNonce, String cipherSuite, X509Certificate serverCertificate, boolean requireClientAuth, boolean resumed) {
+		this.serverNonce = serverNonce;
+		this.cipherSuite = cipherSuite;
+		this.serverCertificate = serverCertificate;
+		this.requireClientAuth = requireClientAuth;
+		this.resumed = resumed;
+	}
 	
 	public MessageType getType() {
 		return MESSAGE_TYPE;
@@ -65,6 +81,7 @@ public class ServerInitMessage implements Message, Serializable {
 		sb.append("Type: " + MESSAGE_TYPE);
 		sb.append(", CipherSuite: " + cipherSuite);
 		sb.append(", RequireClientAuth: " + requireClientAuth);
+		sb.append(", Resumed: " + resumed);
 		
 		if (this.certificateFile != null)
 			sb.append(", Cert File: " + this.certificateFile.getPath());
@@ -87,5 +104,12 @@ public class ServerInitMessage implements Message, Serializable {
 	public boolean isClientAuthRequired() {
 		return this.requireClientAuth;
 	}
+	
+	/**
+	 * @return true if the session of the client's ticket is resumed
+	 */
+	public boolean isResumed() {
+		return this.resumed;
+	}
 
 }
@@ -1,12 +1,12 @@
 package crypto_protocol;
 
 import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
 
 import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import logger.LogSetup;
@@ -23,7 +23,7 @@ import common.Settings;
  *
  */
 public class SessionInfo {
-	private Logger logger;
+	private static final Logger logger = new LogSetup("logs/session.log", "Session", Level.ALL).getLogger();
 	private String name;
 	private String clientIP;
 	private String serverIP;
@@ -42,6 +42,15 @@ public class SessionInfo {
 	private boolean clientAuthRequired;
 	private boolean isValid;
 	private Cipher cipher;
+	private String transferEncryption;
+	private boolean clientSide;
+	/* initialized with the session key and IV on first use, reset when either changes */
+	private Cipher encryptCipher;
+	private Cipher decryptCipher;
+	private SecretKeySpec transferKey;
+	/* sequence numbers of the records sent and received with an AEAD suite, guarded by the cipher of the direction */
+	private long sendSequence;
+	private long receiveSequence;
 
 	X509Certificate serverCertificate;
 	X509Certificate clientCertificate;
@@ -58,6 +67,7 @@ public class SessionInfo {
 			sb.append("\nserverIP: " + this.serverIP);
 			sb.append("\nlocalPort: " + this.localPort);
 			sb.append("\nremotePort: " + this.remotePort);
+			sb.append("\ntransferEncryption: " + this.transferEncryption);
 			
 			if (encKey != null)
 				sb.append("\nencKey: " + new String(encKey.getEncoded(), Settings.CHARSET));
@@ -126,7 +136,6 @@ public class SessionInfo {
 	}
 
 	public SessionInfo(String name, String transferEncryption) throws SessionException {
-		initLog();
 		this.name = "Session-" + name;
 		this.clientAuthRequired = false;
 		
@@ -144,6 +153,7 @@ public class SessionInfo {
 		this.clientCertificate = null;
 		
 		this.isValid = false;
+		this.transferEncryption = transferEncryption;
 		
 		try {
 			cipher = Cipher.getInstance(transferEncryption);
@@ -152,11 +162,6 @@ public class SessionInfo {
 		}
 	}
 	
-	public void initLog() {
-		LogSetup ls = new LogSetup("logs/session.log", "Session", Level.ALL);
-		this.logger = ls.getLogger();
-	}
-	
 	public void validateSession() throws SessionException {
 		if (this.encKey == null)
 			throw new SessionException("Session invalid. Encryption Key undefined.");
@@ -249,12 +254,34 @@ public class SessionInfo {
 		this.remotePort = remotePort;
 	}
 	
+	public String getTransferEncryption() {
+		return transferEncryption;
+	}
+
+	/**
+	 * Set the transfer encryption negotiated in the handshake, before the session key is set.
+	 * @param clientSide true for the session of the client, the nonces of an AEAD suite differ per direction
+	 */
+	public void setTransferEncryption(String transferEncryption, boolean clientSide) throws SessionException {
+		try {
+			cipher = Cipher.getInstance(transferEncryption);
+		} catch (Exception e) {
+			throw new SessionException("Session invalid. Unable to create cipher:\n" + e.getMessage());
+		}
+		this.transferEncryption = transferEncryption;
+		this.clientSide = clientSide;
+		resetTransferCiphers();
+		
+		logger.debug("Set Transfer Encryption: " + transferEncryption);
+	}
+	
 	public byte[] getIV() {
 		return this.IV;
 	}
 	
 	public void setIV(byte[] IV) {
 		this.IV = IV;
+		resetTransferCiphers();
 		
 		if (IV != null) {
 			try {
@@ -427,6 +454,7 @@ public class SessionInfo {
 		}
 		
 		this.encKey = value;
+		resetTransferCiphers();
 		
 		try {
 			/* Encrypt contents AES-CBC-128 */	 
@@ -445,6 +473,105 @@ public class SessionInfo {
 		}
 	}
 	
+	/**
+	 * Encrypt a message with the session key and IV. The cipher is initialized once
+	 * and reused for the following messages of the session. With an AEAD suite every record
+	 * gets its own nonce from the session IV and its sequence number, so the records
+	 * must be decrypted in the order they were encrypted.
+	 * @param plainBytes the message
+	 * @return the encrypted message
+	 * @throws GeneralSecurityException if the session key or IV is undefined or the message could not be encrypted
+	 */
+	public byte[] encrypt(byte[] plainBytes) throws GeneralSecurityException {
+		Cipher c;
+		synchronized (this) {
+			if (encryptCipher == null) {
+				encryptCipher = createTransferCipher(Cipher.ENCRYPT_MODE);
+			}
+			c = encryptCipher;
+		}
+		synchronized (c) {
+			if (CipherSuites.isAEAD(transferEncryption)) {
+				c.init(Cipher.ENCRYPT_MODE, transferKey, CipherSuites.gcmParameters(recordNonce(clientSide, sendSequence++)));
+			}
+			return c.doFinal(plainBytes);
+		}
+	}
+
+	/**
+	 * Decrypt a message with the session key and IV, using a cipher that is initialized once per session.
+	 * @param encryptedBytes the encrypted message
+	 * @return the decrypted message
+	 * @throws GeneralSecurityException if the session key or IV is undefined or the message could not be decrypted
+	 */
+	public byte[] decrypt(byte[] encryptedBytes) throws GeneralSecurityException {
+		Cipher c;
+		synchronized (this) {
+			if (decryptCipher == null) {
+				decryptCipher = createTransferCipher(Cipher.DECRYPT_MODE);
+			}
+			c = decryptCipher;
+		}
+		synchronized (c) {
+			try {
+				if (CipherSuites.isAEAD(transferEncryption)) {
+					/* a record that fails to authenticate is consumed as well */
+					c.init(Cipher.DECRYPT_MODE, transferKey, CipherSuites.gcmParameters(recordNonce(!clientSide, receiveSequence++)));
+				}
+				return c.doFinal(encryptedBytes);
+			} catch (GeneralSecurityException e) {
+				/* initialize a new cipher for the next message, in case the failure left this one in an undefined state */
+				synchronized (this) {
+					if (decryptCipher == c) {
+						decryptCipher = null;
+					}
+				}
+				throw e;
+			}
+		}
+	}
+
+	private Cipher createTransferCipher(int mode) throws GeneralSecurityException {
+		if (encKey == null || IV == null) {
+			throw new InvalidKeyException("Session key or IV undefined.");
+		}
+		/* the session key is derived with HMAC, its bytes are used as AES key */
+		transferKey = new SecretKeySpec(encKey.getEncoded(), "AES");
+		Cipher c = Cipher.getInstance(transferEncryption);
+		if (CipherSuites.isAEAD(transferEncryption)) {
+			/* initialized for each record */
+			if (IV.length < CipherSuites.GCM_NONCE_LENGTH) {
+				throw new InvalidKeyException("Session IV too short for " + transferEncryption + ".");
+			}
+		} else {
+			c.init(mode, transferKey, new IvParameterSpec(IV));
+		}
+		return c;
+	}
+
+	/*
+	 * The nonce of a record is the session IV XOR its sequence number. The records of the server
+	 * also flip the first bit, so the two directions never use the same nonce with the session key.
+	 */
+	private byte[] recordNonce(boolean fromClient, long sequence) {
+		byte[] nonce = new byte[CipherSuites.GCM_NONCE_LENGTH];
+		System.arraycopy(IV, 0, nonce, 0, nonce.length);
+		if (!fromClient) {
+			nonce[0] ^= (byte) 0x80;
+		}
+		for (int i = 0; i < 8; i++) {
+			nonce[nonce.length - 1 - i] ^= (byte) (sequence >>> (8 * i));
+		}
+		return nonce;
+	}
+
+	private synchronized void resetTransferCiphers() {
+		encryptCipher = null;
+		decryptCipher = null;
+		sendSequence = 0;
+		receiveSequence = 0;
+	}
+
 	public SecretKeySpec getMacKey() {
 		return this.macKey;
 	}
@@ -0,0 +1,29 @@
+package crypto_protocol;
+
+/**
+ * A session ticket kept by the client with the master secret of its session.
+ * The ticket itself can only be read by the servers.
+ */
+public class SessionTicket {
+	private final byte[] ticket;
+	private final byte[] masterSecret;
+	private final long expires;
+
+	public SessionTicket(byte[] ticket, byte[] masterSecret, long lifetimeMs) {
+		this.ticket = ticket;
+		this.masterSecret = masterSecret;
+		this.expires = System.currentTimeMillis() + lifetimeMs;
+	}
+
+	public byte[] getTicket() {
+		return ticket;
+	}
+
+	public byte[] getMasterSecret() {
+		return masterSecret;
+	}
+
+	public boolean isExpired() {
+		return System.currentTimeMillis() >= expires;
+	}
+}
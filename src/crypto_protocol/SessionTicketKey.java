@@ -0,0 +1,159 @@
+package crypto_protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.SignatureException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import common.Settings;
+
+/**
+ * Seals the master secret of a session into a ticket that the client presents to resume the session
+ * without RSA. The keys are derived from the private key of the server, so every server with the
+ * same key pair accepts the tickets of the others. A ticket is the IV, the AES-CBC encrypted state
+ * and an HMAC over both.
+ */
+public class SessionTicketKey {
+
+	/**
+	 * The state of a session restored from a ticket.
+	 */
+	public static class Contents {
+		private final long issued;
+		private final byte[] masterSecret;
+		private final X509Certificate clientCertificate;
+
+		Contents(long issued, byte[] masterSecret, X509Certificate clientCertificate) {
+			this.issued = issued;
+			this.masterSecret = masterSecret;
+			this.clientCertificate = clientCertificate;
+		}
+
+		public long getIssued() {
+			return issued;
+		}
+
+		public byte[] getMasterSecret() {
+			return masterSecret;
+		}
+
+		/**
+		 * @return the certificate the client authenticated with, null without client authentication
+		 */
+		public X509Certificate getClientCertificate() {
+			return clientCertificate;
+		}
+	}
+
+	private static final int IV_LENGTH = 16;
+
+	private final SecretKeySpec encKey;
+	private final SecretKeySpec macKey;
+	private final long lifetimeMs;
+
+	public SessionTicketKey(PrivateKey serverKey, long lifetimeMs) throws GeneralSecurityException {
+		Mac hmac = Mac.getInstance(Settings.ALGORITHM_HASHING);
+		hmac.init(new SecretKeySpec(serverKey.getEncoded(), Settings.ALGORITHM_HASHING));
+		this.encKey = new SecretKeySpec(Arrays.copyOf(hmac.doFinal(label("session ticket encryption")), 16), "AES");
+		this.macKey = new SecretKeySpec(hmac.doFinal(label("session ticket authentication")), Settings.ALGORITHM_HASHING);
+		this.lifetimeMs = lifetimeMs;
+	}
+
+	/**
+	 * @param clientCertificate the certificate of an authenticated client, null otherwise
+	 * @return the ticket for a session with the master secret
+	 */
+	public byte[] seal(byte[] masterSecret, X509Certificate clientCertificate) throws GeneralSecurityException, IOException {
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(plain);
+		byte[] certificate = clientCertificate != null ? clientCertificate.getEncoded() : new byte[0];
+		out.writeLong(System.currentTimeMillis());
+		out.writeInt(masterSecret.length);
+		out.write(masterSecret);
+		out.writeInt(certificate.length);
+		out.write(certificate);
+		out.flush();
+
+		Cipher cipher = Cipher.getInstance(Settings.TRANSFER_ENCRYPTION);
+		cipher.init(Cipher.ENCRYPT_MODE, encKey);
+		byte[] IV = cipher.getIV();
+		byte[] encrypted = cipher.doFinal(plain.toByteArray());
+
+		Mac hmac = Mac.getInstance(Settings.ALGORITHM_HASHING);
+		hmac.init(macKey);
+		hmac.update(IV);
+		hmac.update(encrypted);
+		byte[] tag = hmac.doFinal();
+
+		byte[] ticket = new byte[IV.length + encrypted.length + tag.length];
+		System.arraycopy(IV, 0, ticket, 0, IV.length);
+		System.arraycopy(encrypted, 0, ticket, IV.length, encrypted.length);
+		System.arraycopy(tag, 0, ticket, IV.length + encrypted.length, tag.length);
+		return ticket;
+	}
+
+	/**
+	 * @return the state of the session of the ticket
+	 * @throws GeneralSecurityException if the ticket was not sealed with this key, was modified or expired
+	 */
+	public Contents open(byte[] ticket) throws GeneralSecurityException {
+		Mac hmac = Mac.getInstance(Settings.ALGORITHM_HASHING);
+		hmac.init(macKey);
+		int tagLength = hmac.getMacLength();
+		if (ticket == null || ticket.length < IV_LENGTH + tagLength) {
+			throw new SignatureException("Session ticket too short.");
+		}
+		int encryptedLength = ticket.length - IV_LENGTH - tagLength;
+		hmac.update(ticket, 0, IV_LENGTH + encryptedLength);
+		byte[] tag = Arrays.copyOfRange(ticket, IV_LENGTH + encryptedLength, ticket.length);
+		if (!MessageDigest.isEqual(hmac.doFinal(), tag)) {
+			throw new SignatureException("Session ticket not issued with this key.");
+		}
+
+		Cipher cipher = Cipher.getInstance(Settings.TRANSFER_ENCRYPTION);
+		cipher.init(Cipher.DECRYPT_MODE, encKey, new IvParameterSpec(ticket, 0, IV_LENGTH));
+		byte[] plain = cipher.doFinal(ticket, IV_LENGTH, encryptedLength);
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+			long issued = in.readLong();
+			if (System.currentTimeMillis() - issued > lifetimeMs) {
+				throw new SignatureException("Session ticket expired.");
+			}
+			byte[] masterSecret = new byte[in.readInt()];
+			in.readFully(masterSecret);
+			byte[] certificate = new byte[in.readInt()];
+			in.readFully(certificate);
+			X509Certificate clientCertificate = null;
+			if (certificate.length > 0) {
+				CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
+				clientCertificate = (X509Certificate) certFactory.generateCertificate(new ByteArrayInputStream(certificate));
+			}
+			return new Contents(issued, masterSecret, clientCertificate);
+		} catch (IOException e) {
+			throw new SignatureException("Session ticket malformed: " + e.getMessage());
+		} catch (NegativeArraySizeException e) {
+			throw new SignatureException("Session ticket malformed.");
+		}
+	}
+
+	private static byte[] label(String label) {
+		try {
+			return label.getBytes(Settings.CHARSET);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package perf_eval;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import client.KVFuture;
+import client.KVStore;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+
+/**
+ * Load generator that keeps many requests in flight from a single application thread with the
+ * asynchronous KVStore API, instead of one ClientWrapper thread per simulated client.
+ * The same keys are then written and read with MPUT and MGET batches.
+ * Requires a running KVServer. Usage: AsyncClientBenchmark [address] [port] [requests] [inFlight]
+ */
+public class AsyncClientBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String address = args.length > 0 ? args[0] : ClientWrapper.defaultServer;
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : ClientWrapper.defaultPort;
+		int requests = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+		int inFlight = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+		KVStore store = new KVStore(address, port, "async benchmark");
+		System.out.println("Requests: " + requests + ", in flight: " + inFlight + ", client threads: 1");
+		run(store, StatusType.PUT, requests, inFlight);
+		run(store, StatusType.GET, requests, inFlight);
+		runBatch(store, StatusType.MPUT, requests);
+		runBatch(store, StatusType.MGET, requests);
+		store.closeAsync();
+	}
+
+	private static void run(KVStore store, StatusType type, int requests, int inFlight) throws InterruptedException {
+		final Semaphore window = new Semaphore(inFlight);
+		final CountDownLatch done = new CountDownLatch(requests);
+		final AtomicInteger failed = new AtomicInteger();
+		KVFuture.Listener listener = new KVFuture.Listener() {
+			public void completed(KVFuture future) {
+				if (future.isFailed()) {
+					failed.incrementAndGet();
+				}
+				window.release();
+				done.countDown();
+			}
+		};
+
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			window.acquire();
+			KVFuture future = type == StatusType.PUT ? store.putAsync("key" + i, "value" + i) : store.getAsync("key" + i);
+			future.addListener(listener);
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		System.out.println(String.format("%-4s %10.0f requests/s, %d failed", type, requests / (elapsed / 1e9), failed.get()));
+	}
+
+	private static void runBatch(KVStore store, StatusType type, int requests) throws InterruptedException {
+		Map<String, String> tuples = new LinkedHashMap<String, String>();
+		for (int i = 0; i < requests; i++) {
+			tuples.put("key" + i, "value" + i);
+		}
+
+		long start = System.nanoTime();
+		Map<String, KVMessage> results = type == StatusType.MPUT ? store.mput(tuples) : store.mget(new ArrayList<String>(tuples.keySet()));
+		long elapsed = System.nanoTime() - start;
+
+		int failed = 0;
+		for (KVMessage result : results.values()) {
+			if (result == null) {
+				failed++;
+			}
+		}
+		System.out.println(String.format("%-4s %10.0f keys/s, %d failed", type, requests / (elapsed / 1e9), failed));
+	}
+}
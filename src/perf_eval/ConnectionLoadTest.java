@@ -0,0 +1,224 @@
+package perf_eval;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+
+import common.InfrastructureMetadata;
+import common.ServerData;
+import common.Settings;
+import common.VirtualThreads;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+
+/**
+ * Load test of the connection models of the KVServer (Settings.SERVER_IO) at increasing numbers of
+ * concurrent clients: one new thread per connection (BLOCKING), pooled platform threads with small
+ * stacks (POOLED), one virtual thread per connection (VIRTUAL) and selector threads with a worker pool (NIO).
+ * For each model a KVServer is started and the clients connect with a KVStore each, including the
+ * secure handshake. All clients stay connected while a number of client threads send GET requests
+ * on all connections in turn.
+ * Virtual threads require Java 21, on older runtimes VIRTUAL uses pooled platform threads, which is printed.
+ * Usage: ConnectionLoadTest [roundsPerClient] [clientCounts, e.g. 1000,5000,20000] [modes, e.g. BLOCKING,VIRTUAL]
+ * Note that client and server run in one process, so the file descriptor limit must allow
+ * twice the number of clients.
+ */
+public class ConnectionLoadTest {
+
+	private static final int CLIENT_THREADS = 64;
+	private static final int FIRST_PORT = 50400;
+	private static int nextPort = FIRST_PORT;
+
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		String[] clientCounts = (args.length > 1 ? args[1] : "1000,5000,20000").split(",");
+		String[] modes = (args.length > 2 ? args[2] : "BLOCKING,POOLED,VIRTUAL,NIO").split(",");
+
+		/* the loggers of the server and the clients also write to the console */
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		}));
+
+		out.println("Java " + System.getProperty("java.version") + ", virtual threads "
+				+ (VirtualThreads.isAvailable() ? "available" : "not available, VIRTUAL uses pooled platform threads"));
+		for (String clientCount : clientCounts) {
+			int clients = Integer.parseInt(clientCount.trim());
+			out.println("--- " + clients + " concurrent clients, " + rounds + " requests each");
+			for (String mode : modes) {
+				runLoadTest(out, mode.trim(), clients, rounds);
+			}
+		}
+		System.exit(0);
+	}
+
+	private static void runLoadTest(PrintStream out, String mode, int clients, final int rounds) throws Exception {
+		System.gc();
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+		long memoryBefore = usedMemory();
+		int port = nextPort++;
+		KVServer server = startServer(mode, port);
+		if (server == null) {
+			out.println(mode + ": the server did not start on port " + port);
+			return;
+		}
+
+		/* connect in parallel, the handshakes take most of the time */
+		final List<KVStore> stores = connect(out, mode, port, clients);
+		System.gc();
+		int threadsIdle = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+		long memoryIdle = usedMemory() - memoryBefore;
+
+		/* each client thread sends one GET on each of its connections in turn */
+		final long[] latencies = new long[stores.size() * rounds];
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[CLIENT_THREADS];
+		for (int t = 0; t < CLIENT_THREADS; t++) {
+			final int first = t;
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int round = 0; round < rounds; round++) {
+						for (int i = first; i < stores.size(); i += CLIENT_THREADS) {
+							long sent = System.nanoTime();
+							if (!succeeded(get(stores.get(i), "key" + i))) {
+								errors.incrementAndGet();
+							}
+							latencies[round * stores.size() + i] = System.nanoTime() - sent;
+						}
+					}
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		int threadsActive = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+
+		Arrays.sort(latencies);
+		if (latencies.length > 0) {
+			out.println(String.format("%-8s %6d clients: %6d threads, %7.1f MB heap while idle; %8.0f requests/s, latency p50 %6.2f ms, p99 %7.2f ms, %5d threads, %d errors",
+					mode, stores.size(), threadsIdle, memoryIdle / 1024.0 / 1024.0, latencies.length / (elapsed / 1000000000.0),
+					latencies[latencies.length / 2] / 1000000.0, latencies[(int) (latencies.length * 0.99)] / 1000000.0,
+					threadsActive, errors.get()));
+		}
+
+		for (KVStore store : stores) {
+			store.disconnect();
+		}
+		server.setRunning(false);
+		server.getServerSocket().close();
+		/* let the connection threads of the server terminate and close their sockets before the next run */
+		for (int attempt = 0; attempt < 60 && ManagementFactory.getThreadMXBean().getThreadCount() > threadsBefore + 10; attempt++) {
+			Thread.sleep(500);
+		}
+		Thread.sleep(2000);
+	}
+
+	/* @return the server, null if it does not accept connections */
+	private static KVServer startServer(String mode, int port) throws InterruptedException {
+		Settings.SERVER_IO = mode;
+		KVServer server = new KVServer(port);
+		server.start();
+		/* wait until the server accepts connections, the probe connection is closed again right away */
+		boolean accepting = false;
+		for (int attempt = 0; attempt < 100 && !accepting; attempt++) {
+			try {
+				new Socket("127.0.0.1", port).close();
+				accepting = true;
+			} catch (IOException e) {
+				Thread.sleep(100);
+			}
+		}
+		if (!accepting) {
+			return null;
+		}
+		Thread.sleep(500);
+		ArrayList<ServerData> serverData = new ArrayList<ServerData>();
+		serverData.add(new ServerData("127.0.0.1:" + port, "127.0.0.1", port));
+		server.setMetaData(new InfrastructureMetadata(serverData));
+		server.setServeClientRequest(true);
+		return server;
+	}
+
+	/* connect the clients and store one key each, stops at the first client that cannot connect */
+	private static List<KVStore> connect(PrintStream out, String mode, final int port, int clients) throws InterruptedException {
+		final KVStore[] connected = new KVStore[clients];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger(clients);
+		final String[] failure = new String[1];
+		Thread[] threads = new Thread[CLIENT_THREADS];
+		long start = System.nanoTime();
+		for (int t = 0; t < CLIENT_THREADS; t++) {
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					int i;
+					while ((i = next.getAndIncrement()) < failed.get()) {
+						KVStore store = new KVStore("127.0.0.1", port, "ConnectionLoadTest");
+						try {
+							store.connect();
+							KVMessage reply = store.put("key" + i, "value" + i);
+							if (reply != null && (reply.getStatus() == StatusType.PUT_SUCCESS || reply.getStatus() == StatusType.PUT_UPDATE)) {
+								connected[i] = store;
+								continue;
+							}
+							failure[0] = reply == null ? "no reply" : reply.getStatus().toString();
+						} catch (Exception e) {
+							failure[0] = e.getMessage();
+						}
+						store.disconnect();
+						synchronized (failed) {
+							failed.set(Math.min(failed.get(), i));
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		List<KVStore> stores = new ArrayList<KVStore>();
+		for (int i = 0; i < clients; i++) {
+			if (connected[i] != null) {
+				stores.add(connected[i]);
+			}
+		}
+		if (stores.size() < clients) {
+			out.println(mode + ": only " + stores.size() + " of " + clients + " clients connected: " + failure[0]);
+		}
+		out.println(String.format("%-8s %6d clients connected in %6.0f ms", mode, stores.size(), (System.nanoTime() - start) / 1000000.0));
+		return stores;
+	}
+
+	private static KVMessage get(KVStore store, String key) {
+		try {
+			return store.get(key);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static boolean succeeded(KVMessage reply) {
+		return reply != null && reply.getStatus() == StatusType.GET_SUCCESS;
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
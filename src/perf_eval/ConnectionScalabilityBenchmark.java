@@ -0,0 +1,253 @@
+package perf_eval;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import app_kvServer.FrameHandler;
+import app_kvServer.NioServer;
+
+/**
+ * Compares the NIO front end of the KVServer with one thread per connection.
+ * Opens a number of idle connections and then measures the round trips of a number of
+ * active connections that send small frames, which are echoed by the server.
+ * The server side only echoes frames, so the numbers show the cost of the connection handling,
+ * not of the request processing.
+ * Usage: ConnectionScalabilityBenchmark [idleConnections] [activeConnections] [roundsPerConnection] [NIO|BLOCKING|BOTH]
+ * Note that client and server run in one process, so the file descriptor limit must allow
+ * twice the number of connections.
+ */
+public class ConnectionScalabilityBenchmark {
+
+	private static final int CLIENT_THREADS = 16;
+	private static final byte[] PAYLOAD = new byte[100];
+
+	/* a server that echoes all frames of its connections */
+	private interface EchoServer {
+		int getPort();
+		void close() throws IOException;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int idleConnections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int activeConnections = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		String mode = args.length > 3 ? args[3] : "BOTH";
+
+		System.out.println("Idle connections: " + idleConnections + ", active connections: " + activeConnections
+				+ ", rounds per active connection: " + rounds);
+		if (!mode.equals("BLOCKING")) {
+			runBenchmark("NIO", startNioServer(), idleConnections, activeConnections, rounds);
+		}
+		if (!mode.equals("NIO")) {
+			runBenchmark("BLOCKING", startBlockingServer(), idleConnections, activeConnections, rounds);
+		}
+	}
+
+	private static void runBenchmark(String name, EchoServer server, int idleConnections, int activeConnections, final int rounds) throws Exception {
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+		long memoryBefore = usedMemory();
+
+		List<Socket> idle = new ArrayList<Socket>();
+		long start = System.nanoTime();
+		try {
+			for (int i = 0; i < idleConnections; i++) {
+				idle.add(connect(server.getPort()));
+			}
+		} catch (IOException e) {
+			System.out.println(name + ": unable to open more than " + idle.size() + " idle connections: " + e.getMessage());
+		}
+		/* every connection has to be served, one round trip on each makes sure the server accepted them */
+		for (Socket socket : idle) {
+			roundTrip(socket.getOutputStream(), new DataInputStream(socket.getInputStream()));
+		}
+		long connectTime = System.nanoTime() - start;
+		System.gc();
+		int threadsIdle = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+		long memoryIdle = usedMemory() - memoryBefore;
+
+		final List<Socket> active = new ArrayList<Socket>();
+		for (int i = 0; i < activeConnections; i++) {
+			active.add(connect(server.getPort()));
+		}
+
+		/* each client thread sends one frame on each of its connections and then reads all replies */
+		final long[] latencies = new long[activeConnections * rounds];
+		Thread[] clients = new Thread[CLIENT_THREADS];
+		for (int t = 0; t < CLIENT_THREADS; t++) {
+			final int first = t;
+			clients[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						List<Integer> own = new ArrayList<Integer>();
+						for (int i = first; i < active.size(); i += CLIENT_THREADS) {
+							own.add(i);
+						}
+						for (int round = 0; round < rounds; round++) {
+							long sent = System.nanoTime();
+							for (int i : own) {
+								active.get(i).getOutputStream().write(frame());
+							}
+							for (int i : own) {
+								readFrame(new DataInputStream(active.get(i).getInputStream()));
+								latencies[round * active.size() + i] = System.nanoTime() - sent;
+							}
+						}
+					} catch (IOException e) {
+						System.out.println("Client error: " + e.getMessage());
+					}
+				}
+			});
+		}
+		start = System.nanoTime();
+		for (Thread client : clients) {
+			client.start();
+		}
+		for (Thread client : clients) {
+			client.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		int threadsActive = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+
+		Arrays.sort(latencies);
+		long requests = (long) activeConnections * rounds;
+		System.out.println(String.format("%-8s %6d idle connections in %6.0f ms, %5d threads, %6.1f MB heap",
+				name, idle.size(), connectTime / 1000000.0, threadsIdle, memoryIdle / 1024.0 / 1024.0));
+		System.out.println(String.format("%-8s %6d active connections: %8.0f requests/s, latency p50 %6.2f ms, p99 %6.2f ms, %5d threads",
+				name, activeConnections, requests / (elapsed / 1000000000.0),
+				latencies[latencies.length / 2] / 1000000.0, latencies[(int) (latencies.length * 0.99)] / 1000000.0, threadsActive));
+
+		for (Socket socket : active) {
+			socket.close();
+		}
+		for (Socket socket : idle) {
+			socket.close();
+		}
+		server.close();
+	}
+
+	private static Socket connect(int port) throws IOException {
+		Socket socket = new Socket("127.0.0.1", port);
+		socket.setTcpNoDelay(true);
+		return socket;
+	}
+
+	private static void roundTrip(OutputStream output, DataInputStream input) throws IOException {
+		output.write(frame());
+		readFrame(input);
+	}
+
+	private static byte[] frame() {
+		return ByteBuffer.allocate(12 + PAYLOAD.length).putInt(0).putInt(1).putInt(PAYLOAD.length).put(PAYLOAD).array();
+	}
+
+	private static byte[] readFrame(DataInputStream input) throws IOException {
+		input.readInt();
+		input.readInt();
+		byte[] payload = new byte[input.readInt()];
+		input.readFully(payload);
+		return payload;
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static EchoServer startNioServer() throws IOException {
+		final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0), 1024);
+		final NioServer nioServer = new NioServer(new NioServer.HandlerFactory() {
+			public FrameHandler createHandler(Socket socket, final OutputStream output) {
+				return new FrameHandler() {
+					public void processFrame(int encFlag, int ident, byte[] payload) throws IOException {
+						output.write(ByteBuffer.allocate(12 + payload.length).putInt(encFlag).putInt(ident).putInt(payload.length).put(payload).array());
+						output.flush();
+					}
+
+					public boolean isHandshake(int ident) {
+						return false;
+					}
+				};
+			}
+		}, Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 32);
+		Thread acceptor = new Thread() {
+			public void run() {
+				try {
+					while (true) {
+						nioServer.register(serverChannel.accept());
+					}
+				} catch (IOException e) {
+					// server channel closed
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return new EchoServer() {
+			public int getPort() {
+				return serverChannel.socket().getLocalPort();
+			}
+
+			public void close() throws IOException {
+				serverChannel.close();
+				nioServer.shutdown();
+			}
+		};
+	}
+
+	private static EchoServer startBlockingServer() throws IOException {
+		final ServerSocket serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress("127.0.0.1", 0), 1024);
+		Thread acceptor = new Thread() {
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = serverSocket.accept();
+						Thread connection = new Thread() {
+							public void run() {
+								try {
+									InputStream input = socket.getInputStream();
+									DataInputStream dataInput = new DataInputStream(input);
+									OutputStream output = socket.getOutputStream();
+									while (true) {
+										byte[] payload = readFrame(dataInput);
+										output.write(ByteBuffer.allocate(12 + payload.length).putInt(0).putInt(1).putInt(payload.length).put(payload).array());
+										output.flush();
+									}
+								} catch (IOException e) {
+									// connection closed
+								}
+							}
+						};
+						connection.setDaemon(true);
+						connection.start();
+					}
+				} catch (IOException e) {
+					// server socket closed
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return new EchoServer() {
+			public int getPort() {
+				return serverSocket.getLocalPort();
+			}
+
+			public void close() throws IOException {
+				serverSocket.close();
+			}
+		};
+	}
+}
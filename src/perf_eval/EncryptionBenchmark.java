@@ -0,0 +1,119 @@
+package perf_eval;
+
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import common.Settings;
+import common.messages.Frame;
+import crypto_protocol.CipherSuites;
+import crypto_protocol.SessionInfo;
+
+/**
+ * Throughput of encrypting a message and building its frame, and of decrypting it, with a cipher
+ * created and initialized for every message and with the cipher cached in the SessionInfo.
+ * The records of a session are also sent from a client to a server session with AES-CBC and with
+ * AES-GCM, which initializes the cipher with a new nonce for every record.
+ * Each measurement is repeated after a warm-up run, so the JIT has compiled both variants.
+ * Usage: EncryptionBenchmark [seconds per measurement]
+ */
+public class EncryptionBenchmark {
+
+	private static final int[] MESSAGE_SIZES = { 100, 1024, 100 * 1024 };
+	/* prevents the JIT from removing the measured code */
+	private static long sink = 0;
+
+	private interface Operation {
+		void run() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final long durationMs = args.length > 0 ? (long) (Double.parseDouble(args[0]) * 1000) : 2000;
+
+		byte[] keyBytes = new byte[16];
+		new SecureRandom().nextBytes(keyBytes);
+		final SessionInfo session = new SessionInfo("benchmark", Settings.TRANSFER_ENCRYPTION);
+		session.setEncKey(new SecretKeySpec(keyBytes, Settings.ALGORITHM_HASHING));
+		final SessionInfo[] cbc = sessionPair(CipherSuites.AES_CBC, keyBytes);
+		final SessionInfo[] gcm = CipherSuites.isSupported(CipherSuites.AES_GCM) ? sessionPair(CipherSuites.AES_GCM, keyBytes) : null;
+
+		System.out.println(String.format("%-28s %10s %12s %10s", "operation", "size", "messages/s", "MB/s"));
+		for (final int size : MESSAGE_SIZES) {
+			final byte[] message = new byte[size];
+			final byte[] encrypted = session.encrypt(message);
+
+			measure("encrypt+frame per message", size, durationMs, new Operation() {
+				public void run() throws Exception {
+					Cipher cipher = Cipher.getInstance(Settings.TRANSFER_ENCRYPTION);
+					cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(session.getEncKey().getEncoded(), "AES"), new IvParameterSpec(session.getIV()));
+					sink += new Frame(1, 1, cipher.doFinal(message)).toBytes().length;
+				}
+			});
+			measure("encrypt+frame session", size, durationMs, new Operation() {
+				public void run() throws Exception {
+					sink += new Frame(1, 1, session.encrypt(message)).toBytes().length;
+				}
+			});
+			measure("decrypt per message", size, durationMs, new Operation() {
+				public void run() throws Exception {
+					Cipher cipher = Cipher.getInstance(Settings.TRANSFER_ENCRYPTION);
+					cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(session.getEncKey().getEncoded(), "AES"), new IvParameterSpec(session.getIV()));
+					sink += cipher.doFinal(encrypted).length;
+				}
+			});
+			measure("decrypt session", size, durationMs, new Operation() {
+				public void run() throws Exception {
+					sink += session.decrypt(encrypted).length;
+				}
+			});
+			measure("record CBC", size, durationMs, new Operation() {
+				public void run() throws Exception {
+					sink += cbc[1].decrypt(cbc[0].encrypt(message)).length;
+				}
+			});
+			if (gcm != null) {
+				measure("record GCM", size, durationMs, new Operation() {
+					public void run() throws Exception {
+						sink += gcm[1].decrypt(gcm[0].encrypt(message)).length;
+					}
+				});
+			}
+		}
+		System.out.println("(" + sink + ")");
+	}
+
+	/* a client and a server session with the same key and IV */
+	private static SessionInfo[] sessionPair(String cipherSuite, byte[] keyBytes) throws Exception {
+		SessionInfo client = new SessionInfo("benchmark client", Settings.TRANSFER_ENCRYPTION);
+		SessionInfo server = new SessionInfo("benchmark server", Settings.TRANSFER_ENCRYPTION);
+		client.setTransferEncryption(cipherSuite, true);
+		server.setTransferEncryption(cipherSuite, false);
+		server.setEncKey(new SecretKeySpec(keyBytes, Settings.ALGORITHM_HASHING));
+		client.setEncKey(new SecretKeySpec(keyBytes, Settings.ALGORITHM_HASHING));
+		client.setIV(server.getIV());
+		return new SessionInfo[] { client, server };
+	}
+
+	private static void measure(String name, int size, long durationMs, Operation operation) throws Exception {
+		run(operation, durationMs / 2);
+		long start = System.nanoTime();
+		long count = run(operation, durationMs);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%-28s %10d %12.0f %10.1f", name, size, count / seconds, count * size / seconds / (1024 * 1024)));
+	}
+
+	/* run the operation in rounds of 100 until the duration passed */
+	private static long run(Operation operation, long durationMs) throws Exception {
+		long end = System.currentTimeMillis() + durationMs;
+		long count = 0;
+		while (System.currentTimeMillis() < end) {
+			for (int i = 0; i < 100; i++) {
+				operation.run();
+			}
+			count += 100;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,97 @@
+package perf_eval;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.SecureRandom;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import common.CommonCrypto;
+import common.Settings;
+import crypto_protocol.ClientInitMessage;
+import crypto_protocol.ClientKeyExchangeMessage;
+import crypto_protocol.Message;
+import crypto_protocol.MessageCodec;
+import crypto_protocol.ServerAuthConfirmationMessage;
+import crypto_protocol.ServerInitMessage;
+
+/**
+ * Handshakes per second on one core for encoding and decoding the four messages of a
+ * handshake, once with Java serialization and once with the {@link MessageCodec}.
+ * The cryptographic operations of the handshake are not included.
+ * Usage: HandshakeBenchmark [seconds per measurement]
+ */
+public class HandshakeBenchmark {
+
+	/* prevents the JIT from removing the measured code */
+	private static long sink = 0;
+
+	private interface Operation {
+		void run() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final long durationMs = args.length > 0 ? (long) (Double.parseDouble(args[0]) * 1000) : 2000;
+
+		InputStream certificateFile = new FileInputStream(Settings.SERVER_CERT_PATH);
+		X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(certificateFile);
+		certificateFile.close();
+
+		final Message[] handshake = {
+				new ClientInitMessage(),
+				new ServerInitMessage(Settings.TRANSFER_ENCRYPTION, certificate, false),
+				new ClientKeyExchangeMessage(random(256), random(20)),
+				new ServerAuthConfirmationMessage(random(20), random(16), false, random(128)) };
+
+		int serializedSize = 0;
+		int encodedSize = 0;
+		for (Message message : handshake) {
+			serializedSize += CommonCrypto.objectToByteArray(message).length;
+			encodedSize += MessageCodec.encode(message).length;
+		}
+
+		System.out.println(String.format("%-16s %14s %10s", "encoding", "handshakes/s", "bytes"));
+		measure("serialization", serializedSize, durationMs, new Operation() {
+			public void run() throws Exception {
+				for (Message message : handshake) {
+					sink += ((Message) CommonCrypto.objectFromByteArray(CommonCrypto.objectToByteArray(message))).getType().ordinal();
+				}
+			}
+		});
+		measure("MessageCodec", encodedSize, durationMs, new Operation() {
+			public void run() throws Exception {
+				for (Message message : handshake) {
+					sink += MessageCodec.decode(MessageCodec.encode(message)).getType().ordinal();
+				}
+			}
+		});
+		System.out.println("(" + sink + ")");
+	}
+
+	private static byte[] random(int length) {
+		byte[] bytes = new byte[length];
+		new SecureRandom().nextBytes(bytes);
+		return bytes;
+	}
+
+	private static void measure(String name, int size, long durationMs, Operation operation) throws Exception {
+		run(operation, durationMs / 2);
+		long start = System.nanoTime();
+		long count = run(operation, durationMs);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%-16s %14.0f %10d", name, count / seconds, size));
+	}
+
+	/* run the operation in rounds of 100 until the duration passed */
+	private static long run(Operation operation, long durationMs) throws Exception {
+		long end = System.currentTimeMillis() + durationMs;
+		long count = 0;
+		while (System.currentTimeMillis() < end) {
+			for (int i = 0; i < 100; i++) {
+				operation.run();
+			}
+			count += 100;
+		}
+		return count;
+	}
+}
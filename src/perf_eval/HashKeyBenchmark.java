@@ -0,0 +1,122 @@
+package perf_eval;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+
+import consistent_hashing.ConsistentHashing;
+import consistent_hashing.HashKey;
+
+/**
+ * Compares the former BigInteger key representation with HashKey:
+ * allocated bytes and time per operation for hashing, map lookups and range comparisons.
+ * Each measurement is repeated after a warm-up run, so the JIT has compiled both variants.
+ * Usage: HashKeyBenchmark [numKeys] [iterations]
+ */
+public class HashKeyBenchmark {
+
+	private static final com.sun.management.ThreadMXBean threadBean =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	/* prevents the JIT from removing the measured code */
+	private static long sink = 0;
+
+	private interface Operation {
+		void run(int i) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+		final String[] keys = new String[numKeys];
+		final BigInteger[] bigKeys = new BigInteger[numKeys];
+		final HashKey[] hashKeys = new HashKey[numKeys];
+		final ConcurrentHashMap<BigInteger, String> bigMap = new ConcurrentHashMap<BigInteger, String>();
+		final ConcurrentHashMap<HashKey, String> hashMap = new ConcurrentHashMap<HashKey, String>();
+		final MessageDigest md5 = MessageDigest.getInstance("MD5");
+		for (int i = 0; i < numKeys; i++) {
+			keys[i] = "key" + i;
+			bigKeys[i] = hashBigInteger(md5, keys[i]);
+			hashKeys[i] = ConsistentHashing.hashKey(keys[i]);
+			bigMap.put(bigKeys[i], "value" + i);
+			hashMap.put(hashKeys[i], "value" + i);
+		}
+		final BigInteger bigStart = bigKeys[0].min(bigKeys[1]);
+		final BigInteger bigEnd = bigKeys[0].max(bigKeys[1]);
+		final HashKey hashStart = hashKeys[0].min(hashKeys[1]);
+		final HashKey hashEnd = hashKeys[0].max(hashKeys[1]);
+
+		System.out.println("Keys: " + numKeys + ", iterations: " + iterations);
+		System.out.println(String.format("%-28s %12s %12s", "operation", "ns/op", "bytes/op"));
+
+		measure("hash BigInteger", iterations, new Operation() {
+			public void run(int i) throws Exception {
+				sink += hashBigInteger(md5, keys[i % numKeys]).hashCode();
+			}
+		});
+		measure("hash HashKey", iterations, new Operation() {
+			public void run(int i) {
+				sink += ConsistentHashing.hashKey(keys[i % numKeys]).hashCode();
+			}
+		});
+		measure("get BigInteger", iterations, new Operation() {
+			public void run(int i) throws Exception {
+				sink += bigMap.get(hashBigInteger(md5, keys[i % numKeys])).length();
+			}
+		});
+		measure("get HashKey", iterations, new Operation() {
+			public void run(int i) {
+				sink += hashMap.get(ConsistentHashing.hashKey(keys[i % numKeys])).length();
+			}
+		});
+		measure("lookup (hashed) BigInteger", iterations, new Operation() {
+			public void run(int i) {
+				sink += bigMap.get(bigKeys[i % numKeys]).length();
+			}
+		});
+		measure("lookup (hashed) HashKey", iterations, new Operation() {
+			public void run(int i) {
+				sink += hashMap.get(hashKeys[i % numKeys]).length();
+			}
+		});
+		measure("range check BigInteger", iterations, new Operation() {
+			public void run(int i) {
+				BigInteger key = bigKeys[i % numKeys];
+				if (key.compareTo(bigStart) >= 0 && key.compareTo(bigEnd) <= 0) {
+					sink++;
+				}
+			}
+		});
+		measure("range check HashKey", iterations, new Operation() {
+			public void run(int i) {
+				HashKey key = hashKeys[i % numKeys];
+				if (key.compareTo(hashStart) >= 0 && key.compareTo(hashEnd) <= 0) {
+					sink++;
+				}
+			}
+		});
+		System.out.println("(" + sink + ")");
+	}
+
+	/* the representation used before HashKey */
+	private static BigInteger hashBigInteger(MessageDigest md5, String key) throws Exception {
+		md5.reset();
+		return new BigInteger(1, md5.digest(key.getBytes("US-ASCII")));
+	}
+
+	private static void measure(String name, int iterations, Operation operation) throws Exception {
+		for (int i = 0; i < iterations; i++) {
+			operation.run(i);
+		}
+		long threadId = Thread.currentThread().getId();
+		long bytesBefore = threadBean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			operation.run(i);
+		}
+		long elapsed = System.nanoTime() - start;
+		long bytes = threadBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+		System.out.println(String.format("%-28s %12.1f %12.1f", name, (double) elapsed / iterations, (double) bytes / iterations));
+	}
+}
@@ -0,0 +1,141 @@
+package perf_eval;
+
+import java.lang.management.ManagementFactory;
+
+import app_kvServer.KVData;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVQuery;
+import common.messages.ServerServerMessage;
+import common.messages.ServerServerStatustype;
+import consistent_hashing.ConsistentHashing;
+
+/**
+ * Compares the text and the binary message format: time, allocated bytes and message size
+ * for encoding and decoding client queries and the SERVER_PUT_ALL replication message.
+ * Each measurement is repeated after a warm-up run, so the JIT has compiled both variants.
+ * Text messages larger than KVMessage.DROP_SIZE are not decoded, so the default PUT_ALL stays below it.
+ * Usage: MessageFormatBenchmark [valueSize] [iterations] [putAllEntries]
+ */
+public class MessageFormatBenchmark {
+
+	private static final com.sun.management.ThreadMXBean threadBean =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	/* prevents the JIT from removing the measured code */
+	private static long sink = 0;
+
+	private interface Operation {
+		void run(int i) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int valueSize = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		int putAllEntries = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+
+		StringBuilder valueBuilder = new StringBuilder(valueSize);
+		for (int i = 0; i < valueSize; i++) {
+			valueBuilder.append((char) ('a' + i % 26));
+		}
+		final String value = valueBuilder.toString();
+		final KVQuery get = new KVQuery(StatusType.GET, "key-0123456789");
+		final KVQuery put = new KVQuery(StatusType.PUT, "key-0123456789", value);
+		final byte[] getText = get.toBytes();
+		final byte[] getBinary = get.toBinary();
+		final byte[] putText = put.toBytes();
+		final byte[] putBinary = put.toBinary();
+
+		KVData data = new KVData();
+		for (int i = 0; i < putAllEntries; i++) {
+			data.put(ConsistentHashing.hashKey("key" + i), value.substring(0, Math.min(valueSize, 100)));
+		}
+		final ServerServerMessage putAll = new ServerServerMessage(ServerServerStatustype.SERVER_PUT_ALL, 1, data);
+		final byte[] putAllText = putAll.toText();
+		final byte[] putAllBinary = putAll.toBinary();
+		int putAllIterations = Math.max(1, iterations / putAllEntries);
+
+		System.out.println("Value size: " + valueSize + " bytes, iterations: " + iterations + ", PUT_ALL entries: " + putAllEntries);
+		System.out.println(String.format("%-8s %12s %12s", "message", "text bytes", "binary bytes"));
+		System.out.println(String.format("%-8s %12d %12d", "GET", getText.length, getBinary.length));
+		System.out.println(String.format("%-8s %12d %12d", "PUT", putText.length, putBinary.length));
+		System.out.println(String.format("%-8s %12d %12d", "PUT_ALL", putAllText.length, putAllBinary.length));
+		System.out.println();
+		System.out.println(String.format("%-28s %12s %12s", "operation", "ns/op", "bytes/op"));
+
+		measure("encode GET text", iterations, new Operation() {
+			public void run(int i) {
+				sink += get.toBytes().length;
+			}
+		});
+		measure("encode GET binary", iterations, new Operation() {
+			public void run(int i) {
+				sink += get.toBinary().length;
+			}
+		});
+		measure("decode GET text", iterations, new Operation() {
+			public void run(int i) throws Exception {
+				sink += new KVQuery(getText).getKey().length();
+			}
+		});
+		measure("decode GET binary", iterations, new Operation() {
+			public void run(int i) throws Exception {
+				sink += new KVQuery(getBinary).getKey().length();
+			}
+		});
+		measure("encode PUT text", iterations, new Operation() {
+			public void run(int i) {
+				sink += put.toBytes().length;
+			}
+		});
+		measure("encode PUT binary", iterations, new Operation() {
+			public void run(int i) {
+				sink += put.toBinary().length;
+			}
+		});
+		measure("decode PUT text", iterations, new Operation() {
+			public void run(int i) throws Exception {
+				sink += new KVQuery(putText).getValue().length();
+			}
+		});
+		measure("decode PUT binary", iterations, new Operation() {
+			public void run(int i) throws Exception {
+				sink += new KVQuery(putBinary).getValue().length();
+			}
+		});
+		measure("encode PUT_ALL text", putAllIterations, new Operation() {
+			public void run(int i) {
+				sink += putAll.toText().length;
+			}
+		});
+		measure("encode PUT_ALL binary", putAllIterations, new Operation() {
+			public void run(int i) {
+				sink += putAll.toBinary().length;
+			}
+		});
+		measure("decode PUT_ALL text", putAllIterations, new Operation() {
+			public void run(int i) throws Exception {
+				sink += new ServerServerMessage(putAllText).getData().size();
+			}
+		});
+		measure("decode PUT_ALL binary", putAllIterations, new Operation() {
+			public void run(int i) throws Exception {
+				sink += new ServerServerMessage(putAllBinary).getData().size();
+			}
+		});
+		System.out.println("(" + sink + ")");
+	}
+
+	private static void measure(String name, int iterations, Operation operation) throws Exception {
+		for (int i = 0; i < iterations; i++) {
+			operation.run(i);
+		}
+		long threadId = Thread.currentThread().getId();
+		long bytesBefore = threadBean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			operation.run(i);
+		}
+		long elapsed = System.nanoTime() - start;
+		long bytes = threadBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+		System.out.println(String.format("%-28s %12.1f %12.1f", name, (double) elapsed / iterations, (double) bytes / iterations));
+	}
+}
@@ -0,0 +1,69 @@
+package perf_eval;
+
+import java.io.File;
+import java.io.IOException;
+
+import app_kvServer.KVData;
+import app_kvServer.WriteAheadLog;
+import app_kvServer.WriteAheadLog.FsyncPolicy;
+import consistent_hashing.HashKey;
+
+/**
+ * Measures the put throughput of a KVData backed by a write-ahead log for every fsync policy.
+ * Usage: WriteAheadLogBenchmark [numThreads] [putsPerThread] [valueSize]
+ */
+public class WriteAheadLogBenchmark {
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int numThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int putsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int valueSize = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < valueSize; i++) {
+			value.append('v');
+		}
+
+		System.out.println("Threads: " + numThreads + ", puts per thread: " + putsPerThread + ", value size: " + valueSize);
+		runBenchmark(null, numThreads, putsPerThread, value.toString());
+		for (FsyncPolicy policy : FsyncPolicy.values()) {
+			runBenchmark(policy, numThreads, putsPerThread, value.toString());
+		}
+	}
+
+	private static void runBenchmark(FsyncPolicy policy, int numThreads, final int putsPerThread, final String value) throws IOException, InterruptedException {
+		File logFile = File.createTempFile("walbenchmark", ".wal");
+		final KVData kvData = new KVData();
+		if (policy != null) {
+			kvData.recover(new WriteAheadLog(logFile, policy, 128, 10));
+		}
+
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			final int offset = t * putsPerThread;
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < putsPerThread; i++) {
+						kvData.put(HashKey.valueOf(offset + i), value);
+					}
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		kvData.close();
+		logFile.delete();
+
+		double seconds = elapsed / 1000000000.0;
+		long puts = (long) numThreads * putsPerThread;
+		System.out.println(String.format("%-8s %10.0f puts/s, %8.1f us/put", policy == null ? "NO_LOG" : policy.toString(),
+				puts / seconds, elapsed / 1000.0 / puts));
+	}
+}
@@ -0,0 +1,342 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import app_kvServer.KVData;
+import common.messages.BinaryCodec;
+import common.messages.Consistency;
+import common.messages.InvalidMessageException;
+import common.messages.KVMessage.StatusType;
+import common.messages.KVQuery;
+import common.messages.ServerServerMessage;
+import common.messages.ServerServerStatustype;
+import consistent_hashing.ConsistentHashing;
+import consistent_hashing.HashKey;
+
+public class BinaryProtocolTest {
+
+	@Test
+	public void testQueryRoundTrip() throws InvalidMessageException {
+		String value = "first line\nsecond line\r\n\u00e4\u20ac";
+		KVQuery query = new KVQuery(new KVQuery(StatusType.PUT, "key\nwith newline", value).toBinary());
+
+		assertTrue(query.isBinary());
+		assertEquals(StatusType.PUT, query.getStatus());
+		assertEquals("key\nwith newline", query.getKey());
+		assertEquals(value, query.getValue());
+	}
+
+	@Test
+	public void testQueryArguments() throws InvalidMessageException {
+		KVQuery get = new KVQuery(new KVQuery(StatusType.GET, "key").toBinary());
+		assertEquals(StatusType.GET, get.getStatus());
+		assertEquals("key", get.getKey());
+		assertEquals("", get.getValue());
+
+		KVQuery disconnect = new KVQuery(new KVQuery(StatusType.DISCONNECT).toBinary());
+		assertEquals(StatusType.DISCONNECT, disconnect.getStatus());
+		assertEquals("", disconnect.getKey());
+	}
+
+	@Test
+	public void testRequestId() throws InvalidMessageException {
+		KVQuery request = new KVQuery(StatusType.GET, "key");
+		assertEquals(0, new KVQuery(request.toBinary()).getRequestId());
+
+		request.setRequestId(300);
+		KVQuery received = new KVQuery(request.toBinary());
+		assertEquals(StatusType.GET, received.getStatus());
+		assertEquals(300, received.getRequestId());
+		assertEquals("key", received.getKey());
+
+		/* the text format has no request ids */
+		assertEquals(0, new KVQuery(request.toBytes()).getRequestId());
+	}
+
+	@Test
+	public void testTextFormatStillAccepted() throws InvalidMessageException {
+		KVQuery query = new KVQuery("PUT\nkey\nvalue\r".getBytes());
+		assertFalse(query.isBinary());
+		assertEquals(StatusType.PUT, query.getStatus());
+		assertEquals("value", query.getValue());
+
+		/* old servers read the requested format as the key of an ordinary CONNECT */
+		KVQuery connect = new KVQuery(new KVQuery(StatusType.CONNECT, BinaryCodec.PROTOCOL).toBytes());
+		assertEquals(StatusType.CONNECT, connect.getStatus());
+		assertEquals(BinaryCodec.PROTOCOL, connect.getKey());
+	}
+
+	@Test
+	public void testVarint() throws InvalidMessageException {
+		int[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE };
+		for (int value : values) {
+			ByteBuffer buffer = ByteBuffer.allocate(BinaryCodec.varintSize(value));
+			BinaryCodec.writeVarint(buffer, value);
+			assertFalse(buffer.hasRemaining());
+			buffer.flip();
+			assertEquals(value, BinaryCodec.readVarint(buffer));
+		}
+	}
+
+	@Test
+	public void testTruncatedMessage() throws InvalidMessageException {
+		byte[] bytes = new KVQuery(StatusType.PUT, "key", "value").toBinary();
+		for (int length = 0; length < bytes.length; length++) {
+			byte[] truncated = new byte[length];
+			System.arraycopy(bytes, 0, truncated, 0, length);
+			try {
+				new KVQuery(truncated);
+				fail("Message truncated to " + length + " bytes was accepted");
+			} catch (InvalidMessageException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test(expected = InvalidMessageException.class)
+	public void testUnknownVersion() throws InvalidMessageException {
+		byte[] bytes = new KVQuery(StatusType.GET, "key").toBinary();
+		bytes[1] = BinaryCodec.VERSION + 1;
+		new KVQuery(bytes);
+	}
+
+	@Test(expected = InvalidMessageException.class)
+	public void testServerMessageIsNoQuery() throws InvalidMessageException {
+		new KVQuery(new ServerServerMessage(ServerServerStatustype.SERVER_DELETE, 1, "key").toBinary());
+	}
+
+	@Test
+	public void testServerMessages() throws InvalidMessageException {
+		ServerServerMessage put = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_PUT, 2, "key", "a\nb").toBinary());
+		assertEquals(ServerServerStatustype.SERVER_PUT, put.getCommand());
+		assertEquals(2, put.getNumServer());
+		assertEquals("key", put.getKey());
+		assertEquals("a\nb", put.getValue());
+
+		KVData data = new KVData();
+		for (int i = 0; i < 1000; i++) {
+			data.put(ConsistentHashing.hashKey("key" + i), "value\n" + i);
+		}
+		ServerServerMessage putAll = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_PUT_ALL, 1, data).toBinary());
+		assertEquals(ServerServerStatustype.SERVER_PUT_ALL, putAll.getCommand());
+		assertEquals(data.size(), putAll.getData().size());
+		for (Map.Entry<HashKey, String> entry : data) {
+			assertEquals(entry.getValue(), putAll.getData().get(entry.getKey()));
+		}
+
+		ServerServerMessage empty = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_PUT_ALL, 1, new KVData()).toBinary());
+		assertEquals(0, empty.getData().size());
+	}
+
+	@Test
+	public void testBatchRoundTrip() throws InvalidMessageException {
+		List<KVQuery> entries = new ArrayList<KVQuery>();
+		for (int i = 0; i < 100; i++) {
+			entries.add(new KVQuery(StatusType.PUT, "key" + i, "value\n" + i));
+		}
+		KVQuery request = new KVQuery(StatusType.MPUT, entries);
+		request.setRequestId(42);
+		KVQuery batch = new KVQuery(request.toBinary());
+
+		assertTrue(batch.isBatch());
+		assertEquals(StatusType.MPUT, batch.getStatus());
+		assertEquals(42, batch.getRequestId());
+		assertEquals(100, batch.getEntries().size());
+		for (int i = 0; i < 100; i++) {
+			KVQuery entry = batch.getEntries().get(i);
+			assertEquals(StatusType.PUT, entry.getStatus());
+			assertEquals("key" + i, entry.getKey());
+			assertEquals("value\n" + i, entry.getValue());
+		}
+	}
+
+	@Test
+	public void testBatchReply() throws InvalidMessageException {
+		List<KVQuery> results = Arrays.asList(new KVQuery(StatusType.GET_SUCCESS, "a", "1"), new KVQuery(StatusType.GET_ERROR, "b"),
+				new KVQuery(StatusType.SERVER_NOT_RESPONSIBLE, "c", ""), new KVQuery(StatusType.SERVER_NOT_RESPONSIBLE, "metaData", "servers"));
+		KVQuery reply = new KVQuery(new KVQuery(StatusType.MGET, results).toBinary());
+
+		assertEquals(StatusType.MGET, reply.getStatus());
+		assertEquals(4, reply.getEntries().size());
+		assertEquals(StatusType.GET_SUCCESS, reply.getEntries().get(0).getStatus());
+		assertEquals("1", reply.getEntries().get(0).getValue());
+		assertEquals(StatusType.GET_ERROR, reply.getEntries().get(1).getStatus());
+		assertEquals("b", reply.getEntries().get(1).getKey());
+		assertEquals("servers", reply.getEntries().get(3).getValue());
+
+		KVQuery empty = new KVQuery(new KVQuery(StatusType.MGET, new ArrayList<KVQuery>()).toBinary());
+		assertEquals(0, empty.getEntries().size());
+	}
+
+	@Test
+	public void testBatchOnlyBinary() throws InvalidMessageException {
+		KVQuery batch = new KVQuery(StatusType.MGET, Arrays.asList(new KVQuery(StatusType.GET, "key")));
+		assertNull(batch.toBytes());
+		assertFalse(new KVQuery(StatusType.GET, "key").isBatch());
+	}
+
+	@Test
+	public void testTruncatedBatch() throws InvalidMessageException {
+		byte[] bytes = new KVQuery(StatusType.MPUT, Arrays.asList(new KVQuery(StatusType.PUT, "a", "1"), new KVQuery(StatusType.PUT, "b", "2"))).toBinary();
+		for (int length = BinaryCodec.HEADER_SIZE; length < bytes.length; length++) {
+			try {
+				new KVQuery(Arrays.copyOf(bytes, length));
+				fail("Accepted a batch truncated to " + length + " bytes");
+			} catch (InvalidMessageException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test(expected = InvalidMessageException.class)
+	public void testBatchCommand() throws InvalidMessageException {
+		new KVQuery(StatusType.PUT, new ArrayList<KVQuery>());
+	}
+
+	@Test
+	public void testServerBatch() throws InvalidMessageException {
+		List<String> keys = Arrays.asList("a", "b\nc", "d");
+		List<String> values = Arrays.asList("1", "2\n3", "null");
+		ServerServerMessage batch = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_PUT_BATCH, 2, keys, values).toBytes());
+
+		assertEquals(ServerServerStatustype.SERVER_PUT_BATCH, batch.getCommand());
+		assertEquals(2, batch.getNumServer());
+		assertEquals(keys, batch.getKeys());
+		assertEquals(values, batch.getValues());
+	}
+
+	@Test
+	public void testServerSyncChunk() throws InvalidMessageException {
+		KVData data = new KVData();
+		data.put(HashKey.valueOf(1), "one");
+		data.put(HashKey.valueOf(2), "two\nlines");
+		List<Map.Entry<HashKey, String>> entries = data.readChunk(null, 1024);
+		ServerServerMessage chunk = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_SYNC_CHUNK, 1, 42L, HashKey.ZERO, entries, true).toBytes());
+
+		assertEquals(ServerServerStatustype.SERVER_SYNC_CHUNK, chunk.getCommand());
+		assertEquals(1, chunk.getNumServer());
+		assertEquals(42L, chunk.getStreamId());
+		assertEquals(HashKey.ZERO, chunk.getAfter());
+		assertTrue(chunk.isLastChunk());
+		assertEquals(entries, chunk.getEntries());
+
+		assertEquals(0, chunk.getEntryVersions()[0]);
+
+		chunk = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_SYNC_CHUNK, 1, 42L, null, entries, new long[] { 7, -1 }, false).toBytes());
+		assertEquals(entries, chunk.getEntries());
+		assertEquals(7, chunk.getEntryVersions()[0]);
+		assertEquals(-1, chunk.getEntryVersions()[1]);
+
+		chunk = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_SYNC_CHUNK, 2, -1L, null, entries.subList(0, 0), false).toBytes());
+		assertNull(chunk.getAfter());
+		assertFalse(chunk.isLastChunk());
+		assertTrue(chunk.getEntries().isEmpty());
+	}
+
+	@Test
+	public void testConsistency() throws InvalidMessageException {
+		KVQuery put = new KVQuery(StatusType.PUT, "key", "value");
+		assertNull(new KVQuery(put.toBinary()).getConsistency());
+		for (Consistency consistency : Consistency.values()) {
+			put.setConsistency(consistency);
+			put.setRequestId(7);
+			KVQuery received = new KVQuery(put.toBinary());
+			assertEquals(consistency, received.getConsistency());
+			assertEquals("key", received.getKey());
+			assertEquals("value", received.getValue());
+			assertEquals(7, received.getRequestId());
+		}
+
+		KVQuery first = new KVQuery(StatusType.PUT, "a", "1");
+		KVQuery second = new KVQuery(StatusType.PUT, "b", "null");
+		second.setConsistency(Consistency.ALL);
+		List<KVQuery> entries = new KVQuery(new KVQuery(StatusType.MPUT, Arrays.asList(first, second)).toBinary()).getEntries();
+		assertNull(entries.get(0).getConsistency());
+		assertEquals(Consistency.ALL, entries.get(1).getConsistency());
+		assertEquals(Consistency.ONE, Consistency.strongest(null, Consistency.ONE));
+		assertEquals(Consistency.ALL, Consistency.strongest(Consistency.ALL, Consistency.LOCAL));
+	}
+
+	@Test
+	public void testServerAck() throws InvalidMessageException {
+		ServerServerMessage ack = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_ACK, 2, Long.MAX_VALUE).toBytes());
+		assertEquals(ServerServerStatustype.SERVER_ACK, ack.getCommand());
+		assertEquals(2, ack.getNumServer());
+		assertEquals(Long.MAX_VALUE, ack.getSequence());
+	}
+
+	@Test
+	public void testServerRead() throws InvalidMessageException {
+		ServerServerMessage request = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_READ, 2, "key").toBytes());
+		assertEquals(ServerServerStatustype.SERVER_READ, request.getCommand());
+		assertFalse(request.isReply());
+		assertEquals(2, request.getNumServer());
+		assertEquals("key", request.getKey());
+
+		ServerServerMessage reply = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_READ, 2, "key", "a\nb", 1234567890123L).toBytes());
+		assertTrue(reply.isReply());
+		assertEquals("key", reply.getKey());
+		assertEquals("a\nb", reply.getValue());
+		assertEquals(1234567890123L, reply.getVersion());
+	}
+
+	@Test
+	public void testServerBatchVersions() throws InvalidMessageException {
+		List<String> keys = Arrays.asList("a", "b");
+		List<String> values = Arrays.asList("1", "null");
+		ServerServerMessage batch = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_PUT_BATCH, 1, keys, values, Arrays.asList(7L, Long.MAX_VALUE)).toBytes());
+		assertEquals(keys, batch.getKeys());
+		assertEquals(values, batch.getValues());
+		assertEquals(Arrays.asList(7L, Long.MAX_VALUE), batch.getVersions());
+
+		batch = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_PUT_BATCH, 1, keys, values).toBytes());
+		assertEquals(Arrays.asList(0L, 0L), batch.getVersions());
+	}
+
+	@Test
+	public void testServerMerkle() throws InvalidMessageException {
+		ServerServerMessage request = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_MERKLE, 2, 3, 1, new int[] { 0, 15, 300 }).toBytes());
+		assertEquals(ServerServerStatustype.SERVER_MERKLE, request.getCommand());
+		assertFalse(request.isReply());
+		assertEquals(3, request.getDepth());
+		assertEquals(1, request.getLevel());
+		assertArrayEquals(new int[] { 0, 15, 300 }, request.getNodes());
+
+		ServerServerMessage reply = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_MERKLE, 2, 3, 1, new long[] { -1, 0, Long.MAX_VALUE }).toBytes());
+		assertTrue(reply.isReply());
+		assertEquals(3, reply.getDepth());
+		assertArrayEquals(new long[] { -1, 0, Long.MAX_VALUE }, reply.getHashes());
+
+		request = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_MERKLE_KEYS, 1, 2, new int[] { 7 }).toBytes());
+		assertFalse(request.isReply());
+		assertArrayEquals(new int[] { 7 }, request.getNodes());
+
+		HashKey[] keys = { ConsistentHashing.hashKey("a"), ConsistentHashing.hashKey("b") };
+		reply = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_MERKLE_KEYS, 1, 2, keys, new long[] { 5, -5 }).toBytes());
+		assertTrue(reply.isReply());
+		assertEquals(2, reply.getDepth());
+		assertArrayEquals(keys, reply.getHashKeys());
+		assertArrayEquals(new long[] { 5, -5 }, reply.getHashes());
+	}
+
+	@Test
+	public void testServerRepair() throws InvalidMessageException {
+		List<Map.Entry<HashKey, String>> entries = new ArrayList<Map.Entry<HashKey, String>>();
+		entries.add(new AbstractMap.SimpleImmutableEntry<HashKey, String>(HashKey.valueOf(1), "one"));
+		entries.add(new AbstractMap.SimpleImmutableEntry<HashKey, String>(HashKey.valueOf(2), "null"));
+		ServerServerMessage repair = new ServerServerMessage(new ServerServerMessage(ServerServerStatustype.SERVER_REPAIR, 2, entries, new long[] { 9, 0 }).toBytes());
+		assertEquals(ServerServerStatustype.SERVER_REPAIR, repair.getCommand());
+		assertEquals(2, repair.getNumServer());
+		assertEquals(entries, repair.getEntries());
+		assertArrayEquals(new long[] { 9, 0 }, repair.getEntryVersions());
+	}
+}
@@ -1,6 +1,5 @@
 package testing;
 
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.SortedMap;
 
@@ -8,6 +7,7 @@ import org.junit.Test;
 
 import common.ServerData;
 import consistent_hashing.ConsistentHashing;
+import consistent_hashing.HashKey;
 import junit.framework.TestCase;
 
 public class ConsistentHashingTest extends TestCase {
@@ -40,7 +40,7 @@ public class ConsistentHashingTest extends TestCase {
 		
 		conHash = new ConsistentHashing(servers);
 		
-		SortedMap<BigInteger, String> map = conHash.getHashCircle();
+		SortedMap<HashKey, String> map = conHash.getHashCircle();
 		
 		assertTrue(map.containsValue("127.0.0.1:50000"));
 		assertTrue(map.containsValue("127.0.0.2:50001"));
@@ -57,7 +57,7 @@ public class ConsistentHashingTest extends TestCase {
 		conHash.addServer("127.0.0.253", 50002);
 		conHash.addServer("127.0.0.252", 50003);
 		
-		SortedMap<BigInteger, String> map = conHash.getHashCircle();
+		SortedMap<HashKey, String> map = conHash.getHashCircle();
 		// {-1067817501=127.0.0.254:50001, 918589990=127.0.0.253:50002, 2002620904=127.0.0.252:50003, 2012606280=127.0.0.255:50000}
 		
 		assertTrue(map.containsValue("127.0.0.255:50000"));
@@ -79,7 +79,7 @@ public class ConsistentHashingTest extends TestCase {
 		conHash = new ConsistentHashing(servers);
 		
 		// Obtain HashCircle
-		SortedMap<BigInteger, String> map = conHash.getHashCircle();
+		SortedMap<HashKey, String> map = conHash.getHashCircle();
 		
 		// Check assertions
 		assertTrue(map.containsValue("127.0.0.1:50000"));
@@ -100,7 +100,7 @@ public class ConsistentHashingTest extends TestCase {
 		conHash.update(serversNew);
 		
 		// Obtain HashCircle
-		SortedMap<BigInteger, String> mapNew = conHash.getHashCircle();
+		SortedMap<HashKey, String> mapNew = conHash.getHashCircle();
 		
 		// Check assertions
 		assertFalse(mapNew.containsValue("127.0.0.1:50000"));
@@ -143,4 +143,22 @@ public class ConsistentHashingTest extends TestCase {
 		
 		assertNull(e);
 	}
+
+	public void testLocateServerForHash() throws Exception {
+		assertNull(conHash.getServerNameForHash(ConsistentHashing.hashKey("ThisIsAKey")));
+
+		conHash.addServer("127.0.0.255", 50000);
+		conHash.addServer("127.0.0.254", 50001);
+		conHash.addServer("127.0.0.253", 50002);
+		conHash.addServer("127.0.0.252", 50003);
+
+		for (String key : new String[] { "ThisIsAKey", "ExampleKey", "AnotherKey", "k", "" }) {
+			assertEquals(conHash.getServerForKey(key).getName(), conHash.getServerNameForHash(ConsistentHashing.hashKey(key)));
+		}
+		// a key hashed to a server belongs to that server, the largest server hash wraps around to the first server
+		HashKey first = conHash.getHashCircle().firstKey();
+		HashKey last = conHash.getHashCircle().lastKey();
+		assertEquals(conHash.getHashCircle().get(first), conHash.getServerNameForHash(first));
+		assertEquals(conHash.getHashCircle().get(last), conHash.getServerNameForHash(last));
+	}
 }
\ No newline at end of file
@@ -1,6 +1,5 @@
 package testing;
 
-import java.math.BigInteger;
 
 import junit.framework.TestCase;
 
@@ -12,6 +11,7 @@ import common.ServerData;
 import common.messages.ECSMessage;
 import common.messages.ECSStatusType;
 import common.messages.InvalidMessageException;
+import consistent_hashing.HashKey;
 
 public class ECSMessageTest extends TestCase {
 	@BeforeClass
@@ -88,14 +88,14 @@ public class ECSMessageTest extends TestCase {
 		ECSMessage ecsMsg1 = null, ecsMsg2 = null;
 		Exception ex = null;
 		ECSStatusType command0, command1 = null, command2 = null;
-		BigInteger start0, start1 = null, start2 = null;
-		BigInteger end0, end1 = null, end2 = null;
+		HashKey start0, start1 = null, start2 = null;
+		HashKey end0, end1 = null, end2 = null;
 		ServerData server0, server1 = null, server2 = null; 
 		byte[] bytes0, bytes1 = null, bytes2 = null;
 
 		command0 = ECSStatusType.MOVE_DATA;
-		start0 = BigInteger.valueOf(10);
-		end0 = BigInteger.valueOf(100);
+		start0 = HashKey.valueOf(10);
+		end0 = HashKey.valueOf(100);
 		server0 = new ServerData("node1", "127.0.0.1", 50000);
 		bytes0 = ("MOVE_DATA\n10\n100\nnode1\n127.0.0.1\n50000\r").getBytes();
 		
@@ -0,0 +1,114 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import common.messages.Frame;
+import common.messages.FrameDecoder;
+
+public class FrameDecoderTest {
+
+	/* returns at most one byte per read, like a slow connection */
+	private static class TrickleInputStream extends InputStream {
+		private final InputStream input;
+
+		TrickleInputStream(byte[] bytes) {
+			input = new ByteArrayInputStream(bytes);
+		}
+
+		public int read() throws IOException {
+			return input.read();
+		}
+
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			return input.read(bytes, offset, Math.min(length, 1));
+		}
+	}
+
+	private static byte[] payload(int size) {
+		byte[] bytes = new byte[size];
+		for (int i = 0; i < size; i++) {
+			bytes[i] = (byte) i;
+		}
+		return bytes;
+	}
+
+	private static byte[] concat(Frame... frames) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (Frame frame : frames) {
+			bytes.write(frame.toBytes());
+		}
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void testReadFrames() throws IOException {
+		byte[] bytes = concat(new Frame(0, 1, payload(10)), new Frame(1, 3, payload(100000)), new Frame(0, 2, new byte[0]));
+		FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(bytes), 1024 * 1024);
+
+		Frame frame = decoder.readFrame();
+		assertEquals(0, frame.getEncFlag());
+		assertEquals(1, frame.getIdent());
+		assertArrayEquals(payload(10), frame.getPayload());
+		frame = decoder.readFrame();
+		assertEquals(1, frame.getEncFlag());
+		assertEquals(3, frame.getIdent());
+		assertArrayEquals(payload(100000), frame.getPayload());
+		frame = decoder.readFrame();
+		assertEquals(2, frame.getIdent());
+		assertEquals(0, frame.getPayload().length);
+	}
+
+	@Test
+	public void testShortReads() throws IOException {
+		byte[] bytes = concat(new Frame(0, 1, payload(300)), new Frame(0, 2, payload(5)));
+		FrameDecoder decoder = new FrameDecoder(new TrickleInputStream(bytes), 1024);
+		assertArrayEquals(payload(300), decoder.readFrame().getPayload());
+		assertArrayEquals(payload(5), decoder.readFrame().getPayload());
+	}
+
+	@Test(expected = EOFException.class)
+	public void testEndOfStream() throws IOException {
+		byte[] bytes = new Frame(0, 1, payload(10)).toBytes();
+		byte[] truncated = new byte[bytes.length - 1];
+		System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+		new FrameDecoder(new ByteArrayInputStream(truncated), 1024).readFrame();
+	}
+
+	@Test
+	public void testSizeLimit() {
+		/* only the header is sent, the limit is checked before the payload is read */
+		byte[] header = ByteBuffer.allocate(Frame.HEADER_SIZE).putInt(0).putInt(1).putInt(Integer.MAX_VALUE).array();
+		try {
+			new FrameDecoder(new ByteArrayInputStream(header), 1024).readFrame();
+			fail("Frame larger than the limit was accepted");
+		} catch (IOException e) {
+			assertFalse(e instanceof EOFException);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidIdent() throws IOException {
+		new FrameDecoder(new ByteArrayInputStream(new Frame(0, 4, payload(1)).toBytes()), 1024).readFrame();
+	}
+
+	@Test
+	public void testDecodeSplitData() throws IOException {
+		byte[] bytes = concat(new Frame(0, 1, payload(20)), new Frame(0, 1, payload(30)));
+		FrameDecoder decoder = new FrameDecoder(1024);
+
+		assertNull(decoder.decode(ByteBuffer.wrap(bytes, 0, 7)));
+		ByteBuffer rest = ByteBuffer.wrap(bytes, 7, bytes.length - 7);
+		assertArrayEquals(payload(20), decoder.decode(rest).getPayload());
+		assertArrayEquals(payload(30), decoder.decode(rest).getPayload());
+		assertNull(decoder.decode(rest));
+	}
+}
@@ -0,0 +1,77 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import app_kvServer.HandshakeExecutor;
+
+public class HandshakeExecutorTest {
+	private HandshakeExecutor handshakes;
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final CountDownLatch started = new CountDownLatch(1);
+
+	private final Runnable blocking = new Runnable() {
+		public void run() {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	};
+
+	@Before
+	public void setUp() {
+		handshakes = new HandshakeExecutor(1, 2, 0);
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		handshakes.shutdown();
+	}
+
+	@Test
+	public void testRejectWhenQueueFull() throws Exception {
+		handshakes.execute(blocking);
+		started.await();
+		handshakes.execute(blocking);
+		handshakes.execute(blocking);
+		assertEquals(2, handshakes.getQueueDepth());
+		try {
+			handshakes.execute(blocking);
+			fail("handshake accepted beyond the queue size");
+		} catch (RejectedExecutionException e) {
+		}
+		assertEquals(1, handshakes.getRejectedCount());
+	}
+
+	@Test
+	public void testExecuteAndWait() throws Exception {
+		final boolean[] ran = new boolean[1];
+		handshakes.executeAndWait(new Runnable() {
+			public void run() {
+				ran[0] = Thread.currentThread().getName().startsWith("SERVER handshake-");
+			}
+		});
+		assertTrue(ran[0]);
+		assertEquals(1, handshakes.getCompletedCount());
+		assertTrue(handshakes.getAverageLatencyMillis() >= handshakes.getAverageWaitMillis());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testExceptionPassedToCaller() throws Exception {
+		handshakes.executeAndWait(new Runnable() {
+			public void run() {
+				throw new IllegalStateException("failed handshake");
+			}
+		});
+	}
+}
@@ -0,0 +1,47 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import consistent_hashing.ConsistentHashing;
+import consistent_hashing.HashKey;
+
+public class HashKeyTest {
+
+	@Test
+	public void testOrderMatchesBigInteger() {
+		Random random = new Random(42);
+		for (int i = 0; i < 1000; i++) {
+			HashKey k1 = new HashKey(random.nextLong(), random.nextLong());
+			HashKey k2 = random.nextBoolean() ? new HashKey(k1.getHigh(), random.nextLong()) : new HashKey(random.nextLong(), random.nextLong());
+			assertEquals(Integer.signum(k1.toBigInteger().compareTo(k2.toBigInteger())), Integer.signum(k1.compareTo(k2)));
+		}
+	}
+
+	@Test
+	public void testConversions() {
+		HashKey key = ConsistentHashing.hashKey("ThisIsAKey");
+		assertEquals(key, HashKey.parse(key.toString()));
+		assertEquals(key, HashKey.fromBytes(key.toBytes(), 0));
+		assertEquals(new BigInteger(1, key.toBytes()), key.toBigInteger());
+
+		ByteBuffer buffer = ByteBuffer.allocate(HashKey.SIZE);
+		key.write(buffer);
+		buffer.flip();
+		assertEquals(key, HashKey.read(buffer));
+
+		HashKey max = new HashKey(-1, -1);
+		assertEquals(BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE).toString(), max.toString());
+		assertEquals(max, HashKey.parse(max.toString()));
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void testParseOutOfRange() {
+		HashKey.parse(BigInteger.ONE.shiftLeft(128).toString());
+	}
+}
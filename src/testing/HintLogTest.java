@@ -0,0 +1,76 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import app_kvServer.HintLog;
+
+public class HintLogTest {
+
+	File hintFile;
+
+	@Before
+	public void setUp() throws IOException {
+		hintFile = File.createTempFile("hints", ".1");
+		hintFile.delete();
+	}
+
+	@After
+	public void tearDown() {
+		hintFile.delete();
+	}
+
+	@Test
+	public void testAddLoadClear() throws IOException {
+		HintLog hints = new HintLog(hintFile, 100);
+		assertEquals(0, hints.size());
+		assertEquals(0, hints.add(Arrays.asList("a", "b")));
+		assertEquals(0, hints.add(Arrays.asList("b", "c")));
+		assertEquals(4, hints.size());
+		assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<String>(hints.load()));
+
+		hints.clear();
+		assertEquals(0, hints.size());
+		assertTrue(hints.load().isEmpty());
+		assertFalse(hintFile.exists());
+	}
+
+	@Test
+	public void testKeptAcrossRestart() throws IOException {
+		new HintLog(hintFile, 100).add(Arrays.asList("a", "b"));
+		HintLog hints = new HintLog(hintFile, 100);
+		assertEquals(2, hints.size());
+		assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(hints.load()));
+	}
+
+	@Test
+	public void testDropWhenFull() throws IOException {
+		HintLog hints = new HintLog(hintFile, 3);
+		List<String> keys = Arrays.asList("a", "b", "c", "d", "e");
+		assertEquals(2, hints.add(keys));
+		assertEquals(3, hints.size());
+		assertEquals(2, hints.getDropped());
+		assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<String>(hints.load()));
+	}
+
+	@Test
+	public void testTruncatedRecord() throws IOException {
+		new HintLog(hintFile, 100).add(Arrays.asList("first", "second"));
+		RandomAccessFile file = new RandomAccessFile(hintFile, "rw");
+		file.setLength(file.length() - 2);
+		file.close();
+
+		HintLog hints = new HintLog(hintFile, 100);
+		assertEquals(Arrays.asList("first"), new ArrayList<String>(hints.load()));
+	}
+}
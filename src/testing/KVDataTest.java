@@ -2,7 +2,6 @@ package testing;
 
 import static org.junit.Assert.*;
 
-import java.math.BigInteger;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -11,6 +10,7 @@ import java.util.Map.Entry;
 import org.junit.Test;
 
 import app_kvServer.KVData;
+import consistent_hashing.HashKey;
 
 public class KVDataTest {
 
@@ -18,8 +18,8 @@ public class KVDataTest {
 
 	@Test
 	public void testPut() {
-		BigInteger b1 = new BigInteger("1");
-		BigInteger b2 = new BigInteger("2");
+		HashKey b1 = HashKey.valueOf(1);
+		HashKey b2 = HashKey.valueOf(2);
 		String returnValue1 = kvData.put(b1,"jona");
 		assertTrue( returnValue1 == null);
 		String returnValue2 = kvData.put(b2,"gull");
@@ -28,8 +28,8 @@ public class KVDataTest {
 
 	@Test
 	public void testGet() {
-		BigInteger b1 = new BigInteger("1");
-		BigInteger b2 = new BigInteger("2");
+		HashKey b1 = HashKey.valueOf(1);
+		HashKey b2 = HashKey.valueOf(2);
 		kvData.put(b1,"jona");
 		kvData.put(b2,"gull");
 		assertTrue(kvData.get(b1).equals("jona"));
@@ -38,8 +38,8 @@ public class KVDataTest {
 
 	@Test
 	public void testUpdate() {
-		BigInteger b1 = new BigInteger("1");
-		BigInteger b2 = new BigInteger("2");
+		HashKey b1 = HashKey.valueOf(1);
+		HashKey b2 = HashKey.valueOf(2);
 		kvData.put(b1,"jona");
 		kvData.put(b2,"gull");
 		String returnValue = kvData.put(b2,"seagull");
@@ -48,8 +48,8 @@ public class KVDataTest {
 	}
 	@Test
 	public void testDelete() {
-		BigInteger b1 = new BigInteger("1");
-		BigInteger b2 = new BigInteger("2");
+		HashKey b1 = HashKey.valueOf(1);
+		HashKey b2 = HashKey.valueOf(2);
 		kvData.put(b1,"jona");
 		kvData.put(b2,"gull");
 		kvData.put(b2,"seagull");
@@ -61,25 +61,25 @@ public class KVDataTest {
 	@Test
 	public void testFindMovingData()
 	{
-		BigInteger b1 = new BigInteger("1");
-		BigInteger b2 = new BigInteger("2");
-		BigInteger b3 = new BigInteger("3");
-		BigInteger b4 = new BigInteger("4");
-		BigInteger b5 = new BigInteger("5");
-		BigInteger b6 = new BigInteger("6");
+		HashKey b1 = HashKey.valueOf(1);
+		HashKey b2 = HashKey.valueOf(2);
+		HashKey b3 = HashKey.valueOf(3);
+		HashKey b4 = HashKey.valueOf(4);
+		HashKey b5 = HashKey.valueOf(5);
+		HashKey b6 = HashKey.valueOf(6);
 		kvData.put(b1,"jona1");
 		kvData.put(b2,"jona2");
 		kvData.put(b3,"jona3");
 		kvData.put(b4,"jona4");
 		kvData.put(b5,"jona5");
 		kvData.put(b6,"jona6");
-		HashMap<BigInteger, String> movingData = new HashMap<BigInteger,String>();
+		HashMap<HashKey, String> movingData = new HashMap<HashKey,String>();
 		movingData = kvData.findMovingData(b3, b5, false);
 		assertTrue(movingData.size() == 3);
-		Iterator<Entry<BigInteger, String>> it = movingData.entrySet().iterator();
+		Iterator<Entry<HashKey, String>> it = movingData.entrySet().iterator();
 		while (it.hasNext()) {
-			Map.Entry<BigInteger,String> pairs = (Entry<BigInteger, String>)it.next();
-			BigInteger key = pairs.getKey();
+			Map.Entry<HashKey,String> pairs = (Entry<HashKey, String>)it.next();
+			HashKey key = pairs.getKey();
 			if(key.equals(b3))
 				assertTrue(pairs.getValue().equals("jona3"));
 			if(key.equals(b4))
@@ -89,10 +89,10 @@ public class KVDataTest {
 		}
 		//movingData = kvData.findMovingData(b5, b3);
 		assertTrue(movingData.size() == 3);
-		Iterator<Entry<BigInteger, String>> it1 = movingData.entrySet().iterator();
+		Iterator<Entry<HashKey, String>> it1 = movingData.entrySet().iterator();
 		while (it1.hasNext()) {
-			Map.Entry<BigInteger,String> pairs = (Entry<BigInteger, String>)it1.next();
-			BigInteger key = pairs.getKey();
+			Map.Entry<HashKey,String> pairs = (Entry<HashKey, String>)it1.next();
+			HashKey key = pairs.getKey();
 			if(key.equals(b3))
 				assertTrue(pairs.getValue().equals("jona3"));
 			if(key.equals(b4))
@@ -103,16 +103,30 @@ public class KVDataTest {
 
 	}
 	
+	@Test
+	public void testFindMovingDataCorner()
+	{
+		for (int i = 1; i <= 6; i++)
+			kvData.put(HashKey.valueOf(i), "jona" + i);
+		HashMap<HashKey, String> movingData = kvData.findMovingData(HashKey.valueOf(5), HashKey.valueOf(2), true);
+		assertTrue(movingData.size() == 4);
+		assertTrue(movingData.containsKey(HashKey.valueOf(1)));
+		assertTrue(movingData.containsKey(HashKey.valueOf(2)));
+		assertTrue(movingData.containsKey(HashKey.valueOf(5)));
+		assertTrue(movingData.containsKey(HashKey.valueOf(6)));
+		assertTrue(kvData.findMovingData(HashKey.valueOf(5), HashKey.valueOf(2), false).isEmpty());
+	}
+
 	@Test
 	public void testMovedatatoEmpty()
 	{
-		BigInteger b1 = new BigInteger("1");
-		BigInteger b2 = new BigInteger("2");
-		BigInteger b3 = new BigInteger("3");
-		BigInteger b4 = new BigInteger("4");
-		BigInteger b5 = new BigInteger("5");
-		BigInteger b6 = new BigInteger("6");
-		HashMap<BigInteger, String> movingData = new HashMap<BigInteger,String>();
+		HashKey b1 = HashKey.valueOf(1);
+		HashKey b2 = HashKey.valueOf(2);
+		HashKey b3 = HashKey.valueOf(3);
+		HashKey b4 = HashKey.valueOf(4);
+		HashKey b5 = HashKey.valueOf(5);
+		HashKey b6 = HashKey.valueOf(6);
+		HashMap<HashKey, String> movingData = new HashMap<HashKey,String>();
 		movingData.put(b1,"jona1");
 		movingData.put(b2,"jona2");
 		movingData.put(b3,"jona3");
@@ -126,16 +140,16 @@ public class KVDataTest {
 	@Test
 	public void testMovedatatonotEmpty()
 	{
-		BigInteger b1 = new BigInteger("1");
-		BigInteger b2 = new BigInteger("2");
-		BigInteger b3 = new BigInteger("3");
-		BigInteger b4 = new BigInteger("4");
-		BigInteger b5 = new BigInteger("5");
-		BigInteger b6 = new BigInteger("6");
+		HashKey b1 = HashKey.valueOf(1);
+		HashKey b2 = HashKey.valueOf(2);
+		HashKey b3 = HashKey.valueOf(3);
+		HashKey b4 = HashKey.valueOf(4);
+		HashKey b5 = HashKey.valueOf(5);
+		HashKey b6 = HashKey.valueOf(6);
 		kvData.put(b1,"jona1");
 		kvData.put(b2,"jona2");
 		kvData.put(b3,"jona3");
-		HashMap<BigInteger, String> movingData = new HashMap<BigInteger,String>();
+		HashMap<HashKey, String> movingData = new HashMap<HashKey,String>();
 		movingData.put(b4,"jona4");
 		movingData.put(b5,"jona5");
 		movingData.put(b6,"jona6");
@@ -145,19 +159,19 @@ public class KVDataTest {
 	@Test
 	public void testRemoveData()
 	{
-		BigInteger b1 = new BigInteger("1");
-		BigInteger b2 = new BigInteger("2");
-		BigInteger b3 = new BigInteger("3");
-		BigInteger b4 = new BigInteger("4");
-		BigInteger b5 = new BigInteger("5");
-		BigInteger b6 = new BigInteger("6");
+		HashKey b1 = HashKey.valueOf(1);
+		HashKey b2 = HashKey.valueOf(2);
+		HashKey b3 = HashKey.valueOf(3);
+		HashKey b4 = HashKey.valueOf(4);
+		HashKey b5 = HashKey.valueOf(5);
+		HashKey b6 = HashKey.valueOf(6);
 		kvData.put(b1,"jona1");
 		kvData.put(b2,"jona2");
 		kvData.put(b3,"jona3");
 		kvData.put(b4,"jona4");
 		kvData.put(b5,"jona5");
 		kvData.put(b6,"jona6");
-		HashMap<BigInteger, String> movingData = new HashMap<BigInteger,String>();
+		HashMap<HashKey, String> movingData = new HashMap<HashKey,String>();
 		movingData.put(b4,"jona4");
 		movingData.put(b5,"jona5");
 		movingData.put(b6,"jona6");
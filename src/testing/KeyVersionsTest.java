@@ -0,0 +1,70 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import app_kvServer.KeyVersions;
+import common.messages.Consistency;
+import consistent_hashing.ConsistentHashing;
+import consistent_hashing.HashKey;
+
+public class KeyVersionsTest {
+
+	@Test
+	public void testVersionsIncrease() {
+		long last = KeyVersions.nextVersion();
+		for (int i = 0; i < 100000; i++) {
+			long version = KeyVersions.nextVersion();
+			assertTrue(version > last);
+			last = version;
+		}
+	}
+
+	@Test
+	public void testVersionAfterCurrentStamp() {
+		long current = KeyVersions.nextVersion();
+		/* a stamp of another server whose clock is ahead, or one recovered from disk */
+		long ahead = current + (1000L << 16);
+		assertTrue(KeyVersions.nextVersion(ahead) > ahead);
+		assertTrue(KeyVersions.nextVersion(0) > current);
+		assertTrue(KeyVersions.nextVersion(1) > current);
+	}
+
+	@Test
+	public void testAccepts() {
+		KeyVersions versions = new KeyVersions();
+		HashKey key = ConsistentHashing.hashKey("key");
+		assertEquals(0, versions.get(key));
+		assertTrue(versions.accepts(key, 5));
+
+		versions.set(key, 5);
+		assertTrue(versions.accepts(key, 5));
+		assertTrue(versions.accepts(key, 6));
+		assertFalse(versions.accepts(key, 4));
+		/* writes without a stamp are always applied */
+		assertTrue(versions.accepts(key, 0));
+
+		versions.clear();
+		assertEquals(0, versions.get(key));
+	}
+
+	@Test
+	public void testLockPerKey() {
+		KeyVersions versions = new KeyVersions();
+		HashKey key = ConsistentHashing.hashKey("key");
+		assertSame(versions.lockFor(key), versions.lockFor(ConsistentHashing.hashKey("key")));
+	}
+
+	@Test
+	public void testCopies() {
+		assertEquals(1, Consistency.LOCAL.copies(3));
+		assertEquals(2, Consistency.ONE.copies(3));
+		assertEquals(2, Consistency.QUORUM.copies(3));
+		assertEquals(3, Consistency.ALL.copies(3));
+		/* fewer servers than replicas in the hash circle */
+		assertEquals(1, Consistency.ONE.copies(1));
+		assertEquals(2, Consistency.QUORUM.copies(2));
+		assertTrue(Consistency.QUORUM.copies(3) + Consistency.QUORUM.copies(3) > 3);
+	}
+}
@@ -0,0 +1,195 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import app_kvServer.KVData;
+import app_kvServer.KeyVersions;
+import app_kvServer.LSMStorageEngine;
+import app_kvServer.MerkleTree;
+import consistent_hashing.ConsistentHashing;
+import consistent_hashing.HashKey;
+
+public class LSMStorageEngineTest {
+
+	File directory;
+	LSMStorageEngine engine;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("lsm", "");
+		directory.delete();
+		/* small memtables, so the tests flush and compact */
+		engine = new LSMStorageEngine(directory, 4 * 1024, 3);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		engine.close();
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Test
+	public void testPutUpdateDelete() {
+		HashKey b1 = HashKey.valueOf(1);
+		HashKey b2 = HashKey.valueOf(2);
+		assertNull(engine.put(b1, "jona"));
+		assertNull(engine.put(b2, "gull"));
+		assertEquals("seagull", engine.put(b2, "seagull"));
+		assertEquals("seagull", engine.get(b2));
+		assertEquals("jona", engine.put(b1, "null"));
+		assertNull(engine.get(b1));
+		assertNull(engine.put(b1, "null"));
+		assertEquals(1, engine.size());
+	}
+
+	@Test
+	public void testFlushCompactionAndRecovery() throws IOException {
+		for (int i = 0; i < 2000; i++) {
+			engine.put(HashKey.valueOf(i), "value" + i);
+		}
+		for (int i = 0; i < 2000; i += 2) {
+			engine.put(HashKey.valueOf(i), "null");
+		}
+		for (int i = 1; i < 2000; i += 4) {
+			engine.put(HashKey.valueOf(i), "updated" + i);
+		}
+		assertEquals(1000, engine.size());
+		assertTrue(directory.list().length > 1);
+		assertContent(engine);
+
+		engine.close();
+		engine = new LSMStorageEngine(directory, 4 * 1024, 3);
+		assertEquals(1000, engine.size());
+		assertContent(engine);
+	}
+
+	@Test
+	public void testMerkleTreeIsUpdated() {
+		for (int i = 0; i < 1000; i++) {
+			engine.put(HashKey.valueOf(i), "value" + i);
+		}
+		MerkleTree tree = new MerkleTree(engine, 2);
+		engine.setMerkleTree(tree);
+		for (int i = 0; i < 2000; i += 2) {
+			engine.put(HashKey.valueOf(i), i % 4 == 0 ? "null" : "updated" + i);
+		}
+		engine.remove(engine.findMovingData(HashKey.valueOf(100), HashKey.valueOf(199), false));
+		MerkleTree rebuilt = new MerkleTree(engine, 2);
+		for (int leaf = 0; leaf < rebuilt.getWidth(2); leaf++) {
+			assertEquals(rebuilt.getHash(2, leaf), tree.getHash(2, leaf));
+		}
+		assertEquals(rebuilt.getHash(0, 0), tree.getHash(0, 0));
+	}
+
+	@Test
+	public void testVersionsSurviveFlushAndRecovery() throws IOException {
+		for (int i = 0; i < 2000; i++) {
+			engine.put(HashKey.valueOf(i), "value" + i, 1000 + i);
+		}
+		engine.put(HashKey.valueOf(0), "null", 5000);
+		engine.put(HashKey.valueOf(1), "unstamped");
+		assertTrue(directory.list().length > 1);
+		assertVersions(engine);
+
+		engine.close();
+		engine = new LSMStorageEngine(directory, 4 * 1024, 3);
+		assertVersions(engine);
+		assertEquals("value2", engine.get(HashKey.valueOf(2)));
+	}
+
+	private void assertVersions(LSMStorageEngine engine) {
+		KeyVersions versions = new KeyVersions();
+		engine.loadVersions(versions);
+		/* the tombstone keeps the stamp of the delete until a compaction drops it */
+		long deleted = versions.get(HashKey.valueOf(0));
+		assertTrue(deleted == 5000 || deleted == 0);
+		assertEquals(0, versions.get(HashKey.valueOf(1)));
+		for (int i = 2; i < 2000; i++) {
+			assertEquals(1000 + i, versions.get(HashKey.valueOf(i)));
+		}
+	}
+
+	private void assertContent(LSMStorageEngine engine) {
+		for (int i = 0; i < 2000; i++) {
+			String value = engine.get(HashKey.valueOf(i));
+			if (i % 2 == 0) {
+				assertNull(value);
+			} else if (i % 4 == 1) {
+				assertEquals("updated" + i, value);
+			} else {
+				assertEquals("value" + i, value);
+			}
+		}
+		int count = 0;
+		HashKey last = null;
+		for (Map.Entry<HashKey, String> entry : engine) {
+			assertTrue(last == null || last.compareTo(entry.getKey()) < 0);
+			last = entry.getKey();
+			count++;
+		}
+		assertEquals(1000, count);
+	}
+
+	@Test
+	public void testFindMovingDataMatchesKVData() {
+		KVData kvData = new KVData();
+		for (int i = 0; i < 500; i++) {
+			HashKey key = ConsistentHashing.hashKey("key" + i);
+			kvData.put(key, "value" + i);
+			engine.put(key, "value" + i);
+		}
+		HashKey start = ConsistentHashing.hashKey("key17");
+		HashKey end = ConsistentHashing.hashKey("key42");
+		HashKey low = start.min(end);
+		HashKey high = start.max(end);
+
+		assertEquals(kvData.findMovingData(low, high, false), engine.findMovingData(low, high, false));
+		assertEquals(kvData.findMovingData(high, low, true), engine.findMovingData(high, low, true));
+
+		HashMap<HashKey, String> moved = engine.findMovingData(low, high, false);
+		engine.remove(moved);
+		assertEquals(500 - moved.size(), engine.size());
+		assertTrue(engine.findMovingData(low, high, false).isEmpty());
+
+		engine.moveData(moved);
+		assertEquals(500, engine.size());
+		assertEquals(moved, engine.findMovingData(low, high, false));
+	}
+
+	@Test
+	public void testReadChunksMatchesKVData() {
+		KVData kvData = new KVData();
+		for (int i = 0; i < 500; i++) {
+			HashKey key = ConsistentHashing.hashKey("key" + i);
+			kvData.put(key, "value" + i);
+			engine.put(key, "value" + i);
+		}
+		engine.put(ConsistentHashing.hashKey("key7"), "null");
+		kvData.put(ConsistentHashing.hashKey("key7"), "null");
+
+		Map<HashKey, String> chunked = new HashMap<HashKey, String>();
+		HashKey after = null;
+		List<Map.Entry<HashKey, String>> chunk;
+		while (!(chunk = engine.readChunk(after, 200)).isEmpty()) {
+			assertEquals(kvData.readChunk(after, 200), chunk);
+			for (Map.Entry<HashKey, String> entry : chunk) {
+				assertTrue(after == null || entry.getKey().compareTo(after) > 0);
+				chunked.put(entry.getKey(), entry.getValue());
+				after = entry.getKey();
+			}
+		}
+		assertEquals(499, chunked.size());
+		assertEquals(kvData.dataStore, chunked);
+	}
+}
@@ -0,0 +1,120 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import app_kvServer.KVData;
+import app_kvServer.MerkleTree;
+import consistent_hashing.ConsistentHashing;
+import consistent_hashing.HashKey;
+
+public class MerkleTreeTest {
+
+	@Test
+	public void testEqualCopies() {
+		KVData a = new KVData();
+		KVData b = new KVData();
+		for (int i = 0; i < 1000; i++) {
+			a.put(ConsistentHashing.hashKey("key" + i), "value" + i);
+		}
+		/* a different order of the writes and deleted keys do not change the tree */
+		for (int i = 999; i >= 0; i--) {
+			b.put(ConsistentHashing.hashKey("key" + i), "value" + i);
+		}
+		b.put(ConsistentHashing.hashKey("deleted"), "null");
+		MerkleTree treeA = new MerkleTree(a, 2);
+		MerkleTree treeB = new MerkleTree(b, 2);
+		assertEquals(treeA.getHash(0, 0), treeB.getHash(0, 0));
+		for (int leaf = 0; leaf < treeA.getWidth(2); leaf++) {
+			assertEquals(treeA.getHash(2, leaf), treeB.getHash(2, leaf));
+		}
+	}
+
+	@Test
+	public void testDifferenceIsFoundInOneLeaf() {
+		KVData a = new KVData();
+		KVData b = new KVData();
+		for (int i = 0; i < 1000; i++) {
+			a.put(ConsistentHashing.hashKey("key" + i), "value" + i);
+			b.put(ConsistentHashing.hashKey("key" + i), "value" + i);
+		}
+		HashKey changed = ConsistentHashing.hashKey("key500");
+		b.put(changed, "other");
+		MerkleTree treeA = new MerkleTree(a, 3);
+		MerkleTree treeB = new MerkleTree(b, 3);
+		assertTrue(treeA.getHash(0, 0) != treeB.getHash(0, 0));
+		int differing = 0;
+		for (int leaf = 0; leaf < treeA.getWidth(3); leaf++) {
+			if (treeA.getHash(3, leaf) != treeB.getHash(3, leaf)) {
+				assertEquals(MerkleTree.leafOf(changed, 3), leaf);
+				differing++;
+			}
+		}
+		assertEquals(1, differing);
+
+		Map<HashKey, Long> hashes = MerkleTree.entryHashes(b, 3, Collections.singleton(MerkleTree.leafOf(changed, 3)));
+		assertEquals(Long.valueOf(MerkleTree.entryHash(changed, "other")), hashes.get(changed));
+	}
+
+	@Test
+	public void testUpdatesMatchRebuild() {
+		KVData data = new KVData();
+		for (int i = 0; i < 1000; i++) {
+			data.put(ConsistentHashing.hashKey("key" + i), "value" + i);
+		}
+		MerkleTree tree = new MerkleTree(data, 3);
+		data.setMerkleTree(tree);
+		for (int i = 0; i < 1000; i += 3) {
+			data.put(ConsistentHashing.hashKey("key" + i), "updated" + i);
+		}
+		for (int i = 1; i < 1000; i += 3) {
+			data.put(ConsistentHashing.hashKey("key" + i), "null");
+		}
+		data.put(ConsistentHashing.hashKey("new"), "value");
+		data.put(ConsistentHashing.hashKey("missing"), "null");
+		assertSameHashes(new MerkleTree(data, 3), tree);
+		assertFalse(tree.isStale());
+
+		HashMap<HashKey, String> moved = new HashMap<HashKey, String>();
+		moved.put(ConsistentHashing.hashKey("moved"), "value");
+		data.moveData(moved);
+		assertTrue(tree.isStale());
+	}
+
+	@Test
+	public void testSetLeaves() {
+		KVData data = new KVData();
+		for (int i = 0; i < 1000; i++) {
+			data.put(ConsistentHashing.hashKey("key" + i), "value" + i);
+		}
+		MerkleTree tree = new MerkleTree(data, 2);
+		/* a change the tree missed */
+		HashKey changed = ConsistentHashing.hashKey("key7");
+		data.put(changed, "changed");
+		Set<Integer> leaves = Collections.singleton(MerkleTree.leafOf(changed, 2));
+		tree.setLeaves(leaves, MerkleTree.entryHashes(data, 2, leaves));
+		assertSameHashes(new MerkleTree(data, 2), tree);
+	}
+
+	private static void assertSameHashes(MerkleTree expected, MerkleTree actual) {
+		for (int level = 0; level <= expected.getDepth(); level++) {
+			for (int node = 0; node < expected.getWidth(level); node++) {
+				assertEquals(expected.getHash(level, node), actual.getHash(level, node));
+			}
+		}
+	}
+
+	@Test
+	public void testDepth() {
+		assertEquals(1, MerkleTree.depthFor(0));
+		assertEquals(1, MerkleTree.depthFor(128));
+		assertEquals(2, MerkleTree.depthFor(129));
+		assertEquals(MerkleTree.MAX_DEPTH, MerkleTree.depthFor(Long.MAX_VALUE));
+	}
+}
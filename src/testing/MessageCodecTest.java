@@ -0,0 +1,110 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import common.CommonCrypto;
+import common.Settings;
+import common.messages.InvalidMessageException;
+import crypto_protocol.ClientInitMessage;
+import crypto_protocol.ClientKeyExchangeMessage;
+import crypto_protocol.ErrorMessage;
+import crypto_protocol.MessageCodec;
+import crypto_protocol.ServerAuthConfirmationMessage;
+import crypto_protocol.ServerInitMessage;
+
+public class MessageCodecTest {
+	private static X509Certificate certificate;
+
+	@BeforeClass
+	public static void loadCertificate() throws Exception {
+		InputStream certificateFile = new FileInputStream(Settings.SERVER_CERT_PATH);
+		certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(certificateFile);
+		certificateFile.close();
+	}
+
+	private static byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) (i * 7);
+		}
+		return bytes;
+	}
+
+	@Test
+	public void testClientInit() throws Exception {
+		ClientInitMessage message = new ClientInitMessage(bytes(100));
+		ClientInitMessage decoded = (ClientInitMessage) MessageCodec.decode(MessageCodec.encode(message));
+		assertArrayEquals(message.getNonce(), decoded.getNonce());
+		assertEquals(message.getCipherSuite(), decoded.getCipherSuite());
+		assertEquals(message.getOfferedCiphers(), decoded.getOfferedCiphers());
+		assertArrayEquals(bytes(100), decoded.getSessionTicket());
+
+		decoded = (ClientInitMessage) MessageCodec.decode(MessageCodec.encode(new ClientInitMessage()));
+		assertNull(decoded.getSessionTicket());
+	}
+
+	@Test
+	public void testServerInit() throws Exception {
+		ServerInitMessage message = new ServerInitMessage(Settings.TRANSFER_ENCRYPTION, certificate, true, true);
+		ServerInitMessage decoded = (ServerInitMessage) MessageCodec.decode(MessageCodec.encode(message));
+		assertArrayEquals(message.getNonce(), decoded.getNonce());
+		assertEquals(Settings.TRANSFER_ENCRYPTION, decoded.getCipherSuite());
+		assertEquals(certificate, decoded.getCertificate());
+		assertTrue(decoded.isClientAuthRequired());
+		assertTrue(decoded.isResumed());
+	}
+
+	@Test
+	public void testClientKeyExchange() throws Exception {
+		ClientKeyExchangeMessage decoded = (ClientKeyExchangeMessage) MessageCodec.decode(
+				MessageCodec.encode(new ClientKeyExchangeMessage(bytes(256), bytes(20), certificate, bytes(256))));
+		assertArrayEquals(bytes(256), decoded.getEncryptedSecret());
+		assertArrayEquals(bytes(20), decoded.getSecureSessionHash());
+		assertEquals(certificate, decoded.getClientCertificate());
+		assertArrayEquals(bytes(256), decoded.getSignature());
+		assertTrue(decoded.isClientAuthRequired());
+
+		decoded = (ClientKeyExchangeMessage) MessageCodec.decode(MessageCodec.encode(new ClientKeyExchangeMessage(bytes(256), bytes(20))));
+		assertFalse(decoded.isClientAuthRequired());
+		assertNull(decoded.getClientCertificate());
+	}
+
+	@Test
+	public void testServerAuthConfirmationAndError() throws Exception {
+		ServerAuthConfirmationMessage decoded = (ServerAuthConfirmationMessage) MessageCodec.decode(
+				MessageCodec.encode(new ServerAuthConfirmationMessage(bytes(20), bytes(12), false)));
+		assertArrayEquals(bytes(20), decoded.getConfirmationHash());
+		assertArrayEquals(bytes(12), decoded.getIV());
+		assertNull(decoded.getSessionTicket());
+
+		ErrorMessage error = (ErrorMessage) MessageCodec.decode(MessageCodec.encode(new ErrorMessage("handshake failed")));
+		assertEquals("handshake failed", error.getMessage());
+	}
+
+	@Test
+	public void testSerializedMessageIsNotEncoded() throws Exception {
+		assertFalse(MessageCodec.isEncoded(CommonCrypto.objectToByteArray(new ClientInitMessage())));
+		assertTrue(MessageCodec.isEncoded(MessageCodec.encode(new ClientInitMessage())));
+	}
+
+	@Test(expected = InvalidMessageException.class)
+	public void testTruncatedMessage() throws Exception {
+		byte[] bytes = MessageCodec.encode(new ClientKeyExchangeMessage(bytes(256), bytes(20)));
+		MessageCodec.decode(Arrays.copyOf(bytes, bytes.length - 5));
+	}
+
+	@Test(expected = InvalidMessageException.class)
+	public void testTrailingBytes() throws Exception {
+		byte[] bytes = MessageCodec.encode(new ErrorMessage("error"));
+		MessageCodec.decode(Arrays.copyOf(bytes, bytes.length + 1));
+	}
+}
@@ -0,0 +1,236 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import app_kvServer.FrameHandler;
+import app_kvServer.HandshakeExecutor;
+import app_kvServer.NioServer;
+import common.Settings;
+
+public class NioServerTest {
+
+	private ServerSocketChannel serverChannel;
+	private NioServer nioServer;
+	private Thread acceptor;
+	/* a frame starting with "block" is processed once this is released */
+	private static CountDownLatch unblocked = new CountDownLatch(0);
+	private int highWaterMark;
+
+	/*
+	 * echoes every frame, closes the connection on the payload "bye".
+	 * The frames after "handshake" up to "done" are a handshake, "thread" is answered with the name of the thread.
+	 */
+	private static class EchoHandler implements FrameHandler {
+		private final OutputStream output;
+		private boolean handshake;
+
+		EchoHandler(OutputStream output) {
+			this.output = output;
+		}
+
+		public void processFrame(int encFlag, int ident, byte[] payload) throws IOException {
+			String text = new String(payload, "UTF-8");
+			if (text.equals("thread")) {
+				payload = Thread.currentThread().getName().getBytes("UTF-8");
+			} else if (text.startsWith("block")) {
+				try {
+					unblocked.await();
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted");
+				}
+			}
+			output.write(frame(encFlag, ident, payload));
+			output.flush();
+			if (text.equals("bye")) {
+				output.close();
+			} else if (text.equals("handshake")) {
+				handshake = true;
+			} else if (text.equals("done")) {
+				handshake = false;
+			}
+		}
+
+		public boolean isHandshake(int ident) {
+			return handshake;
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		highWaterMark = Settings.CONNECTION_HIGH_WATER_MARK;
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		nioServer = new NioServer(new NioServer.HandlerFactory() {
+			public FrameHandler createHandler(Socket socket, OutputStream output) {
+				return new EchoHandler(output);
+			}
+		}, 2, 4, new HandshakeExecutor(1, 4, 0));
+		acceptor = new Thread() {
+			public void run() {
+				try {
+					while (true) {
+						nioServer.register(serverChannel.accept());
+					}
+				} catch (IOException e) {
+					// server channel closed
+				}
+			}
+		};
+		acceptor.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		serverChannel.close();
+		acceptor.join();
+		unblocked.countDown();
+		nioServer.shutdown();
+		Settings.CONNECTION_HIGH_WATER_MARK = highWaterMark;
+	}
+
+	private static byte[] frame(int encFlag, int ident, byte[] payload) {
+		return ByteBuffer.allocate(12 + payload.length).putInt(encFlag).putInt(ident).putInt(payload.length).put(payload).array();
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket("127.0.0.1", serverChannel.socket().getLocalPort());
+		socket.setSoTimeout(5000);
+		return socket;
+	}
+
+	private static String readPayload(DataInputStream input) throws IOException {
+		assertEquals(0, input.readInt());
+		assertEquals(1, input.readInt());
+		byte[] payload = new byte[input.readInt()];
+		input.readFully(payload);
+		return new String(payload, "UTF-8");
+	}
+
+	@Test
+	public void testFramesAreProcessedInOrder() throws IOException {
+		Socket socket = connect();
+		DataInputStream input = new DataInputStream(socket.getInputStream());
+		ByteBuffer all = ByteBuffer.allocate(100 * 32);
+		for (int i = 0; i < 100; i++) {
+			all.put(frame(0, 1, ("message" + i).getBytes("UTF-8")));
+		}
+		socket.getOutputStream().write(all.array(), 0, all.position());
+		for (int i = 0; i < 100; i++) {
+			assertEquals("message" + i, readPayload(input));
+		}
+		socket.close();
+	}
+
+	@Test
+	public void testFrameSplitAcrossWrites() throws Exception {
+		Socket socket = connect();
+		DataInputStream input = new DataInputStream(socket.getInputStream());
+		byte[] bytes = frame(0, 1, "fragmented".getBytes("UTF-8"));
+		for (byte b : bytes) {
+			socket.getOutputStream().write(b);
+			socket.getOutputStream().flush();
+		}
+		assertEquals("fragmented", readPayload(input));
+		socket.close();
+	}
+
+	@Test
+	public void testLargeFrame() throws IOException {
+		Socket socket = connect();
+		DataInputStream input = new DataInputStream(socket.getInputStream());
+		StringBuilder builder = new StringBuilder();
+		while (builder.length() < 1024 * 1024) {
+			builder.append("0123456789");
+		}
+		socket.getOutputStream().write(frame(0, 1, builder.toString().getBytes("UTF-8")));
+		assertEquals(builder.toString(), readPayload(input));
+		socket.close();
+	}
+
+	@Test
+	public void testCloseAfterReply() throws IOException {
+		Socket socket = connect();
+		DataInputStream input = new DataInputStream(socket.getInputStream());
+		socket.getOutputStream().write(frame(0, 1, "bye".getBytes("UTF-8")));
+		assertEquals("bye", readPayload(input));
+		assertEquals(-1, input.read());
+		socket.close();
+	}
+
+	@Test
+	public void testHandshakeOnHandshakeExecutor() throws IOException {
+		Socket socket = connect();
+		DataInputStream input = new DataInputStream(socket.getInputStream());
+		ByteBuffer all = ByteBuffer.allocate(200);
+		for (String payload : new String[] { "thread", "handshake", "thread", "done", "thread" }) {
+			all.put(frame(0, 1, payload.getBytes("UTF-8")));
+		}
+		socket.getOutputStream().write(all.array(), 0, all.position());
+		assertTrue(readPayload(input).startsWith("SERVER worker-"));
+		assertEquals("handshake", readPayload(input));
+		assertTrue(readPayload(input).startsWith("SERVER handshake-"));
+		assertEquals("done", readPayload(input));
+		assertTrue(readPayload(input).startsWith("SERVER worker-"));
+		socket.close();
+	}
+
+	@Test
+	public void testReadingPausesAboveHighWaterMark() throws Exception {
+		Settings.CONNECTION_HIGH_WATER_MARK = 64 * 1024;
+		unblocked = new CountDownLatch(1);
+		Socket socket = connect();
+		DataInputStream input = new DataInputStream(socket.getInputStream());
+		final OutputStream output = socket.getOutputStream();
+		final int frames = 1024;
+		StringBuilder builder = new StringBuilder("block");
+		while (builder.length() < 64 * 1024) {
+			builder.append("0123456789");
+		}
+		final byte[] bytes = frame(0, 1, builder.toString().getBytes("UTF-8"));
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < frames; i++) {
+						output.write(bytes);
+					}
+				} catch (IOException e) {
+					// connection closed
+				}
+			}
+		};
+		writer.start();
+
+		/* the server stops reading while the frames are not processed, 64 MB do not fit into the socket buffers */
+		writer.join(1000);
+		assertTrue(writer.isAlive());
+
+		unblocked.countDown();
+		for (int i = 0; i < frames; i++) {
+			assertEquals(builder.toString(), readPayload(input));
+		}
+		writer.join(5000);
+		assertFalse(writer.isAlive());
+		socket.close();
+	}
+
+	@Test
+	public void testInvalidHeaderClosesConnection() throws IOException {
+		Socket socket = connect();
+		socket.getOutputStream().write(frame(7, 1, "invalid".getBytes("UTF-8")));
+		assertEquals(-1, socket.getInputStream().read());
+		socket.close();
+	}
+}
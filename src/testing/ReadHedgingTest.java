@@ -0,0 +1,103 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import client.ReadHedging;
+
+public class ReadHedgingTest {
+
+	@Test
+	public void testNoHedgeWithoutSamples() {
+		ReadHedging hedging = new ReadHedging(99, 1, 0.05);
+		assertEquals(-1, hedging.started());
+		for (int i = 0; i < 10; i++) {
+			hedging.record(5000000);
+		}
+		assertEquals(-1, hedging.getDelayNanos());
+	}
+
+	@Test
+	public void testDelayIsPercentile() {
+		ReadHedging hedging = new ReadHedging(90, 0, 0.05);
+		for (int i = 1; i <= 100; i++) {
+			hedging.record(i * 1000000L);
+		}
+		assertEquals(90000000L, hedging.getDelayNanos());
+	}
+
+	@Test
+	public void testMinimumDelay() {
+		ReadHedging hedging = new ReadHedging(99, 2, 0.05);
+		for (int i = 0; i < 100; i++) {
+			hedging.record(1000);
+		}
+		assertEquals(2000000L, hedging.getDelayNanos());
+	}
+
+	@Test
+	public void testDisabled() {
+		ReadHedging hedging = new ReadHedging(0, 1, 0.05);
+		for (int i = 0; i < 100; i++) {
+			hedging.record(1000000);
+		}
+		assertEquals(-1, hedging.started());
+		assertFalse(hedging.isEnabled());
+	}
+
+	@Test
+	public void testMaximumRate() {
+		ReadHedging hedging = new ReadHedging(99, 1, 0.1);
+		for (int i = 0; i < 100; i++) {
+			hedging.started();
+		}
+		int hedged = 0;
+		for (int i = 0; i < 100; i++) {
+			if (hedging.tryHedge()) {
+				hedged++;
+			}
+		}
+		assertEquals(10, hedged);
+		assertEquals(0.1, hedging.getHedgeRate(), 1e-9);
+		hedging.won();
+		assertEquals(1, hedging.getWins());
+	}
+
+	@Test
+	public void testMaximumRateWithConcurrentHedges() throws Exception {
+		final ReadHedging hedging = new ReadHedging(99, 1, 0.1);
+		for (int i = 0; i < 1000; i++) {
+			hedging.started();
+		}
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger hedged = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < 1000; i++) {
+						if (hedging.tryHedge()) {
+							hedged.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(100, hedged.get());
+		assertEquals(100, hedging.getHedges());
+	}
+}
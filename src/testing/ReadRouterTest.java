@@ -0,0 +1,92 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import client.ReadRouter;
+import common.ServerData;
+
+public class ReadRouterTest {
+
+	private final ServerData coordinator = new ServerData("node1", "127.0.0.1", 50000);
+	private final ServerData replica1 = new ServerData("node2", "127.0.0.1", 50001);
+	private final ServerData replica2 = new ServerData("node3", "127.0.0.1", 50002);
+	private final List<ServerData> servers = Arrays.asList(coordinator, replica1, replica2);
+
+	@Test
+	public void testRoundRobinVisitsEveryCopy() {
+		ReadRouter router = new ReadRouter(ReadRouter.Policy.ROUND_ROBIN);
+		List<ServerData> chosen = new ArrayList<ServerData>();
+		for (int i = 0; i < 6; i++) {
+			chosen.add(router.choose(servers));
+		}
+		for (ServerData server : servers) {
+			int count = 0;
+			for (ServerData c : chosen) {
+				if (c == server) {
+					count++;
+				}
+			}
+			assertEquals(2, count);
+		}
+	}
+
+	@Test
+	public void testLeastOutstanding() {
+		ReadRouter router = new ReadRouter(ReadRouter.Policy.LEAST_OUTSTANDING);
+		router.started(coordinator);
+		router.started(coordinator);
+		router.started(replica1);
+		for (int i = 0; i < 20; i++) {
+			assertSame(replica2, router.choose(servers));
+		}
+		router.finished(coordinator, 1000, false);
+		router.finished(coordinator, 1000, false);
+		router.started(replica2);
+		assertEquals(0, router.getOutstanding(coordinator));
+		assertSame(coordinator, router.choose(servers));
+	}
+
+	@Test
+	public void testLowestLatency() {
+		ReadRouter router = new ReadRouter(ReadRouter.Policy.LOWEST_LATENCY);
+		record(router, coordinator, 5000000);
+		record(router, replica1, 1000000);
+		record(router, replica2, 3000000);
+
+		int fastest = 0;
+		for (int i = 0; i < 100; i++) {
+			if (router.choose(servers) == replica1) {
+				fastest++;
+			}
+		}
+		/* all reads but the exploring ones go to the fastest copy */
+		assertTrue(fastest >= 95);
+	}
+
+	@Test
+	public void testFailurePenalty() {
+		ReadRouter router = new ReadRouter(ReadRouter.Policy.LOWEST_LATENCY);
+		record(router, replica1, 1000000);
+		router.started(replica1);
+		router.finished(replica1, 10, true);
+		assertTrue(router.getLatencyNanos(replica1) > 1000000);
+		assertEquals(0, router.getOutstanding(replica1));
+	}
+
+	@Test
+	public void testParsePolicy() {
+		assertEquals(ReadRouter.Policy.LEAST_OUTSTANDING, ReadRouter.Policy.parse("least_outstanding"));
+		assertEquals(ReadRouter.Policy.RANDOM, ReadRouter.Policy.parse("unknown"));
+	}
+
+	private static void record(ReadRouter router, ServerData server, long nanos) {
+		router.started(server);
+		router.finished(server, nanos, false);
+	}
+}
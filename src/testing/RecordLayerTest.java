@@ -0,0 +1,95 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import common.Settings;
+import crypto_protocol.CipherSuites;
+import crypto_protocol.SessionInfo;
+import crypto_protocol.SessionException;
+
+public class RecordLayerTest {
+
+	/* the sessions of a client and a server with the same key and IV, like after a handshake */
+	private static SessionInfo[] sessions(String cipherSuite) throws SessionException {
+		byte[] keyBytes = new byte[16];
+		new SecureRandom().nextBytes(keyBytes);
+		SessionInfo client = new SessionInfo("client", Settings.TRANSFER_ENCRYPTION);
+		SessionInfo server = new SessionInfo("server", Settings.TRANSFER_ENCRYPTION);
+		client.setTransferEncryption(cipherSuite, true);
+		server.setTransferEncryption(cipherSuite, false);
+		server.setEncKey(new SecretKeySpec(keyBytes, Settings.ALGORITHM_HASHING));
+		client.setEncKey(new SecretKeySpec(keyBytes, Settings.ALGORITHM_HASHING));
+		client.setIV(server.getIV());
+		return new SessionInfo[] { client, server };
+	}
+
+	@Test
+	public void testChooseFirstSupportedSuite() {
+		assertEquals(CipherSuites.AES_CBC, CipherSuites.choose(Arrays.asList("DES/ECB/NoPadding", CipherSuites.AES_CBC)));
+		assertEquals(Settings.TRANSFER_ENCRYPTION, CipherSuites.choose(null));
+		assertEquals(Settings.TRANSFER_ENCRYPTION, CipherSuites.choose(Arrays.asList("DES/ECB/NoPadding")));
+	}
+
+	@Test
+	public void testCbcRoundTrip() throws Exception {
+		SessionInfo[] sessions = sessions(CipherSuites.AES_CBC);
+		byte[] message = "put key value".getBytes(Settings.CHARSET);
+		assertArrayEquals(message, sessions[1].decrypt(sessions[0].encrypt(message)));
+		assertArrayEquals(message, sessions[0].decrypt(sessions[1].encrypt(message)));
+	}
+
+	@Test
+	public void testGcmRecordsUseNewNonces() throws Exception {
+		Assume.assumeTrue(CipherSuites.isSupported(CipherSuites.AES_GCM));
+		SessionInfo[] sessions = sessions(CipherSuites.AES_GCM);
+		byte[] message = "put key value".getBytes(Settings.CHARSET);
+
+		byte[] first = sessions[0].encrypt(message);
+		byte[] second = sessions[0].encrypt(message);
+		byte[] reply = sessions[1].encrypt(message);
+		assertEquals(message.length + CipherSuites.GCM_TAG_LENGTH / 8, first.length);
+		assertFalse(Arrays.equals(first, second));
+		assertFalse(Arrays.equals(first, reply));
+
+		assertArrayEquals(message, sessions[1].decrypt(first));
+		assertArrayEquals(message, sessions[1].decrypt(second));
+		assertArrayEquals(message, sessions[0].decrypt(reply));
+	}
+
+	@Test
+	public void testGcmRejectsModifiedRecord() throws Exception {
+		Assume.assumeTrue(CipherSuites.isSupported(CipherSuites.AES_GCM));
+		SessionInfo[] sessions = sessions(CipherSuites.AES_GCM);
+		byte[] record = sessions[0].encrypt("put key value".getBytes(Settings.CHARSET));
+		record[3] ^= 1;
+		try {
+			sessions[1].decrypt(record);
+			fail("A modified record was decrypted.");
+		} catch (GeneralSecurityException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testGcmRejectsReplayedRecord() throws Exception {
+		Assume.assumeTrue(CipherSuites.isSupported(CipherSuites.AES_GCM));
+		SessionInfo[] sessions = sessions(CipherSuites.AES_GCM);
+		byte[] record = sessions[0].encrypt("put key value".getBytes(Settings.CHARSET));
+		sessions[1].decrypt(record);
+		try {
+			sessions[1].decrypt(record);
+			fail("A replayed record was decrypted.");
+		} catch (GeneralSecurityException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import crypto_protocol.SessionTicketKey;
+
+public class SessionTicketTest {
+	private static PrivateKey serverKey;
+	private static PrivateKey otherKey;
+
+	@BeforeClass
+	public static void generateKeys() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		serverKey = generator.generateKeyPair().getPrivate();
+		otherKey = generator.generateKeyPair().getPrivate();
+	}
+
+	private static byte[] masterSecret() {
+		byte[] secret = new byte[47];
+		for (int i = 0; i < secret.length; i++) {
+			secret[i] = (byte) i;
+		}
+		return secret;
+	}
+
+	@Test
+	public void testOpenSealedTicket() throws Exception {
+		byte[] ticket = new SessionTicketKey(serverKey, 60000).seal(masterSecret(), null);
+		/* another server with the same key pair */
+		SessionTicketKey.Contents contents = new SessionTicketKey(serverKey, 60000).open(ticket);
+		assertArrayEquals(masterSecret(), contents.getMasterSecret());
+		assertNull(contents.getClientCertificate());
+	}
+
+	@Test(expected = GeneralSecurityException.class)
+	public void testRejectModifiedTicket() throws Exception {
+		SessionTicketKey key = new SessionTicketKey(serverKey, 60000);
+		byte[] ticket = key.seal(masterSecret(), null);
+		ticket[20] ^= 1;
+		key.open(ticket);
+	}
+
+	@Test(expected = GeneralSecurityException.class)
+	public void testRejectTicketOfOtherKey() throws Exception {
+		byte[] ticket = new SessionTicketKey(otherKey, 60000).seal(masterSecret(), null);
+		new SessionTicketKey(serverKey, 60000).open(ticket);
+	}
+
+	@Test(expected = GeneralSecurityException.class)
+	public void testRejectExpiredTicket() throws Exception {
+		SessionTicketKey key = new SessionTicketKey(serverKey, -1);
+		key.open(key.seal(masterSecret(), null));
+	}
+
+	@Test(expected = GeneralSecurityException.class)
+	public void testRejectTruncatedTicket() throws Exception {
+		new SessionTicketKey(serverKey, 60000).open(new byte[10]);
+	}
+}
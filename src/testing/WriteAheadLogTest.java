@@ -0,0 +1,167 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import app_kvServer.KVData;
+import app_kvServer.KeyVersions;
+import app_kvServer.WriteAheadLog;
+import app_kvServer.WriteAheadLog.FsyncPolicy;
+import consistent_hashing.HashKey;
+
+public class WriteAheadLogTest {
+
+	File logFile;
+
+	@Before
+	public void setUp() throws IOException {
+		logFile = File.createTempFile("kvdata", ".wal");
+	}
+
+	@After
+	public void tearDown() {
+		logFile.delete();
+	}
+
+	private KVData open(FsyncPolicy policy) throws IOException {
+		KVData kvData = new KVData();
+		kvData.recover(new WriteAheadLog(logFile, policy, 16, 5));
+		return kvData;
+	}
+
+	@Test
+	public void testRecoverPutUpdateDelete() throws IOException {
+		KVData kvData = open(FsyncPolicy.ALWAYS);
+		kvData.put(HashKey.valueOf(1), "jona");
+		kvData.put(HashKey.valueOf(2), "gull");
+		kvData.put(HashKey.valueOf(2), "seagull");
+		kvData.put(HashKey.valueOf(3), "tern");
+		kvData.put(HashKey.valueOf(3), "null");
+		kvData.close();
+
+		KVData recovered = open(FsyncPolicy.ALWAYS);
+		assertEquals(2, recovered.dataStore.size());
+		assertEquals("jona", recovered.get(HashKey.valueOf(1)));
+		assertEquals("seagull", recovered.get(HashKey.valueOf(2)));
+		assertNull(recovered.get(HashKey.valueOf(3)));
+		recovered.close();
+	}
+
+	@Test
+	public void testRecoverVersions() throws IOException {
+		KVData kvData = open(FsyncPolicy.ALWAYS);
+		kvData.put(HashKey.valueOf(1), "jona", 10);
+		kvData.put(HashKey.valueOf(2), "gull", 20);
+		kvData.put(HashKey.valueOf(2), "null", 21);
+		kvData.put(HashKey.valueOf(3), "tern");
+		HashMap<HashKey, String> movingData = new HashMap<HashKey, String>();
+		movingData.put(HashKey.valueOf(4), "moved");
+		HashMap<HashKey, Long> movingVersions = new HashMap<HashKey, Long>();
+		movingVersions.put(HashKey.valueOf(4), 40L);
+		kvData.moveData(movingData, movingVersions);
+		kvData.close();
+
+		KVData recovered = open(FsyncPolicy.ALWAYS);
+		KeyVersions versions = new KeyVersions();
+		recovered.loadVersions(versions);
+		assertEquals(10, versions.get(HashKey.valueOf(1)));
+		/* a deleted key keeps the stamp of the delete */
+		assertEquals(21, versions.get(HashKey.valueOf(2)));
+		assertEquals(0, versions.get(HashKey.valueOf(3)));
+		assertEquals(40, versions.get(HashKey.valueOf(4)));
+		assertEquals("moved", recovered.get(HashKey.valueOf(4)));
+		recovered.close();
+	}
+
+	@Test
+	public void testRecoverMovedData() throws IOException {
+		KVData kvData = open(FsyncPolicy.BATCH);
+		HashMap<HashKey, String> movingData = new HashMap<HashKey, String>();
+		for (int i = 0; i < 100; i++) {
+			movingData.put(HashKey.valueOf(i), "value" + i);
+		}
+		kvData.moveData(movingData);
+		kvData.remove(kvData.findMovingData(HashKey.valueOf(50), HashKey.valueOf(99), false));
+		kvData.close();
+
+		KVData recovered = open(FsyncPolicy.NONE);
+		assertEquals(50, recovered.dataStore.size());
+		assertEquals("value49", recovered.get(HashKey.valueOf(49)));
+		assertNull(recovered.get(HashKey.valueOf(50)));
+		recovered.close();
+	}
+
+	@Test
+	public void testFailedCommitLeavesDataUnchanged() throws IOException {
+		KVData kvData = new KVData();
+		kvData.recover(new WriteAheadLog(logFile, FsyncPolicy.ALWAYS, 16, 5) {
+			@Override
+			public void commit(long seq) throws IOException {
+				if (seq > 1) {
+					throw new IOException("disk failure");
+				}
+				super.commit(seq);
+			}
+		});
+		kvData.put(HashKey.valueOf(1), "jona");
+		try {
+			kvData.put(HashKey.valueOf(1), "gull");
+			fail("The failed commit must be reported.");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals("jona", kvData.get(HashKey.valueOf(1)));
+	}
+
+	@Test
+	public void testTornTailIsDiscarded() throws IOException {
+		KVData kvData = open(FsyncPolicy.ALWAYS);
+		kvData.put(HashKey.valueOf(1), "jona");
+		kvData.put(HashKey.valueOf(2), "gull");
+		kvData.close();
+
+		/* simulate a crash in the middle of the last record */
+		long intactLength = logFile.length();
+		RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+		file.setLength(intactLength - 3);
+		file.close();
+
+		KVData recovered = open(FsyncPolicy.ALWAYS);
+		assertEquals("jona", recovered.get(HashKey.valueOf(1)));
+		assertNull(recovered.get(HashKey.valueOf(2)));
+
+		/* records written after the recovery must be readable again */
+		recovered.put(HashKey.valueOf(4), "tern");
+		recovered.close();
+		KVData reopened = open(FsyncPolicy.ALWAYS);
+		assertEquals("tern", reopened.get(HashKey.valueOf(4)));
+		reopened.close();
+	}
+
+	@Test
+	public void testCorruptRecordIsDiscarded() throws IOException {
+		KVData kvData = open(FsyncPolicy.ALWAYS);
+		kvData.put(HashKey.valueOf(1), "jona");
+		long firstRecordLength = logFile.length();
+		kvData.put(HashKey.valueOf(2), "gull");
+		kvData.close();
+
+		RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+		file.seek(logFile.length() - 1);
+		file.write('x');
+		file.close();
+
+		KVData recovered = open(FsyncPolicy.ALWAYS);
+		assertEquals(1, recovered.dataStore.size());
+		assertEquals(firstRecordLength, logFile.length());
+		recovered.close();
+	}
+}